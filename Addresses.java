@@ -0,0 +1,107 @@
+import java.net.*;
+
+public class Addresses {
+
+    public static final long BROADCAST_MAC = 0xFFFFFFFFFFFFL;
+
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    private Addresses() {
+    }
+
+    // "00:1A:2B:3C:4D:5E" -> 48-bit value in the low bits of a long
+    public static long parseMac(String mac) {
+        String[] parts = mac.trim().split("[:-]");
+        if (parts.length != 6) {
+            throw new IllegalArgumentException("Invalid MAC address: " + mac);
+        }
+        long value = 0;
+        for (String part : parts) {
+            // One or two hex digits; parseInt would also take signs and longer numbers
+            if (part.isEmpty() || part.length() > 2) throw new IllegalArgumentException("Invalid MAC address: " + mac);
+            int octet = 0;
+            for (int i = 0; i < part.length(); i++) {
+                int digit = Character.digit(part.charAt(i), 16);
+                if (digit < 0) throw new IllegalArgumentException("Invalid MAC address: " + mac);
+                octet = (octet << 4) | digit;
+            }
+            value = (value << 8) | octet;
+        }
+        return value;
+    }
+
+    public static String formatMac(long mac) {
+        char[] chars = new char[17];
+        for (int i = 0; i < 6; i++) {
+            int b = (int) (mac >>> (40 - 8 * i)) & 0xFF;
+            int pos = i * 3;
+            chars[pos] = HEX[b >>> 4];
+            chars[pos + 1] = HEX[b & 0x0F];
+            if (i < 5) chars[pos + 2] = ':';
+        }
+        return new String(chars);
+    }
+
+    // Dotted quad or host name -> IPv4 address as an int (network byte order). Names are
+    // looked up, so this is for configuration and the console, never the receive path.
+    public static int parseIpv4(String ip) {
+        try {
+            return parseDottedQuad(ip);
+        } catch (IllegalArgumentException e) {
+            // fall through to name resolution
+        }
+        try {
+            return toInt(InetAddress.getByName(ip.trim()));
+        } catch (UnknownHostException e) {
+            throw new IllegalArgumentException("Invalid IPv4 address: " + ip);
+        }
+    }
+
+    // Dotted quad only -> IPv4 address as an int, for addresses read off the wire
+    public static int parseDottedQuad(String ip) {
+        String[] parts = ip.trim().split("\\.", -1);
+        if (parts.length != 4) {
+            throw new IllegalArgumentException("Invalid IPv4 address: " + ip);
+        }
+        int value = 0;
+        for (String part : parts) {
+            int octet = 0;
+            if (part.isEmpty() || part.length() > 3) throw new IllegalArgumentException("Invalid IPv4 address: " + ip);
+            for (int i = 0; i < part.length(); i++) {
+                char c = part.charAt(i);
+                if (c < '0' || c > '9') throw new IllegalArgumentException("Invalid IPv4 address: " + ip);
+                octet = octet * 10 + (c - '0');
+            }
+            if (octet > 255) throw new IllegalArgumentException("Invalid IPv4 address: " + ip);
+            value = (value << 8) | octet;
+        }
+        return value;
+    }
+
+    public static String formatIpv4(int ip) {
+        return ((ip >>> 24) & 0xFF) + "." + ((ip >>> 16) & 0xFF) + "." + ((ip >>> 8) & 0xFF) + "." + (ip & 0xFF);
+    }
+
+    public static int toInt(InetAddress address) {
+        byte[] bytes = address.getAddress();
+        if (bytes.length != 4) {
+            throw new IllegalArgumentException("Not an IPv4 address: " + address);
+        }
+        return ((bytes[0] & 0xFF) << 24) | ((bytes[1] & 0xFF) << 16) | ((bytes[2] & 0xFF) << 8) | (bytes[3] & 0xFF);
+    }
+
+    // "ip:port" as stored in the device tables -> resolved socket address
+    public static InetSocketAddress parseSocketAddress(String hostPort) {
+        int colon = hostPort.lastIndexOf(':');
+        if (colon < 0) {
+            throw new IllegalArgumentException("Expected ip:port but got " + hostPort);
+        }
+        String host = hostPort.substring(0, colon).trim();
+        int port = Integer.parseInt(hostPort.substring(colon + 1).trim());
+        return new InetSocketAddress(host, port);
+    }
+
+    public static String formatSocketAddress(InetSocketAddress address) {
+        return address.getAddress().getHostAddress() + ":" + address.getPort();
+    }
+}
@@ -0,0 +1,126 @@
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+
+// Address resolution messages, carried as the payload of TYPE_ARP frames.
+//
+// Devices in one simulation often share an IP address and are told apart by port,
+// so what is resolved is an ip:port, not a bare IP. A request is sent with the
+// broadcast MAC, so switches flood it; only the device that owns the target address
+// answers, with a reply sent back to where the request came from.
+//
+// A router forwarding to a host behind a switch knows the host's IP but not its port,
+// so it asks for ANY_PORT; every device with that IP answers.
+//
+// Payload layout (big endian): operation (1), sender MAC (6), sender IPv4 (4),
+// sender port (2), target MAC (6), target IPv4 (4), target port (2).
+public class Arp {
+
+    public static final byte OP_REQUEST = 1;
+    public static final byte OP_REPLY = 2;
+
+    public static final int OP_OFFSET = 0;
+    public static final int SENDER_MAC_OFFSET = 1;
+    public static final int SENDER_IP_OFFSET = 7;
+    public static final int SENDER_PORT_OFFSET = 11;
+    public static final int TARGET_MAC_OFFSET = 13;
+    public static final int TARGET_IP_OFFSET = 19;
+    public static final int TARGET_PORT_OFFSET = 23;
+    public static final int LENGTH = 25;
+
+    public static final int ANY_PORT = 0;
+
+    private final Frame frame = new Frame();
+    private final ByteBuffer payload = ByteBuffer.allocate(LENGTH);
+    private final ByteBuffer buffer = ByteBuffer.allocate(Frame.HEADER_LENGTH + LENGTH);
+
+    // Cache key for an ip:port
+    public static long key(int ip, int port) {
+        return ((ip & 0xFFFFFFFFL) << 16) | (port & 0xFFFF);
+    }
+
+    public static long key(InetSocketAddress address) {
+        return key(Addresses.toInt(address.getAddress()), address.getPort());
+    }
+
+    public static String formatKey(long key) {
+        return Addresses.formatIpv4((int) (key >>> 16)) + ":" + ((key & 0xFFFF) == ANY_PORT ? "*" : String.valueOf(key & 0xFFFF));
+    }
+
+    // The same IP with ANY_PORT
+    public static long anyPort(long key) {
+        return key & ~0xFFFFL;
+    }
+
+    // Whether the frame is a request that ownKey should answer
+    public static boolean isRequestFor(Frame frame, long ownKey) {
+        long target = getTargetKey(frame);
+        return getOp(frame) == OP_REQUEST && (target == ownKey || target == anyPort(ownKey));
+    }
+
+    // A well-formed ARP payload of the given frame, or false
+    public static boolean isValid(Frame frame) {
+        if (frame.getType() != Frame.TYPE_ARP || frame.getPayloadLength() < LENGTH) return false;
+        byte op = frame.getPayloadSource().get(frame.getPayloadOffset() + OP_OFFSET);
+        return op == OP_REQUEST || op == OP_REPLY;
+    }
+
+    public static byte getOp(Frame frame) {
+        return frame.getPayloadSource().get(frame.getPayloadOffset() + OP_OFFSET);
+    }
+
+    public static long getSenderMac(Frame frame) {
+        return getMac(frame, SENDER_MAC_OFFSET);
+    }
+
+    public static long getSenderKey(Frame frame) {
+        ByteBuffer data = frame.getPayloadSource();
+        int offset = frame.getPayloadOffset();
+        return key(data.getInt(offset + SENDER_IP_OFFSET), data.getShort(offset + SENDER_PORT_OFFSET));
+    }
+
+    public static long getTargetKey(Frame frame) {
+        ByteBuffer data = frame.getPayloadSource();
+        int offset = frame.getPayloadOffset();
+        return key(data.getInt(offset + TARGET_IP_OFFSET), data.getShort(offset + TARGET_PORT_OFFSET));
+    }
+
+    private static long getMac(Frame frame, int offset) {
+        ByteBuffer data = frame.getPayloadSource();
+        int index = frame.getPayloadOffset() + offset;
+        return ((data.getShort(index) & 0xFFFFL) << 32) | (data.getInt(index + 2) & 0xFFFFFFFFL);
+    }
+
+    // Encodes a request or reply into this instance's buffer, valid until the next call.
+    // ARP frames are always binary; receivers accept binary frames in either format.
+    public synchronized ByteBuffer encode(byte op, long senderMac, long senderKey, long targetMac, long targetKey) {
+        payload.clear();
+        payload.put(op);
+        payload.putShort((short) (senderMac >>> 32)).putInt((int) senderMac);
+        payload.putInt((int) (senderKey >>> 16)).putShort((short) senderKey);
+        payload.putShort((short) (targetMac >>> 32)).putInt((int) targetMac);
+        payload.putInt((int) (targetKey >>> 16)).putShort((short) targetKey);
+        frame.newMessageId()
+            .setType(Frame.TYPE_ARP)
+            .setTtl(1)
+            .setSrcMac(senderMac)
+            .setDstMac(op == OP_REQUEST ? Addresses.BROADCAST_MAC : targetMac)
+            .setSrcIp((int) (senderKey >>> 16))
+            .setDstIp((int) (targetKey >>> 16))
+            .setPayload(payload, 0, LENGTH);
+        buffer.clear();
+        frame.encodeBinary(buffer);
+        buffer.flip();
+        return buffer;
+    }
+
+    // Answers a request for ownKey, or for its IP with ANY_PORT, to where it came from. Returns
+    // false if the frame is not such a request. The sender is not learned here; callers cache
+    // it if they want.
+    public synchronized boolean reply(Frame request, long ownMac, long ownKey, Transport transport, InetSocketAddress source)
+            throws IOException {
+        if (!isRequestFor(request, ownKey)) return false;
+        transport.send(encode(OP_REPLY, ownMac, ownKey, getSenderMac(request), getSenderKey(request)), source);
+        return true;
+    }
+}
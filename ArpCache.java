@@ -0,0 +1,203 @@
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+// ARP cache with per-next-hop send queues, independent of sockets, threads and clocks.
+//
+// A resolved entry is used until it expires (ttl). A miss starts one resolution per
+// address: the first sender gets REQUEST and sends the ARP request, later senders for
+// the same address get QUEUED and wait in the same queue, so a burst of traffic to an
+// unresolved next hop costs one request, not one broadcast per packet. Requests are
+// repeated from tick() until the retries run out; the address is then cached as failed
+// for negativeMillis and sends to it fail at once instead of queueing again.
+//
+// Resolved entries are also published in a small direct-mapped array, so that routers
+// looking up a MAC for every frame take no lock and do not allocate while it is cached.
+//
+// Keys are Arp.key(ip, port). Times are milliseconds from any monotonic clock.
+public class ArpCache<V> {
+
+    public static final long DEFAULT_TTL_MILLIS = Long.getLong("arp.ttl.ms", 60_000L);
+    public static final long DEFAULT_NEGATIVE_MILLIS = Long.getLong("arp.negative.ms", 5_000L);
+    public static final long DEFAULT_RETRY_MILLIS = Long.getLong("arp.retry.ms", 1_000L);
+    public static final int DEFAULT_RETRIES = Integer.getInteger("arp.retries", 3);
+    public static final int DEFAULT_QUEUE = Integer.getInteger("arp.queue", 64);
+
+    public static final long UNRESOLVED = -1;
+    public static final long FAILED = -2;
+
+    public enum Outcome { REQUEST, QUEUED, QUEUE_FULL, FAILED }
+
+    public interface Resolver<V> {
+        // Send (or repeat) the ARP request for key
+        void request(long key, int attempt);
+
+        // Resolution gave up; the queued items are dropped
+        void failed(long key, List<V> dropped);
+    }
+
+    private static final int HOT_SLOTS = 256;
+
+    private static final class Resolved {
+        final long key;
+        final long mac;
+        final long expiresAt;
+
+        Resolved(long key, long mac, long expiresAt) {
+            this.key = key;
+            this.mac = mac;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private static final class Entry<V> {
+        long mac = UNRESOLVED;
+        long expiresAt;
+        long nextRetry;
+        int attempts;
+        List<V> queue;
+    }
+
+    private final long ttlMillis;
+    private final long negativeMillis;
+    private final long retryMillis;
+    private final int retries;
+    private final int queueLimit;
+    private final Map<Long, Entry<V>> entries = new HashMap<>();
+    private final AtomicReferenceArray<Resolved> hot = new AtomicReferenceArray<>(HOT_SLOTS);
+    private long requests;
+    private long coalesced;
+
+    public ArpCache() {
+        this(DEFAULT_TTL_MILLIS, DEFAULT_NEGATIVE_MILLIS, DEFAULT_RETRY_MILLIS, DEFAULT_RETRIES, DEFAULT_QUEUE);
+    }
+
+    public ArpCache(long ttlMillis, long negativeMillis, long retryMillis, int retries, int queueLimit) {
+        if (retries < 1) throw new IllegalArgumentException("At least one ARP request must be sent");
+        this.ttlMillis = ttlMillis;
+        this.negativeMillis = negativeMillis;
+        this.retryMillis = retryMillis;
+        this.retries = retries;
+        this.queueLimit = queueLimit;
+    }
+
+    // The MAC for key, UNRESOLVED if it has to be resolved first, or FAILED while a
+    // failed resolution is remembered
+    public long lookup(long key, long now) {
+        Resolved resolved = hot.get(slot(key));
+        if (resolved != null && resolved.key == key && now - resolved.expiresAt < 0) return resolved.mac;
+        synchronized (this) {
+            Entry<V> entry = entries.get(key);
+            if (entry == null) return UNRESOLVED;
+            if (entry.mac >= 0) return now - entry.expiresAt < 0 ? entry.mac : UNRESOLVED;
+            if (entry.mac == FAILED && now - entry.expiresAt < 0) return FAILED;
+            return UNRESOLVED;
+        }
+    }
+
+    private static int slot(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h >>> 32) & (HOT_SLOTS - 1);
+    }
+
+    // Queues item until key is resolved. REQUEST means the caller must send the first
+    // ARP request; QUEUED means one is already outstanding.
+    public synchronized Outcome enqueue(long key, V item, long now) {
+        Entry<V> entry = entries.computeIfAbsent(key, k -> new Entry<>());
+        if (entry.mac == FAILED && now - entry.expiresAt < 0) return Outcome.FAILED;
+        if (entry.queue != null) {
+            if (entry.queue.size() >= queueLimit) return Outcome.QUEUE_FULL;
+            entry.queue.add(item);
+            coalesced++;
+            return Outcome.QUEUED;
+        }
+        entry.mac = UNRESOLVED;
+        entry.queue = new ArrayList<>();
+        entry.queue.add(item);
+        entry.attempts = 1;
+        entry.nextRetry = now + retryMillis;
+        requests++;
+        return Outcome.REQUEST;
+    }
+
+    // Records a mapping learned from a reply or a request and returns what was waiting
+    // for it, in the order it was queued
+    public synchronized List<V> resolved(long key, long mac, long now) {
+        Entry<V> entry = entries.computeIfAbsent(key, k -> new Entry<>());
+        entry.mac = mac;
+        entry.expiresAt = now + ttlMillis;
+        hot.set(slot(key), new Resolved(key, mac, entry.expiresAt));
+        List<V> waiting = entry.queue;
+        entry.queue = null;
+        return waiting == null ? Collections.emptyList() : waiting;
+    }
+
+    public synchronized void remove(long key) {
+        entries.remove(key);
+        Resolved resolved = hot.get(slot(key));
+        if (resolved != null && resolved.key == key) hot.compareAndSet(slot(key), resolved, null);
+    }
+
+    // Repeats outstanding requests, gives up on exhausted ones and forgets expired entries
+    public void tick(long now, Resolver<V> resolver) {
+        List<long[]> retry = new ArrayList<>();
+        Map<Long, List<V>> failed = new LinkedHashMap<>();
+        synchronized (this) {
+            Iterator<Map.Entry<Long, Entry<V>>> iterator = entries.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<Long, Entry<V>> mapEntry = iterator.next();
+                Entry<V> entry = mapEntry.getValue();
+                if (entry.queue != null) {
+                    if (now - entry.nextRetry < 0) continue;
+                    if (entry.attempts >= retries) {
+                        failed.put(mapEntry.getKey(), entry.queue);
+                        entry.queue = null;
+                        entry.mac = FAILED;
+                        entry.expiresAt = now + negativeMillis;
+                    } else {
+                        entry.attempts++;
+                        entry.nextRetry = now + retryMillis;
+                        requests++;
+                        retry.add(new long[] {mapEntry.getKey(), entry.attempts});
+                    }
+                } else if (now - entry.expiresAt >= 0) {
+                    iterator.remove();
+                }
+            }
+        }
+        // Called outside the lock so that the resolver may send and call back in
+        for (long[] request : retry) resolver.request(request[0], (int) request[1]);
+        failed.forEach(resolver::failed);
+    }
+
+    public synchronized int size() {
+        int count = 0;
+        for (Entry<V> entry : entries.values()) {
+            if (entry.mac >= 0) count++;
+        }
+        return count;
+    }
+
+    public synchronized long getRequests() {
+        return requests;
+    }
+
+    // Sends that joined an outstanding resolution instead of starting one
+    public synchronized long getCoalesced() {
+        return coalesced;
+    }
+
+    public synchronized String describe(long now) {
+        StringBuilder builder = new StringBuilder("ARP cache (" + requests + " requests, " + coalesced + " coalesced):");
+        entries.forEach((key, entry) -> {
+            builder.append('\n').append(Arp.formatKey(key)).append(" -> ");
+            if (entry.queue != null) {
+                builder.append("resolving (attempt ").append(entry.attempts).append(", ").append(entry.queue.size()).append(" queued)");
+            } else if (entry.mac == FAILED) {
+                builder.append("failed (retry in ").append(Math.max(0, entry.expiresAt - now) / 1000).append("s)");
+            } else {
+                builder.append(Addresses.formatMac(entry.mac)).append(" (expires in ").append(Math.max(0, entry.expiresAt - now) / 1000).append("s)");
+            }
+        });
+        return builder.toString();
+    }
+}
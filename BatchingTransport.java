@@ -0,0 +1,217 @@
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+// Coalesces outgoing frames per destination into batch datagrams and splits incoming
+// batches back into frames.
+//
+// Batch layout: magic (0xEB), frame count (2), then per frame a 2-byte length and the
+// frame bytes. A batch is sent once it holds batch.frames frames, would exceed
+// batch.bytes, or its first frame has waited batch.linger.us. A frame that would not fit
+// batch.bytes even alone is sent on its own, so a batch buffer never needs to be bigger.
+// With batch.frames=1 (the default) frames are passed straight through, but batches are
+// still accepted on receive.
+public class BatchingTransport implements Transport {
+
+    public static final byte BATCH_MAGIC = (byte) 0xEB;
+    public static final int BATCH_HEADER_LENGTH = 3;
+
+    public static final int DEFAULT_MAX_FRAMES = Integer.getInteger("batch.frames", 1);
+    public static final int DEFAULT_MAX_BYTES = Integer.getInteger("batch.bytes", 1400);
+    public static final long DEFAULT_LINGER_MICROS = Long.getLong("batch.linger.us", 500L);
+
+    private static final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "batch-flusher");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Transport inner;
+    private final int maxFrames;
+    private final int maxBytes;
+    private final long lingerNanos;
+    private final ConcurrentHashMap<InetSocketAddress, Batch> batches = new ConcurrentHashMap<>();
+    private final AtomicLong datagramsSent = new AtomicLong();
+    private final AtomicLong framesSent = new AtomicLong();
+    private ScheduledFuture<?> flushTask;
+
+    private final class Batch {
+        final InetSocketAddress destination;
+        final ByteBuffer buffer;
+        int frames;
+        long firstFrameNanos;
+
+        Batch(InetSocketAddress destination) {
+            this.destination = destination;
+            this.buffer = ByteBuffer.allocateDirect(maxBytes); // sent as is, so direct like the sockets' own buffers
+        }
+    }
+
+    public BatchingTransport(Transport inner) {
+        this(inner, DEFAULT_MAX_FRAMES, DEFAULT_MAX_BYTES, DEFAULT_LINGER_MICROS);
+    }
+
+    public BatchingTransport(Transport inner, int maxFrames, int maxBytes, long lingerMicros) {
+        this.inner = inner;
+        this.maxFrames = Math.max(1, maxFrames);
+        this.maxBytes = Math.min(Math.max(maxBytes, 64), MAX_DATAGRAM);
+        this.lingerNanos = Math.max(0, lingerMicros) * 1000L;
+    }
+
+    @Override
+    public void start(Receiver receiver) {
+        if (maxFrames > 1 && lingerNanos > 0) {
+            long period = Math.max(lingerNanos / 2, 50_000L);
+            flushTask = flusher.scheduleAtFixedRate(this::flushExpired, period, period, TimeUnit.NANOSECONDS);
+        }
+        inner.start((data, source) -> unbatch(data, source, receiver));
+    }
+
+    // Hands each frame of a batch to the receiver by narrowing the buffer in place
+    private static void unbatch(ByteBuffer data, InetSocketAddress source, Receiver receiver) {
+        int start = data.position();
+        int limit = data.limit();
+        if (limit - start < BATCH_HEADER_LENGTH || data.get(start) != BATCH_MAGIC) {
+            receiver.receive(data, source);
+            return;
+        }
+        int count = data.getShort(start + 1) & 0xFFFF;
+        int offset = start + BATCH_HEADER_LENGTH;
+        for (int i = 0; i < count && offset + 2 <= limit; i++) {
+            int length = data.getShort(offset) & 0xFFFF;
+            int frameStart = offset + 2;
+            if (frameStart + length > limit) break;
+            data.limit(frameStart + length).position(frameStart);
+            receiver.receive(data, source);
+            data.limit(limit);
+            offset = frameStart + length;
+        }
+        data.limit(limit).position(start);
+    }
+
+    @Override
+    public void send(ByteBuffer data, InetSocketAddress destination) throws IOException {
+        if (maxFrames == 1) {
+            sendAlone(data, destination);
+            return;
+        }
+
+        int length = data.remaining();
+        Batch batch = batches.get(destination);
+        if (BATCH_HEADER_LENGTH + 2 + length > maxBytes) {
+            if (batch == null) {
+                sendAlone(data, destination);
+                return;
+            }
+            // Whatever is queued for the destination goes first, so frames stay in order
+            synchronized (batch) {
+                flush(batch);
+                sendAlone(data, destination);
+            }
+            return;
+        }
+
+        if (batch == null) batch = batches.computeIfAbsent(destination, Batch::new);
+        synchronized (batch) {
+            if (batch.frames > 0 && batch.buffer.position() + 2 + length > maxBytes) {
+                flush(batch);
+            }
+            ByteBuffer buffer = batch.buffer;
+            if (batch.frames == 0) {
+                buffer.clear();
+                buffer.put(BATCH_MAGIC).putShort((short) 0);
+                batch.firstFrameNanos = System.nanoTime();
+            }
+            buffer.putShort((short) length);
+            buffer.put(buffer.position(), data, data.position(), length);
+            buffer.position(buffer.position() + length);
+            batch.frames++;
+            if (batch.frames >= maxFrames || lingerNanos == 0) {
+                flush(batch);
+            }
+        }
+    }
+
+    private void sendAlone(ByteBuffer data, InetSocketAddress destination) throws IOException {
+        inner.send(data, destination);
+        framesSent.incrementAndGet();
+        datagramsSent.incrementAndGet();
+    }
+
+    // Sends every pending batch now
+    public void flush() throws IOException {
+        for (Batch batch : batches.values()) {
+            synchronized (batch) {
+                flush(batch);
+            }
+        }
+    }
+
+    private void flushExpired() {
+        long now = System.nanoTime();
+        for (Batch batch : batches.values()) {
+            synchronized (batch) {
+                if (batch.frames > 0 && now - batch.firstFrameNanos >= lingerNanos) {
+                    try {
+                        flush(batch);
+                    } catch (IOException e) {
+                        System.err.println("\nError flushing batch to " + batch.destination + ": " + e.getMessage());
+                    }
+                }
+            }
+        }
+    }
+
+    // Caller holds the batch lock. A batch of one is sent as the bare frame.
+    private void flush(Batch batch) throws IOException {
+        if (batch.frames == 0) return;
+        ByteBuffer buffer = batch.buffer;
+        int end = buffer.position();
+        int frames = batch.frames;
+        batch.frames = 0;
+        try {
+            if (frames == 1) {
+                buffer.limit(end).position(BATCH_HEADER_LENGTH + 2);
+            } else {
+                buffer.putShort(1, (short) frames);
+                buffer.limit(end).position(0);
+            }
+            inner.send(buffer, batch.destination);
+            framesSent.addAndGet(frames);
+            datagramsSent.incrementAndGet();
+        } finally {
+            buffer.clear();
+        }
+    }
+
+    public long getDatagramsSent() {
+        return datagramsSent.get();
+    }
+
+    public long getFramesSent() {
+        return framesSent.get();
+    }
+
+    public double getFramesPerDatagram() {
+        long datagrams = datagramsSent.get();
+        return datagrams == 0 ? 0.0 : (double) framesSent.get() / datagrams;
+    }
+
+    @Override
+    public InetSocketAddress getLocalAddress() {
+        return inner.getLocalAddress();
+    }
+
+    @Override
+    public void close() {
+        if (flushTask != null) flushTask.cancel(false);
+        try {
+            flush();
+        } catch (IOException e) {
+            System.err.println("\nError flushing batches on close: " + e.getMessage());
+        }
+        inner.close();
+    }
+}
@@ -0,0 +1,1279 @@
+import java.io.*;
+import java.lang.management.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+
+// Micro and end-to-end benchmarks for the forwarding hot paths.
+//
+//   java -cp bin Benchmark [suite ...] [--duration <ms>] [--sizes 1000,10000,100000] [--engine nio]
+//                          [--routers 50,100,200,500]
+//
+// Suites: lookup, churn, decode, parse, dedup, subnet, forwarding, convergence, spf, execution, stream,
+// topology, vlan, stp, ecmp (default: all of them).
+// Each result reports throughput, p50/p99 latency and heap bytes allocated per
+// operation. Micro benchmarks time batches of BATCH operations and report the per-op
+// average of each batch, because a single nanoTime() call costs more than one lookup.
+// Suites that can tell a wrong result (lost frames, routes, loops, reordering, moved
+// flows) check it as they go; a failed check is printed and the run exits with status 1.
+public class Benchmark {
+
+    private static final int BATCH = 64;
+    private static final int MAX_SAMPLES = 1 << 20;
+    private static final int BASE_PORT = 23000;
+
+    private static long durationMillis = 2000;
+    private static int[] sizes = {1_000, 10_000, 100_000};
+    private static Engine engine = Engine.NIO;
+    private static int[] routerCounts = {50, 100, 200, 500};
+    private static int failures; // correctness checks failed; the run exits with status 1 if any did
+
+    interface Operation {
+        void run(int iteration) throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        List<String> suites = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--duration":
+                    durationMillis = Long.parseLong(args[++i]);
+                    break;
+                case "--sizes":
+                    sizes = Arrays.stream(args[++i].split(",")).mapToInt(size -> Integer.parseInt(size.trim())).toArray();
+                    break;
+                case "--engine":
+                    engine = Engine.fromName(args[++i]);
+                    break;
+                case "--routers":
+                    routerCounts = Arrays.stream(args[++i].split(",")).mapToInt(count -> Integer.parseInt(count.trim())).toArray();
+                    break;
+                default:
+                    suites.add(args[i]);
+            }
+        }
+        if (suites.isEmpty()) suites.addAll(List.of("lookup", "churn", "decode", "parse", "dedup", "subnet", "forwarding", "convergence", "spf", "execution", "stream",
+            "topology", "vlan", "stp", "ecmp"));
+
+        ConfigManager configManager = new ConfigManager(writeTopology().toString());
+        printHeader();
+        for (String suite : suites) {
+            switch (suite) {
+                case "lookup":
+                    benchmarkLookup(configManager);
+                    break;
+                case "churn":
+                    benchmarkChurn(configManager);
+                    break;
+                case "decode":
+                    benchmarkDecode();
+                    break;
+                case "parse":
+                    benchmarkParse(configManager);
+                    break;
+                case "dedup":
+                    benchmarkDedup();
+                    break;
+                case "subnet":
+                    benchmarkSubnet(configManager);
+                    break;
+                case "forwarding":
+                    benchmarkForwarding(configManager);
+                    break;
+                case "convergence":
+                    benchmarkConvergence();
+                    break;
+                case "spf":
+                    benchmarkSpf();
+                    break;
+                case "execution":
+                    benchmarkExecution();
+                    break;
+                case "stream":
+                    benchmarkStream(configManager);
+                    break;
+                case "topology":
+                    benchmarkTopology();
+                    break;
+                case "vlan":
+                    benchmarkVlan();
+                    break;
+                case "stp":
+                    benchmarkStp();
+                    break;
+                case "ecmp":
+                    benchmarkEcmp(configManager);
+                    break;
+                default:
+                    System.err.println("Unknown suite: " + suite);
+            }
+        }
+        if (failures > 0) {
+            System.err.println("\n" + failures + " correctness checks failed");
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+
+    // Router.findNextHop against tables of random prefixes
+    private static void benchmarkLookup(ConfigManager configManager) throws Exception {
+        for (int size : sizes) {
+            Router router = new Router("R1", configManager, Engine.MEMORY);
+            Path routes = Files.createTempFile("routes", ".txt");
+            Random random = new Random(size);
+            try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(routes))) {
+                for (int i = 0; i < size; i++) {
+                    int length = 8 + random.nextInt(25);
+                    writer.println(PrefixTrie.format(random.nextInt() & PrefixTrie.mask(length), length) + ",127.0.0.1:" + (BASE_PORT + 100 + i % 16));
+                }
+            }
+            long loadStart = System.nanoTime();
+            router.loadRoutes(routes.toString());
+            long loadMillis = (System.nanoTime() - loadStart) / 1_000_000;
+            Files.delete(routes);
+
+            int[] addresses = new int[4096];
+            for (int i = 0; i < addresses.length; i++) addresses[i] = random.nextInt();
+            AtomicReference<Object> sink = new AtomicReference<>();
+            report("lookup", "routes=" + size + " load=" + loadMillis + "ms",
+                runMicro(i -> sink.lazySet(router.findNextHop(addresses[i & 4095]))));
+            router.close();
+        }
+    }
+
+    private static final int CHURN_BATCH = 256;
+    private static final long CHURN_PAUSE_MILLIS = 2;
+
+    // Router.findNextHop on an idle table, then while another thread withdraws and re-adds
+    // routes in batches of CHURN_BATCH, each batch published as one new snapshot
+    private static void benchmarkChurn(ConfigManager configManager) throws Exception {
+        for (int size : sizes) {
+            Router router = new Router("R1", configManager, Engine.MEMORY);
+            Random random = new Random(size);
+            int[] prefixes = new int[size];
+            int[] lengths = new int[size];
+            List<InetSocketAddress> nextHops = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                lengths[i] = 8 + random.nextInt(25);
+                prefixes[i] = random.nextInt() & PrefixTrie.mask(lengths[i]);
+                nextHops.add(new InetSocketAddress("127.0.0.1", BASE_PORT + 100 + i % 16));
+            }
+            router.applyRoutes(prefixes, lengths, nextHops);
+
+            int[] addresses = new int[4096];
+            for (int i = 0; i < addresses.length; i++) addresses[i] = random.nextInt();
+            AtomicReference<Object> sink = new AtomicReference<>();
+            Operation lookup = i -> sink.lazySet(router.findNextHop(addresses[i & 4095]));
+            report("churn", "routes=" + size + " idle", runMicro(lookup));
+
+            AtomicBoolean stop = new AtomicBoolean();
+            long[] totals = new long[2]; // deltas, nanoseconds spent applying
+            Thread writer = new Thread(() -> {
+                boolean[] withdrawn = new boolean[size];
+                int[] batchPrefixes = new int[CHURN_BATCH];
+                int[] batchLengths = new int[CHURN_BATCH];
+                List<InetSocketAddress> batchHops = new ArrayList<>(CHURN_BATCH);
+                Random churn = new Random(size + 1);
+                while (!stop.get()) {
+                    batchHops.clear();
+                    for (int j = 0; j < CHURN_BATCH; j++) {
+                        int route = churn.nextInt(size);
+                        withdrawn[route] = !withdrawn[route];
+                        batchPrefixes[j] = prefixes[route];
+                        batchLengths[j] = lengths[route];
+                        batchHops.add(withdrawn[route] ? null : nextHops.get(route));
+                    }
+                    long start = System.nanoTime();
+                    router.applyRoutes(batchPrefixes, batchLengths, batchHops);
+                    totals[1] += System.nanoTime() - start;
+                    totals[0] += CHURN_BATCH;
+                    try {
+                        Thread.sleep(CHURN_PAUSE_MILLIS);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }, "churn");
+            writer.start();
+            long churnStart = System.nanoTime();
+            long[] result = runMicro(lookup);
+            stop.set(true);
+            writer.join();
+            double seconds = (System.nanoTime() - churnStart) / 1e9;
+            long batches = totals[0] / CHURN_BATCH;
+            report("churn", String.format("routes=%d %.0fk deltas/s %.1fms/pub", size, totals[0] / seconds / 1000,
+                batches == 0 ? 0.0 : totals[1] / 1e6 / batches), result);
+            router.close();
+        }
+    }
+
+    // Frame.decode for the binary and the legacy text encoding
+    private static void benchmarkDecode() throws Exception {
+        for (boolean text : new boolean[] {false, true}) {
+            Frame.setTextFormat(text);
+            ByteBuffer data = sampleFrame(Addresses.parseMac("02:00:00:00:00:01"), Addresses.parseMac("02:00:00:00:00:02"), 64);
+            Frame.setTextFormat(false);
+            Frame frame = new Frame();
+            report("decode", text ? "text" : "binary", runMicro(i -> frame.decode(data)));
+        }
+    }
+
+    // Switch.handlePacket: decode, duplicate check, MAC learning and lookup. The
+    // destination MAC is learned on the ingress port, so nothing is actually sent.
+    private static void benchmarkParse(ConfigManager configManager) throws Exception {
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream())); // the priming frame is flooded and logged
+        Switch bench = new Switch("S1", BASE_PORT + 1000, configManager, Engine.MEMORY);
+        InetSocketAddress ingress = new InetSocketAddress("127.0.0.1", BASE_PORT + 1001);
+        long src = Addresses.parseMac("02:00:00:00:00:01");
+        long dst = Addresses.parseMac("02:00:00:00:00:02");
+        bench.handlePacket(sampleFrame(dst, src, 0), ingress);
+        System.setOut(console);
+
+        ByteBuffer data = sampleFrame(src, dst, 64);
+        report("parse", "Switch.handlePacket", runMicro(i -> {
+            data.putLong(Frame.ID_OFFSET + 8, i); // fresh message ID each time
+            bench.handlePacket(data, ingress);
+        }));
+        bench.close();
+    }
+
+    private static void benchmarkDedup() throws Exception {
+        DuplicateFilter unique = new DuplicateFilter();
+        report("dedup", "unique ids", runMicro(i -> unique.add(0x1234L, i)));
+        DuplicateFilter repeated = new DuplicateFilter();
+        report("dedup", "50% duplicates", runMicro(i -> repeated.add(0x1234L, i >>> 1)));
+        System.out.println("  filter after unique run: " + unique.describe());
+    }
+
+    private static void benchmarkSubnet(ConfigManager configManager) throws Exception {
+        Computer computer = new Computer("PC_A", configManager, Engine.MEMORY);
+        InetAddress[] targets = {InetAddress.getByName("127.0.0.42"), InetAddress.getByName("10.1.2.3")};
+        AtomicBoolean sink = new AtomicBoolean();
+        report("subnet", "Computer.isSameSubnet", runMicro(i -> sink.lazySet(computer.isSameSubnet(targets[i & 1]))));
+        computer.close();
+    }
+
+    // PC_A -> S1 -> R1 -> R2 -> R3 -> S2 -> PC_B over real sockets with the chosen engine.
+    // The end hosts are raw transports so that frames can carry a send timestamp.
+    private static void benchmarkForwarding(ConfigManager configManager) throws Exception {
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream())); // devices announce themselves
+        boolean packetLog = PacketLog.isEnabled();
+        PacketLog.setEnabled(false);
+        List<Device> devices = new ArrayList<>();
+        try {
+            for (String name : List.of("S1", "S2", "R1", "R2", "R3")) {
+                Device device = TopologyHost.createDevice(name, configManager, engine);
+                device.start();
+                devices.add(device);
+            }
+            // Every frame is addressed to 127.0.0.1, so one host route per router defines the path
+            ((Router) devices.get(2)).addRoute("127.0.0.1/32", address(configManager, "R2"));
+            ((Router) devices.get(3)).addRoute("127.0.0.1/32", address(configManager, "R3"));
+            ((Router) devices.get(4)).addRoute("127.0.0.1/32", address(configManager, "S2"));
+
+            Transport pcA = engine.open(Addresses.parseSocketAddress(address(configManager, "PC_A")));
+            Transport pcB = engine.open(Addresses.parseSocketAddress(address(configManager, "PC_B")));
+            InetSocketAddress s1 = Addresses.parseSocketAddress(address(configManager, "S1"));
+
+            long[] latencies = new long[MAX_SAMPLES];
+            AtomicInteger received = new AtomicInteger();
+            AtomicInteger currentPhase = new AtomicInteger();
+            long srcMac = Addresses.parseMac(configManager.getMacAddress("PC_A"));
+            long dstMac = Addresses.parseMac(configManager.getMacAddress("PC_B"));
+            pcB.start(answeringArp(pcB, Addresses.parseSocketAddress(address(configManager, "PC_B")), dstMac, (data, source) -> {
+                // Ignore stragglers from the warm-up phase
+                if ((data.getLong(data.position() + Frame.ID_OFFSET + 8) >>> 40) != currentPhase.get()) return;
+                long sentAt = data.getLong(data.position() + Frame.HEADER_LENGTH);
+                int count = received.getAndIncrement();
+                if (count < latencies.length) latencies[count] = System.nanoTime() - sentAt;
+            }));
+            pcA.start((data, source) -> { });
+
+            ByteBuffer data = sampleFrame(srcMac, dstMac, 64);
+            int window = 64;
+
+            // Warm up, then measure
+            for (int phase = 0; phase < 2; phase++) {
+                currentPhase.set(phase);
+                received.set(0);
+                long allocatedBefore = allocatedBytesAllThreads();
+                long start = System.nanoTime();
+                long end = start + (phase == 0 ? durationMillis / 2 : durationMillis) * 1_000_000L;
+                long sent = 0;
+                while (System.nanoTime() < end && sent < latencies.length) {
+                    long stallStart = System.nanoTime();
+                    while (sent - received.get() >= window && System.nanoTime() - stallStart < 10_000_000L) {
+                        Thread.yield(); // leave the CPU to the forwarding threads
+                    }
+                    data.putLong(Frame.ID_OFFSET + 8, ((long) phase << 40) | sent);
+                    data.putLong(Frame.HEADER_LENGTH, System.nanoTime());
+                    pcA.send(data, s1);
+                    sent++;
+                }
+                Thread.sleep(200);
+                long elapsed = System.nanoTime() - start;
+                long allocated = allocatedBytesAllThreads() - allocatedBefore;
+                if (phase == 1) {
+                    int count = Math.min(received.get(), latencies.length);
+                    Arrays.sort(latencies, 0, count);
+                    console.printf("%-12s %-36s %14.0f %10d %10d %12.1f%n", "forwarding",
+                        engine.name().toLowerCase() + " sent=" + sent + " lost=" + (sent - count),
+                        count * 1e9 / elapsed, percentile(latencies, count, 0.50), percentile(latencies, count, 0.99),
+                        count == 0 ? 0.0 : (double) allocated / count);
+                    if (engine == Engine.MEMORY) console.println("  " + BufferPool.shared().describe());
+                    expect(count == sent, "forwarding", (sent - count) + " of " + sent + " frames lost");
+                }
+            }
+            pcA.close();
+            pcB.close();
+        } finally {
+            devices.forEach(Device::close);
+            System.setOut(console);
+            PacketLog.setEnabled(packetLog);
+        }
+    }
+
+    // DistanceVector and LinkState on random connected topologies of N routers, each
+    // originating one /24. Routers exchange messages in lock-step rounds of
+    // LINK_DELAY_MILLIS simulated time, so "simulated" is how long convergence would take
+    // with that link delay and "cpu" is the wall-clock time spent computing it. After the
+    // initial convergence one link fails.
+    private static final long LINK_DELAY_MILLIS = 10;
+
+    private static void benchmarkConvergence() {
+        for (String protocol : List.of("rip", "ls")) {
+            for (int routers : routerCounts) {
+                Random random = new Random(routers);
+                List<int[]> links = randomTopology(routers, random);
+                Simulation simulation = new Simulation(protocol, routers, links);
+
+                long wallStart = System.nanoTime();
+                for (int i = 0; i < routers; i++) simulation.nodes[i].start(simulation.now);
+                Simulation.Result initial = simulation.runUntilQuiet();
+                long initialNanos = System.nanoTime() - wallStart;
+                printConvergence(protocol + " routers=" + routers + " links=" + links.size() + " start", initial, initialNanos,
+                    simulation.unreachable(routers));
+
+                int[] failed = links.get(random.nextInt(links.size()));
+                wallStart = System.nanoTime();
+                simulation.fail(failed[0], failed[1]);
+                Simulation.Result reconverged = simulation.runUntilQuiet();
+                long reconvergedNanos = System.nanoTime() - wallStart;
+                printConvergence(protocol + " routers=" + routers + " R" + failed[0] + "-R" + failed[1] + " down", reconverged,
+                    reconvergedNanos, simulation.unreachable(routers));
+            }
+        }
+    }
+
+    // Incremental SPF after single link flaps against a full Dijkstra on the same database.
+    // Every router repairs its tree for each LSA the flap produces; the full SPF time is
+    // what each router would spend per LSA without the incremental repair.
+    private static void benchmarkSpf() {
+        int flaps = 20;
+        for (int routers : routerCounts) {
+            Random random = new Random(routers);
+            List<int[]> links = randomTopology(routers, random);
+            Simulation simulation = new Simulation("ls", routers, links);
+            for (int i = 0; i < routers; i++) simulation.nodes[i].start(simulation.now);
+            simulation.runUntilQuiet();
+
+            long before = simulation.spfNanos();
+            long changes = 0;
+            for (int flap = 0; flap < flaps; flap++) {
+                int[] link = links.get(random.nextInt(links.size()));
+                simulation.fail(link[0], link[1]);
+                simulation.runUntilQuiet();
+                simulation.restore(link[0], link[1]);
+                simulation.runUntilQuiet();
+                changes += 4; // each end re-originates on down and on up
+            }
+            double incrementalMicros = (simulation.spfNanos() - before) / 1e3 / changes / routers;
+
+            int wrong = 0;
+            long fullStart = System.nanoTime();
+            for (RoutingProtocol node : simulation.nodes) wrong += ((LinkState) node).verify();
+            double fullMicros = (System.nanoTime() - fullStart) / 1e3 / routers;
+            System.out.printf("%-12s %-36s incremental %8.1f us per LSA, full SPF %8.1f us, %d distances wrong%n",
+                "spf", "routers=" + routers + " flaps=" + flaps, incrementalMicros, fullMicros, wrong);
+            expect(wrong == 0, "spf", "routers=" + routers + ": " + wrong + " incremental distances differ from a full SPF");
+        }
+    }
+
+    private static final int EXECUTION_FLOWS = 16;
+    private static final int EXECUTION_WINDOW = 4096;
+    private static final int SLOW_EVERY = 100;
+    private static final long SLOW_NANOS = 1_000_000L;
+
+    // FlowExecutor in each mode, fed by one thread standing in for a receive loop. Every
+    // SLOW_EVERY-th task blocks for a millisecond, like a reply waiting on a lock or a slow
+    // write. Latency is from submit to the end of the task; "receive thread" is the time
+    // submit() itself takes, which is how long the receive loop is held up.
+    private static void benchmarkExecution() throws Exception {
+        for (FlowExecutor.Mode mode : FlowExecutor.Mode.values()) {
+            FlowExecutor executor = new FlowExecutor(mode, FlowExecutor.DEFAULT_LANES, EXECUTION_WINDOW);
+            long[] latencies = new long[MAX_SAMPLES];
+            long[] submitNanos = new long[MAX_SAMPLES];
+            AtomicLongArray lastId = new AtomicLongArray(EXECUTION_FLOWS);
+            for (int flow = 0; flow < EXECUTION_FLOWS; flow++) lastId.set(flow, -1);
+            AtomicInteger completed = new AtomicInteger();
+            AtomicLong outOfOrder = new AtomicLong();
+            long nextId = 0;
+
+            // Warm up, then measure
+            for (int phase = 0; phase < 2; phase++) {
+                completed.set(0);
+                int submitted = 0;
+                long rejectedBefore = executor.getRejected();
+                long allocatedBefore = allocatedBytesAllThreads();
+                long start = System.nanoTime();
+                long end = start + (phase == 0 ? durationMillis / 2 : durationMillis) * 1_000_000L;
+                while (System.nanoTime() < end && submitted < MAX_SAMPLES) {
+                    while (submitted - completed.get() >= EXECUTION_WINDOW) Thread.yield();
+                    long id = nextId++;
+                    int flow = (int) (id % EXECUTION_FLOWS);
+                    boolean slow = id % SLOW_EVERY == 0;
+                    long submitStart = System.nanoTime();
+                    boolean accepted = executor.submit(flow, () -> {
+                        if (slow) LockSupport.parkNanos(SLOW_NANOS);
+                        if (lastId.getAndSet(flow, id) > id) outOfOrder.incrementAndGet();
+                        int done = completed.getAndIncrement();
+                        if (done < latencies.length) latencies[done] = System.nanoTime() - submitStart;
+                    });
+                    submitNanos[submitted++] = System.nanoTime() - submitStart;
+                    if (!accepted) completed.incrementAndGet();
+                }
+                long drainDeadline = System.nanoTime() + 10_000_000_000L;
+                while (completed.get() < submitted && System.nanoTime() < drainDeadline) Thread.sleep(1);
+                long elapsed = System.nanoTime() - start;
+                long allocated = allocatedBytesAllThreads() - allocatedBefore;
+                if (phase == 1) {
+                    int count = Math.min(completed.get(), latencies.length);
+                    Arrays.sort(latencies, 0, count);
+                    Arrays.sort(submitNanos, 0, submitted);
+                    String name = mode == executor.getMode() ? mode.name().toLowerCase() : mode.name().toLowerCase() + "->"
+                        + executor.getMode().name().toLowerCase();
+                    report("execution", name + " flows=" + EXECUTION_FLOWS + " slow=1/" + SLOW_EVERY, new long[] {
+                        (long) (count * 1e9 / elapsed), percentile(latencies, count, 0.50), percentile(latencies, count, 0.99),
+                        Double.doubleToLongBits(count == 0 ? 0.0 : (double) allocated / count)});
+                    System.out.printf("  receive thread p50 %d ns, p99 %d ns, max %d ns; %d out of order, %d rejected%n",
+                        percentile(submitNanos, submitted, 0.50), percentile(submitNanos, submitted, 0.99), submitNanos[submitted - 1],
+                        outOfOrder.get(), executor.getRejected() - rejectedBefore);
+                    expect(outOfOrder.get() == 0, "execution", name + ": " + outOfOrder.get() + " tasks ran out of flow order");
+                }
+            }
+        }
+    }
+
+    private static final int STREAM_BOTTLENECK_RATE = 10_000; // segments per second
+    private static final int STREAM_BOTTLENECK_QUEUE = 100;
+    private static final double[] STREAM_LOSS = {0, 0.01};
+
+    // ReliableStream bulk transfers from PC_A to PC_B through S1, R1-R3 and S2. In front of
+    // PC_B the segments pass a bottleneck link: a drop-tail queue of STREAM_BOTTLENECK_QUEUE
+    // segments served at STREAM_BOTTLENECK_RATE per second, which also drops segments at
+    // random at the given loss rate. Acknowledgements go straight back to PC_A. Each
+    // transfer is sized to take about the benchmark duration at the bottleneck rate and
+    // runs with congestion control and without it (a full receive window in flight).
+    // Latency is the round trip the sender measured.
+    private static void benchmarkStream(ConfigManager configManager) throws Exception {
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream())); // devices announce themselves
+        boolean packetLog = PacketLog.isEnabled();
+        PacketLog.setEnabled(false);
+        List<Device> devices = new ArrayList<>();
+        try {
+            for (String name : List.of("S1", "S2", "R1", "R2", "R3")) {
+                Device device = TopologyHost.createDevice(name, configManager, engine);
+                device.start();
+                devices.add(device);
+            }
+            ((Router) devices.get(2)).addRoute("127.0.0.1/32", address(configManager, "R2"));
+            ((Router) devices.get(3)).addRoute("127.0.0.1/32", address(configManager, "R3"));
+            ((Router) devices.get(4)).addRoute("127.0.0.1/32", address(configManager, "S2"));
+
+            InetSocketAddress addressA = Addresses.parseSocketAddress(address(configManager, "PC_A"));
+            InetSocketAddress addressB = Addresses.parseSocketAddress(address(configManager, "PC_B"));
+            InetSocketAddress s1 = Addresses.parseSocketAddress(address(configManager, "S1"));
+            long macA = Addresses.parseMac(configManager.getMacAddress("PC_A"));
+            long macB = Addresses.parseMac(configManager.getMacAddress("PC_B"));
+            Transport pcA = engine.open(addressA);
+            Transport pcB = engine.open(addressB);
+            Bottleneck bottleneck = new Bottleneck();
+            int size = (int) Math.min((long) STREAM_BOTTLENECK_RATE * ReliableStream.DEFAULT_MSS * durationMillis / 1000, Integer.MAX_VALUE);
+            byte[] data = new byte[size];
+            new Random(size).nextBytes(data);
+            AtomicReference<ReliableStream> senderRef = new AtomicReference<>();
+            Frame frameA = new Frame();
+            pcA.start((frame, source) -> {
+                if (frameA.decode(frame)) senderRef.get().receive(frameA);
+            });
+            pcB.start(answeringArp(pcB, addressB, macB, (frame, source) -> bottleneck.offer(frame)));
+
+            boolean warm = false;
+            for (double loss : STREAM_LOSS) {
+                for (boolean congestionControl : new boolean[] {true, false}) {
+                    ReliableStream sender = new ReliableStream(addressA.getPort(), frameOutput(pcA, s1, macA, macB),
+                        ReliableStream.DEFAULT_MSS, ReliableStream.DEFAULT_WINDOW, congestionControl);
+                    ReliableStream receiver = new ReliableStream(addressB.getPort(), frameOutput(pcB, addressA, macB, macA),
+                        ReliableStream.DEFAULT_MSS, ReliableStream.DEFAULT_WINDOW, true);
+                    senderRef.set(sender);
+                    bottleneck.start(receiver, loss, new Random(7));
+                    if (!warm) {
+                        sender.send(addressB, ByteBuffer.wrap(data, 0, size / 4));
+                        warm = true;
+                    }
+
+                    long dropsBefore = bottleneck.drops.get();
+                    long allocatedBefore = allocatedBytesAllThreads();
+                    ReliableStream.Transfer transfer = sender.send(addressB, ByteBuffer.wrap(data));
+                    long allocated = allocatedBytesAllThreads() - allocatedBefore;
+                    bottleneck.stop();
+                    double seconds = transfer.getSeconds();
+                    long segments = transfer.getSent() - transfer.getRetransmitted();
+                    console.printf("%-12s %-36s %14.0f %10d %10d %12.1f%n", "stream",
+                        (congestionControl ? "aimd" : "none") + " loss=" + Math.round(loss * 100) + "% bytes=" + size, segments / seconds,
+                        transfer.getRoundTrip().percentile(0.50), transfer.getRoundTrip().percentile(0.99), (double) allocated / segments);
+                    console.printf("  goodput %.1f Mbit/s of %.1f; %d retransmitted (%.1f%%), %d timeouts, %d dropped at the bottleneck%n",
+                        size * 8 / seconds / 1e6, STREAM_BOTTLENECK_RATE * ReliableStream.DEFAULT_MSS * 8 / 1e6,
+                        transfer.getRetransmitted(), 100.0 * transfer.getRetransmitted() / transfer.getSent(), transfer.getTimeouts(),
+                        bottleneck.drops.get() - dropsBefore);
+                }
+            }
+            pcA.close();
+            pcB.close();
+        } finally {
+            devices.forEach(Device::close);
+            System.setOut(console);
+            PacketLog.setEnabled(packetLog);
+        }
+    }
+
+    // The end hosts are raw transports, so they answer the last router's ARP requests here
+    // and hand everything else to receiver
+    private static Transport.Receiver answeringArp(Transport transport, InetSocketAddress address, long mac, Transport.Receiver receiver) {
+        long key = Arp.key(address);
+        Arp arp = new Arp();
+        return (data, source) -> {
+            if (!Frame.isBinary(data) || data.get(data.position() + Frame.tagLength(data) + Frame.TYPE_OFFSET) != Frame.TYPE_ARP) {
+                receiver.receive(data, source);
+                return;
+            }
+            Frame frame = new Frame();
+            try {
+                if (frame.decode(data) && Arp.isValid(frame)) arp.reply(frame, mac, key, transport, source);
+            } catch (IOException e) {
+                System.err.println("\nError answering ARP: " + e.getMessage());
+            }
+        };
+    }
+
+    // Wraps each segment in a frame from srcMac to dstMac and sends it to nextHop
+    private static ReliableStream.Output frameOutput(Transport transport, InetSocketAddress nextHop, long srcMac, long dstMac) {
+        Frame frame = new Frame();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(2048);
+        int localhost = Addresses.parseIpv4("127.0.0.1");
+        return (segment, peer) -> {
+            synchronized (frame) {
+                frame.newMessageId().setType(Frame.TYPE_STREAM).setTtl(Frame.DEFAULT_TTL).setSrcMac(srcMac).setDstMac(dstMac)
+                    .setSrcIp(localhost).setDstIp(localhost).setPayload(segment);
+                buffer.clear();
+                frame.encodeBinary(buffer);
+                buffer.flip();
+                transport.send(buffer, nextHop);
+            }
+        };
+    }
+
+    // The stream benchmark's bottleneck link: frames wait in a drop-tail queue and leave
+    // it, one every 1/STREAM_BOTTLENECK_RATE seconds, for the receiving endpoint
+    private static final class Bottleneck {
+        final ArrayBlockingQueue<byte[]> queue = new ArrayBlockingQueue<>(STREAM_BOTTLENECK_QUEUE);
+        final AtomicLong drops = new AtomicLong();
+        volatile double loss;
+        volatile Random random;
+        Thread thread;
+
+        void offer(ByteBuffer data) {
+            if (random == null) return;
+            if (random.nextDouble() < loss) {
+                drops.incrementAndGet();
+                return;
+            }
+            byte[] copy = new byte[data.remaining()];
+            data.get(data.position(), copy);
+            if (!queue.offer(copy)) drops.incrementAndGet();
+        }
+
+        void start(ReliableStream receiver, double loss, Random random) {
+            this.loss = loss;
+            this.random = random;
+            queue.clear();
+            thread = new Thread(() -> {
+                Frame frame = new Frame();
+                long interval = 1_000_000_000L / STREAM_BOTTLENECK_RATE;
+                long next = System.nanoTime();
+                try {
+                    while (true) {
+                        byte[] data = queue.take();
+                        long now = System.nanoTime();
+                        if (next - now > 0) LockSupport.parkNanos(next - now); else next = now;
+                        next += interval;
+                        if (frame.decode(ByteBuffer.wrap(data))) receiver.receive(frame);
+                    }
+                } catch (InterruptedException e) {
+                    // stopped
+                }
+            }, "bottleneck");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        void stop() throws InterruptedException {
+            thread.interrupt();
+            thread.join();
+        }
+    }
+
+    private static final int TOPOLOGY_DEVICES = 10_000;
+    private static final int TOPOLOGY_LOADS = 20;
+
+    // ConfigManager on generated topologies of TOPOLOGY_DEVICES devices: "load" is the
+    // fastest of TOPOLOGY_LOADS loads of the file, and each operation looks up a random
+    // device's neighbors, port and type by name, as a device does when it starts
+    private static void benchmarkTopology() throws Exception {
+        for (String kind : List.of("tree", "mesh", "fattree")) {
+            TopologyGenerator generator = TopologyGenerator.generate(kind, TOPOLOGY_DEVICES, 8, 24, 4, 0, new Random(1));
+            Path file = Files.createTempFile("topology-" + kind, ".txt");
+            generator.write(file, "127.0.0.1", BASE_PORT + 1000);
+            ConfigManager configManager = null;
+            long fastest = Long.MAX_VALUE;
+            for (int i = 0; i < TOPOLOGY_LOADS; i++) {
+                long start = System.nanoTime();
+                configManager = new ConfigManager(file.toString());
+                fastest = Math.min(fastest, System.nanoTime() - start);
+            }
+            Files.delete(file);
+
+            ConfigManager loaded = configManager;
+            List<String> names = loaded.getDeviceNames();
+            Random random = new Random(kind.hashCode());
+            String[] queries = new String[4096];
+            for (int i = 0; i < queries.length; i++) queries[i] = names.get(random.nextInt(names.size()));
+            AtomicReference<Object> sink = new AtomicReference<>();
+            report("topology", String.format("%s devices=%d links=%d load=%.1fms", kind, names.size(), loaded.getTopology().linkCount(),
+                fastest / 1e6), runMicro(i -> {
+                    String name = queries[i & 4095];
+                    sink.lazySet(loaded.getNeighbors(name));
+                    sink.lazySet(loaded.getPort(name) + loaded.getDeviceType(name));
+                }));
+        }
+    }
+
+    private static final int VLAN_HOSTS = 64;
+    private static final int[] VLAN_COUNTS = {1, 4, 16};
+
+    // Broadcasts from one of VLAN_HOSTS hosts on a switch whose access ports are spread
+    // evenly over the VLANs. Each operation is one received frame; copies is what it cost
+    // in sends. The hosts are in-memory endpoints, so the sends stay in the process.
+    private static void benchmarkVlan() throws Exception {
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        boolean packetLog = PacketLog.isEnabled();
+        PacketLog.setEnabled(false);
+        try {
+            for (int vlans : VLAN_COUNTS) {
+                int switchPort = BASE_PORT + 2000;
+                List<String> lines = new ArrayList<>(List.of("# Node connections"));
+                for (int i = 0; i < VLAN_HOSTS; i++) lines.add("S1:H" + i);
+                lines.add("# Computer IP and port numbers");
+                for (int i = 0; i < VLAN_HOSTS; i++) lines.add("H" + i + ",127.0.0.1," + (switchPort + 1 + i) + "," + Addresses.formatMac(0x020000000100L + i));
+                lines.addAll(List.of("# End Computer List", "# Different port range for switches", "S1,127.0.0.1," + switchPort + ",02:00:00:00:02:00",
+                    "# End Switch List", "# VLANs"));
+                for (int i = 0; i < VLAN_HOSTS; i++) lines.add("S1,H" + i + "," + (1 + i % vlans));
+                lines.add("# End VLANs");
+                Path config = Files.createTempFile("benchmark-vlans", ".txt");
+                Files.write(config, lines);
+                ConfigManager configManager = new ConfigManager(config.toString());
+                Files.delete(config);
+
+                Switch device = new Switch("S1", switchPort, configManager, Engine.MEMORY);
+                device.start();
+                List<Transport> hosts = new ArrayList<>();
+                for (int i = 0; i < VLAN_HOSTS; i++) {
+                    Transport host = Engine.MEMORY.open(new InetSocketAddress("127.0.0.1", switchPort + 1 + i));
+                    host.start((data, source) -> { });
+                    hosts.add(host);
+                }
+                InetSocketAddress source = hosts.get(0).getLocalAddress();
+                ByteBuffer data = sampleFrame(0x020000000100L, Addresses.BROADCAST_MAC, 64);
+                long[] frames = {0};
+                long sentBefore = device.getPacketsOut();
+                long[] result = runMicro(i -> {
+                    data.putLong(Frame.ID_OFFSET + 8, i); // fresh message ID each time
+                    device.handlePacket(data, source);
+                    frames[0]++;
+                });
+                double copies = (double) (device.getPacketsOut() - sentBefore) / frames[0];
+                console.printf("%-12s %-36s %14d %10d %10d %12.1f%n", "vlan", String.format("hosts=%d vlans=%d copies=%.1f", VLAN_HOSTS, vlans, copies),
+                    result[0], result[1], result[2], Double.longBitsToDouble(result[3]));
+                device.close();
+                hosts.forEach(Transport::close);
+            }
+        } finally {
+            System.setOut(console);
+            PacketLog.setEnabled(packetLog);
+        }
+    }
+
+    private static final int[] STP_SWITCH_COUNTS = {100, 200, 500};
+
+    // Spanning tree on random meshes of switches, in simulated time: convergence from a
+    // cold start, after a tree link goes down (noticed at once, and silently, when only
+    // the BPDUs stop) and after it comes back. "tree" is when the forwarding ports last
+    // became a loop-free tree reaching every switch, "settled" when the last port changed
+    // state; the forwarding ports are checked for loops after every step. Each line also
+    // floods one broadcast over the forwarding ports: the tree costs a copy per switch but
+    // one, plus one per blocked port, which still receives (and drops) what the designated
+    // end sends. The mesh with every port forwarding costs a copy per link end and leaves
+    // only the duplicate filter to stop the copies going round the loops.
+    private static void benchmarkStp() {
+        for (int switches : STP_SWITCH_COUNTS) {
+            Random random = new Random(switches);
+            List<int[]> links = randomTopology(switches, random);
+            StpSimulation simulation = new StpSimulation(switches, links);
+            printStp("switches=" + switches + " links=" + links.size() + " start", simulation, () -> {
+                for (SpanningTree node : simulation.nodes) node.start(simulation.now);
+            });
+
+            int[] failed = simulation.treeLink(random);
+            String link = "S" + failed[0] + "-S" + failed[1];
+            printStp("switches=" + switches + " " + link + " down", simulation, () -> simulation.fail(failed[0], failed[1], false));
+            printStp("switches=" + switches + " " + link + " up", simulation, () -> simulation.restore(failed[0], failed[1]));
+            printStp("switches=" + switches + " " + link + " silent", simulation, () -> simulation.fail(failed[0], failed[1], true));
+        }
+    }
+
+    private static void printStp(String params, StpSimulation simulation, Runnable event) {
+        long wallStart = System.nanoTime();
+        StpSimulation.Result result = simulation.runUntilStable(event);
+        long wallNanos = System.nanoTime() - wallStart;
+        int[] flood = simulation.flood(0, true);
+        int[] mesh = simulation.flood(0, false);
+        System.out.printf("%-12s %-36s tree %5d ms, settled %5d ms simulated, %6.1f ms cpu, %6d BPDUs, %4d blocked, flood %4d copies (%4d without stp), %s%n",
+            "stp", params, result.treeMillis, result.millis, wallNanos / 1e6, result.messages, simulation.blockedPorts(), flood[0], mesh[0],
+            result.looped ? "LOOPED" : "loop-free");
+        expect(!result.looped, "stp", params + ": the forwarding ports formed a loop");
+    }
+
+    private static final int[][] ECMP_WEIGHTS = {{1, 1}, {1, 1, 1, 1}, {1, 1, 1, 1, 1, 1, 1, 1}, {1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1}, {1, 1, 2, 4}};
+    private static final int ECMP_FLOWS = 100_000;
+    private static final int ECMP_ROUTES = 10_000;
+
+    // Router.findNextHop on ECMP_ROUTES routes that each share one next hop group, then
+    // how ECMP_FLOWS random flows spread over the group: "load" is the busiest next hop's
+    // flows over its fair share by weight. One next hop then fails and comes back; "moved"
+    // is the fraction of all flows whose next hop changed, against hashing the flow modulo
+    // the next hops (each listed once per unit of weight). The least that can move is the
+    // failed next hop's own share.
+    private static void benchmarkEcmp(ConfigManager configManager) throws Exception {
+        for (int[] weights : ECMP_WEIGHTS) {
+            List<InetSocketAddress> nextHops = new ArrayList<>();
+            for (int i = 0; i < weights.length; i++) nextHops.add(new InetSocketAddress("127.0.0.1", BASE_PORT + 100 + i));
+            NextHopGroup group = NextHopGroup.of(nextHops, weights);
+            NextHopGroup down = group.without(nextHops.get(0));
+            NextHopGroup up = down.migrate(group);
+
+            Router router = new Router("R1", configManager, Engine.MEMORY);
+            Random random = new Random(weights.length);
+            int[] prefixes = new int[ECMP_ROUTES];
+            int[] lengths = new int[ECMP_ROUTES];
+            for (int i = 0; i < ECMP_ROUTES; i++) {
+                lengths[i] = 8 + random.nextInt(25);
+                prefixes[i] = random.nextInt() & PrefixTrie.mask(lengths[i]);
+            }
+            router.applyGroups(prefixes, lengths, Collections.nCopies(ECMP_ROUTES, group));
+            long[] macs = new long[4096];
+            int[] addresses = new int[4096];
+            for (int i = 0; i < addresses.length; i++) {
+                macs[i] = random.nextLong() & 0xFFFFFFFFFFFFL;
+                addresses[i] = random.nextInt();
+            }
+            AtomicReference<Object> sink = new AtomicReference<>();
+            long[] result = runMicro(i -> sink.lazySet(router.findNextHop(macs[i & 4095], macs[(i + 1) & 4095], addresses[(i + 2) & 4095], addresses[i & 4095])));
+            router.close();
+
+            int totalWeight = Arrays.stream(weights).sum();
+            int[] modulo = new int[totalWeight]; // next hop per unit of weight
+            for (int i = 0, unit = 0; i < weights.length; i++) {
+                for (int j = 0; j < weights[i]; j++) modulo[unit++] = i;
+            }
+            long[] flows = new long[weights.length];
+            int movedDown = 0;
+            int movedUp = 0;
+            int moduloDown = 0;
+            int stray = 0; // moves of flows whose next hop neither failed nor came back
+            for (int flow = 0; flow < ECMP_FLOWS; flow++) {
+                int hash = NextHopGroup.flowHash(random.nextLong(), random.nextLong(), random.nextInt(), random.nextInt(), 1);
+                InetSocketAddress before = group.select(hash);
+                InetSocketAddress after = down.select(hash);
+                flows[group.indexOf(before)]++;
+                if (!before.equals(after)) movedDown++;
+                if (!after.equals(up.select(hash))) movedUp++;
+                if (!before.equals(after) && !before.equals(nextHops.get(0))) stray++;
+                if (!after.equals(up.select(hash)) && !up.select(hash).equals(nextHops.get(0))) stray++;
+                int unit = Integer.remainderUnsigned(hash, totalWeight);
+                int degraded = Integer.remainderUnsigned(hash, totalWeight - weights[0]) + weights[0];
+                if (modulo[unit] != modulo[degraded]) moduloDown++;
+            }
+            double load = 0;
+            for (int i = 0; i < weights.length; i++) load = Math.max(load, flows[i] / ((double) ECMP_FLOWS * weights[i] / totalWeight));
+            double fair = 100.0 * weights[0] / totalWeight;
+            System.out.printf("%-12s %-36s %14d %10d %10d %12.1f  load %.3f, one down: %4.1f%% moved (modulo %4.1f%%, least %4.1f%%), back up: %4.1f%% moved%n",
+                "ecmp", "routes=" + ECMP_ROUTES + (Arrays.stream(weights).allMatch(weight -> weight == 1) ? " paths=" + weights.length
+                    : " weights=" + Arrays.toString(weights).replace(" ", "")), result[0], result[1], result[2],
+                Double.longBitsToDouble(result[3]), load, 100.0 * movedDown / ECMP_FLOWS, 100.0 * moduloDown / ECMP_FLOWS, fair,
+                100.0 * movedUp / ECMP_FLOWS);
+            expect(stray == 0, "ecmp", "weights=" + Arrays.toString(weights) + ": " + stray + " flow moves not caused by the failed next hop");
+        }
+    }
+
+    private static void printConvergence(String params, Simulation.Result result, long wallNanos, int unreachable) {
+        System.out.printf("%-12s %-36s %6d ms simulated, %7.1f ms cpu, %7d messages, %9d bytes, %d routes missing%n",
+            "convergence", params, result.millis, wallNanos / 1e6, result.messages, result.bytes, unreachable);
+        expect(unreachable == 0, "convergence", params + ": " + unreachable + " routes missing");
+    }
+
+    // A random spanning tree plus about one extra link per two routers, so every router is reachable
+    private static List<int[]> randomTopology(int routers, Random random) {
+        List<int[]> links = new ArrayList<>();
+        Set<Long> seen = new HashSet<>();
+        for (int i = 1; i < routers; i++) {
+            int parent = random.nextInt(i);
+            links.add(new int[] {parent, i});
+            seen.add((long) parent << 32 | i);
+        }
+        for (int extra = 0; extra < routers / 2; extra++) {
+            int a = random.nextInt(routers);
+            int b = random.nextInt(routers);
+            if (a == b) continue;
+            if (!seen.add((long) Math.min(a, b) << 32 | Math.max(a, b))) continue;
+            links.add(new int[] {Math.min(a, b), Math.max(a, b)});
+        }
+        return links;
+    }
+
+    private static final class Simulation {
+        static final class Result {
+            long millis;
+            long messages;
+            long bytes;
+        }
+
+        final RoutingProtocol[] nodes;
+        final List<List<Integer>> adjacency = new ArrayList<>();
+        final Set<Long> down = new HashSet<>();
+        List<Object[]> inFlight = new ArrayList<>(); // {from, to, bytes}
+        long now;
+        long lastChange;
+        long messages;
+        long bytes;
+
+        Simulation(String protocol, int routers, List<int[]> links) {
+            List<List<String>> neighbors = new ArrayList<>();
+            for (int i = 0; i < routers; i++) {
+                neighbors.add(new ArrayList<>());
+                adjacency.add(new ArrayList<>());
+            }
+            for (int[] link : links) {
+                neighbors.get(link[0]).add("R" + link[1]);
+                neighbors.get(link[1]).add("R" + link[0]);
+                adjacency.get(link[0]).add(link[1]);
+                adjacency.get(link[1]).add(link[0]);
+            }
+            nodes = new RoutingProtocol[routers];
+            for (int i = 0; i < routers; i++) {
+                int from = i;
+                RoutingProtocol.Link link = (neighbor, message) -> {
+                    int to = Integer.parseInt(neighbor.substring(1));
+                    if (down.contains(linkKey(from, to))) return;
+                    byte[] copy = new byte[message.remaining()];
+                    message.get(message.position(), copy);
+                    inFlight.add(new Object[] {from, to, copy});
+                    messages++;
+                    bytes += copy.length;
+                };
+                if ("ls".equals(protocol)) {
+                    nodes[i] = new LinkState("R" + i, neighbors.get(i), link, routes -> lastChange = now, 1_000, 4_000, 1_800_000, 50);
+                } else {
+                    nodes[i] = new DistanceVector(neighbors.get(i), link, (prefix, length, nextHops, metric) -> lastChange = now,
+                        32, 30_000, 180_000, 120_000, LINK_DELAY_MILLIS);
+                }
+                nodes[i].addConnected(network(i), 24, now);
+            }
+        }
+
+        static int network(int router) {
+            return (10 << 24) | (router << 8);
+        }
+
+        static long linkKey(int a, int b) {
+            return (long) Math.min(a, b) << 32 | Math.max(a, b);
+        }
+
+        void fail(int a, int b) {
+            down.add(linkKey(a, b));
+            nodes[a].neighborDown("R" + b, now);
+            nodes[b].neighborDown("R" + a, now);
+        }
+
+        void restore(int a, int b) {
+            down.remove(linkKey(a, b));
+            ((LinkState) nodes[a]).neighborUp("R" + b, now);
+            ((LinkState) nodes[b]).neighborUp("R" + a, now);
+        }
+
+        long spfNanos() {
+            long total = 0;
+            for (RoutingProtocol node : nodes) total += ((LinkState) node).getSpfNanos();
+            return total;
+        }
+
+        // Delivers messages round by round until nothing is in flight or pending
+        Result runUntilQuiet() {
+            long start = now;
+            long startMessages = messages;
+            long startBytes = bytes;
+            lastChange = now;
+            while (true) {
+                boolean pending = !inFlight.isEmpty();
+                for (RoutingProtocol node : nodes) pending |= node.hasPendingChanges();
+                if (!pending) break;
+
+                List<Object[]> delivering = inFlight;
+                inFlight = new ArrayList<>();
+                now += LINK_DELAY_MILLIS;
+                for (Object[] message : delivering) {
+                    int from = (Integer) message[0];
+                    int to = (Integer) message[1];
+                    nodes[to].receive("R" + from, ByteBuffer.wrap((byte[]) message[2]), now);
+                }
+                for (RoutingProtocol node : nodes) node.tick(now);
+            }
+            Result result = new Result();
+            result.millis = lastChange - start;
+            result.messages = messages - startMessages;
+            result.bytes = bytes - startBytes;
+            return result;
+        }
+
+        // Routes missing beyond those to routers that really are cut off
+        int unreachable(int routers) {
+            int missing = 0;
+            for (int i = 0; i < routers; i++) missing += reachableFrom(i) - nodes[i].reachableCount();
+            return missing;
+        }
+
+        int reachableFrom(int router) {
+            boolean[] visited = new boolean[nodes.length];
+            Deque<Integer> queue = new ArrayDeque<>(List.of(router));
+            visited[router] = true;
+            int count = 0;
+            while (!queue.isEmpty()) {
+                int current = queue.poll();
+                count++;
+                for (int other : adjacency.get(current)) {
+                    if (!visited[other] && !down.contains(linkKey(current, other))) {
+                        visited[other] = true;
+                        queue.add(other);
+                    }
+                }
+            }
+            return count;
+        }
+    }
+
+    // SpanningTree instances wired like Simulation's routers: messages take LINK_DELAY_MILLIS
+    // and every bridge ticks once per step
+    private static final class StpSimulation {
+        static final class Result {
+            long treeMillis;
+            long millis;
+            long messages;
+            boolean looped;
+        }
+
+        final SpanningTree[] nodes;
+        final List<List<Integer>> adjacency = new ArrayList<>();
+        final Set<Long> down = new HashSet<>();
+        List<Object[]> inFlight = new ArrayList<>(); // {from, to, bytes}
+        long now;
+        long messages;
+
+        StpSimulation(int switches, List<int[]> links) {
+            List<List<String>> neighbors = new ArrayList<>();
+            for (int i = 0; i < switches; i++) {
+                neighbors.add(new ArrayList<>());
+                adjacency.add(new ArrayList<>());
+            }
+            for (int[] link : links) {
+                neighbors.get(link[0]).add("S" + link[1]);
+                neighbors.get(link[1]).add("S" + link[0]);
+                adjacency.get(link[0]).add(link[1]);
+                adjacency.get(link[1]).add(link[0]);
+            }
+            nodes = new SpanningTree[switches];
+            for (int i = 0; i < switches; i++) {
+                int from = i;
+                SpanningTree.Link link = (neighbor, message) -> {
+                    int to = Integer.parseInt(neighbor.substring(1));
+                    if (down.contains(Simulation.linkKey(from, to))) return;
+                    byte[] copy = new byte[message.remaining()];
+                    message.get(message.position(), copy);
+                    inFlight.add(new Object[] {from, to, copy});
+                    messages++;
+                };
+                long bridgeId = SpanningTree.bridgeId(SpanningTree.DEFAULT_PRIORITY, 0x020000000000L | (i + 1));
+                nodes[i] = new SpanningTree(bridgeId, neighbors.get(i), link, null, SpanningTree.DEFAULT_HELLO_MILLIS,
+                    SpanningTree.DEFAULT_FORWARD_DELAY_MILLIS, SpanningTree.DEFAULT_MAX_AGE);
+            }
+        }
+
+        // A link that carries traffic, so that losing it changes the tree, but not the only
+        // path between its ends, so that there is a tree to change to
+        int[] treeLink(Random random) {
+            while (true) {
+                int a = random.nextInt(nodes.length);
+                List<Integer> others = adjacency.get(a);
+                if (others.isEmpty()) continue;
+                int b = others.get(random.nextInt(others.size()));
+                if (!forwarding(a, b)) continue;
+                down.add(Simulation.linkKey(a, b));
+                boolean redundant = flood(0, false)[1] == nodes.length;
+                down.remove(Simulation.linkKey(a, b));
+                if (redundant) return new int[] {Math.min(a, b), Math.max(a, b)};
+            }
+        }
+
+        // A silent failure only stops the messages; otherwise both ends see the link go
+        void fail(int a, int b, boolean silent) {
+            down.add(Simulation.linkKey(a, b));
+            if (silent) return;
+            nodes[a].removePort("S" + b, now);
+            nodes[b].removePort("S" + a, now);
+        }
+
+        void restore(int a, int b) {
+            down.remove(Simulation.linkKey(a, b));
+            nodes[a].addPort("S" + b, now);
+            nodes[b].addPort("S" + a, now);
+        }
+
+        boolean forwarding(int a, int b) {
+            return sends(a, b) && nodes[b].isForwarding("S" + a);
+        }
+
+        boolean sends(int a, int b) {
+            return !down.contains(Simulation.linkKey(a, b)) && nodes[a].hasPort("S" + b) && nodes[a].isForwarding("S" + b);
+        }
+
+        int blockedPorts() {
+            int blocked = 0;
+            for (int i = 0; i < nodes.length; i++) {
+                for (int other : adjacency.get(i)) {
+                    if (nodes[i].hasPort("S" + other) && !nodes[i].isForwarding("S" + other)) blocked++;
+                }
+            }
+            return blocked;
+        }
+
+        // {copies sent, switches reached, copies accepted by a switch already reached} for
+        // one broadcast from origin that every switch passes on once, on its forwarding
+        // ports or, without stp, on all of its links
+        int[] flood(int origin, boolean stp) {
+            boolean[] reached = new boolean[nodes.length];
+            Deque<int[]> queue = new ArrayDeque<>(); // {switch, came from}
+            queue.add(new int[] {origin, -1});
+            reached[origin] = true;
+            int copies = 0;
+            int count = 0;
+            int repeats = 0;
+            while (!queue.isEmpty()) {
+                int[] current = queue.poll();
+                count++;
+                for (int other : adjacency.get(current[0])) {
+                    if (other == current[1] || down.contains(Simulation.linkKey(current[0], other))) continue;
+                    if (stp && !sends(current[0], other)) continue;
+                    copies++;
+                    if (stp && !nodes[other].isForwarding("S" + current[0])) continue;
+                    if (reached[other]) {
+                        repeats++;
+                    } else {
+                        reached[other] = true;
+                        queue.add(new int[] {other, current[0]});
+                    }
+                }
+            }
+            return new int[] {copies, count, repeats};
+        }
+
+        // Whether the forwarding ports reach every switch the links do, and no more than once
+        boolean isTree(Result result) {
+            int[] flood = flood(0, true);
+            if (flood[2] > 0) result.looped = true;
+            return flood[2] == 0 && flood[1] == flood(0, false)[1];
+        }
+
+        // Runs event, then steps until every bridge is stable and no port has changed state
+        // for longer than information takes to expire, so a silent failure is waited for
+        Result runUntilStable(Runnable event) {
+            Result result = new Result();
+            long start = now;
+            long startMessages = messages;
+            event.run();
+            long lastChange = start;
+            long messagesAtChange = messages;
+            long treeAt = isTree(result) ? start : -1;
+            long quiet = 4 * SpanningTree.DEFAULT_HELLO_MILLIS;
+            while (now - start < 600_000) {
+                List<Object[]> delivering = inFlight;
+                inFlight = new ArrayList<>();
+                now += LINK_DELAY_MILLIS;
+                for (Object[] message : delivering) {
+                    int from = (Integer) message[0];
+                    int to = (Integer) message[1];
+                    nodes[to].receive("S" + from, ByteBuffer.wrap((byte[]) message[2]), now);
+                }
+                boolean stable = true;
+                for (SpanningTree node : nodes) {
+                    node.tick(now);
+                    stable &= node.isStable();
+                    if (node.getLastStateChange() > lastChange) {
+                        lastChange = node.getLastStateChange();
+                        messagesAtChange = messages;
+                    }
+                }
+                if (!isTree(result)) {
+                    treeAt = -1;
+                } else if (treeAt < 0) {
+                    treeAt = now;
+                }
+                if (stable && now - lastChange > quiet) break;
+            }
+            result.treeMillis = treeAt - start;
+            result.millis = lastChange - start;
+            result.messages = messagesAtChange - startMessages;
+            return result;
+        }
+    }
+
+    // Runs op in timed batches: warm-up for half the duration, then measure
+    private static long[] runMicro(Operation op) throws Exception {
+        long[] samples = new long[MAX_SAMPLES];
+        long warmupEnd = System.nanoTime() + durationMillis * 500_000L;
+        int iteration = 0;
+        while (System.nanoTime() < warmupEnd) {
+            for (int i = 0; i < BATCH; i++) op.run(iteration++);
+        }
+
+        com.sun.management.ThreadMXBean threads = threadBean();
+        long allocatedBefore = threads.getCurrentThreadAllocatedBytes();
+        long start = System.nanoTime();
+        long end = start + durationMillis * 1_000_000L;
+        int batches = 0;
+        long now = start;
+        while (now < end && batches < samples.length) {
+            long batchStart = now;
+            for (int i = 0; i < BATCH; i++) op.run(iteration++);
+            now = System.nanoTime();
+            samples[batches++] = (now - batchStart) / BATCH;
+        }
+        long allocated = threads.getCurrentThreadAllocatedBytes() - allocatedBefore;
+        long ops = (long) batches * BATCH;
+        Arrays.sort(samples, 0, batches);
+        return new long[] {
+            (long) (ops * 1e9 / (now - start)),
+            percentile(samples, batches, 0.50),
+            percentile(samples, batches, 0.99),
+            Double.doubleToLongBits((double) allocated / ops)
+        };
+    }
+
+    // Correctness checks ride along with the measurements; a failed one is reported and fails the run
+    private static void expect(boolean ok, String benchmark, String failure) {
+        if (ok) return;
+        failures++;
+        System.err.println("FAILED " + benchmark + ": " + failure);
+    }
+
+    private static void printHeader() {
+        System.out.printf("%-12s %-36s %14s %10s %10s %12s%n", "benchmark", "params", "ops/s", "p50(ns)", "p99(ns)", "alloc(B/op)");
+    }
+
+    private static void report(String benchmark, String params, long[] result) {
+        System.out.printf("%-12s %-36s %14d %10d %10d %12.1f%n", benchmark, params, result[0], result[1], result[2],
+            Double.longBitsToDouble(result[3]));
+    }
+
+    private static long percentile(long[] sorted, int count, double quantile) {
+        if (count == 0) return 0;
+        return sorted[Math.min(count - 1, (int) (quantile * count))];
+    }
+
+    private static ByteBuffer sampleFrame(long srcMac, long dstMac, int payloadLength) {
+        ByteBuffer data = ByteBuffer.allocate(2048);
+        new Frame().newMessageId()
+            .setSrcMac(srcMac)
+            .setDstMac(dstMac)
+            .setSrcIp(Addresses.parseIpv4("127.0.0.1"))
+            .setDstIp(Addresses.parseIpv4("127.0.0.1"))
+            .setPayload(new byte[Math.max(payloadLength, 8)])
+            .encode(data);
+        data.flip();
+        return data;
+    }
+
+    private static String address(ConfigManager configManager, String device) {
+        return configManager.getIpAddress(device) + ":" + configManager.getPort(device);
+    }
+
+    private static com.sun.management.ThreadMXBean threadBean() {
+        return (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    }
+
+    private static long allocatedBytesAllThreads() {
+        com.sun.management.ThreadMXBean threads = threadBean();
+        long total = 0;
+        for (long bytes : threads.getThreadAllocatedBytes(threads.getAllThreadIds())) {
+            if (bytes > 0) total += bytes;
+        }
+        return total;
+    }
+
+    // The README topology on ports that will not collide with a running config.txt network
+    private static Path writeTopology() throws IOException {
+        Path config = Files.createTempFile("benchmark-topology", ".txt");
+        config.toFile().deleteOnExit();
+        Files.write(config, List.of(
+            "# Node connections", "PC_A:S1", "S1:R1", "R1:R2", "R2:R3", "R3:S2", "S2:PC_B", "# End node connections list",
+            "# Computer IP and port numbers",
+            "PC_A,127.0.0.1," + BASE_PORT + ",02:00:00:00:00:0A",
+            "PC_B,127.0.0.1," + (BASE_PORT + 1) + ",02:00:00:00:00:0B",
+            "# End Computer List",
+            "# Different port range for switches",
+            "S1,127.0.0.1," + (BASE_PORT + 10) + ",02:00:00:00:00:01",
+            "S2,127.0.0.1," + (BASE_PORT + 11) + ",02:00:00:00:00:02",
+            "# End Switch List",
+            "# Router Configuration",
+            "R1,127.0.0.1," + (BASE_PORT + 20) + ",02:00:00:00:00:11",
+            "R2,127.0.0.1," + (BASE_PORT + 21) + ",02:00:00:00:00:12",
+            "R3,127.0.0.1," + (BASE_PORT + 22) + ",02:00:00:00:00:13",
+            "# End of router list"));
+        return config;
+    }
+}
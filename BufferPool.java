@@ -0,0 +1,120 @@
+import java.nio.*;
+import java.util.concurrent.atomic.*;
+
+// Pool of equally sized direct buffers, handed out as reference-counted PooledBuffers.
+//
+// Free buffers wait in a bounded lock-free ring (Vyukov-style sequence per slot, any
+// number of threads acquiring and releasing). When the ring is empty a new buffer is
+// allocated; when it is full a released buffer is left to the garbage collector, so the
+// pool settles at what the traffic needs, up to buffer.pool buffers. Requests larger than
+// buffer.size get a buffer of their own that is never pooled.
+public class BufferPool {
+
+    public static final int DEFAULT_BUFFER_SIZE = Integer.getInteger("buffer.size", 2048);
+    public static final int DEFAULT_MAX_POOLED = Integer.getInteger("buffer.pool", 4096);
+
+    private static final BufferPool shared = new BufferPool(DEFAULT_BUFFER_SIZE, DEFAULT_MAX_POOLED);
+
+    private final int bufferSize;
+    private final int mask;
+    private final PooledBuffer[] free;
+    private final AtomicLongArray sequence;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong allocated = new AtomicLong();
+    private final AtomicLong reused = new AtomicLong();
+    private final AtomicLong oversized = new AtomicLong();
+    private final AtomicLong discarded = new AtomicLong();
+
+    public BufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = Math.max(bufferSize, Frame.HEADER_LENGTH);
+        int capacity = Integer.highestOneBit(Math.max(2, maxPooled - 1)) << 1;
+        this.mask = capacity - 1;
+        this.free = new PooledBuffer[capacity];
+        this.sequence = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) sequence.set(i, i);
+    }
+
+    public static BufferPool shared() {
+        return shared;
+    }
+
+    // A cleared buffer of at least length bytes, holding one reference
+    public PooledBuffer acquire(int length) {
+        PooledBuffer buffer;
+        if (length > bufferSize) {
+            oversized.incrementAndGet();
+            buffer = new PooledBuffer(null, ByteBuffer.allocateDirect(length));
+        } else {
+            buffer = poll();
+            if (buffer == null) {
+                allocated.incrementAndGet();
+                buffer = new PooledBuffer(this, ByteBuffer.allocateDirect(bufferSize));
+            } else {
+                reused.incrementAndGet();
+            }
+        }
+        buffer.buffer().clear();
+        buffer.reset();
+        return buffer;
+    }
+
+    // Called by PooledBuffer when its last reference is released
+    void recycle(PooledBuffer buffer) {
+        long position;
+        int index;
+        while (true) {
+            position = tail.get();
+            index = (int) position & mask;
+            long difference = sequence.get(index) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) break;
+            } else if (difference < 0) {
+                discarded.incrementAndGet();
+                return;
+            }
+        }
+        free[index] = buffer;
+        sequence.lazySet(index, position + 1);
+    }
+
+    private PooledBuffer poll() {
+        long position;
+        int index;
+        while (true) {
+            position = head.get();
+            index = (int) position & mask;
+            long difference = sequence.get(index) - (position + 1);
+            if (difference == 0) {
+                if (head.compareAndSet(position, position + 1)) break;
+            } else if (difference < 0) {
+                return null;
+            }
+        }
+        PooledBuffer buffer = free[index];
+        free[index] = null;
+        sequence.lazySet(index, position + mask + 1);
+        return buffer;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public int getPooled() {
+        return (int) Math.max(0, tail.get() - head.get());
+    }
+
+    public long getAllocated() {
+        return allocated.get();
+    }
+
+    public long getReused() {
+        return reused.get();
+    }
+
+    public String describe() {
+        return "buffers of " + bufferSize + " bytes: " + allocated.get() + " allocated, " + reused.get() + " reused, "
+            + getPooled() + " free, " + oversized.get() + " oversized, " + discarded.get() + " discarded (pool full)";
+    }
+}
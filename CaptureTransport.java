@@ -0,0 +1,53 @@
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.file.*;
+
+// Records every frame a device receives and sends with a PacketCapture. Wraps the
+// engine's transport, outside batching, so batches are captured as the frames in them.
+// Start devices with -Dcapture.dir=<dir> to write <dir>/<device>.pcapng.
+public class CaptureTransport implements Transport {
+
+    public static final String DIRECTORY = System.getProperty("capture.dir");
+
+    private final Transport inner;
+    private final PacketCapture capture;
+
+    public CaptureTransport(Transport inner, PacketCapture capture) {
+        this.inner = inner;
+        this.capture = capture;
+    }
+
+    // The transport itself unless capture.dir is set
+    public static Transport wrap(String device, Transport transport) throws IOException {
+        if (DIRECTORY == null) return transport;
+        return new CaptureTransport(transport, new PacketCapture(Paths.get(DIRECTORY, device + ".pcapng"), device));
+    }
+
+    @Override
+    public void start(Receiver receiver) {
+        inner.start((data, source) -> {
+            capture.record(data, PacketCapture.INBOUND);
+            receiver.receive(data, source);
+        });
+    }
+
+    @Override
+    public void send(ByteBuffer data, InetSocketAddress destination) throws IOException {
+        inner.send(data, destination);
+        capture.record(data, PacketCapture.OUTBOUND);
+    }
+
+    @Override
+    public InetSocketAddress getLocalAddress() {
+        return inner.getLocalAddress();
+    }
+
+    @Override
+    public void close() {
+        inner.close();
+        capture.close();
+        System.out.println("\nCaptured " + capture.getCaptured() + " frames to " + capture.getPath()
+            + (capture.getDropped() > 0 ? " (" + capture.getDropped() + " dropped)" : ""));
+    }
+}
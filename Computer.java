@@ -1,25 +1,105 @@
 import java.io.*;
 import java.net.*;
+import java.nio.*;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 
-public class Computer implements Runnable {
+public class Computer implements Runnable, Device {
+
+    private static final long ARP_TICK_MILLIS = 100;
+    private static final ScheduledExecutorService arpTimer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "arp-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     private String name;
     private InetAddress address;
     private int port;
     private InetAddress networkMask;
-    private Map<String, String> arpTable;
-    private DatagramSocket socket;
-    private Set<String> receivedMessageIds = new HashSet<>(); // Set to store received message IDs
+    private long macAddress;
+    private final ConfigManager configManager;
+    private volatile Map<Integer, Long> staticArp; // "# ARP table" entries, for any port of the IP; replaced on reload
+    private final ArpCache<Pending> arpCache = new ArpCache<>();
+    private final Arp arp = new Arp();
+    private volatile InetSocketAddress gateway; // null when none is configured
+    private ScheduledFuture<?> arpTask;
+    private final Traceroute traceroute;
+    private final LoadGenerator loadGenerator = new LoadGenerator();
+    private final LoadReceiver loadReceiver = new LoadReceiver();
+    private final ReliableStream streams;
+    private Transport transport;
+    private DuplicateFilter receivedMessageIds = new DuplicateFilter(); // Recently received message IDs
+    private final FlowExecutor handlers = new FlowExecutor(); // where received frames are handled, see execution.mode
+    private final ThreadLocal<Frame> frames = ThreadLocal.withInitial(Frame::new); // one per handling thread
+    // One per sending thread, so the console, load, stream and reply threads never wait for each other
+    private final ThreadLocal<Frame> sendFrames = ThreadLocal.withInitial(Frame::new);
+    private final ThreadLocal<ByteBuffer> sendBuffers = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(Transport.MAX_DATAGRAM));
+    private final Metrics metrics;
+    private final LongAdder packetsIn;
+    private final LongAdder packetsOut;
+    private final LongAdder parseErrors;
+    private final LongAdder duplicates;
+    private final LongAdder arpFailed;
+    private final LongAdder arpQueueFull;
+
+    // A message waiting for its next hop's MAC
+    private static final class Pending {
+        final InetAddress destAddress;
+        final int destPort;
+        final InetSocketAddress nextHop;
+        final byte[] payload;
+        final byte type;
+        final int ttl;
+
+        Pending(InetAddress destAddress, int destPort, InetSocketAddress nextHop, byte[] payload, byte type, int ttl) {
+            this.destAddress = destAddress;
+            this.destPort = destPort;
+            this.nextHop = nextHop;
+            this.payload = payload;
+            this.type = type;
+            this.ttl = ttl;
+        }
+    }
 
     // Constructor uses ConfigManager to set properties
-    public Computer(String name, ConfigManager configManager) throws UnknownHostException, SocketException {
+    public Computer(String name, ConfigManager configManager) throws IOException {
+        this(name, configManager, Engine.BLOCKING);
+    }
+
+    public Computer(String name, ConfigManager configManager, Engine engine) throws IOException {
         this.name = name;
+        this.configManager = configManager;
         this.address = InetAddress.getByName(configManager.getIpAddress(name));
         this.port = configManager.getPort(name);
         this.networkMask = InetAddress.getByName(configManager.getSubnetMask(name));
-        this.arpTable = new HashMap<>(configManager.getARPTable());
-        this.socket = new DatagramSocket(this.port, this.address);
+        this.macAddress = Addresses.parseMac(configManager.getMacAddress(name));
+        Map<Integer, Long> arpEntries = new HashMap<>();
+        configManager.getARPTable().forEach((ip, mac) -> arpEntries.put(Addresses.parseIpv4(ip), Addresses.parseMac(mac)));
+        this.staticArp = arpEntries;
+        this.gateway = resolveGateway();
+        this.transport = CaptureTransport.wrap(name, engine.open(new InetSocketAddress(this.address, this.port)));
+        this.traceroute = new Traceroute(this.port);
+        this.streams = new ReliableStream(this.port,
+            (segment, peer) -> send(peer.getAddress(), peer.getPort(), segment, Frame.TYPE_STREAM, Frame.DEFAULT_TTL, ArpCache.UNRESOLVED));
+
+        this.metrics = new Metrics(name);
+        this.packetsIn = metrics.counter("packets_in_total", "Frames received");
+        this.packetsOut = metrics.counter("packets_out_total", "Frames sent");
+        this.parseErrors = metrics.counter("drops_total", "Frames dropped", "reason", "parse_error");
+        this.duplicates = metrics.counter("drops_total", "Frames dropped", "reason", "duplicate");
+        this.arpFailed = metrics.counter("drops_total", "Frames dropped", "reason", "arp_failed");
+        this.arpQueueFull = metrics.counter("drops_total", "Frames dropped", "reason", "arp_queue_full");
+        metrics.counter("drops_total", "Frames dropped", () -> handlers.getRejected(), "reason", "queue_full");
+        metrics.counter("arp_requests_total", "ARP requests sent, including retries", () -> arpCache.getRequests());
+        metrics.counter("arp_coalesced_total", "Sends that waited on an ARP request already in flight", () -> arpCache.getCoalesced());
+        metrics.gauge("arp_entries", "Resolved ARP cache entries", () -> arpCache.size());
+        metrics.counter("stream_segments_sent_total", "Stream data segments sent, including retransmissions", () -> streams.getSegmentsSent());
+        metrics.counter("stream_retransmissions_total", "Stream data segments sent again", () -> streams.getRetransmissions());
+        metrics.counter("stream_timeouts_total", "Stream retransmission timeouts", () -> streams.getTimeouts());
+        metrics.counter("stream_acks_sent_total", "Stream acknowledgements sent", () -> streams.getAcksSent());
     }
 
     public void run() {
@@ -27,85 +107,466 @@ public class Computer implements Runnable {
         interactWithUser();
     }
 
+    public void start() {
+        listenForMessages();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void close() {
+        if (arpTask != null) arpTask.cancel(false);
+        transport.close();
+        MetricsExporter.unregister(metrics);
+    }
+
+    // Configured ARP entries and the gateway are swapped in whole, so a send sees either
+    // the old or the new value. Learned ARP entries and open streams carry on.
+    public void reconfigure(ConfigDiff diff) {
+        if (diff.moved(name)) System.out.println("\n[" + name + "] The new address, port or MAC takes effect when " + name + " is restarted");
+        if (!diff.getArpChanges().isEmpty()) {
+            Map<Integer, Long> arpEntries = new HashMap<>(staticArp);
+            diff.getArpChanges().forEach((ip, mac) -> {
+                if (mac == null) arpEntries.remove(Addresses.parseIpv4(ip)); else arpEntries.put(Addresses.parseIpv4(ip), Addresses.parseMac(mac));
+            });
+            staticArp = arpEntries;
+        }
+        if (diff.gatewayChanged(name)) {
+            InetSocketAddress resolved = resolveGateway();
+            gateway = resolved;
+            System.out.println("\n[" + name + "] Default gateway is now " + (resolved == null ? "none" : Addresses.formatSocketAddress(resolved)));
+        }
+    }
+
+    private InetSocketAddress resolveGateway() {
+        String gatewayName = configManager.getGateway(name);
+        return gatewayName == null || configManager.getIpAddress(gatewayName) == null ? null
+            : new InetSocketAddress(configManager.getIpAddress(gatewayName), configManager.getPort(gatewayName));
+    }
+
+    public String getCommands() {
+        return "send, trace route, load, show load, reset load, stream, show streams, show arp, show stats, show duplicates, show execution";
+    }
+
+    public void executeCommand(String command, Scanner input) {
+        if ("show stats".equalsIgnoreCase(command.trim())) {
+            System.out.println("\nStatistics for " + name + ":\n" + metrics.describe());
+            return;
+        }
+        if ("show arp".equalsIgnoreCase(command.trim())) {
+            System.out.println("\n" + arpCache.describe(now()));
+            return;
+        }
+        if ("trace route".equalsIgnoreCase(command.trim())) {
+            System.out.print("\nEnter the destination IP: ");
+            String destIp = input.nextLine().trim();
+            System.out.print("\nEnter the destination port: ");
+            try {
+                int destPort = Integer.parseInt(input.nextLine().trim());
+                if (destPort < 1 || destPort > 65535) throw new IllegalArgumentException("port out of range");
+                traceRoute(destIp, destPort);
+            } catch (IllegalArgumentException e) {
+                System.err.println("\nUsage: trace route, then a destination IP and a port from 1 to 65535 (" + e.getMessage() + ")");
+            }
+            return;
+        }
+        if ("load".equalsIgnoreCase(command.trim())) {
+            try {
+                System.out.print("\nEnter the destination IP: ");
+                String destIp = input.nextLine().trim();
+                System.out.print("\nEnter the destination port: ");
+                int destPort = Integer.parseInt(input.nextLine().trim());
+                System.out.print("\nEnter the load options (--rate, --duration, --count, --size, --flows, --burst, --echo): ");
+                String options = input.nextLine().trim();
+                System.out.println("\n" + runLoad(destIp, destPort,
+                    LoadGenerator.Options.parse(options.isEmpty() ? new String[0] : options.split("\\s+"))));
+            } catch (IOException | IllegalArgumentException e) {
+                System.err.println("\nError running load: " + e.getMessage());
+            }
+            return;
+        }
+        if ("show load".equalsIgnoreCase(command.trim())) {
+            System.out.println("\n" + loadReceiver.describe());
+            return;
+        }
+        if ("reset load".equalsIgnoreCase(command.trim())) {
+            loadReceiver.reset();
+            System.out.println("\nLoad statistics cleared.");
+            return;
+        }
+        if ("stream".equalsIgnoreCase(command.trim())) {
+            try {
+                System.out.print("\nEnter the destination IP: ");
+                String destIp = input.nextLine().trim();
+                System.out.print("\nEnter the destination port: ");
+                int destPort = Integer.parseInt(input.nextLine().trim());
+                System.out.print("\nEnter the number of bytes to transfer: ");
+                System.out.println("\n" + runStream(destIp, destPort, Long.parseLong(input.nextLine().trim())));
+            } catch (IOException | IllegalArgumentException e) {
+                System.err.println("\nError running stream: " + e.getMessage());
+            }
+            return;
+        }
+        if ("show streams".equalsIgnoreCase(command.trim())) {
+            System.out.println("\n" + streams.describe());
+            return;
+        }
+        if ("show execution".equalsIgnoreCase(command.trim())) {
+            System.out.println("\nHandling received frames: " + handlers.describe());
+            return;
+        }
+        if ("show duplicates".equalsIgnoreCase(command.trim())) {
+            System.out.println("\nDuplicate filter: " + receivedMessageIds.describe());
+            return;
+        }
+        if (!"send".equalsIgnoreCase(command.trim())) {
+            System.out.println("\nUnknown command: " + command);
+            return;
+        }
+        try {
+            System.out.print("\nEnter the destination IP: ");
+            promptAndSend(input.nextLine(), input);
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("\nError sending message: " + e.getMessage());
+        }
+    }
+
     private void interactWithUser() {
         try (Scanner scanner = new Scanner(System.in)) {
             while (true) {
-                System.out.print("\nEnter the destination IP or 'exit' to quit: ");
-                String destIp = scanner.nextLine();
-                if ("exit".equalsIgnoreCase(destIp)) break;
-
-                System.out.print("\nEnter the destination port: ");
-                int destPort = Integer.parseInt(scanner.nextLine());
+                System.out.println("\nEnter command (" + getCommands() + ", exit):");
+                String command = scanner.nextLine().trim();
+                if ("exit".equalsIgnoreCase(command)) break;
 
-                System.out.print("\nEnter the message: ");
-                String message = scanner.nextLine();
-                String messageId = UUID.randomUUID().toString(); // Generate unique message ID
-                sendMessage(destIp, destPort, message, "original", messageId);
+                executeCommand(command, scanner);
             }
-        } catch (IOException e) {
-            System.err.println("\nError sending message: " + e.getMessage());
         }
+        System.out.println("\nPC " + name + " is shutting down.");
+    }
+
+    private void promptAndSend(String destIp, Scanner scanner) throws IOException {
+        System.out.print("\nEnter the destination port: ");
+        int destPort = Integer.parseInt(scanner.nextLine());
+
+        System.out.print("\nEnter the message: ");
+        String message = scanner.nextLine();
+        sendMessage(destIp, destPort, message, Frame.TYPE_DATA);
     }
 
     private void listenForMessages() {
-        new Thread(() -> {
-            try {
-                while (true) {
-                    byte[] buffer = new byte[1024];
-                    DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
-                    socket.receive(packet);
-                    String received = new String(packet.getData(), 0, packet.getLength());
-                    handleReceivedMessage(received, packet.getAddress(), packet.getPort());
-                }
-            } catch (IOException e) {
-                System.err.println("\nError receiving messages: " + e.getMessage());
+        MetricsExporter.register(metrics);
+        transport.start((data, source) -> {
+            packetsIn.increment();
+            if (handlers.getMode() == FlowExecutor.Mode.INLINE) {
+                decodeAndHandle(data, source);
+                return;
             }
-        }).start();
+            // The transport reuses data once we return, so the task keeps its own reference
+            PooledBuffer held = PooledBuffer.owning(data);
+            if (held != null) {
+                held.retain();
+            } else {
+                held = BufferPool.shared().acquire(data.remaining());
+                held.buffer().put(0, data, data.position(), data.remaining()).limit(data.remaining());
+            }
+            PooledBuffer frameBuffer = held;
+            Runnable task = () -> {
+                try {
+                    decodeAndHandle(frameBuffer.buffer(), source);
+                } finally {
+                    frameBuffer.release();
+                }
+            };
+            if (!handlers.submit(Frame.macFlowHash(data), task)) held.release();
+        });
+        arpTask = arpTimer.scheduleAtFixedRate(() -> arpCache.tick(now(), arpResolver), ARP_TICK_MILLIS, ARP_TICK_MILLIS, TimeUnit.MILLISECONDS);
     }
 
-    private void handleReceivedMessage(String message, InetAddress sourceAddress, int sourcePort) {
-        System.out.println("\n" + name + " received: " + message);
-
-        // Extract the message ID
-        String[] parts = message.split("\\|");
-        if (parts.length < 2) return;
-        String messageId = parts[0];
-        String messageContent = parts[1];
+    private void decodeAndHandle(ByteBuffer data, InetSocketAddress source) {
+        Frame frame = frames.get();
+        if (frame.decode(data)) {
+            handleReceivedMessage(frame, source);
+        } else {
+            parseErrors.increment();
+        }
+    }
 
+    private void handleReceivedMessage(Frame frame, InetSocketAddress source) {
         // Check if the message has already been received
-        if (receivedMessageIds.contains(messageId)) return;
+        if (!receivedMessageIds.add(frame.getIdHigh(), frame.getIdLow())) {
+            duplicates.increment();
+            return;
+        }
+        if (frame.getType() == Frame.TYPE_ARP) {
+            handleArp(frame, source);
+            return;
+        }
+        if (frame.getType() == Frame.TYPE_PROBE) {
+            answerProbe(frame);
+            return;
+        }
+        if (frame.getType() == Frame.TYPE_TIME_EXCEEDED || frame.getType() == Frame.TYPE_PROBE_REPLY) {
+            traceroute.onAnswer(frame);
+            return;
+        }
+        if (frame.getType() == Frame.TYPE_LOAD) {
+            receiveLoad(frame, source);
+            return;
+        }
+        if (frame.getType() == Frame.TYPE_LOAD_ECHO) {
+            loadGenerator.onEcho(frame);
+            return;
+        }
+        if (frame.getType() == Frame.TYPE_STREAM) {
+            if (!streams.receive(frame)) parseErrors.increment();
+            return;
+        }
 
-        // Add the message ID to the received set
-        receivedMessageIds.add(messageId);
+        String messageContent = frame.payloadAsString();
+        if (PacketLog.isEnabled()) {
+            String kind = frame.getType() == Frame.TYPE_REPLY ? "reply" : "original";
+            PacketLog.log("\n" + name + " received (" + kind + ") from " + Addresses.formatIpv4(frame.getSrcIp()) + ": " + messageContent);
+        }
 
-        // Check if the message is an original and needs a reply
-        if (messageContent.contains("original")) {
+        // Check if the message is an original and needs a reply. It goes back the way the
+        // original came, to the MAC of the hop that delivered it, so there is nothing to
+        // resolve; routers on the way route it by the original sender's IP.
+        if (frame.getType() == Frame.TYPE_DATA) {
             try {
-                sendMessage(sourceAddress.getHostAddress(), sourcePort, "Received your message: " + messageContent, "reply", messageId);
+                transmit(InetAddress.getByName(Addresses.formatIpv4(frame.getSrcIp())), source.getPort(), source, frame.getSrcMac(),
+                    ("Received your message: " + messageContent).getBytes(StandardCharsets.UTF_8), Frame.TYPE_REPLY, Frame.DEFAULT_TTL);
             } catch (IOException e) {
                 System.err.println("\nError sending reply: " + e.getMessage());
             }
         }
     }
 
-    private void sendMessage(String destIp, int destPort, String message, String type, String messageId) throws IOException {
+    // Destinations on our subnet are sent to directly, others through the gateway. The
+    // next hop's MAC comes from the ARP cache; on a miss the message waits for the reply.
+    private void sendMessage(String destIp, int destPort, String message, byte type) throws IOException {
+        send(InetAddress.getByName(destIp), destPort, message.getBytes(StandardCharsets.UTF_8), type, Frame.DEFAULT_TTL, ArpCache.UNRESOLVED);
+    }
+
+    private void send(InetAddress destAddress, int destPort, byte[] payload, byte type, int ttl, long destMac)
+            throws IOException {
+        checkPayload(payload);
+        String destIp = destAddress.getHostAddress();
+        InetSocketAddress nextHop = new InetSocketAddress(destAddress, destPort);
+        if (destMac == ArpCache.UNRESOLVED && !isSameSubnet(destAddress)) {
+            InetSocketAddress currentGateway = gateway;
+            if (currentGateway == null) throw new IOException("No default gateway configured to reach " + destIp);
+            nextHop = currentGateway;
+        }
+        if (destMac == ArpCache.UNRESOLVED) destMac = resolve(nextHop);
+        if (destMac == ArpCache.FAILED) {
+            arpFailed.increment();
+            throw new IOException("No ARP reply from " + Addresses.formatSocketAddress(nextHop));
+        }
+        if (destMac == ArpCache.UNRESOLVED) {
+            Pending pending = new Pending(destAddress, destPort, nextHop, payload, type, ttl);
+            switch (arpCache.enqueue(Arp.key(nextHop), pending, now())) {
+                case REQUEST:
+                    sendArpRequest(Arp.key(nextHop), nextHop);
+                    break;
+                case QUEUED:
+                    break;
+                case QUEUE_FULL:
+                    arpQueueFull.increment();
+                    throw new IOException("Too many messages waiting for ARP on " + Addresses.formatSocketAddress(nextHop));
+                case FAILED:
+                    arpFailed.increment();
+                    throw new IOException("No ARP reply from " + Addresses.formatSocketAddress(nextHop));
+            }
+            return;
+        }
+        transmit(destAddress, destPort, nextHop, destMac, payload, type, ttl);
+    }
+
+    private static void checkPayload(byte[] payload) throws IOException {
+        if (payload.length > Frame.MAX_DATAGRAM_PAYLOAD) {
+            throw new IOException("Message of " + payload.length + " bytes exceeds the " + Frame.MAX_DATAGRAM_PAYLOAD + "-byte limit");
+        }
+    }
+
+    private long resolve(InetSocketAddress nextHop) {
+        Long configured = staticArp.get(Addresses.toInt(nextHop.getAddress()));
+        return configured != null ? configured : arpCache.lookup(Arp.key(nextHop), now());
+    }
+
+    private void transmit(InetAddress destAddress, int destPort, InetSocketAddress nextHop, long destMac,
+                          byte[] payload, byte type, int ttl) throws IOException {
+        checkPayload(payload);
+        Frame sendFrame = sendFrames.get();
+        ByteBuffer sendBuffer = sendBuffers.get();
+        sendFrame.newMessageId()
+            .setType(type)
+            .setTtl(ttl)
+            .setSrcMac(macAddress)
+            .setDstMac(destMac)
+            .setSrcIp(Addresses.toInt(address))
+            .setDstIp(Addresses.toInt(destAddress))
+            .setPayload(payload);
+        sendBuffer.clear();
+        // Traceroute payloads are binary and would not survive the text encoding
+        if (type == Frame.TYPE_DATA || type == Frame.TYPE_REPLY) sendFrame.encode(sendBuffer); else sendFrame.encodeBinary(sendBuffer);
+        sendBuffer.flip();
+        transport.send(sendBuffer, nextHop);
+        packetsOut.increment();
+        if (PacketLog.isEnabled() && (type == Frame.TYPE_DATA || type == Frame.TYPE_REPLY)) {
+            String kind = type == Frame.TYPE_REPLY ? "reply" : "original";
+            PacketLog.log("\n" + name + " sent (" + kind + ") message to " + destAddress.getHostAddress() + ":" + destPort + ": "
+                + new String(payload, StandardCharsets.UTF_8));
+        }
+    }
+
+    // Probes take the same path as messages: direct on our subnet, else through the gateway
+    private void traceRoute(String destIp, int destPort) {
+        try {
+            InetAddress destAddress = InetAddress.getByName(destIp);
+            List<Traceroute.Hop> hops = traceroute.run(
+                (ttl, probe) -> send(destAddress, destPort, probe, Frame.TYPE_PROBE, ttl, ArpCache.UNRESOLVED),
+                Traceroute.DEFAULT_MAX_HOPS, Traceroute.DEFAULT_PROBES, Traceroute.DEFAULT_TIMEOUT_MILLIS);
+            System.out.println("\n" + Traceroute.format(destIp + ":" + destPort, hops));
+        } catch (IOException e) {
+            System.err.println("\nError sending probe: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // A probe that reaches us has arrived; the answer goes to the port the probe names
+    private void answerProbe(Frame probe) {
+        InetSocketAddress origin = Traceroute.replyAddress(probe);
+        if (origin == null) {
+            parseErrors.increment();
+            return;
+        }
+        try {
+            transmit(origin.getAddress(), origin.getPort(), origin, probe.getSrcMac(),
+                Traceroute.answer(probe, name, Addresses.toInt(address), port), Frame.TYPE_PROBE_REPLY, Frame.DEFAULT_TTL);
+        } catch (IOException e) {
+            System.err.println("\n[" + name + "] Error answering probe: " + e.getMessage());
+        }
+    }
+
+    // Runs a load test to destIp:destPort and returns the sender's report
+    public String runLoad(String destIp, int destPort, LoadGenerator.Options options) throws IOException {
         InetAddress destAddress = InetAddress.getByName(destIp);
-        String destMac;
-        if (isSameSubnet(destAddress)) {
-            destMac = arpTable.getOrDefault(destIp, "FF:FF:FF:FF:FF:FF"); // Use specific MAC or broadcast
-        } else {
-            destIp = "192.168.1.1"; // Gateway IP should be dynamically retrieved or configured
-            destMac = arpTable.getOrDefault(destIp, "FF:FF:FF:FF:FF:FF"); // Gateway MAC or broadcast
+        try {
+            awaitNextHop(destAddress, destPort);
+            return loadGenerator.run(options, payload -> send(destAddress, destPort, payload, Frame.TYPE_LOAD, Frame.DEFAULT_TTL,
+                ArpCache.UNRESOLVED));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted");
         }
+    }
+
+    // Sends length bytes of random data reliably to destIp:destPort and returns the sender's report
+    public String runStream(String destIp, int destPort, long length) throws IOException {
+        if (length < 0 || length > Integer.MAX_VALUE) throw new IllegalArgumentException("Length must be between 0 and " + Integer.MAX_VALUE);
+        InetAddress destAddress = InetAddress.getByName(destIp);
+        byte[] data = new byte[(int) length];
+        ThreadLocalRandom.current().nextBytes(data);
+        try {
+            awaitNextHop(destAddress, destPort);
+            return streams.send(new InetSocketAddress(destAddress, destPort), ByteBuffer.wrap(data)).describe();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted");
+        }
+    }
+
+    // Resolves the next hop towards destAddress before a bulk send, so that the first
+    // frames do not pile up behind an ARP request
+    private void awaitNextHop(InetAddress destAddress, int destPort) throws IOException, InterruptedException {
+        InetSocketAddress nextHop = isSameSubnet(destAddress) ? new InetSocketAddress(destAddress, destPort) : gateway;
+        if (nextHop == null) throw new IOException("No default gateway configured to reach " + destAddress.getHostAddress());
+        long deadline = now() + ArpCache.DEFAULT_RETRY_MILLIS * ArpCache.DEFAULT_RETRIES;
+        while (resolve(nextHop) < 0) {
+            if (now() - deadline >= 0) throw new IOException("No ARP reply from " + Addresses.formatSocketAddress(nextHop));
+            sendArpRequest(Arp.key(nextHop), nextHop);
+            Thread.sleep(Math.min(ArpCache.DEFAULT_RETRY_MILLIS, 100));
+        }
+    }
+
+    // Load frames are counted; an echo, when asked for, goes back the way the frame came
+    private void receiveLoad(Frame frame, InetSocketAddress source) {
+        if (!loadReceiver.record(frame)) {
+            parseErrors.increment();
+            return;
+        }
+        if (!LoadGenerator.wantsEcho(frame)) return;
+        try {
+            transmit(InetAddress.getByName(Addresses.formatIpv4(frame.getSrcIp())), source.getPort(), source, frame.getSrcMac(), LoadGenerator.echo(frame),
+                Frame.TYPE_LOAD_ECHO, Frame.DEFAULT_TTL);
+        } catch (IOException e) {
+            System.err.println("\n[" + name + "] Error sending load echo: " + e.getMessage());
+        }
+    }
+
+    // Requests go to the next hop's socket with the broadcast MAC; a switch there floods them.
+    // Senders no longer share a lock, so the encoded request is sent before another is encoded.
+    private void sendArpRequest(long key, InetSocketAddress nextHop) {
+        try {
+            synchronized (arp) {
+                transport.send(arp.encode(Arp.OP_REQUEST, macAddress, ownArpKey(), 0, key), nextHop);
+            }
+            packetsOut.increment();
+        } catch (IOException e) {
+            System.err.println("\n[" + name + "] Error sending ARP request to " + Addresses.formatSocketAddress(nextHop) + ": " + e.getMessage());
+        }
+    }
+
+    private final ArpCache.Resolver<Pending> arpResolver = new ArpCache.Resolver<Pending>() {
+        @Override
+        public void request(long key, int attempt) {
+            sendArpRequest(key, new InetSocketAddress(Addresses.formatIpv4((int) (key >>> 16)), (int) (key & 0xFFFF)));
+        }
+
+        @Override
+        public void failed(long key, List<Pending> dropped) {
+            arpFailed.add(dropped.size());
+            System.err.println("\n[" + name + "] No ARP reply from " + Arp.formatKey(key) + ", dropped " + dropped.size() + " message(s)");
+        }
+    };
+
+    // Answers requests for our address and learns the sender of requests and replies alike
+    private void handleArp(Frame frame, InetSocketAddress source) {
+        if (!Arp.isValid(frame)) {
+            parseErrors.increment();
+            return;
+        }
+        long senderKey = Arp.getSenderKey(frame);
+        if (Arp.getOp(frame) == Arp.OP_REQUEST && !Arp.isRequestFor(frame, ownArpKey())) return;
+        for (Pending pending : arpCache.resolved(senderKey, Arp.getSenderMac(frame), now())) {
+            try {
+                transmit(pending.destAddress, pending.destPort, pending.nextHop, Arp.getSenderMac(frame), pending.payload, pending.type,
+                    pending.ttl);
+            } catch (IOException e) {
+                System.err.println("\nError sending message: " + e.getMessage());
+            }
+        }
+        if (Arp.getOp(frame) == Arp.OP_REQUEST) {
+            try {
+                if (arp.reply(frame, macAddress, ownArpKey(), transport, source)) packetsOut.increment();
+            } catch (IOException e) {
+                System.err.println("\n[" + name + "] Error sending ARP reply: " + e.getMessage());
+            }
+        }
+    }
+
+    private long ownArpKey() {
+        return Arp.key(Addresses.toInt(address), port);
+    }
 
-        String fullMessage = "\n" + messageId + "|" + (name + " (" + type + ") says to " + destMac + ": " + message);
-        byte[] data = fullMessage.getBytes();
-        DatagramPacket packet = new DatagramPacket(data, data.length, destAddress, destPort);
-        socket.send(packet);
-        System.out.println("\n" + name + " sent (" + type + ") message to " + destIp + ":" + destPort + ": " + message);
+    private static long now() {
+        return System.nanoTime() / 1_000_000L;
     }
 
-    private boolean isSameSubnet(InetAddress destIp) {
+    // Package-private so Benchmark can measure it directly
+    boolean isSameSubnet(InetAddress destIp) {
         byte[] srcIpBytes = this.address.getAddress();
         byte[] destIpBytes = destIp.getAddress();
         byte[] maskBytes = this.networkMask.getAddress();
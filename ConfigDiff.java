@@ -0,0 +1,178 @@
+import java.util.*;
+
+// What changed between two loads of the configuration file. Devices read the new values
+// from the ConfigManager and use the diff only to tell whether anything of theirs changed,
+// so a reload that leaves a device's view alone costs it nothing.
+//
+// A device's neighbors count as changed when a link to it was added or removed, or when a
+// neighbor was given a new address, port or MAC: either way its resolved ports are stale.
+public class ConfigDiff {
+
+    private final Map<String, String> arpChanges = new TreeMap<>(); // IP -> new MAC, null when removed
+    private final Set<String> linksAdded = new TreeSet<>(); // "a:b" with a < b
+    private final Set<String> linksRemoved = new TreeSet<>();
+    private final Set<String> devicesAdded = new TreeSet<>();
+    private final Set<String> devicesRemoved = new TreeSet<>();
+    private final Set<String> devicesMoved = new TreeSet<>(); // new type, IP, port or MAC
+    private final Set<String> neighborsChanged = new HashSet<>();
+    private final Set<String> gatewaysChanged = new HashSet<>();
+    private final Set<String> networksChanged = new HashSet<>(); // routers whose "# Router networks" differ
+    private final Set<String> vlansChanged = new HashSet<>(); // switches whose "# VLANs" differ
+
+    public static ConfigDiff between(Topology before, Topology after) {
+        ConfigDiff diff = new ConfigDiff();
+        Map<String, String> oldArp = before.getArpTable();
+        Map<String, String> newArp = after.getArpTable();
+        newArp.forEach((ip, mac) -> {
+            if (!mac.equals(oldArp.get(ip))) diff.arpChanges.put(ip, mac);
+        });
+        oldArp.keySet().forEach(ip -> {
+            if (!newArp.containsKey(ip)) diff.arpChanges.put(ip, null);
+        });
+
+        for (int id : after.definedDevices()) {
+            String name = after.name(id);
+            int old = before.id(name);
+            if (old < 0 || before.type(old) == Topology.UNKNOWN) {
+                diff.devicesAdded.add(name);
+            } else if (before.type(old) != after.type(id) || !Objects.equals(before.ipAddress(old), after.ipAddress(id))
+                    || before.port(old) != after.port(id) || !Objects.equals(before.macAddress(old), after.macAddress(id))) {
+                diff.devicesMoved.add(name);
+            }
+            if (!Objects.equals(gatewayName(before, old), gatewayName(after, id))) diff.gatewaysChanged.add(name);
+        }
+        for (int id : before.definedDevices()) {
+            int current = after.id(before.name(id));
+            if (current < 0 || after.type(current) == Topology.UNKNOWN) diff.devicesRemoved.add(before.name(id));
+        }
+
+        Set<String> oldLinks = links(before);
+        Set<String> newLinks = links(after);
+        for (String link : newLinks) {
+            if (!oldLinks.contains(link)) diff.linksAdded.add(link);
+        }
+        for (String link : oldLinks) {
+            if (!newLinks.contains(link)) diff.linksRemoved.add(link);
+        }
+        for (Set<String> changed : Arrays.asList(diff.linksAdded, diff.linksRemoved)) {
+            for (String link : changed) {
+                int colon = link.indexOf(':');
+                diff.neighborsChanged.add(link.substring(0, colon));
+                diff.neighborsChanged.add(link.substring(colon + 1));
+            }
+        }
+        for (String moved : diff.devicesMoved) {
+            int id = after.id(moved);
+            for (int i = 0; i < after.degree(id); i++) diff.neighborsChanged.add(after.name(after.neighbor(id, i)));
+        }
+        // A gateway that moved has to be resolved again by the computers behind it
+        for (int id : after.definedDevices()) {
+            int gateway = after.gateway(id);
+            if (gateway >= 0 && diff.devicesMoved.contains(after.name(gateway))) diff.gatewaysChanged.add(after.name(id));
+        }
+
+        Map<String, Map<String, String>> oldNetworks = before.getRouterNetworks();
+        Map<String, Map<String, String>> newNetworks = after.getRouterNetworks();
+        Set<String> routers = new HashSet<>(oldNetworks.keySet());
+        routers.addAll(newNetworks.keySet());
+        for (String router : routers) {
+            Map<String, String> networks = newNetworks.getOrDefault(router, Collections.emptyMap());
+            if (!networks.equals(oldNetworks.getOrDefault(router, Collections.emptyMap()))) {
+                diff.networksChanged.add(router);
+            } else {
+                // A network reached through a device that moved needs its next hop resolved again
+                for (String attached : networks.values()) {
+                    if (attached != null && diff.devicesMoved.contains(attached)) diff.networksChanged.add(router);
+                }
+            }
+        }
+
+        Map<String, Map<String, int[]>> oldVlans = before.getPortVlans();
+        Map<String, Map<String, int[]>> newVlans = after.getPortVlans();
+        Set<String> switches = new HashSet<>(oldVlans.keySet());
+        switches.addAll(newVlans.keySet());
+        for (String device : switches) {
+            Map<String, int[]> ports = newVlans.getOrDefault(device, Collections.emptyMap());
+            Map<String, int[]> previous = oldVlans.getOrDefault(device, Collections.emptyMap());
+            boolean same = ports.keySet().equals(previous.keySet());
+            for (Map.Entry<String, int[]> port : ports.entrySet()) same &= Arrays.equals(port.getValue(), previous.get(port.getKey()));
+            if (!same) diff.vlansChanged.add(device);
+        }
+        return diff;
+    }
+
+    private static String gatewayName(Topology topology, int id) {
+        return id < 0 || topology.gateway(id) < 0 ? null : topology.name(topology.gateway(id));
+    }
+
+    private static Set<String> links(Topology topology) {
+        Set<String> links = new HashSet<>();
+        for (int id = 0; id < topology.size(); id++) {
+            String name = topology.name(id);
+            for (int i = 0; i < topology.listedCount(id); i++) {
+                String other = topology.name(topology.neighbor(id, i));
+                links.add(name.compareTo(other) < 0 ? name + ":" + other : other + ":" + name);
+            }
+        }
+        return links;
+    }
+
+    public boolean isEmpty() {
+        return arpChanges.isEmpty() && linksAdded.isEmpty() && linksRemoved.isEmpty() && devicesAdded.isEmpty()
+            && devicesRemoved.isEmpty() && devicesMoved.isEmpty() && gatewaysChanged.isEmpty() && networksChanged.isEmpty()
+            && vlansChanged.isEmpty();
+    }
+
+    public Map<String, String> getArpChanges() {
+        return Collections.unmodifiableMap(arpChanges);
+    }
+
+    public Set<String> getDevicesAdded() {
+        return Collections.unmodifiableSet(devicesAdded);
+    }
+
+    public Set<String> getDevicesRemoved() {
+        return Collections.unmodifiableSet(devicesRemoved);
+    }
+
+    public boolean moved(String device) {
+        return devicesMoved.contains(device);
+    }
+
+    public boolean neighborsChanged(String device) {
+        return neighborsChanged.contains(device);
+    }
+
+    public boolean gatewayChanged(String device) {
+        return gatewaysChanged.contains(device);
+    }
+
+    public boolean networksChanged(String router) {
+        return networksChanged.contains(router);
+    }
+
+    public boolean vlansChanged(String device) {
+        return vlansChanged.contains(device);
+    }
+
+    public String describe() {
+        if (isEmpty()) return "no changes";
+        List<String> parts = new ArrayList<>();
+        describe(parts, "devices added", devicesAdded);
+        describe(parts, "devices removed", devicesRemoved);
+        describe(parts, "devices moved", devicesMoved);
+        describe(parts, "links added", linksAdded);
+        describe(parts, "links removed", linksRemoved);
+        if (!arpChanges.isEmpty()) parts.add(arpChanges.size() + " ARP entries changed");
+        if (!gatewaysChanged.isEmpty()) parts.add(gatewaysChanged.size() + " gateways changed");
+        if (!networksChanged.isEmpty()) parts.add("router networks of " + new TreeSet<>(networksChanged));
+        if (!vlansChanged.isEmpty()) parts.add("VLANs of " + new TreeSet<>(vlansChanged));
+        return String.join("; ", parts);
+    }
+
+    // Small sets are listed, large ones counted
+    private static void describe(List<String> parts, String label, Set<String> names) {
+        if (names.isEmpty()) return;
+        parts.add(names.size() <= 8 ? label + " " + names : names.size() + " " + label);
+    }
+}
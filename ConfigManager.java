@@ -3,47 +3,17 @@ import java.util.*;
 
 public class ConfigManager {
 
-  private Map<String, String> ipAddresses = new HashMap<>();
-  private Map<String, String> macAddresses = new HashMap<>();
-  private Map<String, Integer> ports = new HashMap<>(); // Store ports separately
-  private Map<String, String> subnetMasks = new HashMap<>();
-  private Map<String, String> arpTable = new HashMap<>();
-  private Map<String, List<String>> connections = new HashMap<>();
+  private volatile Topology topology = Topology.empty(); // replaced as a whole when the file is loaded
+  private volatile String configFilePath;
 
   public ConfigManager(String configFilePath) {
     loadInitialConfigs(configFilePath);
   }
 
   public void loadInitialConfigs(String configFilePath) {
-    try (
-      BufferedReader reader = new BufferedReader(new FileReader(configFilePath))
-    ) {
-      String line;
-      String currentSection = "";
-
-      while ((line = reader.readLine()) != null) {
-        line = line.trim();
-        if (line.isEmpty() || line.startsWith("# End")) continue; // Skip empty lines and end tags
-
-        if (line.startsWith("#")) {
-          currentSection = line; // Store current section header
-          continue;
-        }
-
-        switch (currentSection) {
-          case "# Computer IP and port numbers":
-          case "# Different port range for switches":
-          case "# Router Configuration":
-            parseDeviceConfig(line);
-            break;
-          case "# ARP table":
-            parseArpTable(line);
-            break;
-          case "# Node connections":
-            parseConnections(line);
-            break;
-        }
-      }
+    this.configFilePath = configFilePath;
+    try {
+      topology = Topology.load(configFilePath);
     } catch (IOException e) {
       System.err.println(
         "Failed to read configuration file: " + e.getMessage()
@@ -51,79 +21,120 @@ public class ConfigManager {
     }
   }
 
-  private void parseDeviceConfig(String line) {
-    String[] parts = line.split(",");
-    if (parts.length < 4) return;
-
-    String deviceName = parts[0].trim();
-    String ipAddress = parts[1].trim();
-    int port = Integer.parseInt(parts[2].trim());
-    String macAddress = parts[3].trim();
-
-    ipAddresses.put(deviceName, ipAddress);
-    ports.put(deviceName, port); // Store port number separately
-    macAddresses.put(deviceName, macAddress);
-    subnetMasks.put(deviceName, "255.255.255.0"); // Default subnet mask
-    arpTable.put(ipAddress, macAddress);
+  // Reads the file again and swaps the new topology in. Readers see either the old or the
+  // new one, never a mix; on a read or parse error the old one stays.
+  public synchronized ConfigDiff reload() throws IOException {
+    return publish(Topology.load(configFilePath));
   }
 
-  private void parseArpTable(String line) {
-    String[] parts = line.split(",");
-    if (parts.length < 2) return;
-
-    String ipAddress = parts[0].trim();
-    String macAddress = parts[1].trim();
-
-    arpTable.put(ipAddress, macAddress);
+  // Callers hold the lock, so no two updates are computed against the same topology
+  private ConfigDiff publish(Topology updated) {
+    ConfigDiff diff = ConfigDiff.between(topology, updated);
+    topology = updated;
+    return diff;
   }
 
-  private void parseConnections(String line) {
-    String[] parts = line.split(":");
-    if (parts.length < 2) return;
-
-    String deviceName = parts[0].trim();
-    String connectedDevice = parts[1].trim();
+  public String getConfigFilePath() {
+    return configFilePath;
+  }
 
-    connections
-      .computeIfAbsent(deviceName, k -> new ArrayList<>())
-      .add(connectedDevice);
+  public Topology getTopology() {
+    return topology;
   }
 
   public String getIpAddress(String deviceName) {
-    return ipAddresses.get(deviceName);
+    Topology current = topology;
+    int id = current.id(deviceName);
+    return id < 0 ? null : current.ipAddress(id);
   }
 
   public String getMacAddress(String deviceName) {
-    return macAddresses.get(deviceName);
+    Topology current = topology;
+    int id = current.id(deviceName);
+    return id < 0 ? null : current.macAddress(id);
   }
 
   public int getPort(String deviceName) {
-    return ports.get(deviceName); // Retrieve port number from the map
+    Topology current = topology;
+    int id = current.id(deviceName);
+    if (id < 0 || current.type(id) == Topology.UNKNOWN) throw new IllegalArgumentException("No port configured for " + deviceName);
+    return current.port(id);
   }
 
   public String getSubnetMask(String deviceName) {
-    return subnetMasks.get(deviceName);
+    Topology current = topology;
+    int id = current.id(deviceName);
+    return id < 0 || current.type(id) == Topology.UNKNOWN ? null : Topology.DEFAULT_SUBNET_MASK;
   }
 
   public Map<String, String> getARPTable() {
-    return arpTable;
+    return topology.getArpTable();
   }
 
   public String resolveArp(String ipAddress) {
-    return arpTable.get(ipAddress);
+    return topology.getArpTable().get(ipAddress);
   }
 
-  public void updateIpAddress(String deviceName, String newIp) {
-    ipAddresses.put(deviceName, newIp);
+  // Only devices listed in the configuration have an address to update. The change is
+  // published as a new topology, like a reload, and its diff returned for the devices to apply.
+  public synchronized ConfigDiff updateIpAddress(String deviceName, String newIp) {
+    int id = topology.id(deviceName);
+    return publish(id < 0 ? topology : topology.withIpAddress(id, newIp));
   }
 
+  // Devices this one lists ("name:other")
   public List<String> getConnectedDevices(String name) {
-    return connections.getOrDefault(name, Collections.emptyList());
+    Topology current = topology;
+    int id = current.id(name);
+    if (id < 0) return Collections.emptyList();
+    List<String> connected = new ArrayList<>(current.listedCount(id));
+    for (int i = 0; i < current.listedCount(id); i++) connected.add(current.name(current.neighbor(id, i)));
+    return connected;
+  }
+
+  // Connections are listed once ("S1:R1"), so this also collects the devices that list name
+  public List<String> getNeighbors(String name) {
+    Topology current = topology;
+    int id = current.id(name);
+    if (id < 0) return Collections.emptyList();
+    List<String> neighbors = new ArrayList<>(current.degree(id));
+    for (int i = 0; i < current.degree(id); i++) neighbors.add(current.name(current.neighbor(id, i)));
+    return neighbors;
   }
 
+  // Every device section also fills ipAddresses, so the type comes from the section it was listed in
   public String getDeviceType(String deviceName) {
-    if (ipAddresses.containsKey(deviceName)) return "Computer";
-    if (connections.containsKey(deviceName)) return "Switch";
+    Topology current = topology;
+    int id = current.id(deviceName);
+    byte type = id < 0 ? Topology.UNKNOWN : current.type(id);
+    if (type == Topology.COMPUTER) return "Computer";
+    if (type == Topology.SWITCH) return "Switch";
+    if (type == Topology.ROUTER) return "Router";
+    if (id >= 0 && current.listsConnections(id)) return "Switch";
     return "Router";
   }
+
+  // Networks directly attached to a router, mapped to the device they are reached through (may be null)
+  public Map<String, String> getRouterNetworks(String routerName) {
+    return topology.getRouterNetworks().getOrDefault(routerName, Collections.emptyMap());
+  }
+
+  // VLAN IDs of a switch's ports by neighbor name; neighbors not listed are in the default VLAN
+  public Map<String, int[]> getPortVlans(String switchName) {
+    return topology.getPortVlans().getOrDefault(switchName, Collections.emptyMap());
+  }
+
+  // Name of the device's default gateway, or null
+  public String getGateway(String deviceName) {
+    Topology current = topology;
+    int id = current.id(deviceName);
+    return id < 0 || current.gateway(id) < 0 ? null : current.name(current.gateway(id));
+  }
+
+  public List<String> getDeviceNames() {
+    Topology current = topology;
+    List<String> names = new ArrayList<>(current.size());
+    for (int id : current.definedDevices()) names.add(current.name(id));
+    return names;
+  }
 }
@@ -0,0 +1,112 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+
+// Reloads the configuration file when it changes on disk and hands the differences to
+// the running devices. The file's directory is watched, as editors often replace a file
+// rather than write it in place; events for one save are gathered for config.watch.delay.ms
+// so that a half-written file is not read. A file that fails to parse is reported and the
+// previous configuration stays in force.
+public class ConfigWatcher {
+
+    public static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("config.watch", "true"));
+    public static final long DEFAULT_DELAY_MILLIS = Long.getLong("config.watch.delay.ms", 200L);
+
+    private final ConfigManager configManager;
+    private final Path file;
+    private final Consumer<ConfigDiff> listener;
+    private final long delayMillis;
+    private WatchService watchService;
+    private Thread thread;
+    private volatile long reloads;
+
+    public ConfigWatcher(ConfigManager configManager, Consumer<ConfigDiff> listener) {
+        this(configManager, listener, DEFAULT_DELAY_MILLIS);
+    }
+
+    public ConfigWatcher(ConfigManager configManager, Consumer<ConfigDiff> listener, long delayMillis) {
+        this.configManager = configManager;
+        this.file = Paths.get(configManager.getConfigFilePath()).toAbsolutePath();
+        this.listener = listener;
+        this.delayMillis = delayMillis;
+    }
+
+    // Starts the watcher on a daemon thread; returns null when config.watch is false
+    public static ConfigWatcher startIfEnabled(ConfigManager configManager, Consumer<ConfigDiff> listener) {
+        if (!ENABLED) return null;
+        ConfigWatcher watcher = new ConfigWatcher(configManager, listener);
+        try {
+            watcher.start();
+            return watcher;
+        } catch (IOException e) {
+            System.err.println("\nNot watching " + configManager.getConfigFilePath() + " for changes: " + e.getMessage());
+            return null;
+        }
+    }
+
+    public synchronized void start() throws IOException {
+        if (thread != null) throw new IllegalStateException("Already watching " + file);
+        watchService = file.getFileSystem().newWatchService();
+        file.getParent().register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        thread = new Thread(this::watch, "config-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public synchronized void close() {
+        if (thread == null) return;
+        thread.interrupt();
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            // Nothing left to release
+        }
+    }
+
+    public long getReloads() {
+        return reloads;
+    }
+
+    private void watch() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                WatchKey key = watchService.take();
+                boolean changed = concernsFile(key);
+                // Wait for the writes of one save to settle
+                while (changed && (key = watchService.poll(delayMillis, TimeUnit.MILLISECONDS)) != null) concernsFile(key);
+                if (changed) reload();
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // Closed
+        }
+    }
+
+    private boolean concernsFile(WatchKey key) {
+        boolean concerns = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW || file.getFileName().equals(event.context())) concerns = true;
+        }
+        key.reset();
+        return concerns;
+    }
+
+    // Public so a console command or a test can force a reload without touching the file
+    public synchronized void reload() {
+        ConfigDiff diff;
+        try {
+            diff = configManager.reload();
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("\nKeeping the previous configuration; " + file + " could not be loaded: " + e.getMessage());
+            return;
+        }
+        if (diff.isEmpty()) return;
+        reloads++;
+        System.out.println("\nReloaded " + file.getFileName() + ": " + diff.describe());
+        try {
+            listener.accept(diff);
+        } catch (RuntimeException e) {
+            System.err.println("\nError applying " + file.getFileName() + ": " + e);
+        }
+    }
+}
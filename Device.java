@@ -0,0 +1,23 @@
+import java.util.*;
+
+// Common surface of Computer, Switch and Router so several devices can share one console
+public interface Device {
+
+    String getName();
+
+    // Starts receiving and forwarding frames without attaching a console
+    void start();
+
+    // Runs one console command; commands that need arguments prompt for them on input
+    void executeCommand(String command, Scanner input);
+
+    // Lists the commands accepted by executeCommand
+    String getCommands();
+
+    // Applies a reloaded configuration: the device reads its new settings from the
+    // ConfigManager where the diff says they changed, and keeps what it has learned
+    void reconfigure(ConfigDiff diff);
+
+    // Stops receiving and releases the device's socket
+    void close();
+}
@@ -0,0 +1,404 @@
+import java.nio.*;
+import java.util.*;
+import java.util.function.*;
+
+// RIP-style distance-vector routing, independent of sockets, threads and clocks.
+//
+// The owner feeds in received updates (receive), link events (neighborUp/neighborDown)
+// and clock ticks (tick), and hands outgoing updates to a Link. Routes are advertised
+// with split horizon: a route is never sent back to the neighbor it was learned from.
+// A route that becomes unreachable is advertised with the infinity metric so neighbors
+// drop it at once instead of waiting for it to time out. Changes go out as triggered
+// updates holding only the changed prefixes; the whole table is sent on the periodic
+// timer and in answer to a request.
+//
+// Neighbors advertising a route at the same metric as the best one are kept as extra
+// next hops, up to DEFAULT_MAX_PATHS in all, so the router can spread traffic over them.
+// When the first of them fails, times out or gets worse, the next takes its place at the
+// same metric without the route going unreachable. Split horizon leaves a route out of
+// what every one of its next hops is sent.
+//
+// Message layout: version (1), command (1), entry count (2), then per entry the prefix (4),
+// prefix length (1) and metric (1).
+public class DistanceVector implements RoutingProtocol {
+
+    public static final int DEFAULT_INFINITY = Integer.getInteger("rip.infinity", 16);
+    public static final long DEFAULT_UPDATE_MILLIS = Long.getLong("rip.update.ms", 30_000L);
+    public static final long DEFAULT_TIMEOUT_MILLIS = Long.getLong("rip.timeout.ms", 180_000L);
+    public static final long DEFAULT_GARBAGE_MILLIS = Long.getLong("rip.gc.ms", 120_000L);
+    public static final long DEFAULT_TRIGGERED_MILLIS = Long.getLong("rip.triggered.ms", 50L);
+
+    public static final byte VERSION = 1;
+    public static final byte COMMAND_REQUEST = 1;
+    public static final byte COMMAND_RESPONSE = 2;
+    public static final int HEADER_LENGTH = 4;
+    public static final int ENTRY_LENGTH = 6;
+    public static final int MAX_ENTRIES = (1400 - HEADER_LENGTH) / ENTRY_LENGTH;
+
+    public interface RouteListener {
+        // neighbors are the equal-metric next hops, none for a connected network; metric >=
+        // infinity means the route is gone
+        void routeChanged(int prefix, int length, List<String> neighbors, int metric);
+    }
+
+    public static final class Route {
+        final int prefix;
+        final int length;
+        int metric;
+        String neighbor;
+        final Map<String, Long> alternates = new LinkedHashMap<>(); // other neighbors at the same metric -> when last heard
+        long updatedAt;
+        long garbageAt;
+        boolean changed;
+
+        Route(int prefix, int length) {
+            this.prefix = prefix;
+            this.length = length;
+        }
+
+        public int getPrefix() {
+            return prefix;
+        }
+
+        public int getLength() {
+            return length;
+        }
+
+        public int getMetric() {
+            return metric;
+        }
+
+        public String getNeighbor() {
+            return neighbor;
+        }
+
+        // The neighbor the route was learned from, then those offering the same metric
+        public List<String> getNeighbors() {
+            if (neighbor == null) return Collections.emptyList();
+            List<String> neighbors = new ArrayList<>(1 + alternates.size());
+            neighbors.add(neighbor);
+            neighbors.addAll(alternates.keySet());
+            return neighbors;
+        }
+
+        public long getUpdatedAt() {
+            return updatedAt;
+        }
+    }
+
+    private final int infinity;
+    private final long updateMillis;
+    private final long timeoutMillis;
+    private final long garbageMillis;
+    private final long triggeredMillis;
+    private final int maxPaths = DEFAULT_MAX_PATHS;
+    private final Link link;
+    private final RouteListener listener;
+    private final Set<String> neighbors = new LinkedHashSet<>();
+    private final Map<Long, Route> routes = new LinkedHashMap<>();
+    private final ByteBuffer message = ByteBuffer.allocate(HEADER_LENGTH + MAX_ENTRIES * ENTRY_LENGTH);
+    private long nextPeriodic;
+    private long lastTriggered = Long.MIN_VALUE / 2;
+    private int pendingChanges;
+    private long messagesSent;
+    private long updatesReceived;
+
+    public DistanceVector(Collection<String> neighbors, Link link, RouteListener listener) {
+        this(neighbors, link, listener, DEFAULT_INFINITY, DEFAULT_UPDATE_MILLIS, DEFAULT_TIMEOUT_MILLIS,
+            DEFAULT_GARBAGE_MILLIS, DEFAULT_TRIGGERED_MILLIS);
+    }
+
+    public DistanceVector(Collection<String> neighbors, Link link, RouteListener listener, int infinity,
+                          long updateMillis, long timeoutMillis, long garbageMillis, long triggeredMillis) {
+        if (infinity < 2 || infinity > 255) throw new IllegalArgumentException("Infinity must be between 2 and 255");
+        this.neighbors.addAll(neighbors);
+        this.link = link;
+        this.listener = listener;
+        this.infinity = infinity;
+        this.updateMillis = updateMillis;
+        this.timeoutMillis = timeoutMillis;
+        this.garbageMillis = garbageMillis;
+        this.triggeredMillis = triggeredMillis;
+    }
+
+    // Asks every neighbor for its table and advertises our own
+    @Override
+    public synchronized void start(long now) {
+        for (String neighbor : neighbors) {
+            sendRequest(neighbor);
+            sendTable(neighbor, false);
+        }
+        clearChanged();
+        nextPeriodic = now + updateMillis;
+    }
+
+    @Override
+    public synchronized void addConnected(int prefix, int length, long now) {
+        int network = prefix & PrefixTrie.mask(length);
+        Route route = routes.get(key(network, length));
+        if (route == null) {
+            route = new Route(network, length);
+            routes.put(key(network, length), route);
+        } else if (route.neighbor == null && route.metric == 0) {
+            return;
+        }
+        set(route, null, 0, now);
+    }
+
+    @Override
+    public synchronized void removeConnected(int prefix, int length, long now) {
+        Route route = routes.get(key(prefix & PrefixTrie.mask(length), length));
+        if (route != null && route.neighbor == null && route.metric < infinity) invalidate(route, now);
+    }
+
+    public synchronized void neighborUp(String neighbor) {
+        if (neighbors.add(neighbor)) {
+            sendRequest(neighbor);
+            sendTable(neighbor, false);
+        }
+    }
+
+    @Override
+    public void addNeighbor(String neighbor, long now) {
+        neighborUp(neighbor);
+    }
+
+    @Override
+    public void removeNeighbor(String neighbor, long now) {
+        neighborDown(neighbor, now);
+    }
+
+    // Every route through the neighbor becomes unreachable at once, unless another
+    // neighbor offers it at the same metric
+    @Override
+    public synchronized void neighborDown(String neighbor, long now) {
+        if (!neighbors.remove(neighbor)) return;
+        for (Route route : routes.values()) {
+            if (route.alternates.remove(neighbor) != null) {
+                pathsChanged(route);
+            } else if (neighbor.equals(route.neighbor) && route.metric < infinity && !promote(route)) {
+                invalidate(route, now);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void receive(String neighbor, ByteBuffer data, long now) {
+        if (!neighbors.contains(neighbor)) return;
+        int start = data.position();
+        int limit = data.limit();
+        if (limit - start < HEADER_LENGTH || data.get(start) != VERSION) return;
+        byte command = data.get(start + 1);
+        int count = data.getShort(start + 2) & 0xFFFF;
+        if (command == COMMAND_REQUEST) {
+            sendTable(neighbor, false);
+            return;
+        }
+        if (command != COMMAND_RESPONSE) return;
+
+        updatesReceived++;
+        int offset = start + HEADER_LENGTH;
+        for (int i = 0; i < count && offset + ENTRY_LENGTH <= limit; i++, offset += ENTRY_LENGTH) {
+            int length = data.get(offset + 4) & 0xFF;
+            if (length > 32) continue;
+            int prefix = data.getInt(offset) & PrefixTrie.mask(length);
+            int metric = Math.min((data.get(offset + 5) & 0xFF) + 1, infinity);
+            update(neighbor, prefix, length, metric, now);
+        }
+    }
+
+    private void update(String neighbor, int prefix, int length, int metric, long now) {
+        long key = key(prefix, length);
+        Route route = routes.get(key);
+        if (route == null) {
+            if (metric >= infinity) return;
+            route = new Route(prefix, length);
+            routes.put(key, route);
+            set(route, neighbor, metric, now);
+            return;
+        }
+        if (neighbor.equals(route.neighbor)) {
+            if (metric >= infinity) {
+                if (route.metric < infinity && !promote(route)) invalidate(route, now);
+                return;
+            }
+            route.updatedAt = now;
+            // Worse through the first next hop: another one at the old metric takes over
+            if (metric > route.metric && promote(route)) return;
+            if (metric != route.metric) set(route, neighbor, metric, now);
+        } else if (route.alternates.containsKey(neighbor)) {
+            if (metric == route.metric) {
+                route.alternates.put(neighbor, now);
+            } else if (metric < route.metric) {
+                set(route, neighbor, metric, now);
+            } else {
+                route.alternates.remove(neighbor);
+                dropped(route);
+            }
+        } else if (metric < route.metric) {
+            set(route, neighbor, metric, now);
+        } else if (metric == route.metric && metric < infinity && route.neighbor != null && route.alternates.size() + 1 < maxPaths) {
+            route.alternates.put(neighbor, now);
+            pathsChanged(route);
+        } else if (metric >= infinity && route.metric < infinity) {
+            // The neighbor lost a route we still have; tell it in the next triggered update
+            // rather than leaving it without one until the periodic update
+            markChanged(route);
+        }
+    }
+
+    // A new metric, or a better one through another neighbor, drops the other next hops
+    private void set(Route route, String neighbor, int metric, long now) {
+        route.neighbor = neighbor;
+        route.alternates.clear();
+        route.metric = metric;
+        route.updatedAt = now;
+        markChanged(route);
+        listener.routeChanged(route.prefix, route.length, route.getNeighbors(), metric);
+    }
+
+    private void invalidate(Route route, long now) {
+        route.alternates.clear();
+        route.metric = infinity;
+        route.garbageAt = now + garbageMillis;
+        markChanged(route);
+        listener.routeChanged(route.prefix, route.length, route.getNeighbors(), infinity);
+    }
+
+    // Replaces the first next hop with the next one at the same metric; false if there is none
+    private boolean promote(Route route) {
+        Iterator<Map.Entry<String, Long>> next = route.alternates.entrySet().iterator();
+        if (!next.hasNext()) return false;
+        Map.Entry<String, Long> alternate = next.next();
+        next.remove();
+        route.neighbor = alternate.getKey();
+        route.updatedAt = alternate.getValue();
+        dropped(route);
+        return true;
+    }
+
+    private void pathsChanged(Route route) {
+        listener.routeChanged(route.prefix, route.length, route.getNeighbors(), route.metric);
+    }
+
+    // A neighbor stopped being a next hop: split horizon no longer hides the route from it,
+    // and it may need it now, so it goes out in the next triggered update
+    private void dropped(Route route) {
+        markChanged(route);
+        pathsChanged(route);
+    }
+
+    private void markChanged(Route route) {
+        if (!route.changed) {
+            route.changed = true;
+            pendingChanges++;
+        }
+    }
+
+    // Timeouts, garbage collection, triggered and periodic updates
+    @Override
+    public synchronized void tick(long now) {
+        Iterator<Route> iterator = routes.values().iterator();
+        while (iterator.hasNext()) {
+            Route route = iterator.next();
+            if (route.metric >= infinity) {
+                if (now - route.garbageAt >= 0 && !route.changed) iterator.remove();
+            } else if (route.neighbor != null) {
+                if (route.alternates.values().removeIf(heard -> now - heard > timeoutMillis)) dropped(route);
+                if (now - route.updatedAt > timeoutMillis && !promote(route)) invalidate(route, now);
+            }
+        }
+
+        if (now - nextPeriodic >= 0) {
+            for (String neighbor : neighbors) sendTable(neighbor, false);
+            clearChanged();
+            nextPeriodic = now + updateMillis;
+        } else if (pendingChanges > 0 && now - lastTriggered >= triggeredMillis) {
+            for (String neighbor : neighbors) sendTable(neighbor, true);
+            clearChanged();
+            lastTriggered = now;
+        }
+    }
+
+    @Override
+    public synchronized boolean hasPendingChanges() {
+        return pendingChanges > 0;
+    }
+
+    private void clearChanged() {
+        for (Route route : routes.values()) route.changed = false;
+        pendingChanges = 0;
+    }
+
+    private void sendRequest(String neighbor) {
+        message.clear();
+        message.put(VERSION).put(COMMAND_REQUEST).putShort((short) 0).flip();
+        link.send(neighbor, message);
+        messagesSent++;
+    }
+
+    // Split horizon: routes learned from the neighbor are left out of what it is sent
+    private void sendTable(String neighbor, boolean changedOnly) {
+        int entries = 0;
+        message.clear().position(HEADER_LENGTH);
+        for (Route route : routes.values()) {
+            if (changedOnly && !route.changed) continue;
+            if (neighbor.equals(route.neighbor) || route.alternates.containsKey(neighbor)) continue;
+            message.putInt(route.prefix).put((byte) route.length).put((byte) Math.min(route.metric, infinity));
+            if (++entries == MAX_ENTRIES) {
+                flush(neighbor, entries);
+                entries = 0;
+                message.clear().position(HEADER_LENGTH);
+            }
+        }
+        if (entries > 0) flush(neighbor, entries);
+    }
+
+    private void flush(String neighbor, int entries) {
+        message.put(0, VERSION).put(1, COMMAND_RESPONSE).putShort(2, (short) entries).flip();
+        link.send(neighbor, message);
+        messagesSent++;
+    }
+
+    public synchronized void forEach(Consumer<Route> action) {
+        routes.values().forEach(action);
+    }
+
+    @Override
+    public synchronized int reachableCount() {
+        int count = 0;
+        for (Route route : routes.values()) {
+            if (route.metric < infinity) count++;
+        }
+        return count;
+    }
+
+    @Override
+    public synchronized String describe(long now) {
+        StringBuilder builder = new StringBuilder("Distance-vector routes (neighbors " + neighbors + "):");
+        for (Route route : routes.values()) {
+            builder.append('\n').append(PrefixTrie.format(route.prefix, route.length))
+                .append(" metric ").append(route.metric >= infinity ? "unreachable" : String.valueOf(route.metric))
+                .append(" via ").append(route.neighbor == null ? "connected" : String.join(", ", route.getNeighbors()))
+                .append(" (updated ").append((now - route.updatedAt) / 1000).append("s ago)");
+        }
+        return builder.toString();
+    }
+
+    public int getInfinity() {
+        return infinity;
+    }
+
+    @Override
+    public synchronized long getMessagesSent() {
+        return messagesSent;
+    }
+
+    public synchronized long getUpdatesReceived() {
+        return updatesReceived;
+    }
+
+    private static long key(int prefix, int length) {
+        return ((prefix & 0xFFFFFFFFL) << 8) | length;
+    }
+}
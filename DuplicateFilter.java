@@ -0,0 +1,206 @@
+import java.util.concurrent.atomic.*;
+
+// Bounded, expiring set of recently seen 128-bit message IDs.
+//
+// IDs are kept as two longs in a ring buffer per stripe, indexed by an open-addressed
+// hash table. When a stripe's ring is full the oldest ID is evicted, and IDs older than
+// the time-to-live are dropped as new ones arrive, so memory stays fixed no matter how
+// long a device runs. Each stripe has its own lock; callers on different threads rarely
+// contend.
+public class DuplicateFilter {
+
+    public static final int DEFAULT_CAPACITY = Integer.getInteger("dedup.capacity", 1 << 16);
+    public static final long DEFAULT_TTL_MILLIS = Long.getLong("dedup.ttl.ms", 60_000L);
+
+    private static final int STRIPES = 16;
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final long ttlNanos;
+    private final LongAdder lookups = new LongAdder();
+    private final LongAdder duplicates = new LongAdder();
+    private final LongAdder capacityEvictions = new LongAdder();
+    private final LongAdder expiredEvictions = new LongAdder();
+
+    public DuplicateFilter() {
+        this(DEFAULT_CAPACITY, DEFAULT_TTL_MILLIS);
+    }
+
+    // capacity is the number of IDs remembered across all stripes; ttlMillis <= 0 disables expiry
+    public DuplicateFilter(int capacity, long ttlMillis) {
+        int perStripe = Math.max(1, (capacity + STRIPES - 1) / STRIPES);
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe(perStripe);
+        }
+        this.ttlNanos = ttlMillis > 0 ? ttlMillis * 1_000_000L : Long.MAX_VALUE;
+    }
+
+    // Records the ID; returns false if it was already seen (i.e. the frame is a duplicate)
+    public boolean add(long idHigh, long idLow) {
+        lookups.increment();
+        long hash = mix(idHigh, idLow);
+        Stripe stripe = stripes[(int) (hash >>> 60) & (STRIPES - 1)];
+        boolean added;
+        synchronized (stripe) {
+            added = stripe.add(idHigh, idLow, hash, System.nanoTime());
+        }
+        if (!added) duplicates.increment();
+        return added;
+    }
+
+    public boolean contains(long idHigh, long idLow) {
+        long hash = mix(idHigh, idLow);
+        Stripe stripe = stripes[(int) (hash >>> 60) & (STRIPES - 1)];
+        synchronized (stripe) {
+            stripe.expire(System.nanoTime());
+            return stripe.find(idHigh, idLow, hash) >= 0;
+        }
+    }
+
+    public long getLookups() {
+        return lookups.sum();
+    }
+
+    public long getDuplicates() {
+        return duplicates.sum();
+    }
+
+    public double getHitRate() {
+        long total = lookups.sum();
+        return total == 0 ? 0.0 : (double) duplicates.sum() / total;
+    }
+
+    public long getCapacityEvictions() {
+        return capacityEvictions.sum();
+    }
+
+    public long getExpiredEvictions() {
+        return expiredEvictions.sum();
+    }
+
+    public long getEvictions() {
+        return capacityEvictions.sum() + expiredEvictions.sum();
+    }
+
+    public int size() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.count;
+            }
+        }
+        return size;
+    }
+
+    public int capacity() {
+        return stripes[0].capacity * STRIPES;
+    }
+
+    // Bytes held by the ring buffers and hash tables
+    public long getMemoryFootprint() {
+        long bytes = 0;
+        for (Stripe stripe : stripes) {
+            bytes += 24L * stripe.capacity + 4L * stripe.slots.length;
+        }
+        return bytes;
+    }
+
+    public String describe() {
+        return String.format("%d/%d ids, %d lookups, hit rate %.2f%%, %d evictions (%d full, %d expired), %d KiB",
+            size(), capacity(), getLookups(), getHitRate() * 100, getEvictions(),
+            getCapacityEvictions(), getExpiredEvictions(), getMemoryFootprint() / 1024);
+    }
+
+    private static long mix(long high, long low) {
+        long h = high * 0x9E3779B97F4A7C15L ^ low;
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private final class Stripe {
+        final int capacity;
+        final long[] ringHigh;
+        final long[] ringLow;
+        final long[] ringTime;
+        final int[] slots; // ring index + 1, 0 = empty
+        final int mask;
+        int head; // oldest entry
+        int count;
+
+        Stripe(int capacity) {
+            this.capacity = capacity;
+            this.ringHigh = new long[capacity];
+            this.ringLow = new long[capacity];
+            this.ringTime = new long[capacity];
+            int tableSize = Integer.highestOneBit(Math.max(2, capacity * 2 - 1)) << 1;
+            this.slots = new int[tableSize];
+            this.mask = tableSize - 1;
+        }
+
+        boolean add(long high, long low, long hash, long now) {
+            expire(now);
+            if (find(high, low, hash) >= 0) return false;
+            if (count == capacity) {
+                evictHead();
+                capacityEvictions.increment();
+            }
+
+            int index = head + count;
+            if (index >= capacity) index -= capacity;
+            ringHigh[index] = high;
+            ringLow[index] = low;
+            ringTime[index] = now;
+            count++;
+
+            int slot = (int) hash & mask;
+            while (slots[slot] != 0) slot = (slot + 1) & mask;
+            slots[slot] = index + 1;
+            return true;
+        }
+
+        // Entries are appended in time order, so expired ones are always at the head
+        void expire(long now) {
+            while (count > 0 && now - ringTime[head] > ttlNanos) {
+                evictHead();
+                expiredEvictions.increment();
+            }
+        }
+
+        // Returns the table slot holding the ID, or -1
+        int find(long high, long low, long hash) {
+            int slot = (int) hash & mask;
+            int entry;
+            while ((entry = slots[slot]) != 0) {
+                int index = entry - 1;
+                if (ringHigh[index] == high && ringLow[index] == low) return slot;
+                slot = (slot + 1) & mask;
+            }
+            return -1;
+        }
+
+        private void evictHead() {
+            int slot = find(ringHigh[head], ringLow[head], mix(ringHigh[head], ringLow[head]));
+            if (slot >= 0) delete(slot);
+            head = head + 1 == capacity ? 0 : head + 1;
+            count--;
+        }
+
+        // Backward-shift deletion keeps linear probing chains intact without tombstones
+        private void delete(int slot) {
+            int hole = slot;
+            int next = (hole + 1) & mask;
+            while (slots[next] != 0) {
+                int index = slots[next] - 1;
+                int home = (int) mix(ringHigh[index], ringLow[index]) & mask;
+                // Move the entry back if its home slot is not between the hole and its position
+                if (((next - home) & mask) >= ((next - hole) & mask)) {
+                    slots[hole] = slots[next];
+                    hole = next;
+                }
+                next = (next + 1) & mask;
+            }
+            slots[hole] = 0;
+        }
+    }
+}
@@ -0,0 +1,46 @@
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+// Forwarding engine selectable from StartUp with --engine <name>
+public enum Engine {
+
+    // One blocking DatagramSocket and receive thread per device
+    BLOCKING {
+        @Override
+        Transport create(InetSocketAddress bindAddress) throws IOException {
+            return new UdpTransport(bindAddress);
+        }
+    },
+
+    // Non-blocking DatagramChannels multiplexed on a shared Selector thread
+    NIO {
+        @Override
+        Transport create(InetSocketAddress bindAddress) throws IOException {
+            return new NioTransport(bindAddress, NioEventLoop.shared());
+        }
+    },
+
+    // In-memory queues between devices in this JVM, NIO for everything else
+    MEMORY {
+        @Override
+        Transport create(InetSocketAddress bindAddress) throws IOException {
+            return new MemoryTransport(bindAddress, MemoryHub.shared(), NIO.create(bindAddress));
+        }
+    };
+
+    abstract Transport create(InetSocketAddress bindAddress) throws IOException;
+
+    // Every engine understands batch datagrams; whether sends are coalesced is set by batch.* properties
+    public Transport open(InetSocketAddress bindAddress) throws IOException {
+        return new BatchingTransport(create(bindAddress));
+    }
+
+    public static Engine fromName(String name) {
+        try {
+            return valueOf(name.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown engine: " + name + " (expected one of " + Arrays.toString(values()) + ")");
+        }
+    }
+}
@@ -0,0 +1,149 @@
+import java.lang.reflect.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+// Runs per-packet work off the receive thread while keeping each flow in order.
+//
+// Tasks are spread over a fixed number of lanes by flow hash. A lane runs one task at a
+// time, in submission order, so two packets of one flow are never handled concurrently
+// or out of order; different lanes run in parallel on the chosen executor:
+//
+//   inline   tasks run on the submitting thread, as if there were no executor
+//   pool     a shared, fixed pool of platform threads (execution.threads)
+//   virtual  a virtual thread per lane drain; needs Java 21, older JVMs use the pool
+//
+// Each lane holds at most execution.queue tasks; submit() refuses more, so a stalled
+// handler costs dropped packets instead of unbounded memory.
+public class FlowExecutor {
+
+    public enum Mode { INLINE, POOL, VIRTUAL }
+
+    public static final Mode DEFAULT_MODE = parseMode(System.getProperty("execution.mode", "inline"));
+    public static final int DEFAULT_THREADS = Integer.getInteger("execution.threads", Runtime.getRuntime().availableProcessors());
+    public static final int DEFAULT_LANES = Integer.getInteger("execution.lanes", 64);
+    public static final int DEFAULT_QUEUE = Integer.getInteger("execution.queue", 1024);
+
+    private static final int MAX_DRAIN_BATCH = 64;
+
+    private static ExecutorService sharedPool;
+    private static ExecutorService sharedVirtual;
+    private static boolean virtualUnavailable;
+
+    private final Mode mode;
+    private final Executor executor;
+    private final Lane[] lanes;
+    private final int queueLimit;
+    private final AtomicLong rejected = new AtomicLong();
+
+    private final class Lane implements Runnable {
+        final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        final AtomicInteger size = new AtomicInteger();
+        final AtomicBoolean scheduled = new AtomicBoolean();
+
+        @Override
+        public void run() {
+            for (int i = 0; i < MAX_DRAIN_BATCH; i++) {
+                Runnable task = tasks.poll();
+                if (task == null) break;
+                size.decrementAndGet();
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    System.err.println("\nError in " + Thread.currentThread().getName() + ": " + e);
+                }
+            }
+            scheduled.set(false);
+            // Re-arm if tasks arrived after the last poll, or if the batch limit was hit
+            if (size.get() > 0 && scheduled.compareAndSet(false, true)) executor.execute(this);
+        }
+    }
+
+    public FlowExecutor() {
+        this(DEFAULT_MODE, DEFAULT_LANES, DEFAULT_QUEUE);
+    }
+
+    public FlowExecutor(Mode mode, int laneCount, int queueLimit) {
+        // The shared pool is created only when it runs the tasks: POOL, or VIRTUAL without virtual threads
+        ExecutorService virtual = mode == Mode.VIRTUAL ? virtual() : null;
+        this.mode = mode == Mode.VIRTUAL && virtual == null ? Mode.POOL : mode;
+        this.executor = this.mode == Mode.INLINE ? null : this.mode == Mode.VIRTUAL ? virtual : pool();
+        this.queueLimit = Math.max(1, queueLimit);
+        this.lanes = new Lane[mode == Mode.INLINE ? 0 : Math.max(1, laneCount)];
+        for (int i = 0; i < lanes.length; i++) lanes[i] = new Lane();
+    }
+
+    public static Mode parseMode(String name) {
+        try {
+            return Mode.valueOf(name.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown execution mode: " + name + " (expected inline, pool or virtual)");
+        }
+    }
+
+    // Runs task in flowHash's lane. Returns false, without running it, if the lane is full.
+    public boolean submit(int flowHash, Runnable task) {
+        if (executor == null) {
+            task.run();
+            return true;
+        }
+        Lane lane = lanes[(flowHash & 0x7FFFFFFF) % lanes.length];
+        if (lane.size.incrementAndGet() > queueLimit) {
+            lane.size.decrementAndGet();
+            rejected.incrementAndGet();
+            return false;
+        }
+        lane.tasks.add(task);
+        if (lane.scheduled.compareAndSet(false, true)) executor.execute(lane);
+        return true;
+    }
+
+    // The mode actually in use; VIRTUAL falls back to POOL on JVMs without virtual threads
+    public Mode getMode() {
+        return mode;
+    }
+
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    public int getQueued() {
+        int queued = 0;
+        for (Lane lane : lanes) queued += lane.size.get();
+        return queued;
+    }
+
+    public String describe() {
+        if (executor == null) return "inline on the receive thread";
+        return mode.name().toLowerCase(Locale.ROOT) + ", " + lanes.length + " lanes of " + queueLimit + ", " + getQueued() + " queued, "
+            + rejected.get() + " rejected";
+    }
+
+    private static synchronized ExecutorService pool() {
+        if (sharedPool == null) {
+            AtomicInteger count = new AtomicInteger();
+            sharedPool = Executors.newFixedThreadPool(Math.max(1, DEFAULT_THREADS), runnable -> {
+                Thread thread = new Thread(runnable, "flow-pool-" + count.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return sharedPool;
+    }
+
+    // Executors.newVirtualThreadPerTaskExecutor() is looked up reflectively so that the
+    // sources still build and run on Java 17
+    private static synchronized ExecutorService virtual() {
+        if (sharedVirtual == null && !virtualUnavailable) {
+            try {
+                Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                sharedVirtual = (ExecutorService) factory.invoke(null);
+            } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+                virtualUnavailable = true;
+                System.err.println("\nVirtual threads are not available on Java " + Runtime.version().feature()
+                    + "; using the platform thread pool");
+            }
+        }
+        return sharedVirtual;
+    }
+}
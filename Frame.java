@@ -0,0 +1,406 @@
+import java.nio.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+// Fixed-layout frame shared by Computer, Switch and Router.
+//
+// Binary layout (big endian):
+//   0  magic (0xEF)        1  type            2  ttl
+//   3  message id (16)     19 source MAC (6)  25 destination MAC (6)
+//   31 source IPv4 (4)     35 destination IPv4 (4)
+//   39 payload length (2)  41 payload
+//
+// An 802.1Q-style VLAN tag may precede the header: TAG_MAGIC, then the tag control field
+// (2): priority (3 bits), drop eligible (1) and VLAN ID (12). Switches add it on trunk
+// ports and strip it on access ports, so hosts and routers normally see untagged frames.
+// The offsets above are from the start of the header, after any tag.
+//
+// A Frame instance is a reusable cursor: decode() only records where the payload
+// lives in the source buffer, so a device can keep one Frame per receive thread.
+public class Frame {
+
+    public static final byte MAGIC = (byte) 0xEF;
+    public static final byte TAG_MAGIC = (byte) 0x81; // as in the 802.1Q TPID 0x8100
+    public static final int TAG_LENGTH = 3;
+    public static final int DEFAULT_VLAN = 1; // untagged frames on ports without VLAN configuration
+    public static final int MAX_VLAN = 4094;
+
+    public static final byte TYPE_DATA = 1;
+    public static final byte TYPE_REPLY = 2;
+    public static final byte TYPE_ROUTING = 3; // routing protocol message between neighboring routers
+    public static final byte TYPE_ARP = 4; // address resolution request or reply, see Arp
+    public static final byte TYPE_PROBE = 5; // traceroute probe, see Traceroute
+    public static final byte TYPE_TIME_EXCEEDED = 6; // a router dropped a probe whose TTL ran out
+    public static final byte TYPE_PROBE_REPLY = 7; // a probe reached its destination
+    public static final byte TYPE_LOAD = 8; // load test traffic, see LoadGenerator
+    public static final byte TYPE_LOAD_ECHO = 9; // a load frame's header sent back to its sender
+    public static final byte TYPE_STREAM = 10; // reliable transfer data or acknowledgement, see ReliableStream
+    public static final byte TYPE_BPDU = 11; // spanning tree message between neighboring switches, see SpanningTree
+
+    public static final int TYPE_OFFSET = 1;
+    public static final int TTL_OFFSET = 2;
+    public static final int ID_OFFSET = 3;
+    public static final int SRC_MAC_OFFSET = 19;
+    public static final int DST_MAC_OFFSET = 25;
+    public static final int SRC_IP_OFFSET = 31;
+    public static final int DST_IP_OFFSET = 35;
+    public static final int PAYLOAD_LENGTH_OFFSET = 39;
+    public static final int HEADER_LENGTH = 41;
+    public static final int MAX_PAYLOAD_LENGTH = 0xFFFF;
+    // Longest legacy header: message ID, two MACs, two dotted quads, TTL, signed type and seven '|'
+    public static final int MAX_TEXT_HEADER_LENGTH = 36 + 2 * 17 + 2 * 15 + 3 + 4 + 7;
+    // The largest payload that fits one datagram in either encoding, tagged or not
+    public static final int MAX_DATAGRAM_PAYLOAD = Transport.MAX_DATAGRAM - TAG_LENGTH - MAX_TEXT_HEADER_LENGTH;
+
+    public static final int DEFAULT_TTL = 64;
+
+    // Start with -Dframe.format=text to send the legacy pipe-delimited frames.
+    // Receivers always accept both encodings.
+    private static volatile boolean textFormat = "text".equalsIgnoreCase(System.getProperty("frame.format"));
+
+    private byte type = TYPE_DATA;
+    private int ttl = DEFAULT_TTL;
+    private long idHigh;
+    private long idLow;
+    private long srcMac;
+    private long dstMac;
+    private int srcIp;
+    private int dstIp;
+    private int vlan; // 0 when untagged
+    private ByteBuffer payloadSource;
+    private int payloadOffset;
+    private int payloadLength;
+
+    public static boolean isTextFormat() {
+        return textFormat;
+    }
+
+    public static void setTextFormat(boolean enabled) {
+        textFormat = enabled;
+    }
+
+    // Writes the frame at out.position() in the configured wire format
+    public void encode(ByteBuffer out) {
+        if (textFormat) {
+            encodeText(out);
+        } else {
+            encodeBinary(out);
+        }
+    }
+
+    public void encodeBinary(ByteBuffer out) {
+        if (out.remaining() < encodedLength()) {
+            throw new BufferOverflowException();
+        }
+        if (vlan != 0) putTag(out, vlan);
+        out.put(MAGIC);
+        out.put(type);
+        out.put((byte) ttl);
+        out.putLong(idHigh);
+        out.putLong(idLow);
+        putMac(out, srcMac);
+        putMac(out, dstMac);
+        out.putInt(srcIp);
+        out.putInt(dstIp);
+        out.putShort((short) payloadLength);
+        for (int i = 0; i < payloadLength; i++) {
+            out.put(payloadSource.get(payloadOffset + i));
+        }
+    }
+
+    // Legacy format: messageId|srcMAC|destMAC|srcIP|destIP|ttl|type|payload
+    // The payload is the last field, so it may itself contain '|'.
+    public void encodeText(ByteBuffer out) {
+        String header = getMessageId() + "|" + Addresses.formatMac(srcMac) + "|" + Addresses.formatMac(dstMac) + "|"
+            + Addresses.formatIpv4(srcIp) + "|" + Addresses.formatIpv4(dstIp) + "|" + ttl + "|" + type + "|";
+        if (vlan != 0) putTag(out, vlan);
+        out.put(header.getBytes(StandardCharsets.US_ASCII));
+        for (int i = 0; i < payloadLength; i++) {
+            out.put(payloadSource.get(payloadOffset + i));
+        }
+    }
+
+    // Reads the frame between in.position() and in.limit() without moving the position.
+    // Returns false if the data is not a well-formed frame.
+    public boolean decode(ByteBuffer in) {
+        int start = in.position();
+        int length = in.remaining();
+        if (length == 0) return false;
+        vlan = 0;
+        if (in.get(start) == TAG_MAGIC) {
+            if (length <= TAG_LENGTH) return false;
+            int tagged = in.getShort(start + 1) & 0x0FFF; // 0 only carries a priority
+            if (tagged > MAX_VLAN) return false;
+            vlan = tagged;
+            start += TAG_LENGTH;
+            length -= TAG_LENGTH;
+        }
+        if (in.get(start) == MAGIC) {
+            return decodeBinary(in, start, length);
+        }
+        return decodeText(in, start, length);
+    }
+
+    private boolean decodeBinary(ByteBuffer in, int start, int length) {
+        if (length < HEADER_LENGTH) return false;
+        int declared = in.getShort(start + PAYLOAD_LENGTH_OFFSET) & 0xFFFF;
+        if (declared > length - HEADER_LENGTH) return false;
+
+        type = in.get(start + TYPE_OFFSET);
+        ttl = in.get(start + TTL_OFFSET) & 0xFF;
+        idHigh = in.getLong(start + ID_OFFSET);
+        idLow = in.getLong(start + ID_OFFSET + 8);
+        srcMac = getMac(in, start + SRC_MAC_OFFSET);
+        dstMac = getMac(in, start + DST_MAC_OFFSET);
+        srcIp = in.getInt(start + SRC_IP_OFFSET);
+        dstIp = in.getInt(start + DST_IP_OFFSET);
+        payloadSource = in;
+        payloadOffset = start + HEADER_LENGTH;
+        payloadLength = declared;
+        return true;
+    }
+
+    private boolean decodeText(ByteBuffer in, int start, int length) {
+        // Old senders prefixed frames with a newline
+        int end = start + length;
+        while (start < end && Character.isWhitespace(in.get(start))) start++;
+
+        int[] separators = new int[7];
+        int found = 0;
+        for (int i = start; i < end && found < separators.length; i++) {
+            if (in.get(i) == '|') separators[found++] = i;
+        }
+        if (found < separators.length) return false;
+
+        try {
+            UUID id = UUID.fromString(field(in, start, separators[0]));
+            idHigh = id.getMostSignificantBits();
+            idLow = id.getLeastSignificantBits();
+            srcMac = Addresses.parseMac(field(in, separators[0] + 1, separators[1]));
+            dstMac = Addresses.parseMac(field(in, separators[1] + 1, separators[2]));
+            srcIp = Addresses.parseDottedQuad(field(in, separators[2] + 1, separators[3]));
+            dstIp = Addresses.parseDottedQuad(field(in, separators[3] + 1, separators[4]));
+            ttl = parseTtl(field(in, separators[4] + 1, separators[5]));
+            type = Byte.parseByte(field(in, separators[5] + 1, separators[6]));
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+
+        // Trailing whitespace was trimmed by the old parsers too
+        while (end > separators[6] + 1 && Character.isWhitespace(in.get(end - 1))) end--;
+        payloadSource = in;
+        payloadOffset = separators[6] + 1;
+        payloadLength = end - payloadOffset;
+        return true;
+    }
+
+    // 1-3 decimal digits up to 255, the most the binary header's one byte holds
+    private static int parseTtl(String text) {
+        if (text.isEmpty() || text.length() > 3) throw new IllegalArgumentException("Invalid TTL: " + text);
+        int ttl = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < '0' || c > '9') throw new IllegalArgumentException("Invalid TTL: " + text);
+            ttl = ttl * 10 + (c - '0');
+        }
+        if (ttl > 255) throw new IllegalArgumentException("Invalid TTL: " + text);
+        return ttl;
+    }
+
+    // Writes a tag for vlan at out.position(), with priority 0
+    public static void putTag(ByteBuffer out, int vlan) {
+        out.put(TAG_MAGIC);
+        out.putShort((short) vlan);
+    }
+
+    // TAG_LENGTH if the frame at data.position() is tagged, else 0
+    public static int tagLength(ByteBuffer data) {
+        return data.remaining() > TAG_LENGTH && data.get(data.position()) == TAG_MAGIC ? TAG_LENGTH : 0;
+    }
+
+    // Rewrites the TTL and MACs of the binary frame at data.position() in place, as a
+    // router does at every hop
+    public static void relay(ByteBuffer data, int ttl, long srcMac, long dstMac) {
+        int start = data.position() + tagLength(data);
+        data.put(start + TTL_OFFSET, (byte) ttl);
+        data.putShort(start + SRC_MAC_OFFSET, (short) (srcMac >>> 32)).putInt(start + SRC_MAC_OFFSET + 2, (int) srcMac);
+        data.putShort(start + DST_MAC_OFFSET, (short) (dstMac >>> 32)).putInt(start + DST_MAC_OFFSET + 2, (int) dstMac);
+    }
+
+    // VLAN ID of the tag at data.position(), or 0 for an untagged frame
+    public static int vlanOf(ByteBuffer data) {
+        return tagLength(data) == 0 ? 0 : data.getShort(data.position() + 1) & 0x0FFF;
+    }
+
+    private static String field(ByteBuffer in, int from, int to) {
+        byte[] bytes = new byte[to - from];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = in.get(from + i);
+        }
+        return new String(bytes, StandardCharsets.US_ASCII).trim();
+    }
+
+    private static void putMac(ByteBuffer out, long mac) {
+        out.putShort((short) (mac >>> 32));
+        out.putInt((int) mac);
+    }
+
+    private static long getMac(ByteBuffer in, int index) {
+        return ((in.getShort(index) & 0xFFFFL) << 32) | (in.getInt(index + 2) & 0xFFFFFFFFL);
+    }
+
+    // Flow hashes read header fields in place, so sharding a frame does not decode it.
+    // Text frames all hash to 0 and therefore stay on one worker, in order.
+    public static int macFlowHash(ByteBuffer data) {
+        int tag = tagLength(data);
+        if (!isBinary(data) || data.remaining() < tag + HEADER_LENGTH) return 0;
+        int start = data.position() + tag;
+        return mix(getMac(data, start + SRC_MAC_OFFSET) * 31 + getMac(data, start + DST_MAC_OFFSET));
+    }
+
+    public static int ipFlowHash(ByteBuffer data) {
+        int tag = tagLength(data);
+        if (!isBinary(data) || data.remaining() < tag + HEADER_LENGTH) return 0;
+        int start = data.position() + tag;
+        return mix(((long) data.getInt(start + SRC_IP_OFFSET) << 32) | (data.getInt(start + DST_IP_OFFSET) & 0xFFFFFFFFL));
+    }
+
+    private static int mix(long value) {
+        long h = value * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    // True for binary frames, tagged or not
+    public static boolean isBinary(ByteBuffer data) {
+        int tag = tagLength(data);
+        return data.remaining() > tag && data.get(data.position() + tag) == MAGIC;
+    }
+
+    public int encodedLength() {
+        return (vlan != 0 ? TAG_LENGTH : 0) + HEADER_LENGTH + payloadLength;
+    }
+
+    public Frame newMessageId() {
+        UUID id = UUID.randomUUID();
+        idHigh = id.getMostSignificantBits();
+        idLow = id.getLeastSignificantBits();
+        return this;
+    }
+
+    public UUID getMessageId() {
+        return new UUID(idHigh, idLow);
+    }
+
+    public long getIdHigh() {
+        return idHigh;
+    }
+
+    public long getIdLow() {
+        return idLow;
+    }
+
+    public Frame setMessageId(long high, long low) {
+        this.idHigh = high;
+        this.idLow = low;
+        return this;
+    }
+
+    public byte getType() {
+        return type;
+    }
+
+    public Frame setType(byte type) {
+        this.type = type;
+        return this;
+    }
+
+    public int getTtl() {
+        return ttl;
+    }
+
+    public Frame setTtl(int ttl) {
+        this.ttl = ttl;
+        return this;
+    }
+
+    public long getSrcMac() {
+        return srcMac;
+    }
+
+    public Frame setSrcMac(long srcMac) {
+        this.srcMac = srcMac;
+        return this;
+    }
+
+    public long getDstMac() {
+        return dstMac;
+    }
+
+    public Frame setDstMac(long dstMac) {
+        this.dstMac = dstMac;
+        return this;
+    }
+
+    public int getSrcIp() {
+        return srcIp;
+    }
+
+    public Frame setSrcIp(int srcIp) {
+        this.srcIp = srcIp;
+        return this;
+    }
+
+    public int getDstIp() {
+        return dstIp;
+    }
+
+    public Frame setDstIp(int dstIp) {
+        this.dstIp = dstIp;
+        return this;
+    }
+
+    public int getVlan() {
+        return vlan;
+    }
+
+    // 0 sends the frame untagged
+    public Frame setVlan(int vlan) {
+        if (vlan < 0 || vlan > MAX_VLAN) throw new IllegalArgumentException("Invalid VLAN: " + vlan);
+        this.vlan = vlan;
+        return this;
+    }
+
+    public Frame setPayload(byte[] payload) {
+        return setPayload(ByteBuffer.wrap(payload), 0, payload.length);
+    }
+
+    public Frame setPayload(ByteBuffer source, int offset, int length) {
+        if (length > MAX_PAYLOAD_LENGTH) {
+            throw new IllegalArgumentException("Payload too large: " + length + " bytes");
+        }
+        this.payloadSource = source;
+        this.payloadOffset = offset;
+        this.payloadLength = length;
+        return this;
+    }
+
+    public ByteBuffer getPayloadSource() {
+        return payloadSource;
+    }
+
+    public int getPayloadOffset() {
+        return payloadOffset;
+    }
+
+    public int getPayloadLength() {
+        return payloadLength;
+    }
+
+    public String payloadAsString() {
+        byte[] bytes = new byte[payloadLength];
+        for (int i = 0; i < payloadLength; i++) {
+            bytes[i] = payloadSource.get(payloadOffset + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,82 @@
+import java.util.concurrent.atomic.*;
+
+// Log-linear latency histogram in the style of HdrHistogram.
+//
+// Values below 64 get a bucket each; above that every power of two is split into 32
+// buckets, so a recorded value is off by at most 1/32 (about 3%) of itself. Recording
+// is one array increment and never allocates. Values are nanoseconds and are clamped to
+// about 18 minutes.
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_BIT = 40;
+    private static final long MAX_VALUE = (1L << MAX_BIT) - 1;
+    private static final int BUCKETS = (MAX_BIT - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long nanos) {
+        long value = Math.min(Math.max(nanos, 0), MAX_VALUE);
+        counts.incrementAndGet(indexOf(value));
+        count.increment();
+        sum.add(value);
+        long currentMax = max.get();
+        while (value > currentMax && !max.compareAndSet(currentMax, value)) currentMax = max.get();
+    }
+
+    static int indexOf(long value) {
+        if (value < 2 * SUB_BUCKETS) return (int) value;
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return shift * SUB_BUCKETS + (int) (value >>> shift);
+    }
+
+    // Largest value that falls into bucket index
+    static long highestValueOf(int index) {
+        if (index < 2 * SUB_BUCKETS) return index;
+        int shift = index / SUB_BUCKETS - 1;
+        long lowest = (long) (index % SUB_BUCKETS + SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+    // Value at or below which the given fraction (0..1) of recorded values fall
+    public long percentile(double quantile) {
+        long total = 0;
+        long[] snapshot = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) return Math.min(highestValueOf(i), max.get());
+        }
+        return max.get();
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getSum() {
+        return sum.sum();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public String describe() {
+        long samples = getCount();
+        if (samples == 0) return "no samples";
+        return "p50 " + percentile(0.50) + "ns, p90 " + percentile(0.90) + "ns, p99 " + percentile(0.99)
+            + "ns, p99.9 " + percentile(0.999) + "ns, max " + getMax() + "ns, mean " + getSum() / samples + "ns ("
+            + samples + " samples)";
+    }
+}
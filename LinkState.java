@@ -0,0 +1,798 @@
+import java.nio.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+// OSPF-style link-state routing with incremental SPF, independent of sockets and threads.
+//
+// Each router floods a link-state advertisement (LSA) naming the neighbors it currently
+// hears hellos from and the networks it is attached to. A link is used only when both
+// ends list each other. Every router keeps the same database of LSAs and computes its
+// own shortest-path tree from it.
+//
+// A changed LSA is turned into the directed links it added, removed or re-costed, and
+// the tree is repaired one link at a time: a new or cheaper link only re-relaxes the
+// nodes it improves, and a removed or dearer tree link only recomputes the subtree that
+// hung below it. Links off the tree cost nothing. A full Dijkstra runs only on start and
+// when a single update changes more than FULL_SPF_THRESHOLD links.
+//
+// The tree keeps one first hop per router. When routes are published, a router reached at
+// the same distance through several neighbors on the way gets the first hops of each, up
+// to DEFAULT_MAX_PATHS, so equal-cost paths are all used.
+//
+// Message layout: version (1), kind (1), then for a hello nothing more, and for an LSA the
+// origin name (1 + n), sequence number (8), link count (2) and per link the neighbor name
+// (1 + n) and cost (2), then network count (2) and per network the prefix (4) and length (1).
+public class LinkState implements RoutingProtocol {
+
+    public static final long DEFAULT_HELLO_MILLIS = Long.getLong("ls.hello.ms", 1_000L);
+    public static final long DEFAULT_DEAD_MILLIS = Long.getLong("ls.dead.ms", 4_000L);
+    public static final long DEFAULT_REFRESH_MILLIS = Long.getLong("ls.refresh.ms", 30_000L);
+    public static final long DEFAULT_MIN_INTERVAL_MILLIS = Long.getLong("ls.min.interval.ms", 50L);
+
+    public static final byte VERSION = 1;
+    public static final byte KIND_HELLO = 1;
+    public static final byte KIND_LSA = 2;
+    public static final int FULL_SPF_THRESHOLD = 16;
+
+    private static final int UNREACHABLE = Integer.MAX_VALUE;
+
+    public interface TableListener {
+        // Called with the complete new set of routes after every change; bursts of changes
+        // within the minimum interval are folded into one call
+        void tableChanged(List<Route> routes);
+    }
+
+    public static final class Route {
+        final int prefix;
+        final int length;
+        final List<String> neighbors; // equal-cost first hops; none for an attached network
+        final int cost;
+
+        Route(int prefix, int length, List<String> neighbors, int cost) {
+            this.prefix = prefix;
+            this.length = length;
+            this.neighbors = neighbors;
+            this.cost = cost;
+        }
+
+        public int getPrefix() {
+            return prefix;
+        }
+
+        public int getLength() {
+            return length;
+        }
+
+        // The first hop of the shortest-path tree, null for an attached network
+        public String getNeighbor() {
+            return neighbors.isEmpty() ? null : neighbors.get(0);
+        }
+
+        public List<String> getNeighbors() {
+            return neighbors;
+        }
+
+        public int getCost() {
+            return cost;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (this == other) return true;
+            if (!(other instanceof Route)) return false;
+            Route route = (Route) other;
+            return prefix == route.prefix && length == route.length && cost == route.cost && neighbors.equals(route.neighbors);
+        }
+
+        @Override
+        public int hashCode() {
+            return (prefix * 31 + length) * 31 + cost;
+        }
+    }
+
+    private static final class Lsa {
+        final int origin;
+        final long sequence;
+        final int[] neighbors; // node indexes
+        final int[] costs;
+        final int[] prefixes;
+        final int[] lengths;
+        long receivedAt;
+
+        Lsa(int origin, long sequence, int[] neighbors, int[] costs, int[] prefixes, int[] lengths) {
+            this.origin = origin;
+            this.sequence = sequence;
+            this.neighbors = neighbors;
+            this.costs = costs;
+            this.prefixes = prefixes;
+            this.lengths = lengths;
+        }
+
+        int costTo(int node) {
+            for (int i = 0; i < neighbors.length; i++) {
+                if (neighbors[i] == node) return costs[i];
+            }
+            return -1;
+        }
+    }
+
+    private final long helloMillis;
+    private final long deadMillis;
+    private final long refreshMillis;
+    private final long minIntervalMillis;
+    private final int maxPaths = DEFAULT_MAX_PATHS;
+    private final RoutingProtocol.Link link;
+    private final TableListener listener;
+
+    // Node indexes are assigned on first sight and never reused
+    private final Map<String, Integer> indexes = new HashMap<>();
+    private final List<String> names = new ArrayList<>();
+    private Lsa[] database = new Lsa[16];
+    private int[] distance = new int[16];
+    private int[] parent = new int[16];
+    private int[] firstHop = new int[16];
+    private final Heap heap = new Heap();
+
+    private final Map<String, Integer> configuredCosts = new LinkedHashMap<>();
+    private final Map<String, Long> lastHello = new HashMap<>();
+    private final Set<String> adjacent = new LinkedHashSet<>();
+    private final List<int[]> connected = new ArrayList<>(); // {prefix, length}
+    private final ByteBuffer message = ByteBuffer.allocate(Transport.MAX_DATAGRAM - Frame.HEADER_LENGTH);
+    private long sequence;
+    private long nextHello;
+    private long nextRefresh;
+    private long lastOriginated = Long.MIN_VALUE / 2;
+    private boolean originatePending;
+    private long lastPublished = Long.MIN_VALUE / 2;
+    private boolean publishPending;
+    private List<Route> published = List.of();
+    private long messagesSent;
+    private long fullRuns;
+    private long incrementalRuns;
+    private long lastSpfNanos;
+    private long totalSpfNanos;
+
+    public LinkState(String self, Collection<String> neighbors, RoutingProtocol.Link link, TableListener listener) {
+        this(self, neighbors, link, listener, DEFAULT_HELLO_MILLIS, DEFAULT_DEAD_MILLIS, DEFAULT_REFRESH_MILLIS,
+            DEFAULT_MIN_INTERVAL_MILLIS);
+    }
+
+    // minIntervalMillis is the shortest gap between two of our own LSAs, and between two
+    // published tables; changes within it are folded into one LSA and one table, so a burst
+    // of adjacency changes is flooded once and a burst of LSAs rebuilds the routes once
+    public LinkState(String self, Collection<String> neighbors, RoutingProtocol.Link link, TableListener listener,
+                     long helloMillis, long deadMillis, long refreshMillis, long minIntervalMillis) {
+        this.link = link;
+        this.listener = listener;
+        this.helloMillis = helloMillis;
+        this.deadMillis = deadMillis;
+        this.refreshMillis = refreshMillis;
+        this.minIntervalMillis = minIntervalMillis;
+        for (String neighbor : neighbors) configuredCosts.put(neighbor, 1);
+        Arrays.fill(distance, UNREACHABLE);
+        Arrays.fill(parent, -1);
+        index(self);
+    }
+
+    @Override
+    public synchronized void addConnected(int prefix, int length, long now) {
+        connected.add(new int[] {prefix & PrefixTrie.mask(length), length});
+        if (database[0] != null) requestOriginate(now);
+    }
+
+    @Override
+    public synchronized void removeConnected(int prefix, int length, long now) {
+        int network = prefix & PrefixTrie.mask(length);
+        if (connected.removeIf(entry -> entry[0] == network && entry[1] == length) && database[0] != null) requestOriginate(now);
+    }
+
+    // Cost of the link to a neighbor (default 1); takes effect in the next LSA
+    public synchronized void setCost(String neighbor, int cost, long now) {
+        if (cost < 1 || cost > 0xFFFF) throw new IllegalArgumentException("Cost must be between 1 and 65535");
+        if (!configuredCosts.containsKey(neighbor)) throw new IllegalArgumentException("Not a neighbor: " + neighbor);
+        configuredCosts.put(neighbor, cost);
+        if (adjacent.contains(neighbor)) requestOriginate(now);
+    }
+
+    @Override
+    public synchronized void start(long now) {
+        distance[0] = 0;
+        originate(now);
+        sendHellos();
+        nextHello = now + helloMillis;
+    }
+
+    // Marks the neighbor adjacent without waiting for its hello, e.g. when the link is known to be up
+    public synchronized void neighborUp(String neighbor, long now) {
+        if (!configuredCosts.containsKey(neighbor)) return;
+        lastHello.put(neighbor, now);
+        if (adjacent.add(neighbor)) {
+            requestOriginate(now);
+            sendDatabase(neighbor);
+        }
+    }
+
+    @Override
+    public synchronized void neighborDown(String neighbor, long now) {
+        lastHello.remove(neighbor);
+        if (adjacent.remove(neighbor)) requestOriginate(now);
+    }
+
+    // The new neighbor becomes adjacent once its hello arrives; ours goes out at once
+    @Override
+    public synchronized void addNeighbor(String neighbor, long now) {
+        if (configuredCosts.putIfAbsent(neighbor, 1) == null && database[0] != null) sendHellos();
+    }
+
+    @Override
+    public synchronized void removeNeighbor(String neighbor, long now) {
+        neighborDown(neighbor, now);
+        configuredCosts.remove(neighbor);
+    }
+
+    @Override
+    public synchronized void receive(String neighbor, ByteBuffer data, long now) {
+        if (!configuredCosts.containsKey(neighbor)) return;
+        int start = data.position();
+        if (data.remaining() < 2 || data.get(start) != VERSION) return;
+        byte kind = data.get(start + 1);
+        if (kind == KIND_HELLO) {
+            neighborUp(neighbor, now);
+        } else if (kind == KIND_LSA) {
+            try {
+                receiveLsa(neighbor, data.duplicate().position(start + 2), now);
+            } catch (BufferUnderflowException | IllegalArgumentException e) {
+                // Malformed advertisement; the periodic refresh will bring a good copy
+            }
+        }
+    }
+
+    private void receiveLsa(String from, ByteBuffer in, long now) {
+        int origin = index(readName(in));
+        long lsaSequence = in.getLong();
+        int linkCount = in.getShort() & 0xFFFF;
+        int[] neighbors = new int[linkCount];
+        int[] costs = new int[linkCount];
+        for (int i = 0; i < linkCount; i++) {
+            neighbors[i] = index(readName(in));
+            costs[i] = in.getShort() & 0xFFFF;
+        }
+        int networkCount = in.getShort() & 0xFFFF;
+        int[] prefixes = new int[networkCount];
+        int[] lengths = new int[networkCount];
+        for (int i = 0; i < networkCount; i++) {
+            prefixes[i] = in.getInt();
+            lengths[i] = Math.min(in.get() & 0xFF, 32);
+            prefixes[i] &= PrefixTrie.mask(lengths[i]);
+        }
+
+        if (origin == 0) {
+            // Our own LSA from before a restart: continue numbering above it
+            if (lsaSequence >= sequence) {
+                sequence = lsaSequence;
+                originate(now);
+            }
+            return;
+        }
+        Lsa current = database[origin];
+        if (current != null && lsaSequence <= current.sequence) {
+            if (lsaSequence < current.sequence) sendLsa(from, current);
+            return;
+        }
+        Lsa lsa = new Lsa(origin, lsaSequence, neighbors, costs, prefixes, lengths);
+        lsa.receivedAt = now;
+        install(lsa, now);
+        for (String neighbor : adjacent) {
+            if (!neighbor.equals(from)) sendLsa(neighbor, lsa);
+        }
+    }
+
+    @Override
+    public synchronized void tick(long now) {
+        boolean changed = false;
+        for (String neighbor : new ArrayList<>(adjacent)) {
+            Long heard = lastHello.get(neighbor);
+            if (heard == null || now - heard > deadMillis) {
+                adjacent.remove(neighbor);
+                changed = true;
+            }
+        }
+        if (now - nextRefresh >= 0 || (originatePending && now - lastOriginated >= minIntervalMillis)) {
+            originate(now);
+        } else if (changed) {
+            requestOriginate(now);
+        }
+
+        // LSAs that were not refreshed in time belong to routers that are gone
+        for (int node = 1; node < names.size(); node++) {
+            Lsa lsa = database[node];
+            if (lsa != null && now - lsa.receivedAt > 4 * refreshMillis) remove(node, now);
+        }
+        if (publishPending && now - lastPublished >= minIntervalMillis) publish(now);
+
+        if (now - nextHello >= 0) {
+            sendHellos();
+            nextHello = now + helloMillis;
+        }
+    }
+
+    private void requestOriginate(long now) {
+        if (now - lastOriginated >= minIntervalMillis) {
+            originate(now);
+        } else {
+            originatePending = true;
+        }
+    }
+
+    private void requestPublish(long now) {
+        if (now - lastPublished >= minIntervalMillis) {
+            publish(now);
+        } else {
+            publishPending = true;
+        }
+    }
+
+    private void originate(long now) {
+        int[] neighbors = new int[adjacent.size()];
+        int[] costs = new int[adjacent.size()];
+        int i = 0;
+        for (String neighbor : adjacent) {
+            neighbors[i] = index(neighbor);
+            costs[i++] = configuredCosts.get(neighbor);
+        }
+        int[] prefixes = new int[connected.size()];
+        int[] lengths = new int[connected.size()];
+        for (int j = 0; j < connected.size(); j++) {
+            prefixes[j] = connected.get(j)[0];
+            lengths[j] = connected.get(j)[1];
+        }
+        Lsa lsa = new Lsa(0, ++sequence, neighbors, costs, prefixes, lengths);
+        lsa.receivedAt = now;
+        install(lsa, now);
+        for (String neighbor : adjacent) sendLsa(neighbor, lsa);
+        nextRefresh = now + refreshMillis;
+        lastOriginated = now;
+        originatePending = false;
+    }
+
+    // Replaces the node's LSA and repairs the shortest-path tree for the links that changed
+    private void install(Lsa lsa, long now) {
+        int node = lsa.origin;
+        Lsa previous = database[node];
+        database[node] = lsa;
+
+        List<int[]> changes = linkChanges(node, previous, lsa);
+        boolean full = distance[0] != 0 || changes.size() > FULL_SPF_THRESHOLD;
+        long started = System.nanoTime();
+        if (full) {
+            fullSpf();
+            fullRuns++;
+        } else {
+            for (int[] change : changes) repair(change[0], change[1]);
+            if (!changes.isEmpty()) incrementalRuns++;
+        }
+        lastSpfNanos = System.nanoTime() - started;
+        totalSpfNanos += lastSpfNanos;
+        if (!changes.isEmpty() || !Arrays.equals(networksOf(previous), networksOf(lsa))) requestPublish(now);
+    }
+
+    private void remove(int node, long now) {
+        Lsa previous = database[node];
+        database[node] = null;
+        List<int[]> changes = linkChanges(node, previous, null);
+        if (changes.size() > FULL_SPF_THRESHOLD) {
+            fullSpf();
+            fullRuns++;
+        } else {
+            for (int[] change : changes) repair(change[0], change[1]);
+            incrementalRuns++;
+        }
+        requestPublish(now);
+    }
+
+    // Directed links into and out of node whose existence or cost differs between the two LSAs.
+    // A link u->v exists when both u and v list each other; its cost is the one u advertises.
+    private List<int[]> linkChanges(int node, Lsa before, Lsa after) {
+        Set<Integer> touched = new LinkedHashSet<>();
+        if (before != null) for (int neighbor : before.neighbors) touched.add(neighbor);
+        if (after != null) for (int neighbor : after.neighbors) touched.add(neighbor);
+
+        List<int[]> changes = new ArrayList<>();
+        for (int neighbor : touched) {
+            Lsa other = database[neighbor];
+            int otherCost = other == null ? -1 : other.costTo(node);
+            int outBefore = before == null || otherCost < 0 ? -1 : before.costTo(neighbor);
+            int outAfter = after == null || otherCost < 0 ? -1 : after.costTo(neighbor);
+            if (outBefore != outAfter) changes.add(new int[] {node, neighbor});
+            boolean inBefore = otherCost >= 0 && before != null && before.costTo(neighbor) >= 0;
+            boolean inAfter = otherCost >= 0 && after != null && after.costTo(neighbor) >= 0;
+            if (inBefore != inAfter) changes.add(new int[] {neighbor, node});
+        }
+        return changes;
+    }
+
+    private int linkCost(int from, int to) {
+        Lsa tail = database[from];
+        Lsa head = database[to];
+        if (tail == null || head == null || head.costTo(from) < 0) return -1;
+        return tail.costTo(to);
+    }
+
+    private void fullSpf() {
+        int count = names.size();
+        Arrays.fill(distance, 0, count, UNREACHABLE);
+        Arrays.fill(parent, 0, count, -1);
+        Arrays.fill(firstHop, 0, count, -1);
+        distance[0] = 0;
+        heap.clear();
+        heap.update(0);
+        dijkstra();
+    }
+
+    // Repairs the tree after the link from->to was added, removed or changed cost
+    private void repair(int from, int to) {
+        int cost = linkCost(from, to);
+        if (parent[to] == from) {
+            // A tree link: everything below "to" may have to find another way in
+            List<Integer> subtree = subtree(to);
+            boolean[] inSubtree = new boolean[names.size()];
+            for (int node : subtree) {
+                inSubtree[node] = true;
+                distance[node] = UNREACHABLE;
+                parent[node] = -1;
+                firstHop[node] = -1;
+            }
+            heap.clear();
+            for (int node : subtree) {
+                Lsa lsa = database[node];
+                if (lsa == null) continue;
+                for (int neighbor : lsa.neighbors) {
+                    if (inSubtree[neighbor] || distance[neighbor] == UNREACHABLE) continue;
+                    int inCost = linkCost(neighbor, node);
+                    if (inCost >= 0) relax(neighbor, node, inCost);
+                }
+            }
+            dijkstra();
+        } else if (cost >= 0 && distance[from] != UNREACHABLE && distance[from] + cost < distance[to]) {
+            heap.clear();
+            relax(from, to, cost);
+            dijkstra();
+        }
+    }
+
+    private List<Integer> subtree(int root) {
+        int count = names.size();
+        List<List<Integer>> children = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) children.add(null);
+        for (int node = 0; node < count; node++) {
+            int up = parent[node];
+            if (up < 0) continue;
+            if (children.get(up) == null) children.set(up, new ArrayList<>());
+            children.get(up).add(node);
+        }
+        List<Integer> nodes = new ArrayList<>();
+        nodes.add(root);
+        for (int i = 0; i < nodes.size(); i++) {
+            List<Integer> below = children.get(nodes.get(i));
+            if (below != null) nodes.addAll(below);
+        }
+        return nodes;
+    }
+
+    private void relax(int from, int to, int cost) {
+        long candidate = (long) distance[from] + cost;
+        if (candidate >= distance[to]) return;
+        distance[to] = (int) candidate;
+        parent[to] = from;
+        firstHop[to] = from == 0 ? to : firstHop[from];
+        heap.update(to);
+    }
+
+    private void dijkstra() {
+        while (!heap.isEmpty()) {
+            int node = heap.poll();
+            Lsa lsa = database[node];
+            if (lsa == null) continue;
+            for (int i = 0; i < lsa.neighbors.length; i++) {
+                int neighbor = lsa.neighbors[i];
+                Lsa other = database[neighbor];
+                if (other == null || other.costTo(node) < 0) continue;
+                relax(node, neighbor, lsa.costs[i]);
+            }
+        }
+    }
+
+    // Rebuilds the routes from the tree and hands them on unless they came out the same
+    private void publish(long now) {
+        lastPublished = now;
+        publishPending = false;
+        int[][] firstHops = equalCostFirstHops();
+        List<Route> routes = new ArrayList<>();
+        for (int node = 0; node < names.size(); node++) {
+            Lsa lsa = database[node];
+            if (lsa == null || distance[node] == UNREACHABLE || lsa.prefixes.length == 0) continue;
+            List<String> neighbors = new ArrayList<>(node == 0 ? 0 : firstHops[node].length);
+            if (node != 0) {
+                for (int hop : firstHops[node]) neighbors.add(names.get(hop));
+            }
+            List<String> shared = Collections.unmodifiableList(neighbors);
+            for (int i = 0; i < lsa.prefixes.length; i++) {
+                routes.add(new Route(lsa.prefixes[i], lsa.lengths[i], shared, distance[node]));
+            }
+        }
+        // A prefix announced by several routers goes to the nearest one
+        routes.sort(Comparator.comparingInt(route -> route.cost));
+        Set<Long> seen = new HashSet<>();
+        routes.removeIf(route -> !seen.add(((route.prefix & 0xFFFFFFFFL) << 8) | route.length));
+        if (routes.equals(published)) return;
+        published = routes;
+        listener.tableChanged(routes);
+    }
+
+    // First hops per reachable node, the tree's own first, over every predecessor at the
+    // node's distance. Nodes are visited nearest first, and each hands its set on over the
+    // links that lie on a shortest path, so a set is complete by the time it is handed on.
+    private int[][] equalCostFirstHops() {
+        int count = names.size();
+        int[][] hops = new int[count][];
+        int[][] single = new int[count][]; // shared by the nodes with only the tree's first hop
+        long[] order = new long[count];
+        int reachable = 0;
+        for (int node = 0; node < count; node++) {
+            if (distance[node] != UNREACHABLE) order[reachable++] = ((long) distance[node] << 32) | node;
+        }
+        Arrays.sort(order, 0, reachable);
+        for (int i = 0; i < reachable; i++) {
+            int node = (int) order[i];
+            if (node != 0 && hops[node] == null) hops[node] = single(single, firstHop[node]);
+            Lsa lsa = database[node];
+            if (lsa == null || maxPaths == 1) continue;
+            for (int j = 0; j < lsa.neighbors.length; j++) {
+                int to = lsa.neighbors[j];
+                if (to == 0 || distance[to] == UNREACHABLE || (long) distance[node] + lsa.costs[j] != distance[to]) continue;
+                Lsa other = database[to];
+                if (other == null || other.costTo(node) < 0) continue;
+                int[] known = hops[to] == null ? single(single, firstHop[to]) : hops[to];
+                hops[to] = union(known, node == 0 ? single(single, to) : hops[node]);
+            }
+        }
+        return hops;
+    }
+
+    private static int[] single(int[][] single, int hop) {
+        if (single[hop] == null) single[hop] = new int[] {hop};
+        return single[hop];
+    }
+
+    private int[] union(int[] hops, int[] more) {
+        if (more == null) return hops;
+        int[] merged = hops;
+        for (int hop : more) {
+            if (merged.length == maxPaths) break;
+            boolean present = false;
+            for (int existing : merged) present |= existing == hop;
+            if (present) continue;
+            merged = Arrays.copyOf(merged, merged.length + 1);
+            merged[merged.length - 1] = hop;
+        }
+        return merged;
+    }
+
+    private static int[] networksOf(Lsa lsa) {
+        if (lsa == null) return new int[0];
+        int[] networks = new int[lsa.prefixes.length * 2];
+        for (int i = 0; i < lsa.prefixes.length; i++) {
+            networks[2 * i] = lsa.prefixes[i];
+            networks[2 * i + 1] = lsa.lengths[i];
+        }
+        return networks;
+    }
+
+    private int index(String name) {
+        Integer existing = indexes.get(name);
+        if (existing != null) return existing;
+        int node = names.size();
+        if (node == database.length) {
+            int capacity = node * 2;
+            database = Arrays.copyOf(database, capacity);
+            distance = Arrays.copyOf(distance, capacity);
+            parent = Arrays.copyOf(parent, capacity);
+            firstHop = Arrays.copyOf(firstHop, capacity);
+            Arrays.fill(distance, node, capacity, UNREACHABLE);
+            Arrays.fill(parent, node, capacity, -1);
+            Arrays.fill(firstHop, node, capacity, -1);
+        }
+        indexes.put(name, node);
+        names.add(name);
+        return node;
+    }
+
+    private void sendHellos() {
+        message.clear();
+        message.put(VERSION).put(KIND_HELLO).flip();
+        for (String neighbor : configuredCosts.keySet()) {
+            link.send(neighbor, message);
+            message.rewind();
+            messagesSent++;
+        }
+    }
+
+    // Database exchange with a neighbor that just became adjacent
+    private void sendDatabase(String neighbor) {
+        for (int node = 0; node < names.size(); node++) {
+            if (database[node] != null) sendLsa(neighbor, database[node]);
+        }
+    }
+
+    private void sendLsa(String neighbor, Lsa lsa) {
+        message.clear();
+        message.put(VERSION).put(KIND_LSA);
+        writeName(names.get(lsa.origin));
+        message.putLong(lsa.sequence);
+        message.putShort((short) lsa.neighbors.length);
+        for (int i = 0; i < lsa.neighbors.length; i++) {
+            writeName(names.get(lsa.neighbors[i]));
+            message.putShort((short) lsa.costs[i]);
+        }
+        message.putShort((short) lsa.prefixes.length);
+        for (int i = 0; i < lsa.prefixes.length; i++) {
+            message.putInt(lsa.prefixes[i]).put((byte) lsa.lengths[i]);
+        }
+        message.flip();
+        link.send(neighbor, message);
+        messagesSent++;
+    }
+
+    private void writeName(String name) {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        message.put((byte) bytes.length).put(bytes);
+    }
+
+    private static String readName(ByteBuffer in) {
+        byte[] bytes = new byte[in.get() & 0xFF];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Distance to a router, or -1 if it is unreachable; for tests of the tree against a full SPF
+    public synchronized int distanceTo(String router) {
+        Integer node = indexes.get(router);
+        return node == null || distance[node] == UNREACHABLE ? -1 : distance[node];
+    }
+
+    // Recomputes the whole tree; returns how many distances the incremental repairs had wrong
+    public synchronized int verify() {
+        int[] before = Arrays.copyOf(distance, names.size());
+        fullSpf();
+        int wrong = 0;
+        for (int node = 0; node < names.size(); node++) {
+            if (before[node] != distance[node]) wrong++;
+        }
+        return wrong;
+    }
+
+    @Override
+    public synchronized int reachableCount() {
+        Set<Long> prefixes = new HashSet<>();
+        for (int node = 0; node < names.size(); node++) {
+            Lsa lsa = database[node];
+            if (lsa == null || distance[node] == UNREACHABLE) continue;
+            for (int i = 0; i < lsa.prefixes.length; i++) prefixes.add(((lsa.prefixes[i] & 0xFFFFFFFFL) << 8) | lsa.lengths[i]);
+        }
+        return prefixes.size();
+    }
+
+    @Override
+    public synchronized boolean hasPendingChanges() {
+        return originatePending || publishPending;
+    }
+
+    @Override
+    public synchronized long getMessagesSent() {
+        return messagesSent;
+    }
+
+    public synchronized long getFullRuns() {
+        return fullRuns;
+    }
+
+    public synchronized long getIncrementalRuns() {
+        return incrementalRuns;
+    }
+
+    // Time spent in SPF, full and incremental, since the start
+    public synchronized long getSpfNanos() {
+        return totalSpfNanos;
+    }
+
+    @Override
+    public synchronized String describe(long now) {
+        StringBuilder builder = new StringBuilder("Link-state database (adjacent " + adjacent + "):");
+        for (int node = 0; node < names.size(); node++) {
+            Lsa lsa = database[node];
+            if (lsa == null) continue;
+            builder.append('\n').append(names.get(node)).append(" seq ").append(lsa.sequence)
+                .append(distance[node] == UNREACHABLE ? " unreachable" : " cost " + distance[node]
+                    + (node == 0 ? "" : " via " + names.get(firstHop[node])))
+                .append(", links");
+            for (int i = 0; i < lsa.neighbors.length; i++) {
+                builder.append(' ').append(names.get(lsa.neighbors[i])).append('/').append(lsa.costs[i]);
+            }
+            for (int i = 0; i < lsa.prefixes.length; i++) {
+                builder.append(i == 0 ? ", networks " : " ").append(PrefixTrie.format(lsa.prefixes[i], lsa.lengths[i]));
+            }
+        }
+        builder.append("\nSPF: ").append(fullRuns).append(" full, ").append(incrementalRuns)
+            .append(" incremental, last took ").append(lastSpfNanos / 1000).append("us");
+        return builder.toString();
+    }
+
+    // Binary min-heap of node indexes keyed by distance, with decrease-key
+    private final class Heap {
+        private int[] nodes = new int[16];
+        private int[] positions = new int[0]; // node -> heap slot + 1, 0 when absent
+        private int size;
+
+        void clear() {
+            for (int i = 0; i < size; i++) positions[nodes[i]] = 0;
+            size = 0;
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        void update(int node) {
+            if (positions.length < names.size()) positions = Arrays.copyOf(positions, Math.max(16, names.size() * 2));
+            int slot = positions[node] - 1;
+            if (slot < 0) {
+                if (size == nodes.length) nodes = Arrays.copyOf(nodes, size * 2);
+                slot = size++;
+                nodes[slot] = node;
+                positions[node] = slot + 1;
+            }
+            siftUp(slot);
+        }
+
+        int poll() {
+            int top = nodes[0];
+            positions[top] = 0;
+            size--;
+            if (size > 0) {
+                nodes[0] = nodes[size];
+                positions[nodes[0]] = 1;
+                siftDown(0);
+            }
+            return top;
+        }
+
+        private void siftUp(int slot) {
+            int node = nodes[slot];
+            while (slot > 0) {
+                int up = (slot - 1) / 2;
+                if (distance[nodes[up]] <= distance[node]) break;
+                move(nodes[up], slot);
+                slot = up;
+            }
+            move(node, slot);
+        }
+
+        private void siftDown(int slot) {
+            int node = nodes[slot];
+            while (true) {
+                int child = 2 * slot + 1;
+                if (child >= size) break;
+                if (child + 1 < size && distance[nodes[child + 1]] < distance[nodes[child]]) child++;
+                if (distance[node] <= distance[nodes[child]]) break;
+                move(nodes[child], slot);
+                slot = child;
+            }
+            move(node, slot);
+        }
+
+        private void move(int node, int slot) {
+            nodes[slot] = node;
+            positions[node] = slot + 1;
+        }
+    }
+}
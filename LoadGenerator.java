@@ -0,0 +1,229 @@
+import java.io.*;
+import java.nio.*;
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+
+// Sends a stream of TYPE_LOAD frames at a fixed rate or as fast as possible, for
+// measuring a whole path between two computers. The receiving computer keeps a
+// LoadReceiver; with --echo it also sends the first bytes of each frame back as
+// TYPE_LOAD_ECHO, and the round trip is measured here.
+//
+// Frames are spread round-robin over the flows, and each flow numbers its frames from 0,
+// so the receiver can count loss and reordering per flow. With a burst size above 1 the
+// frames of a burst are sent back to back and the bursts are spaced so that the average
+// rate is still the one asked for.
+//
+// Payload layout (big endian): run id (4), flow (2), flags (1), unused (1), sequence
+// number (8), send time (8, nanoseconds since the epoch, see clock()), then padding up to
+// the payload size.
+public class LoadGenerator {
+
+    public static final int RUN_OFFSET = 0;
+    public static final int FLOW_OFFSET = 4;
+    public static final int FLAGS_OFFSET = 6;
+    public static final int SEQUENCE_OFFSET = 8;
+    public static final int TIME_OFFSET = 16;
+    public static final int HEADER_LENGTH = 24;
+    public static final int MAX_PAYLOAD = Frame.MAX_DATAGRAM_PAYLOAD; // whatever still fits one datagram
+
+    public static final byte FLAG_ECHO = 1;
+
+    private static final long ECHO_GRACE_NANOS = 1_000_000_000L; // how long to wait for the last echoes
+    private static final long EPOCH_NANOS;
+    private static final long START_NANOS;
+
+    static {
+        Instant now = Instant.now();
+        START_NANOS = System.nanoTime();
+        EPOCH_NANOS = now.getEpochSecond() * 1_000_000_000L + now.getNano();
+    }
+
+    public interface Sender {
+        void send(byte[] payload) throws IOException;
+    }
+
+    public static final class Options {
+        double rate = 1000; // frames per second, 0 for as fast as possible
+        long durationMillis = 10_000;
+        long count = Long.MAX_VALUE;
+        int[] sizes = {64}; // cycled through, unless randomSizes
+        boolean randomSizes; // uniform between sizes[0] and sizes[1]
+        int flows = 1;
+        int burst = 1;
+        boolean echo;
+
+        // --rate <frames/s|max> --duration <s> --count <n> --size <n|a,b,c|min-max>
+        // --flows <n> --burst <n> --echo
+        public static Options parse(String[] args) {
+            Options options = new Options();
+            for (int i = 0; i < args.length; i++) {
+                String option = args[i];
+                if ("--echo".equals(option)) {
+                    options.echo = true;
+                    continue;
+                }
+                if (i + 1 >= args.length) throw new IllegalArgumentException("Missing value for " + option);
+                String value = args[++i];
+                switch (option) {
+                    case "--rate":
+                        options.rate = "max".equalsIgnoreCase(value) ? 0 : Double.parseDouble(value);
+                        break;
+                    case "--duration":
+                        options.durationMillis = (long) (Double.parseDouble(value) * 1000);
+                        break;
+                    case "--count":
+                        options.count = Long.parseLong(value);
+                        break;
+                    case "--size":
+                        options.parseSizes(value);
+                        break;
+                    case "--flows":
+                        options.flows = Integer.parseInt(value);
+                        break;
+                    case "--burst":
+                        options.burst = Integer.parseInt(value);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option: " + option);
+                }
+            }
+            if (options.rate < 0) throw new IllegalArgumentException("Rate must not be negative");
+            if (options.flows < 1 || options.flows > 0xFFFF) throw new IllegalArgumentException("Flows must be between 1 and 65535");
+            if (options.burst < 1) throw new IllegalArgumentException("Burst must be at least 1");
+            return options;
+        }
+
+        private void parseSizes(String value) {
+            int dash = value.indexOf('-');
+            if (dash > 0) {
+                sizes = new int[] {Integer.parseInt(value.substring(0, dash)), Integer.parseInt(value.substring(dash + 1))};
+                randomSizes = true;
+            } else {
+                sizes = Arrays.stream(value.split(",")).mapToInt(size -> Integer.parseInt(size.trim())).toArray();
+                randomSizes = false;
+            }
+            for (int size : sizes) {
+                if (size < HEADER_LENGTH || size > MAX_PAYLOAD) {
+                    throw new IllegalArgumentException("Payload sizes must be between " + HEADER_LENGTH + " and " + MAX_PAYLOAD);
+                }
+            }
+            if (randomSizes && sizes[0] > sizes[1]) throw new IllegalArgumentException("Empty size range: " + value);
+        }
+
+        @Override
+        public String toString() {
+            String size = randomSizes ? sizes[0] + "-" + sizes[1] : Arrays.toString(sizes);
+            return (rate == 0 ? "max rate" : String.format("%.0f frames/s", rate)) + ", " + size + " bytes, " + flows
+                + " flow(s), burst " + burst + (echo ? ", echo" : "");
+        }
+    }
+
+    private static final AtomicInteger nextRunId = new AtomicInteger(new Random().nextInt());
+
+    private final LongAdder echoes = new LongAdder();
+    private volatile LatencyHistogram roundTrip = new LatencyHistogram();
+    private volatile int runId; // 0 while no run is in progress
+
+    // Nanoseconds since the epoch with System.nanoTime() resolution. Exact between devices
+    // of one JVM; between processes on one host it is as good as the wall clock they read.
+    public static long clock() {
+        return EPOCH_NANOS + (System.nanoTime() - START_NANOS);
+    }
+
+    // Sends until the duration or count is reached and returns the sender's summary
+    public String run(Options options, Sender sender) throws InterruptedException {
+        int run;
+        while ((run = nextRunId.getAndIncrement()) == 0) ;
+        roundTrip = new LatencyHistogram();
+        echoes.reset();
+        runId = run;
+        long[] sequences = new long[options.flows];
+        Random random = new Random();
+        long intervalNanos = options.rate == 0 ? 0 : (long) (1e9 / options.rate);
+        long start = System.nanoTime();
+        long end = start + options.durationMillis * 1_000_000L;
+        long sent = 0;
+        long bytes = 0;
+        long errors = 0;
+        String lastError = null;
+
+        while (sent < options.count && System.nanoTime() - end < 0) {
+            if (intervalNanos > 0) {
+                long due = start + (sent / options.burst) * options.burst * intervalNanos;
+                if (due - end >= 0) break;
+                waitUntil(due);
+            }
+            int flow = (int) (sent % options.flows);
+            int size = options.randomSizes ? options.sizes[0] + random.nextInt(options.sizes[1] - options.sizes[0] + 1)
+                : options.sizes[(int) (sent % options.sizes.length)];
+            // A new array per frame: a frame waiting for ARP keeps its payload
+            ByteBuffer payload = ByteBuffer.allocate(size);
+            payload.putInt(RUN_OFFSET, run)
+                .putShort(FLOW_OFFSET, (short) flow)
+                .put(FLAGS_OFFSET, options.echo ? FLAG_ECHO : 0)
+                .putLong(SEQUENCE_OFFSET, sequences[flow]++)
+                .putLong(TIME_OFFSET, clock());
+            try {
+                sender.send(payload.array());
+                bytes += size;
+            } catch (IOException e) {
+                errors++;
+                lastError = e.getMessage();
+            }
+            sent++;
+        }
+        double seconds = Math.max(System.nanoTime() - start, 1) / 1e9;
+        if (options.echo) waitForEchoes(sent - errors);
+        runId = 0;
+
+        StringBuilder report = new StringBuilder(String.format("Load run %08x (%s):%nSent %d frames (%d bytes) in %.3f s: %.0f frames/s, %.2f Mbit/s",
+            run, options, sent - errors, bytes, seconds, (sent - errors) / seconds, bytes * 8 / seconds / 1e6));
+        if (errors > 0) report.append(String.format("%n%d send errors, last: %s", errors, lastError));
+        if (options.echo) {
+            long answered = echoes.sum();
+            long lost = Math.max(0, sent - errors - answered);
+            report.append(String.format("%nEchoes: %d, lost %d (%.2f%%)%nRound trip: %s", answered, lost,
+                sent - errors == 0 ? 0.0 : 100.0 * lost / (sent - errors), roundTrip.describe()));
+        }
+        return report.toString();
+    }
+
+    private void waitForEchoes(long expected) throws InterruptedException {
+        long deadline = System.nanoTime() + ECHO_GRACE_NANOS;
+        while (echoes.sum() < expected && System.nanoTime() - deadline < 0) Thread.sleep(10);
+    }
+
+    private static void waitUntil(long deadline) {
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(remaining);
+        }
+    }
+
+    // Called by the receive path with TYPE_LOAD_ECHO frames; echoes of other runs are ignored
+    public void onEcho(Frame frame) {
+        if (frame.getPayloadLength() < HEADER_LENGTH) return;
+        ByteBuffer data = frame.getPayloadSource();
+        int offset = frame.getPayloadOffset();
+        int run = runId;
+        if (run == 0 || data.getInt(offset + RUN_OFFSET) != run) return;
+        roundTrip.record(clock() - data.getLong(offset + TIME_OFFSET));
+        echoes.increment();
+    }
+
+    // True for a load frame whose sender asked for an echo
+    public static boolean wantsEcho(Frame frame) {
+        return frame.getPayloadLength() >= HEADER_LENGTH
+            && (frame.getPayloadSource().get(frame.getPayloadOffset() + FLAGS_OFFSET) & FLAG_ECHO) != 0;
+    }
+
+    // Echo payload for a load frame: its header, without the padding
+    public static byte[] echo(Frame frame) {
+        byte[] echo = new byte[HEADER_LENGTH];
+        ByteBuffer data = frame.getPayloadSource();
+        for (int i = 0; i < HEADER_LENGTH; i++) echo[i] = data.get(frame.getPayloadOffset() + i);
+        return echo;
+    }
+}
@@ -0,0 +1,91 @@
+import java.nio.*;
+import java.util.*;
+
+// What a computer received from LoadGenerator runs: throughput, loss, reordering and
+// one-way latency, per run. Loss is counted per flow as the frames missing below the
+// highest sequence number seen, so frames lost at the very end of a run are not noticed
+// (the sender's echo count does notice them). A frame older than the newest one of its
+// flow counts as reordered and fills its gap.
+//
+// One-way latency is receive time minus the send time in the frame, both read with
+// LoadGenerator.clock(); it is exact when sender and receiver run in one JVM.
+public class LoadReceiver {
+
+    private static final int MAX_RUNS = 16;
+
+    private static final class Run {
+        final int id;
+        final String source;
+        final LatencyHistogram oneWay = new LatencyHistogram();
+        final Map<Integer, long[]> flows = new HashMap<>(); // flow -> {received, highest sequence}
+        long first;
+        long last;
+        long frames;
+        long bytes;
+        long reordered;
+
+        Run(int id, String source, long now) {
+            this.id = id;
+            this.source = source;
+            this.first = now;
+        }
+    }
+
+    private final Map<Integer, Run> runs = new LinkedHashMap<Integer, Run>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, Run> eldest) {
+            return size() > MAX_RUNS;
+        }
+    };
+
+    // Called by the receive path with TYPE_LOAD frames; returns false for a malformed one
+    public synchronized boolean record(Frame frame) {
+        if (frame.getPayloadLength() < LoadGenerator.HEADER_LENGTH) return false;
+        long now = LoadGenerator.clock();
+        ByteBuffer data = frame.getPayloadSource();
+        int offset = frame.getPayloadOffset();
+        int id = data.getInt(offset + LoadGenerator.RUN_OFFSET);
+        Run run = runs.get(id);
+        if (run == null) {
+            run = new Run(id, Addresses.formatIpv4(frame.getSrcIp()) + " " + Addresses.formatMac(frame.getSrcMac()), now);
+            runs.put(id, run);
+        }
+        int flow = data.getShort(offset + LoadGenerator.FLOW_OFFSET) & 0xFFFF;
+        long sequence = data.getLong(offset + LoadGenerator.SEQUENCE_OFFSET);
+        long[] state = run.flows.computeIfAbsent(flow, f -> new long[] {0, -1});
+        state[0]++;
+        if (sequence < state[1]) {
+            run.reordered++;
+        } else {
+            state[1] = sequence;
+        }
+        run.frames++;
+        run.bytes += frame.getPayloadLength();
+        run.last = now;
+        run.oneWay.record(now - data.getLong(offset + LoadGenerator.TIME_OFFSET));
+        return true;
+    }
+
+    public synchronized void reset() {
+        runs.clear();
+    }
+
+    public synchronized String describe() {
+        if (runs.isEmpty()) return "No load received";
+        StringBuilder builder = new StringBuilder();
+        for (Run run : runs.values()) {
+            long expected = 0;
+            for (long[] state : run.flows.values()) expected += state[1] + 1;
+            long lost = Math.max(0, expected - run.frames);
+            double seconds = Math.max(run.last - run.first, 1) / 1e9;
+            if (builder.length() > 0) builder.append('\n');
+            builder.append(String.format("Load run %08x from %s, %d flow(s):%n", run.id, run.source, run.flows.size()))
+                .append(String.format("  %d frames (%d bytes) in %.3f s: %.0f frames/s, %.2f Mbit/s%n", run.frames, run.bytes, seconds,
+                    run.frames / seconds, run.bytes * 8 / seconds / 1e6))
+                .append(String.format("  lost %d (%.2f%%), reordered %d%n", lost, expected == 0 ? 0.0 : 100.0 * lost / expected,
+                    run.reordered))
+                .append("  one-way latency: ").append(run.oneWay.describe());
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,298 @@
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+
+// Switch MAC learning table keyed by the 48-bit MAC held in a long. Switches put the
+// frame's VLAN above the MAC (see key()), so every VLAN is a separate table.
+//
+// Entries live in an open-addressed AtomicReferenceArray. Lookups and refreshes of a
+// known MAC on the same port take no lock and do not allocate. New MACs are inserted
+// under the table lock into empty slots only. Aging and resizing build a new array and
+// publish it, so readers never see a half-removed probe chain.
+public class MacTable {
+
+    public static final long DEFAULT_AGING_MILLIS = Long.getLong("mactable.aging.ms", 300_000L);
+    public static final int DEFAULT_MAX_SIZE = Integer.getInteger("mactable.max", 8192);
+
+    // A MAC that moves this many times within FLAP_WINDOW is reported as flapping
+    private static final int FLAP_MOVES = 3;
+    private static final long FLAP_WINDOW_NANOS = 10_000_000_000L;
+
+    public interface MoveListener {
+        void macMoved(long mac, InetSocketAddress from, InetSocketAddress to, boolean flapping);
+    }
+
+    public static final class Entry {
+        final long mac;
+        volatile InetSocketAddress port;
+        volatile long lastSeen;
+        long firstMove; // guarded by the table lock
+        int recentMoves;
+
+        Entry(long mac, InetSocketAddress port, long now) {
+            this.mac = mac;
+            this.port = port;
+            this.lastSeen = now;
+            this.firstMove = now;
+        }
+
+        public long getMac() {
+            return mac;
+        }
+
+        public InetSocketAddress getPort() {
+            return port;
+        }
+
+        public long getLastSeen() {
+            return lastSeen;
+        }
+    }
+
+    private final long agingNanos;
+    private final int maxSize;
+    private final MoveListener listener;
+    private volatile AtomicReferenceArray<Entry> table;
+    private volatile InetSocketAddress[] ports = new InetSocketAddress[0]; // distinct learned ports
+    private volatile long nextSweep;
+    private int size; // guarded by this
+    private final AtomicLong moves = new AtomicLong();
+    private final AtomicLong aged = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    public MacTable(MoveListener listener) {
+        this(DEFAULT_AGING_MILLIS, DEFAULT_MAX_SIZE, listener);
+    }
+
+    // agingMillis <= 0 disables aging
+    public MacTable(long agingMillis, int maxSize, MoveListener listener) {
+        this.agingNanos = agingMillis > 0 ? agingMillis * 1_000_000L : Long.MAX_VALUE;
+        this.maxSize = maxSize;
+        this.listener = listener;
+        this.table = new AtomicReferenceArray<>(tableSizeFor(Math.min(maxSize, 64)));
+        this.nextSweep = System.nanoTime() + sweepInterval();
+    }
+
+    public static long key(int vlan, long mac) {
+        return (long) vlan << 48 | mac;
+    }
+
+    public static int vlan(long key) {
+        return (int) (key >>> 48);
+    }
+
+    public static long mac(long key) {
+        return key & 0xFFFFFFFFFFFFL;
+    }
+
+    // Records that mac was seen on port. Returns false if the table is full and the MAC is new.
+    public boolean learn(long mac, InetSocketAddress port) {
+        long now = System.nanoTime();
+        if (now - nextSweep > 0) sweep(now);
+
+        Entry entry = find(table, mac);
+        if (entry != null) {
+            entry.lastSeen = now;
+            InetSocketAddress current = entry.port;
+            if (current != port && !current.equals(port)) move(entry, port, now);
+            return true;
+        }
+        return insert(mac, port, now);
+    }
+
+    // Port for mac, or null if it is unknown or has aged out
+    public InetSocketAddress lookup(long mac) {
+        Entry entry = find(table, mac);
+        if (entry == null) return null;
+        if (agingNanos != Long.MAX_VALUE && System.nanoTime() - entry.lastSeen > agingNanos) return null;
+        return entry.port;
+    }
+
+    // Distinct ports with at least one learned MAC; the array must not be modified
+    public InetSocketAddress[] ports() {
+        return ports;
+    }
+
+    public synchronized boolean remove(long mac) {
+        if (find(table, mac) == null) return false;
+        rebuild(table.length(), Long.MIN_VALUE, entry -> entry.mac == mac);
+        return true;
+    }
+
+    // Removes every entry matching filter in a single rebuild; returns how many
+    public synchronized int removeIf(Predicate<Entry> filter) {
+        int before = size;
+        rebuild(table.length(), Long.MIN_VALUE, filter);
+        return before - size;
+    }
+
+    public synchronized void clear() {
+        table = new AtomicReferenceArray<>(table.length());
+        size = 0;
+        ports = new InetSocketAddress[0];
+    }
+
+    // Removes entries idle for longer than the aging time
+    public synchronized int expire() {
+        int before = size;
+        rebuild(table.length(), System.nanoTime(), null);
+        nextSweep = System.nanoTime() + sweepInterval();
+        return before - size;
+    }
+
+    public void forEach(Consumer<Entry> action) {
+        AtomicReferenceArray<Entry> current = table;
+        for (int i = 0; i < current.length(); i++) {
+            Entry entry = current.get(i);
+            if (entry != null) action.accept(entry);
+        }
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public long getMoves() {
+        return moves.get();
+    }
+
+    public long getAgedOut() {
+        return aged.get();
+    }
+
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    private static Entry find(AtomicReferenceArray<Entry> entries, long mac) {
+        int mask = entries.length() - 1;
+        int slot = hash(mac) & mask;
+        Entry entry;
+        while ((entry = entries.get(slot)) != null) {
+            if (entry.mac == mac) return entry;
+            slot = (slot + 1) & mask;
+        }
+        return null;
+    }
+
+    private boolean insert(long mac, InetSocketAddress port, long now) {
+        Entry existing;
+        synchronized (this) {
+            existing = find(table, mac);
+            if (existing == null) return add(mac, port, now);
+            existing.lastSeen = now;
+        }
+        // Another thread inserted it first
+        move(existing, port, now);
+        return true;
+    }
+
+    private synchronized boolean add(long mac, InetSocketAddress port, long now) {
+        if (size >= maxSize) {
+            if (agingNanos != Long.MAX_VALUE) rebuild(table.length(), now, null);
+            if (size >= maxSize) {
+                rejected.incrementAndGet();
+                return false;
+            }
+        }
+        // Keep the load factor at or below one half
+        if ((size + 1) * 2 > table.length()) {
+            rebuild(table.length() * 2, Long.MIN_VALUE, null);
+        }
+        place(table, new Entry(mac, port, now));
+        size++;
+        addPort(port);
+        return true;
+    }
+
+    private void move(Entry entry, InetSocketAddress port, long now) {
+        InetSocketAddress from;
+        boolean flapping;
+        synchronized (this) {
+            from = entry.port;
+            if (from.equals(port)) return;
+            entry.port = port;
+            moves.incrementAndGet();
+            if (now - entry.firstMove > FLAP_WINDOW_NANOS) {
+                entry.firstMove = now;
+                entry.recentMoves = 0;
+            }
+            entry.recentMoves++;
+            flapping = entry.recentMoves >= FLAP_MOVES;
+            rebuildPorts();
+        }
+        // Outside the lock, so a slow listener never holds up learning on other threads
+        if (listener != null) listener.macMoved(entry.mac, from, port, flapping);
+    }
+
+    private synchronized void sweep(long now) {
+        if (now - nextSweep <= 0) return;
+        nextSweep = now + sweepInterval();
+        if (agingNanos == Long.MAX_VALUE) return;
+        rebuild(table.length(), now, null);
+    }
+
+    // Copies live entries into a new array and publishes it. Entries idle since before
+    // (now - aging) are dropped when now != Long.MIN_VALUE, as are those matching remove.
+    private void rebuild(int capacity, long now, Predicate<Entry> remove) {
+        AtomicReferenceArray<Entry> current = table;
+        AtomicReferenceArray<Entry> next = new AtomicReferenceArray<>(capacity);
+        int count = 0;
+        for (int i = 0; i < current.length(); i++) {
+            Entry entry = current.get(i);
+            if (entry == null) continue;
+            if (remove != null && remove.test(entry)) continue;
+            if (now != Long.MIN_VALUE && now - entry.lastSeen > agingNanos) {
+                aged.incrementAndGet();
+                continue;
+            }
+            place(next, entry);
+            count++;
+        }
+        table = next;
+        if (count != size) {
+            size = count;
+            rebuildPorts();
+        }
+    }
+
+    private static void place(AtomicReferenceArray<Entry> entries, Entry entry) {
+        int mask = entries.length() - 1;
+        int slot = hash(entry.mac) & mask;
+        while (entries.get(slot) != null) slot = (slot + 1) & mask;
+        entries.set(slot, entry);
+    }
+
+    private void addPort(InetSocketAddress port) {
+        for (InetSocketAddress known : ports) {
+            if (known.equals(port)) return;
+        }
+        InetSocketAddress[] next = Arrays.copyOf(ports, ports.length + 1);
+        next[ports.length] = port;
+        ports = next;
+    }
+
+    private void rebuildPorts() {
+        Set<InetSocketAddress> distinct = new LinkedHashSet<>();
+        forEach(entry -> distinct.add(entry.port));
+        ports = distinct.toArray(new InetSocketAddress[0]);
+    }
+
+    private long sweepInterval() {
+        return agingNanos == Long.MAX_VALUE ? Long.MAX_VALUE / 4 : Math.max(agingNanos / 2, 1_000_000L);
+    }
+
+    private static int tableSizeFor(int entries) {
+        return Integer.highestOneBit(Math.max(4, entries * 2 - 1)) << 1;
+    }
+
+    private static int hash(long mac) {
+        long h = mac * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
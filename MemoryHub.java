@@ -0,0 +1,147 @@
+import java.net.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+
+// Registry of the devices hosted in this JVM. Frames between registered endpoints are
+// handed over through in-memory queues; anything else goes out over UDP.
+//
+// Drain tasks run on the hub's own daemon threads rather than an ExecutorService: a
+// transport's task is queued at most once at a time, so it gets one preallocated queue
+// node for good and scheduling it allocates nothing.
+public class MemoryHub {
+
+    private static final MemoryHub shared = new MemoryHub(Runtime.getRuntime().availableProcessors());
+
+    private static final int SPINS_BEFORE_PARK = 100;
+
+    // Queue node for one transport's drain task
+    static final class Task {
+        final Runnable runnable;
+        volatile Task next;
+
+        Task(Runnable runnable) {
+            this.runnable = runnable;
+        }
+    }
+
+    private final ConcurrentHashMap<InetSocketAddress, MemoryTransport> endpoints = new ConcurrentHashMap<>();
+    // Vyukov MPSC queue; the consumer side is shared by the workers under pollLock
+    private final Task stub = new Task(null);
+    private final AtomicReference<Task> head = new AtomicReference<>(stub);
+    private final Object pollLock = new Object();
+    private Task tail = stub; // guarded by pollLock
+    private final AtomicInteger pending = new AtomicInteger();
+    private final Thread[] threads;
+    private final AtomicIntegerArray sleeping; // 1 while a worker is parked or about to park
+    private final AtomicInteger sleepers = new AtomicInteger();
+
+    public MemoryHub(int threads) {
+        this.threads = new Thread[Math.max(1, threads)];
+        this.sleeping = new AtomicIntegerArray(this.threads.length);
+        for (int i = 0; i < this.threads.length; i++) {
+            int worker = i;
+            this.threads[i] = new Thread(() -> work(worker), "memory-hub");
+            this.threads[i].setDaemon(true);
+            this.threads[i].start();
+        }
+    }
+
+    public static MemoryHub shared() {
+        return shared;
+    }
+
+    void register(MemoryTransport transport) {
+        MemoryTransport existing = endpoints.putIfAbsent(transport.getLocalAddress(), transport);
+        if (existing != null && existing != transport) {
+            throw new IllegalStateException("Address already in use: " + transport.getLocalAddress());
+        }
+    }
+
+    void unregister(MemoryTransport transport) {
+        endpoints.remove(transport.getLocalAddress(), transport);
+    }
+
+    MemoryTransport lookup(InetSocketAddress address) {
+        return endpoints.get(address);
+    }
+
+    // The caller must not schedule a task again before it has started running
+    void schedule(Task task) {
+        boolean wasEmpty = pending.getAndIncrement() == 0;
+        task.next = null;
+        Task previous = head.getAndSet(task);
+        previous.next = task;
+        // Only the first task into an empty queue wakes a worker; a worker that takes a
+        // task with more behind it wakes the next one
+        if (wasEmpty) wakeOne();
+    }
+
+    private void wakeOne() {
+        if (sleepers.get() == 0) return;
+        for (int i = 0; i < threads.length; i++) {
+            if (sleeping.compareAndSet(i, 1, 0)) {
+                sleepers.decrementAndGet();
+                LockSupport.unpark(threads[i]);
+                return;
+            }
+        }
+    }
+
+    private void work(int worker) {
+        int idle = 0;
+        while (true) {
+            Task task = poll();
+            if (task != null) {
+                idle = 0;
+                if (pending.get() > 0) wakeOne();
+                try {
+                    task.runnable.run();
+                } catch (RuntimeException e) {
+                    System.err.println("\nError in memory hub: " + e);
+                }
+                continue;
+            }
+            if (++idle < SPINS_BEFORE_PARK) {
+                Thread.onSpinWait();
+                continue;
+            }
+            // Announced before pending is read, so a producer either sees us asleep or we see its task
+            sleeping.set(worker, 1);
+            sleepers.incrementAndGet();
+            if (pending.get() == 0) LockSupport.park(this);
+            if (sleeping.compareAndSet(worker, 1, 0)) sleepers.decrementAndGet();
+        }
+    }
+
+    // Null when nothing is queued or the newest task is still being linked in
+    private Task poll() {
+        if (pending.get() == 0) return null;
+        synchronized (pollLock) {
+            Task first = tail;
+            Task next = first.next;
+            if (first == stub) {
+                if (next == null) return null;
+                tail = next;
+                first = next;
+                next = next.next;
+            }
+            if (next == null) {
+                if (first != head.get()) return null;
+                // first is the last task; queue the stub behind it so that it can be taken
+                stub.next = null;
+                Task previous = head.getAndSet(stub);
+                previous.next = stub;
+                next = first.next;
+                if (next == null) return null;
+            }
+            tail = next;
+            pending.decrementAndGet();
+            return first;
+        }
+    }
+
+    public int size() {
+        return endpoints.size();
+    }
+}
@@ -0,0 +1,152 @@
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.util.concurrent.atomic.*;
+
+// Transport for devices sharing a JVM. Sends to another local device are copied into
+// its lock-free inbox and drained on the hub's executor; sends to unknown addresses use
+// the UDP transport underneath, which also lets devices on other hosts reach this one.
+// All deliveries for one device are drained by one task at a time, so a device never
+// sees two receive callbacks concurrently.
+//
+// The copy is what a wire does: the sender may rewrite or reuse its buffer as soon as
+// send returns. It goes into a pooled direct buffer that is itself the inbox node
+// (an intrusive Vyukov MPSC queue), so a delivery allocates nothing once the pool is
+// warm, and a receiver can keep the buffer by retaining it instead of copying again.
+public class MemoryTransport implements Transport {
+
+    private static final int INBOX_CAPACITY = 65536;
+    private static final int MAX_DRAIN_BATCH = 256;
+
+    private final InetSocketAddress localAddress;
+    private final MemoryHub hub;
+    private final Transport remote;
+    private final BufferPool pool = BufferPool.shared();
+    private final PooledBuffer stub = new PooledBuffer(null, null);
+    private final AtomicReference<PooledBuffer> inboxHead = new AtomicReference<>(stub); // producers append here
+    private PooledBuffer inboxTail = stub; // only touched by the drain task
+    private final AtomicInteger inboxSize = new AtomicInteger();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final AtomicLong drops = new AtomicLong();
+    private final MemoryHub.Task drainTask = new MemoryHub.Task(this::drain);
+    private volatile Receiver receiver;
+    private volatile boolean closed;
+
+    public MemoryTransport(InetSocketAddress bindAddress, MemoryHub hub, Transport remote) {
+        this.localAddress = bindAddress;
+        this.hub = hub;
+        this.remote = remote;
+    }
+
+    @Override
+    public void start(Receiver receiver) {
+        this.receiver = receiver;
+        hub.register(this);
+        remote.start(this::deliver);
+    }
+
+    @Override
+    public void send(ByteBuffer data, InetSocketAddress destination) throws IOException {
+        MemoryTransport peer = hub.lookup(destination);
+        if (peer != null) {
+            peer.deliver(data, localAddress);
+        } else {
+            remote.send(data, destination);
+        }
+    }
+
+    private void deliver(ByteBuffer data, InetSocketAddress source) {
+        if (closed) {
+            drops.incrementAndGet();
+            return;
+        }
+        if (inboxSize.incrementAndGet() > INBOX_CAPACITY) {
+            inboxSize.decrementAndGet();
+            drops.incrementAndGet();
+            return;
+        }
+        int length = data.remaining();
+        PooledBuffer copy = pool.acquire(length);
+        copy.buffer().put(0, data, data.position(), length).limit(length);
+        copy.source = source;
+        push(copy);
+        if (scheduled.compareAndSet(false, true)) {
+            hub.schedule(drainTask);
+        }
+    }
+
+    private void drain() {
+        Receiver target = receiver;
+        for (int i = 0; i < MAX_DRAIN_BATCH; i++) {
+            PooledBuffer delivery = poll();
+            if (delivery == null) break;
+            inboxSize.decrementAndGet();
+            InetSocketAddress source = delivery.source;
+            delivery.source = null;
+            try {
+                if (!closed) delivery.deliver(target, source);
+            } catch (RuntimeException e) {
+                System.err.println("\nError handling frame at " + localAddress + ": " + e);
+            } finally {
+                delivery.release();
+            }
+        }
+        scheduled.set(false);
+        // Re-arm if frames arrived after the last poll, or if the batch limit was hit. A
+        // producer caught between its two steps in push() is picked up on the next run.
+        if (inboxSize.get() > 0 && scheduled.compareAndSet(false, true)) {
+            hub.schedule(drainTask);
+        }
+    }
+
+    private void push(PooledBuffer node) {
+        node.next = null;
+        PooledBuffer previous = inboxHead.getAndSet(node);
+        previous.next = node;
+    }
+
+    // Null when the inbox is empty or its newest node is still being linked in
+    private PooledBuffer poll() {
+        PooledBuffer tail = inboxTail;
+        PooledBuffer next = tail.next;
+        if (tail == stub) {
+            if (next == null) return null;
+            inboxTail = next;
+            tail = next;
+            next = next.next;
+        }
+        if (next != null) {
+            inboxTail = next;
+            return tail;
+        }
+        if (tail != inboxHead.get()) return null;
+        // tail is the last node; put the stub behind it so that it can be taken
+        push(stub);
+        next = tail.next;
+        if (next != null) {
+            inboxTail = next;
+            return tail;
+        }
+        return null;
+    }
+
+    public long getDrops() {
+        return drops.get();
+    }
+
+    @Override
+    public InetSocketAddress getLocalAddress() {
+        return localAddress;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        hub.unregister(this);
+        remote.close();
+        // Frames left in the inbox hold pooled buffers, which a drain now releases without
+        // delivering. If no drain is scheduled this thread is the only consumer and runs it;
+        // a sender that raced the close schedules one for what it added.
+        if (scheduled.compareAndSet(false, true)) drain();
+    }
+}
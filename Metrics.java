@@ -0,0 +1,134 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+
+// Counters, gauges and latency histograms of one device.
+//
+// Devices register their metrics once and keep the returned LongAdder or histogram in a
+// field, so the forwarding path only does striped increments. The registry itself is
+// walked by "show stats" and by MetricsExporter. Labels are given as key, value pairs.
+public class Metrics {
+
+    private static final String PROMETHEUS_PREFIX = "netsim_";
+
+    private final String device;
+    private final Map<String, Family> families = new LinkedHashMap<>();
+
+    private static final class Family {
+        final String name;
+        final String help;
+        final String type;
+        final List<Series> series = new ArrayList<>();
+
+        Family(String name, String help, String type) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+        }
+    }
+
+    private static final class Series {
+        final String[] labels;
+        final LongSupplier value;
+        final LatencyHistogram histogram;
+
+        Series(String[] labels, LongSupplier value, LatencyHistogram histogram) {
+            this.labels = labels;
+            this.value = value;
+            this.histogram = histogram;
+        }
+    }
+
+    public Metrics(String device) {
+        this.device = device;
+    }
+
+    public String getDevice() {
+        return device;
+    }
+
+    public LongAdder counter(String name, String help, String... labels) {
+        LongAdder adder = new LongAdder();
+        add(name, help, "counter", new Series(labels, adder::sum, null));
+        return adder;
+    }
+
+    // A counter maintained elsewhere, e.g. the pipeline's queue-full drops
+    public void counter(String name, String help, LongSupplier value, String... labels) {
+        add(name, help, "counter", new Series(labels, value, null));
+    }
+
+    public void gauge(String name, String help, LongSupplier value, String... labels) {
+        add(name, help, "gauge", new Series(labels, value, null));
+    }
+
+    public LatencyHistogram histogram(String name, String help, String... labels) {
+        LatencyHistogram histogram = new LatencyHistogram();
+        add(name, help, "summary", new Series(labels, histogram::getCount, histogram));
+        return histogram;
+    }
+
+    private synchronized void add(String name, String help, String type, Series series) {
+        if (series.labels.length % 2 != 0) throw new IllegalArgumentException("Labels must be key, value pairs: " + name);
+        Family family = families.computeIfAbsent(name, key -> new Family(key, help, type));
+        if (!family.type.equals(type)) throw new IllegalArgumentException("Metric " + name + " is already a " + family.type);
+        family.series.add(series);
+    }
+
+    // One line per series, for the console
+    public synchronized String describe() {
+        StringBuilder builder = new StringBuilder();
+        for (Family family : families.values()) {
+            for (Series series : family.series) {
+                if (builder.length() > 0) builder.append('\n');
+                builder.append(family.name).append(labels(series.labels, false));
+                if (series.histogram != null) {
+                    builder.append(' ').append(series.histogram.describe());
+                } else {
+                    builder.append(' ').append(series.value.getAsLong());
+                }
+            }
+        }
+        return builder.toString();
+    }
+
+    // Prometheus text exposition format (version 0.0.4)
+    public synchronized void writePrometheus(Writer out) throws IOException {
+        for (Family family : families.values()) {
+            String name = PROMETHEUS_PREFIX + family.name;
+            out.write("# HELP " + name + " " + family.help + "\n");
+            out.write("# TYPE " + name + " " + family.type + "\n");
+            for (Series series : family.series) {
+                if (series.histogram == null) {
+                    out.write(name + labels(series.labels, true) + " " + series.value.getAsLong() + "\n");
+                    continue;
+                }
+                LatencyHistogram histogram = series.histogram;
+                for (String quantile : new String[] {"0.5", "0.9", "0.99", "0.999"}) {
+                    String[] withQuantile = Arrays.copyOf(series.labels, series.labels.length + 2);
+                    withQuantile[series.labels.length] = "quantile";
+                    withQuantile[series.labels.length + 1] = quantile;
+                    out.write(name + labels(withQuantile, true) + " " + histogram.percentile(Double.parseDouble(quantile)) + "\n");
+                }
+                out.write(name + "_sum" + labels(series.labels, true) + " " + histogram.getSum() + "\n");
+                out.write(name + "_count" + labels(series.labels, true) + " " + histogram.getCount() + "\n");
+            }
+        }
+    }
+
+    private String labels(String[] pairs, boolean withDevice) {
+        if (pairs.length == 0 && !withDevice) return "";
+        StringBuilder builder = new StringBuilder("{");
+        if (withDevice) builder.append("device=\"").append(escape(device)).append('"');
+        for (int i = 0; i < pairs.length; i += 2) {
+            if (builder.length() > 1) builder.append(',');
+            builder.append(pairs[i]).append("=\"").append(escape(pairs[i + 1])).append('"');
+        }
+        return builder.append('}').toString();
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
@@ -0,0 +1,55 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.concurrent.*;
+
+// Periodically writes each registered device's metrics to <metrics.dir>/<device>.prom in
+// the Prometheus text format, e.g. for node_exporter's textfile collector. Files are
+// written to a temporary name and moved into place, so a scraper never reads half a file.
+// Nothing is written unless -Dmetrics.dir is set.
+public class MetricsExporter {
+
+    public static final String DIRECTORY = System.getProperty("metrics.dir");
+    public static final long INTERVAL_MILLIS = Long.getLong("metrics.interval.ms", 10_000L);
+
+    private static final ConcurrentHashMap<String, Metrics> registered = new ConcurrentHashMap<>();
+    private static ScheduledExecutorService scheduler;
+
+    public static synchronized void register(Metrics metrics) {
+        registered.put(metrics.getDevice(), metrics);
+        if (DIRECTORY == null || scheduler != null) return;
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "metrics-exporter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long interval = Math.max(INTERVAL_MILLIS, 100L);
+        scheduler.scheduleAtFixedRate(MetricsExporter::writeAll, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    // Writes a final snapshot so the last counts survive the device
+    public static void unregister(Metrics metrics) {
+        if (registered.remove(metrics.getDevice(), metrics) && DIRECTORY != null) {
+            write(metrics);
+        }
+    }
+
+    private static void writeAll() {
+        registered.values().forEach(MetricsExporter::write);
+    }
+
+    private static void write(Metrics metrics) {
+        try {
+            Path directory = Paths.get(DIRECTORY);
+            Files.createDirectories(directory);
+            Path target = directory.resolve(metrics.getDevice() + ".prom");
+            Path temporary = directory.resolve(metrics.getDevice() + ".prom.tmp");
+            try (Writer out = Files.newBufferedWriter(temporary, StandardCharsets.UTF_8)) {
+                metrics.writePrometheus(out);
+            }
+            Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | RuntimeException e) {
+            System.err.println("\nError writing metrics for " + metrics.getDevice() + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,236 @@
+import java.net.*;
+import java.util.*;
+
+// The next hops of one route, for equal-cost (and weighted) multipath forwarding.
+//
+// A packet's next hop is chosen by its flow hash, so every packet of a flow takes the
+// same path and stays in order. The hash picks one of BUCKETS buckets and each bucket
+// names a next hop; a next hop owns buckets in proportion to its weight. Hashing into
+// buckets rather than taking the hash modulo the number of next hops keeps flows where
+// they are when the group changes: migrate() moves only the buckets of a next hop that
+// left, or the few a new one takes over, so when one of n next hops fails only its own
+// 1/n of the flows are moved and the rest keep their paths.
+//
+// Immutable, so a group can sit in a RouteSnapshot read by any number of threads.
+public final class NextHopGroup {
+
+    public static final int BUCKETS = 256;
+    public static final int MAX_WEIGHT = 0xFFFF;
+
+    private final InetSocketAddress[] nextHops;
+    private final int[] weights;
+    private final byte[] buckets; // next hop index per bucket
+    private final int hash; // snapshots look groups up by value once per route
+
+    private NextHopGroup(InetSocketAddress[] nextHops, int[] weights, byte[] buckets) {
+        this.nextHops = nextHops;
+        this.weights = weights;
+        this.buckets = buckets;
+        this.hash = 31 * (31 * Arrays.hashCode(nextHops) + Arrays.hashCode(weights)) + Arrays.hashCode(buckets);
+    }
+
+    public static NextHopGroup of(InetSocketAddress nextHop) {
+        return new NextHopGroup(new InetSocketAddress[] {nextHop}, new int[] {1}, new byte[BUCKETS]);
+    }
+
+    // Equal weights
+    public static NextHopGroup of(List<InetSocketAddress> nextHops) {
+        int[] weights = new int[nextHops.size()];
+        Arrays.fill(weights, 1);
+        return of(nextHops, weights);
+    }
+
+    // Buckets are dealt out round robin, so a fresh group spreads every next hop over the table
+    public static NextHopGroup of(List<InetSocketAddress> nextHops, int[] weights) {
+        InetSocketAddress[] hops = nextHops.toArray(new InetSocketAddress[0]);
+        check(hops, weights);
+        int[] quotas = quotas(weights);
+        byte[] buckets = new byte[BUCKETS];
+        int[] dealt = new int[hops.length];
+        int next = 0;
+        for (int bucket = 0; bucket < BUCKETS; next = (next + 1) % hops.length) {
+            if (dealt[next] == quotas[next]) continue;
+            dealt[next]++;
+            buckets[bucket++] = (byte) next;
+        }
+        return new NextHopGroup(hops, weights.clone(), buckets);
+    }
+
+    // "ip:port", with an optional "*weight", comma-separated: "127.0.0.1:5001*2,127.0.0.1:5002"
+    public static NextHopGroup parse(String text) {
+        String[] parts = text.split(",");
+        List<InetSocketAddress> hops = new ArrayList<>(parts.length);
+        int[] weights = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            String part = parts[i].trim();
+            int star = part.indexOf('*');
+            weights[i] = star < 0 ? 1 : Integer.parseInt(part.substring(star + 1).trim());
+            hops.add(Addresses.parseSocketAddress(star < 0 ? part : part.substring(0, star).trim()));
+        }
+        return of(hops, weights);
+    }
+
+    private static void check(InetSocketAddress[] hops, int[] weights) {
+        if (hops.length == 0) throw new IllegalArgumentException("A next hop group needs at least one next hop");
+        if (hops.length > BUCKETS) throw new IllegalArgumentException("At most " + BUCKETS + " next hops per route");
+        if (weights.length != hops.length) throw new IllegalArgumentException("Next hop and weight counts differ");
+        Set<InetSocketAddress> seen = new HashSet<>();
+        for (int i = 0; i < hops.length; i++) {
+            if (hops[i] == null) throw new IllegalArgumentException("Missing next hop");
+            if (!seen.add(hops[i])) throw new IllegalArgumentException("Next hop listed twice: " + Addresses.formatSocketAddress(hops[i]));
+            if (weights[i] < 1 || weights[i] > MAX_WEIGHT) throw new IllegalArgumentException("Weight must be between 1 and " + MAX_WEIGHT);
+        }
+    }
+
+    // Buckets per next hop in proportion to the weights, largest remainders first, and at least one each
+    private static int[] quotas(int[] weights) {
+        long total = 0;
+        for (int weight : weights) total += weight;
+        int[] quotas = new int[weights.length];
+        long[] remainders = new long[weights.length];
+        int assigned = 0;
+        for (int i = 0; i < weights.length; i++) {
+            quotas[i] = (int) Math.max(1, weights[i] * BUCKETS / total);
+            remainders[i] = weights[i] * BUCKETS % total;
+            assigned += quotas[i];
+        }
+        while (assigned < BUCKETS) {
+            int best = 0;
+            for (int i = 1; i < weights.length; i++) {
+                if (remainders[i] > remainders[best]) best = i;
+            }
+            quotas[best]++;
+            remainders[best] = -1;
+            assigned++;
+        }
+        // Minimums of one can overshoot when a few heavy next hops share the table with many light ones
+        while (assigned > BUCKETS) {
+            int largest = 0;
+            for (int i = 1; i < weights.length; i++) {
+                if (quotas[i] > quotas[largest]) largest = i;
+            }
+            quotas[largest]--;
+            assigned--;
+        }
+        return quotas;
+    }
+
+    // The wanted next hops and weights, reached from this group's buckets by moving as
+    // few as possible: a next hop that stays keeps its buckets up to its new share, and
+    // only the buckets of next hops that left, or beyond a shrunk share, are handed out
+    public NextHopGroup migrate(NextHopGroup wanted) {
+        if (Arrays.equals(nextHops, wanted.nextHops) && Arrays.equals(weights, wanted.weights)) return this;
+        int[] quotas = quotas(wanted.weights);
+        int[] target = new int[nextHops.length]; // new index of each old next hop, -1 if it left
+        for (int i = 0; i < nextHops.length; i++) target[i] = wanted.indexOf(nextHops[i]);
+        byte[] moved = new byte[BUCKETS];
+        int[] kept = new int[quotas.length];
+        int[] free = new int[BUCKETS];
+        int freeCount = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            int to = target[buckets[bucket] & 0xFF];
+            if (to >= 0 && kept[to] < quotas[to]) {
+                kept[to]++;
+                moved[bucket] = (byte) to;
+            } else {
+                free[freeCount++] = bucket;
+            }
+        }
+        // Deal the free buckets round robin over the next hops still short of their share
+        int next = 0;
+        for (int i = 0; i < freeCount; next = (next + 1) % quotas.length) {
+            if (kept[next] == quotas[next]) continue;
+            kept[next]++;
+            moved[free[i++]] = (byte) next;
+        }
+        return new NextHopGroup(wanted.nextHops, wanted.weights, moved);
+    }
+
+    // The group without one next hop; null when it was the last one
+    public NextHopGroup without(InetSocketAddress nextHop) {
+        int index = indexOf(nextHop);
+        if (index < 0) return this;
+        if (nextHops.length == 1) return null;
+        List<InetSocketAddress> hops = new ArrayList<>(Arrays.asList(nextHops));
+        hops.remove(index);
+        int[] rest = new int[weights.length - 1];
+        for (int i = 0, j = 0; i < weights.length; i++) {
+            if (i != index) rest[j++] = weights[i];
+        }
+        return migrate(of(hops, rest));
+    }
+
+    // A well-mixed hash of a flow. Frames carry no ports, so a flow is the pair of end hosts
+    // by IP and the MACs of the hop it arrived on; at the first router the MACs tell apart
+    // hosts on one machine, which the IPs alone would not. The seed differs per router, so routers in a row
+    // do not all split the same flows the same way and leave the paths behind the first unused.
+    public static int flowHash(long srcMac, long dstMac, int srcIp, int dstIp, long seed) {
+        long h = mix(seed ^ srcMac);
+        h = mix(h ^ dstMac);
+        h = mix(h ^ (((long) srcIp << 32) | (dstIp & 0xFFFFFFFFL)));
+        return (int) (h >>> 32);
+    }
+
+    private static long mix(long h) {
+        h = (h ^ (h >>> 33)) * 0xFF51AFD7ED558CCDL;
+        h = (h ^ (h >>> 33)) * 0xC4CEB9FE1A85EC53L;
+        return h ^ (h >>> 33);
+    }
+
+    public InetSocketAddress select(int flowHash) {
+        return nextHops[buckets[flowHash >>> 24] & 0xFF];
+    }
+
+    public int size() {
+        return nextHops.length;
+    }
+
+    public InetSocketAddress get(int index) {
+        return nextHops[index];
+    }
+
+    public int weight(int index) {
+        return weights[index];
+    }
+
+    public int indexOf(InetSocketAddress nextHop) {
+        for (int i = 0; i < nextHops.length; i++) {
+            if (nextHops[i].equals(nextHop)) return i;
+        }
+        return -1;
+    }
+
+    // Buckets owned by the next hop at index
+    public int bucketCount(int index) {
+        int count = 0;
+        for (byte bucket : buckets) {
+            if ((bucket & 0xFF) == index) count++;
+        }
+        return count;
+    }
+
+    // Two groups are equal only with the same buckets, as flows would otherwise be moved
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) return true;
+        if (!(other instanceof NextHopGroup)) return false;
+        NextHopGroup group = (NextHopGroup) other;
+        return hash == group.hash && Arrays.equals(nextHops, group.nextHops) && Arrays.equals(weights, group.weights) && Arrays.equals(buckets, group.buckets);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    // "127.0.0.1:5001" for one next hop, "127.0.0.1:5001*2, 127.0.0.1:5002*1" for several
+    @Override
+    public String toString() {
+        if (nextHops.length == 1) return Addresses.formatSocketAddress(nextHops[0]);
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < nextHops.length; i++) {
+            text.append(i > 0 ? ", " : "").append(Addresses.formatSocketAddress(nextHops[i])).append('*').append(weights[i]);
+        }
+        return text.toString();
+    }
+}
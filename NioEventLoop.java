@@ -0,0 +1,145 @@
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+// Single Selector thread servicing any number of device channels. Datagrams are read
+// into one reusable direct buffer and handed to the owning device's receiver inline.
+public class NioEventLoop implements Runnable {
+
+    // Upper bound on datagrams read from one channel per wakeup, so a busy device cannot starve the others
+    private static final int MAX_READS_PER_WAKEUP = Integer.getInteger("nio.reads.per.wakeup", 64);
+
+    private static NioEventLoop shared;
+
+    private final Selector selector;
+    private final Queue<Runnable> pendingTasks = new ConcurrentLinkedQueue<>();
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(Transport.MAX_DATAGRAM);
+    private final AtomicLong sendDrops = new AtomicLong();
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    public NioEventLoop(String name) throws IOException {
+        this.selector = Selector.open();
+        this.thread = new Thread(this, name);
+        thread.start();
+    }
+
+    public static synchronized NioEventLoop shared() throws IOException {
+        if (shared == null) {
+            shared = new NioEventLoop("nio-event-loop");
+        }
+        return shared;
+    }
+
+    public void register(DatagramChannel channel, Transport.Receiver receiver) {
+        execute(() -> {
+            try {
+                channel.register(selector, SelectionKey.OP_READ, receiver);
+            } catch (ClosedChannelException e) {
+                System.err.println("\nCannot register closed channel: " + e.getMessage());
+            }
+        });
+    }
+
+    // A registered channel keeps its port until a select on the loop thread drops its
+    // key, so the channel is closed there and a selectNow() follows; waiting for that
+    // frees the port before this returns, and a device can be rebound on it right away
+    public void unregister(DatagramChannel channel) {
+        if (Thread.currentThread() == thread || !running) {
+            close(channel); // the current select, or closing the selector, drops the key
+            return;
+        }
+        CountDownLatch closed = new CountDownLatch(1);
+        execute(() -> {
+            close(channel);
+            try {
+                selector.selectNow(this::handleKey);
+            } catch (IOException e) {
+                System.err.println("\nEvent loop error: " + e.getMessage());
+            }
+            closed.countDown();
+        });
+        try {
+            if (!closed.await(1, TimeUnit.SECONDS)) close(channel); // the loop has stopped
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void close(DatagramChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            System.err.println("\nError closing channel: " + e.getMessage());
+        }
+    }
+
+    private void execute(Runnable task) {
+        pendingTasks.add(task);
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                selector.select(this::handleKey);
+                Runnable task;
+                while ((task = pendingTasks.poll()) != null) {
+                    task.run();
+                }
+            } catch (IOException | ClosedSelectorException e) {
+                if (running) System.err.println("\nEvent loop error: " + e.getMessage());
+                break;
+            }
+        }
+    }
+
+    private void handleKey(SelectionKey key) {
+        if (!key.isValid() || !key.isReadable()) return;
+        DatagramChannel channel = (DatagramChannel) key.channel();
+        Transport.Receiver receiver = (Transport.Receiver) key.attachment();
+        try {
+            for (int i = 0; i < MAX_READS_PER_WAKEUP; i++) {
+                readBuffer.clear();
+                SocketAddress source = channel.receive(readBuffer);
+                if (source == null) break;
+                readBuffer.flip();
+                try {
+                    receiver.receive(readBuffer, (InetSocketAddress) source);
+                } catch (RuntimeException e) {
+                    System.err.println("\nError handling datagram: " + e);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("\nError receiving datagram: " + e.getMessage());
+        }
+    }
+
+    void recordSendDrop() {
+        sendDrops.incrementAndGet();
+    }
+
+    public long getSendDrops() {
+        return sendDrops.get();
+    }
+
+    public void shutdown() {
+        running = false;
+        selector.wakeup();
+        try {
+            thread.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            System.err.println("\nError closing selector: " + e.getMessage());
+        }
+    }
+}
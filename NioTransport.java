@@ -0,0 +1,50 @@
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+// Non-blocking DatagramChannel serviced by an NioEventLoop
+public class NioTransport implements Transport {
+
+    private final DatagramChannel channel;
+    private final NioEventLoop eventLoop;
+
+    public NioTransport(InetSocketAddress bindAddress, NioEventLoop eventLoop) throws IOException {
+        this.eventLoop = eventLoop;
+        this.channel = DatagramChannel.open(StandardProtocolFamily.INET);
+        channel.configureBlocking(false);
+        channel.bind(bindAddress);
+    }
+
+    @Override
+    public void start(Receiver receiver) {
+        eventLoop.register(channel, receiver);
+    }
+
+    @Override
+    public void send(ByteBuffer data, InetSocketAddress destination) throws IOException {
+        int position = data.position();
+        try {
+            // A full socket buffer makes send() return 0; the datagram is dropped like a lossy link would
+            if (channel.send(data, destination) == 0) {
+                eventLoop.recordSendDrop();
+            }
+        } finally {
+            data.position(position);
+        }
+    }
+
+    @Override
+    public InetSocketAddress getLocalAddress() {
+        try {
+            return (InetSocketAddress) channel.getLocalAddress();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public void close() {
+        eventLoop.unregister(channel);
+    }
+}
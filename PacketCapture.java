@@ -0,0 +1,222 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+
+// Writes the frames a device sends and receives to a pcapng file, readable by Wireshark
+// (link type USER0, nanosecond timestamps, inbound/outbound flags) and by Replay.
+//
+// Forwarding threads never touch the file: record() copies the frame into a slot of a
+// bounded ring and returns; when the ring is full the frame is counted as dropped
+// instead. A daemon writer thread drains the ring into the file through a memory-mapped
+// window that is moved along the file as it fills, so writing costs no system call per
+// frame. Frames longer than the snap length are cut short, as in any pcap.
+public class PacketCapture implements Closeable {
+
+    public static final int DEFAULT_SNAPLEN = Integer.getInteger("capture.snaplen", 2048);
+    public static final int DEFAULT_RING = Integer.getInteger("capture.ring", 8192);
+    public static final long DEFAULT_MAP_BYTES = Long.getLong("capture.map.mb", 64L) << 20;
+
+    public static final int LINKTYPE_USER0 = 147;
+    public static final int INBOUND = 1; // pcapng epb_flags direction values
+    public static final int OUTBOUND = 2;
+
+    static final int SECTION_HEADER_BLOCK = 0x0A0D0D0A;
+    static final int INTERFACE_BLOCK = 1;
+    static final int ENHANCED_PACKET_BLOCK = 6;
+    static final int BYTE_ORDER_MAGIC = 0x1A2B3C4D;
+
+    private static final int SLOT_HEADER = 16; // timestamp (8), original length (4), direction (4)
+    private static final long PARK_NANOS = 1_000_000L;
+
+    private final Path path;
+    private final int snaplen;
+    private final int capacity;
+    private final int mask;
+    private final int slotSize;
+    private final ByteBuffer ring;
+    private final AtomicLongArray sequence;
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong captured = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final long epochNanos;
+    private final long startNanos;
+    private final FileChannel channel;
+    private final long mapBytes;
+    private final Thread writer;
+    private final Thread shutdownHook;
+    private MappedByteBuffer window; // only touched by the writer thread
+    private long windowStart;
+    private volatile boolean running = true;
+
+    public PacketCapture(Path path, String device) throws IOException {
+        this(path, device, DEFAULT_SNAPLEN, DEFAULT_RING, DEFAULT_MAP_BYTES);
+    }
+
+    public PacketCapture(Path path, String device, int snaplen, int ringSize, long mapBytes) throws IOException {
+        this.path = path;
+        this.snaplen = Math.max(snaplen, Frame.HEADER_LENGTH);
+        this.capacity = Integer.highestOneBit(Math.max(2, ringSize - 1)) << 1;
+        this.mask = capacity - 1;
+        this.slotSize = (SLOT_HEADER + this.snaplen + 7) & ~7;
+        this.ring = ByteBuffer.allocateDirect(capacity * slotSize);
+        this.sequence = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) sequence.set(i, i);
+        this.mapBytes = Math.max(mapBytes, 1 << 16);
+
+        Instant now = Instant.now();
+        this.startNanos = System.nanoTime();
+        this.epochNanos = now.getEpochSecond() * 1_000_000_000L + now.getNano();
+
+        if (path.getParent() != null) Files.createDirectories(path.getParent());
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING);
+        this.window = channel.map(FileChannel.MapMode.READ_WRITE, 0, this.mapBytes);
+        writeHeader(device);
+
+        writer = new Thread(this::drain, "capture-" + device);
+        writer.setDaemon(true);
+        writer.start();
+        // A device killed with Ctrl-C still leaves a complete file
+        shutdownHook = new Thread(this::stop, "capture-" + device + "-shutdown");
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+    }
+
+    // Called from any thread; copies the frame between position and limit and never blocks
+    public void record(ByteBuffer data, int direction) {
+        long timestamp = System.nanoTime();
+        long position;
+        int index;
+        while (true) {
+            position = tail.get();
+            index = (int) position & mask;
+            long difference = sequence.get(index) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) break;
+            } else if (difference < 0) {
+                dropped.incrementAndGet();
+                return;
+            }
+        }
+        int length = data.remaining();
+        int offset = index * slotSize;
+        ring.putLong(offset, timestamp);
+        ring.putInt(offset + 8, length);
+        ring.putInt(offset + 12, direction);
+        ring.put(offset + SLOT_HEADER, data, data.position(), Math.min(length, snaplen));
+        sequence.lazySet(index, position + 1);
+    }
+
+    private void drain() {
+        long position = 0;
+        while (true) {
+            int index = (int) position & mask;
+            if (sequence.get(index) != position + 1) {
+                if (!running && tail.get() == position) break;
+                LockSupport.parkNanos(this, PARK_NANOS);
+                continue;
+            }
+            try {
+                writePacket(index * slotSize);
+                captured.incrementAndGet();
+            } catch (IOException | RuntimeException e) {
+                System.err.println("\nCapture to " + path + " failed: " + e);
+                running = false;
+                dropped.incrementAndGet();
+            }
+            position++;
+            sequence.lazySet(index, position + mask);
+        }
+        finish();
+    }
+
+    private void writeHeader(String device) throws IOException {
+        ensure(28);
+        window.putInt(SECTION_HEADER_BLOCK).putInt(28).putInt(BYTE_ORDER_MAGIC)
+            .putShort((short) 1).putShort((short) 0).putLong(-1L).putInt(28);
+
+        byte[] name = device.getBytes(StandardCharsets.UTF_8);
+        int namePadded = (name.length + 3) & ~3;
+        int length = 16 + 4 + namePadded + 8 + 4 + 4;
+        ensure(length);
+        window.putInt(INTERFACE_BLOCK).putInt(length).putShort((short) LINKTYPE_USER0).putShort((short) 0).putInt(snaplen);
+        window.putShort((short) 2).putShort((short) name.length).put(name); // if_name
+        for (int i = name.length; i < namePadded; i++) window.put((byte) 0);
+        window.putShort((short) 9).putShort((short) 1).put((byte) 9).put((byte) 0).putShort((short) 0); // if_tsresol: ns
+        window.putInt(0); // opt_endofopt
+        window.putInt(length);
+    }
+
+    private void writePacket(int offset) throws IOException {
+        long timestamp = epochNanos + (ring.getLong(offset) - startNanos);
+        int length = ring.getInt(offset + 8);
+        int direction = ring.getInt(offset + 12);
+        int capturedLength = Math.min(length, snaplen);
+        int padded = (capturedLength + 3) & ~3;
+        int blockLength = 44 + padded;
+        ensure(blockLength);
+        window.putInt(ENHANCED_PACKET_BLOCK).putInt(blockLength).putInt(0)
+            .putInt((int) (timestamp >>> 32)).putInt((int) timestamp)
+            .putInt(capturedLength).putInt(length);
+        window.put(window.position(), ring, offset + SLOT_HEADER, capturedLength);
+        window.position(window.position() + capturedLength);
+        for (int i = capturedLength; i < padded; i++) window.put((byte) 0);
+        window.putShort((short) 2).putShort((short) 4).putInt(direction); // epb_flags
+        window.putInt(0); // opt_endofopt
+        window.putInt(blockLength);
+    }
+
+    // Moves the mapped window forward when the next block would not fit in it
+    private void ensure(int bytes) throws IOException {
+        if (window.remaining() >= bytes) return;
+        windowStart += window.position();
+        window.force();
+        window = channel.map(FileChannel.MapMode.READ_WRITE, windowStart, Math.max(mapBytes, bytes));
+    }
+
+    private void finish() {
+        try {
+            window.force();
+            channel.truncate(windowStart + window.position());
+            channel.close();
+        } catch (IOException e) {
+            System.err.println("\nError closing capture " + path + ": " + e.getMessage());
+        }
+    }
+
+    // Writes out what is still in the ring, then closes the file
+    @Override
+    public void close() {
+        try {
+            Runtime.getRuntime().removeShutdownHook(shutdownHook);
+        } catch (IllegalStateException e) {
+            // already shutting down; the hook does the same
+        }
+        stop();
+    }
+
+    private void stop() {
+        running = false;
+        try {
+            writer.join(5_000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    public long getCaptured() {
+        return captured.get();
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+}
@@ -0,0 +1,49 @@
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+// Per-packet console log shared by the devices of one JVM.
+//
+// Lines are handed to a daemon writer thread through a bounded queue, so a slow console
+// never stalls forwarding. When the queue is full the line is dropped and counted.
+// Start with -Dpacket.log=false to turn the log off; callers check isEnabled() first so
+// that no log line is even built.
+public class PacketLog {
+
+    private static final int CAPACITY = Integer.getInteger("packet.log.queue", 8192);
+
+    private static volatile boolean enabled = !"false".equalsIgnoreCase(System.getProperty("packet.log"));
+    private static final BlockingQueue<String> queue = new ArrayBlockingQueue<>(Math.max(CAPACITY, 16));
+    private static final AtomicLong dropped = new AtomicLong();
+
+    static {
+        Thread writer = new Thread(PacketLog::drain, "packet-log");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    public static void setEnabled(boolean on) {
+        enabled = on;
+    }
+
+    public static void log(String line) {
+        if (!queue.offer(line)) dropped.incrementAndGet();
+    }
+
+    public static long getDropped() {
+        return dropped.get();
+    }
+
+    private static void drain() {
+        while (true) {
+            try {
+                System.out.println(queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,191 @@
+import java.net.*;
+import java.nio.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+import java.util.function.*;
+
+// Receive stage plus N worker stages for Switch and Router.
+//
+// The transport's receive callback puts each datagram into a slot of one worker's
+// bounded ring. The worker is chosen by a flow hash, so frames of one flow are always
+// handled by the same worker, in arrival order. When a ring is full the datagram is
+// dropped and counted rather than blocking the receive thread.
+//
+// A datagram that arrives in a PooledBuffer is not copied: the slot retains the buffer
+// and the worker releases it when done. Anything else is copied into the slot's own
+// direct buffer.
+public class PacketPipeline implements Transport.Receiver {
+
+    public static final int DEFAULT_WORKERS = Integer.getInteger("pipeline.workers", 0);
+    public static final int DEFAULT_DEPTH = Integer.getInteger("pipeline.depth", 1024);
+
+    private static final int INITIAL_SLOT_SIZE = 2048;
+    private static final int SPINS_BEFORE_PARK = 200;
+    private static final long PARK_NANOS = 1_000_000L;
+
+    private final Worker[] workers;
+    private final ToIntFunction<ByteBuffer> flowHash;
+    private final Transport.Receiver handler;
+    private volatile boolean running = true;
+
+    public PacketPipeline(String name, int workerCount, int depth, ToIntFunction<ByteBuffer> flowHash, Transport.Receiver handler) {
+        if (workerCount < 1) throw new IllegalArgumentException("At least one worker is required");
+        this.flowHash = flowHash;
+        this.handler = handler;
+        int capacity = Integer.highestOneBit(Math.max(2, depth - 1)) << 1;
+        this.workers = new Worker[workerCount];
+        for (int i = 0; i < workerCount; i++) {
+            workers[i] = new Worker(capacity);
+            Thread thread = new Thread(workers[i], name + "-worker-" + i);
+            thread.setDaemon(true);
+            workers[i].thread = thread;
+            thread.start();
+        }
+    }
+
+    // Receive stage: runs on the transport's thread
+    @Override
+    public void receive(ByteBuffer data, InetSocketAddress source) {
+        int hash = flowHash.applyAsInt(data);
+        Worker worker = workers[(hash & 0x7FFFFFFF) % workers.length];
+        if (worker.offer(data, source) && worker.sleeping) {
+            LockSupport.unpark(worker.thread);
+        }
+    }
+
+    public void shutdown() {
+        running = false;
+        for (Worker worker : workers) LockSupport.unpark(worker.thread);
+    }
+
+    public int getWorkerCount() {
+        return workers.length;
+    }
+
+    public long getEnqueued() {
+        long total = 0;
+        for (Worker worker : workers) total += worker.enqueued.get();
+        return total;
+    }
+
+    public long getDropped() {
+        long total = 0;
+        for (Worker worker : workers) total += worker.dropped.get();
+        return total;
+    }
+
+    public String describe() {
+        StringBuilder builder = new StringBuilder();
+        builder.append(workers.length).append(" workers, queue depth ").append(workers[0].capacity);
+        for (int i = 0; i < workers.length; i++) {
+            Worker worker = workers[i];
+            builder.append("\n  worker ").append(i)
+                .append(": enqueued ").append(worker.enqueued.get())
+                .append(", dropped ").append(worker.dropped.get())
+                .append(", queued ").append(worker.depth())
+                .append(", high water ").append(worker.highWater.get());
+        }
+        return builder.toString();
+    }
+
+    // Bounded multi-producer single-consumer ring (Vyukov-style sequence per slot)
+    private final class Worker implements Runnable {
+        final int capacity;
+        final int mask;
+        final ByteBuffer[] slots;
+        final PooledBuffer[] held; // retained instead of copied into slots
+        final InetSocketAddress[] sources;
+        final AtomicLongArray sequence;
+        final AtomicLong tail = new AtomicLong();
+        final AtomicLong enqueued = new AtomicLong();
+        final AtomicLong dropped = new AtomicLong();
+        final AtomicLong highWater = new AtomicLong();
+        volatile long head; // written only by the worker thread
+        volatile boolean sleeping;
+        Thread thread;
+
+        Worker(int capacity) {
+            this.capacity = capacity;
+            this.mask = capacity - 1;
+            this.slots = new ByteBuffer[capacity];
+            this.held = new PooledBuffer[capacity];
+            this.sources = new InetSocketAddress[capacity];
+            this.sequence = new AtomicLongArray(capacity);
+            for (int i = 0; i < capacity; i++) {
+                slots[i] = ByteBuffer.allocateDirect(INITIAL_SLOT_SIZE);
+                sequence.set(i, i);
+            }
+        }
+
+        boolean offer(ByteBuffer data, InetSocketAddress source) {
+            long position;
+            int index;
+            while (true) {
+                position = tail.get();
+                index = (int) position & mask;
+                long difference = sequence.get(index) - position;
+                if (difference == 0) {
+                    if (tail.compareAndSet(position, position + 1)) break;
+                } else if (difference < 0) {
+                    dropped.incrementAndGet();
+                    return false;
+                }
+            }
+
+            PooledBuffer pooled = PooledBuffer.owning(data);
+            if (pooled != null) {
+                held[index] = pooled.retain();
+            } else {
+                int length = data.remaining();
+                if (slots[index].capacity() < length) slots[index] = ByteBuffer.allocateDirect(length);
+                slots[index].clear();
+                slots[index].put(0, data, data.position(), length).limit(length);
+            }
+            sources[index] = source;
+            sequence.lazySet(index, position + 1);
+
+            enqueued.incrementAndGet();
+            long queued = position + 1 - head;
+            if (queued > highWater.get()) highWater.set(queued);
+            return true;
+        }
+
+        int depth() {
+            return (int) Math.max(0, tail.get() - head);
+        }
+
+        @Override
+        public void run() {
+            long position = head;
+            int idle = 0;
+            while (running) {
+                int index = (int) position & mask;
+                if (sequence.get(index) != position + 1) {
+                    if (++idle < SPINS_BEFORE_PARK) {
+                        Thread.onSpinWait();
+                        continue;
+                    }
+                    sleeping = true;
+                    if (sequence.get(index) != position + 1) LockSupport.parkNanos(this, PARK_NANOS);
+                    sleeping = false;
+                    continue;
+                }
+                idle = 0;
+                PooledBuffer pooled = held[index];
+                try {
+                    handler.receive(pooled != null ? pooled.buffer() : slots[index], sources[index]);
+                } catch (RuntimeException e) {
+                    System.err.println("\nError in " + Thread.currentThread().getName() + ": " + e);
+                }
+                if (pooled != null) {
+                    held[index] = null;
+                    pooled.release();
+                }
+                sources[index] = null;
+                position++;
+                head = position;
+                sequence.lazySet(index, position + mask);
+            }
+        }
+    }
+}
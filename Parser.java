@@ -10,7 +10,8 @@ public class Parser {
         try (Scanner scanner = new Scanner(configFile)) {
             while (scanner.hasNextLine()) {
                 String line = scanner.nextLine();
-                if (line.startsWith(nodeName)) {
+                int comma = line.indexOf(',');
+                if (comma >= 0 && line.substring(0, comma).trim().equals(nodeName)) {
                     // Process the line to extract details
                     Map<String, String> neighbors = new HashMap<>();
                     Map<String, String> routingTable = new HashMap<>();
@@ -36,19 +37,15 @@ public class Parser {
         return configDetails;
     }
 
-    // Find neighbors of a device from the config file
+    // Find neighbors of a device from the config file. Names are matched exactly, on
+    // either side of a connection, so "S1" does not match "PS1".
     public static List<String> findNeighbor(String deviceName, String filePath) {
         List<String> neighbors = new ArrayList<>();
 
-        try (BufferedReader br = new BufferedReader(new FileReader(filePath))) {
-            String line;
-            while ((line = br.readLine()) != null) {
-                if (line.contains(deviceName)) {
-                    int index = line.indexOf(deviceName) + deviceName.length() + 1;
-                    String neighbor = line.substring(index).trim();
-                    neighbors.add(neighbor);
-                }
-            }
+        try {
+            Topology topology = Topology.load(filePath);
+            int id = topology.id(deviceName);
+            for (int i = 0; id >= 0 && i < topology.degree(id); i++) neighbors.add(topology.name(topology.neighbor(id, i)));
         } catch (IOException e) {
             System.err.println("Error reading config file: " + e.getMessage());
         }
@@ -0,0 +1,82 @@
+import java.net.*;
+import java.nio.*;
+import java.util.concurrent.atomic.*;
+
+// A direct buffer from a BufferPool with a reference count. The holder of the first
+// reference is whoever acquired it; every retain() must be matched by a release(), and
+// the last release() returns the buffer to its pool.
+//
+// Transports that receive into pooled buffers hand them on with deliver(). A receiver
+// that needs the frame after its callback returns (a pipeline stage, say) can then call
+// owning(data) and retain the buffer instead of copying the frame out of it.
+public final class PooledBuffer {
+
+    private static final ThreadLocal<PooledBuffer> delivering = new ThreadLocal<>();
+
+    private final BufferPool pool; // null for buffers that are not returned anywhere
+    private final ByteBuffer buffer;
+    private final AtomicInteger references = new AtomicInteger();
+    private int start; // bounds of the datagram as delivered
+    private int end;
+
+    // Link and sender for MemoryTransport's inbox, which queues buffers without wrapping them
+    volatile PooledBuffer next;
+    InetSocketAddress source;
+
+    PooledBuffer(BufferPool pool, ByteBuffer buffer) {
+        this.pool = pool;
+        this.buffer = buffer;
+    }
+
+    void reset() {
+        references.set(1);
+        next = null;
+        source = null;
+    }
+
+    public ByteBuffer buffer() {
+        return buffer;
+    }
+
+    public PooledBuffer retain() {
+        if (references.getAndIncrement() <= 0) {
+            references.decrementAndGet();
+            throw new IllegalStateException("Buffer retained after its last release");
+        }
+        return this;
+    }
+
+    public void release() {
+        int left = references.decrementAndGet();
+        if (left == 0) {
+            if (pool != null) pool.recycle(this);
+        } else if (left < 0) {
+            throw new IllegalStateException("Buffer released more often than retained");
+        }
+    }
+
+    public int refCount() {
+        return references.get();
+    }
+
+    // Passes the buffer, positioned on one datagram, to the receiver
+    public void deliver(Transport.Receiver receiver, InetSocketAddress source) {
+        start = buffer.position();
+        end = buffer.limit();
+        delivering.set(this);
+        try {
+            receiver.receive(buffer, source);
+        } finally {
+            delivering.set(null);
+        }
+    }
+
+    // The pooled buffer behind data while it is being delivered on this thread, or null.
+    // Also null when data was narrowed to part of the datagram (one frame of a batch), as
+    // the transport moves those bounds again once the callback returns.
+    public static PooledBuffer owning(ByteBuffer data) {
+        PooledBuffer current = delivering.get();
+        if (current == null || current.buffer != data) return null;
+        return data.position() == current.start && data.limit() == current.end ? current : null;
+    }
+}
@@ -0,0 +1,128 @@
+import java.net.*;
+import java.util.*;
+
+// VLAN membership of a switch's configured ports, from the "# VLANs" section. A port
+// listed with one VLAN is an access port: frames leave it untagged and untagged frames
+// arriving on it belong to that VLAN. A port listed with several is a trunk: frames leave
+// it tagged, except those of the default VLAN, which is native (untagged) on trunks that
+// carry it. Ports not listed, and ports only known from learning, are access ports in
+// the default VLAN, so a configuration without VLANs forwards as before.
+//
+// Ports the spanning tree blocks stay listed but are left out of every VLAN's members.
+//
+// Immutable; the switch swaps in a new one when the configuration is reloaded or a port
+// is blocked or unblocked. The ports of each VLAN are precomputed, so a flood visits only
+// the forwarding ports of the frame's VLAN.
+public class PortVlans {
+
+    private static final int[] NONE = new int[0];
+
+    private final String[] names; // the neighbor on each port
+    private final InetSocketAddress[] ports;
+    private final int[][] vlans; // per port, sorted
+    private final boolean[] blocked;
+    private final Map<InetSocketAddress, Integer> indexes = new HashMap<>();
+    private final int[] vlanIds; // sorted, distinct
+    private final int[][] members; // port indexes per entry of vlanIds
+
+    // vlans[i] lists the VLANs of ports[i]; null or empty means the default VLAN.
+    // blocked may be null when no port is blocked.
+    public PortVlans(String[] names, InetSocketAddress[] ports, int[][] vlans, boolean[] blocked) {
+        this.names = names.clone();
+        this.ports = ports.clone();
+        this.vlans = new int[ports.length][];
+        this.blocked = blocked == null ? new boolean[ports.length] : blocked.clone();
+        TreeMap<Integer, List<Integer>> byVlan = new TreeMap<>();
+        for (int i = 0; i < ports.length; i++) {
+            int[] portVlans = vlans[i] == null || vlans[i].length == 0 ? new int[] {Frame.DEFAULT_VLAN} : vlans[i].clone();
+            Arrays.sort(portVlans);
+            this.vlans[i] = portVlans;
+            indexes.putIfAbsent(ports[i], i);
+            if (this.blocked[i]) continue;
+            for (int vlan : portVlans) byVlan.computeIfAbsent(vlan, k -> new ArrayList<>()).add(i);
+        }
+        vlanIds = new int[byVlan.size()];
+        members = new int[byVlan.size()][];
+        int next = 0;
+        for (Map.Entry<Integer, List<Integer>> vlan : byVlan.entrySet()) {
+            vlanIds[next] = vlan.getKey();
+            members[next++] = vlan.getValue().stream().mapToInt(Integer::intValue).toArray();
+        }
+    }
+
+    // The same ports with other ones blocked
+    public PortVlans withBlocked(boolean[] blocked) {
+        return new PortVlans(names, ports, vlans, blocked);
+    }
+
+    public InetSocketAddress[] ports() {
+        return ports;
+    }
+
+    public InetSocketAddress port(int index) {
+        return ports[index];
+    }
+
+    public String name(int index) {
+        return names[index];
+    }
+
+    public boolean isBlocked(int index) {
+        return blocked[index];
+    }
+
+    // Index of a configured port, or -1
+    public int indexOf(InetSocketAddress port) {
+        Integer index = indexes.get(port);
+        return index == null ? -1 : index;
+    }
+
+    public boolean isTrunk(int index) {
+        return vlans[index].length > 1;
+    }
+
+    // The VLAN a frame arriving on port with the given tag (0 for none) belongs to, or -1
+    // if the port does not carry it
+    public int ingressVlan(InetSocketAddress port, int tag) {
+        return ingressVlan(indexOf(port), tag);
+    }
+
+    // The same for the port at index, -1 for one that is not configured
+    public int ingressVlan(int index, int tag) {
+        if (index < 0) return tag == 0 || tag == Frame.DEFAULT_VLAN ? Frame.DEFAULT_VLAN : -1;
+        int[] portVlans = vlans[index];
+        if (portVlans.length == 1) return tag == 0 || tag == portVlans[0] ? portVlans[0] : -1;
+        int vlan = tag == 0 ? Frame.DEFAULT_VLAN : tag;
+        return Arrays.binarySearch(portVlans, vlan) >= 0 ? vlan : -1;
+    }
+
+    // Whether frames of vlan leave the port at index tagged
+    public boolean tagged(int index, int vlan) {
+        return vlans[index].length > 1 && vlan != Frame.DEFAULT_VLAN;
+    }
+
+    // Whether port carries vlan; ports that are not configured carry only the default VLAN
+    public boolean carries(InetSocketAddress port, int vlan) {
+        int index = indexOf(port);
+        if (index < 0) return vlan == Frame.DEFAULT_VLAN;
+        return Arrays.binarySearch(vlans[index], vlan) >= 0;
+    }
+
+    // Indexes of the configured ports in vlan that are not blocked; the array must not be modified
+    public int[] members(int vlan) {
+        int found = Arrays.binarySearch(vlanIds, vlan);
+        return found < 0 ? NONE : members[found];
+    }
+
+    public int vlanCount() {
+        return vlanIds.length;
+    }
+
+    // "access 10" or "trunk 10,20"
+    public String describe(int index) {
+        int[] portVlans = vlans[index];
+        StringBuilder text = new StringBuilder(portVlans.length > 1 ? "trunk " : "access ");
+        for (int i = 0; i < portVlans.length; i++) text.append(i > 0 ? "," : "").append(portVlans[i]);
+        return text.toString();
+    }
+}
@@ -0,0 +1,264 @@
+import java.util.*;
+
+// IPv4 longest-prefix-match table.
+//
+// A binary trie kept in parallel int arrays: node 0 is the root and child index 0
+// means "no child". A lookup follows at most 32 links and never allocates, so its
+// cost depends on the address width rather than on the number of routes.
+public class PrefixTrie<V> {
+
+    public interface Visitor<V> {
+        void visit(int prefix, int length, V value);
+    }
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private int[] zero;
+    private int[] one;
+    private Object[] values;
+    private int nodeCount = 1; // root is always allocated
+    private int freeList; // removed nodes, chained through zero[]
+    private int size;
+
+    public PrefixTrie() {
+        this(INITIAL_CAPACITY);
+    }
+
+    public PrefixTrie(int nodeCapacity) {
+        int capacity = Math.max(nodeCapacity, 2);
+        zero = new int[capacity];
+        one = new int[capacity];
+        values = new Object[capacity];
+    }
+
+    public static int mask(int length) {
+        return length == 0 ? 0 : -1 << (32 - length);
+    }
+
+    // "10.1.0.0/16" -> prefix int; a bare "10.1" is read as 10.1.0.0/16
+    public static int parsePrefix(String cidr) {
+        String address = cidr.trim();
+        int slash = address.indexOf('/');
+        if (slash >= 0) address = address.substring(0, slash);
+        String[] octets = address.split("\\.");
+        StringBuilder padded = new StringBuilder(address);
+        for (int i = octets.length; i < 4; i++) padded.append(".0");
+        return Addresses.parseIpv4(padded.toString()) & mask(parseLength(cidr));
+    }
+
+    public static int parseLength(String cidr) {
+        String trimmed = cidr.trim();
+        int slash = trimmed.indexOf('/');
+        int length = slash >= 0
+            ? Integer.parseInt(trimmed.substring(slash + 1).trim())
+            : 8 * trimmed.split("\\.").length;
+        if (length < 0 || length > 32) {
+            throw new IllegalArgumentException("Invalid prefix length: " + cidr);
+        }
+        return length;
+    }
+
+    public static String format(int prefix, int length) {
+        return Addresses.formatIpv4(prefix) + "/" + length;
+    }
+
+    public V put(String cidr, V value) {
+        return put(parsePrefix(cidr), parseLength(cidr), value);
+    }
+
+    public V put(int prefix, int length, V value) {
+        if (value == null) throw new NullPointerException("value");
+        checkLength(length);
+        int node = 0;
+        for (int depth = 0; depth < length; depth++) {
+            boolean bit = ((prefix >>> (31 - depth)) & 1) != 0;
+            int child = bit ? one[node] : zero[node];
+            if (child == 0) {
+                child = allocateNode();
+                if (bit) one[node] = child; else zero[node] = child;
+            }
+            node = child;
+        }
+        @SuppressWarnings("unchecked")
+        V previous = (V) values[node];
+        values[node] = value;
+        if (previous == null) size++;
+        return previous;
+    }
+
+    // Bulk load; sizes the node arrays once up front instead of growing per insert
+    public void putAll(int[] prefixes, int[] lengths, List<? extends V> routeValues) {
+        if (prefixes.length != lengths.length || prefixes.length != routeValues.size()) {
+            throw new IllegalArgumentException("Prefix, length and value counts differ");
+        }
+        long estimate = (long) nodeCount + 10L * prefixes.length;
+        ensureCapacity((int) Math.min(estimate, Integer.MAX_VALUE - 8));
+        for (int i = 0; i < prefixes.length; i++) {
+            put(prefixes[i], lengths[i], routeValues.get(i));
+        }
+    }
+
+    public V remove(String cidr) {
+        return remove(parsePrefix(cidr), parseLength(cidr));
+    }
+
+    public V remove(int prefix, int length) {
+        checkLength(length);
+        int[] path = new int[length + 1];
+        int node = 0;
+        for (int depth = 0; depth < length; depth++) {
+            path[depth] = node;
+            node = ((prefix >>> (31 - depth)) & 1) != 0 ? one[node] : zero[node];
+            if (node == 0) return null;
+        }
+        path[length] = node;
+
+        @SuppressWarnings("unchecked")
+        V previous = (V) values[node];
+        if (previous == null) return null;
+        values[node] = null;
+        size--;
+
+        // Prune the now-empty tail of the path back towards the root
+        for (int depth = length; depth > 0; depth--) {
+            int current = path[depth];
+            if (values[current] != null || zero[current] != 0 || one[current] != 0) break;
+            int parent = path[depth - 1];
+            if (((prefix >>> (32 - depth)) & 1) != 0) one[parent] = 0; else zero[parent] = 0;
+            freeNode(current);
+        }
+        return previous;
+    }
+
+    public V get(int prefix, int length) {
+        checkLength(length);
+        int node = 0;
+        for (int depth = 0; depth < length; depth++) {
+            node = ((prefix >>> (31 - depth)) & 1) != 0 ? one[node] : zero[node];
+            if (node == 0) return null;
+        }
+        @SuppressWarnings("unchecked")
+        V value = (V) values[node];
+        return value;
+    }
+
+    // Longest-prefix match; null when no route covers the address
+    @SuppressWarnings("unchecked")
+    public V lookup(int address) {
+        int node = 0;
+        Object best = values[0];
+        for (int shift = 31; shift >= 0; shift--) {
+            node = ((address >>> shift) & 1) != 0 ? one[node] : zero[node];
+            if (node == 0) break;
+            Object value = values[node];
+            if (value != null) best = value;
+        }
+        return (V) best;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        Arrays.fill(zero, 0, nodeCount, 0);
+        Arrays.fill(one, 0, nodeCount, 0);
+        Arrays.fill(values, 0, nodeCount, null);
+        nodeCount = 1;
+        freeList = 0;
+        size = 0;
+    }
+
+    // Visits routes in address order, shorter prefixes before longer ones
+    public void forEach(Visitor<? super V> visitor) {
+        visit(0, 0, 0, visitor);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void visit(int node, int prefix, int depth, Visitor<? super V> visitor) {
+        if (values[node] != null) visitor.visit(prefix, depth, (V) values[node]);
+        if (depth == 32) return;
+        if (zero[node] != 0) visit(zero[node], prefix, depth + 1, visitor);
+        if (one[node] != 0) visit(one[node], prefix | (1 << (31 - depth)), depth + 1, visitor);
+    }
+
+    // Immutable compact copy for lock-free readers; see RouteSnapshot
+    public RouteSnapshot<V> snapshot() {
+        int[] children = new int[2 * nodeCount];
+        int[] valueIndex = new int[nodeCount];
+        Map<Object, Integer> indexes = new HashMap<>();
+        List<Object> distinct = new ArrayList<>();
+        int[] oldNodes = new int[66];
+        int[] newNodes = new int[66];
+        int top = 0;
+        int used = 1;
+        oldNodes[top] = 0;
+        newNodes[top++] = 0;
+        while (top > 0) {
+            top--;
+            int node = oldNodes[top];
+            int copy = newNodes[top];
+            Object value = values[node];
+            if (value != null) {
+                Integer index = indexes.get(value);
+                if (index == null) {
+                    index = distinct.size();
+                    indexes.put(value, index);
+                    distinct.add(value);
+                }
+                valueIndex[copy] = index + 1;
+            }
+            // Siblings get adjacent numbers; the zero side is walked first
+            int zeroCopy = zero[node] != 0 ? used++ : 0;
+            int oneCopy = one[node] != 0 ? used++ : 0;
+            children[copy << 1] = zeroCopy;
+            children[(copy << 1) | 1] = oneCopy;
+            if (oneCopy != 0) {
+                oldNodes[top] = one[node];
+                newNodes[top++] = oneCopy;
+            }
+            if (zeroCopy != 0) {
+                oldNodes[top] = zero[node];
+                newNodes[top++] = zeroCopy;
+            }
+        }
+        return new RouteSnapshot<>(Arrays.copyOf(children, 2 * used), Arrays.copyOf(valueIndex, used),
+            distinct.toArray(), size);
+    }
+
+    private int allocateNode() {
+        if (freeList != 0) {
+            int node = freeList;
+            freeList = zero[node];
+            zero[node] = 0;
+            return node;
+        }
+        ensureCapacity(nodeCount + 1);
+        return nodeCount++;
+    }
+
+    private void freeNode(int node) {
+        values[node] = null;
+        one[node] = 0;
+        zero[node] = freeList;
+        freeList = node;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= zero.length) return;
+        int newCapacity = Math.max(capacity, zero.length + (zero.length >> 1));
+        zero = Arrays.copyOf(zero, newCapacity);
+        one = Arrays.copyOf(one, newCapacity);
+        values = Arrays.copyOf(values, newCapacity);
+    }
+
+    private static void checkLength(int length) {
+        if (length < 0 || length > 32) {
+            throw new IllegalArgumentException("Invalid prefix length: " + length);
+        }
+    }
+}
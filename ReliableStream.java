@@ -0,0 +1,606 @@
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.zip.*;
+
+// Reliable bulk transfers between computers over TYPE_STREAM frames, with a sliding
+// window, selective acknowledgements and congestion control.
+//
+// The data is cut into segments of stream.mss bytes, numbered from 0. The receiver
+// acknowledges every segment it gets with the next segment it expects, up to
+// MAX_SACK_BLOCKS ranges it already holds beyond that, its receive window and the send
+// time of the segment that triggered the acknowledgement. The sender:
+//
+//   - keeps at most min(cwnd, receive window) segments in flight, not counting segments
+//     that are acknowledged or known to be lost;
+//   - measures round trips from the echoed send times, which stay unambiguous for
+//     retransmissions, and derives its retransmission timeout from them as TCP does
+//     (RFC 6298);
+//   - takes a segment as lost once a segment sent more than a quarter round trip after
+//     it has been acknowledged (RACK, RFC 8985), and retransmits it right away;
+//   - grows cwnd by one segment per acknowledged segment below ssthresh and by about one
+//     per round trip above it, halves it once per window that loses segments (AIMD), and
+//     falls back to one segment when the retransmission timer fires.
+//
+// With stream.congestion=none the sender keeps a full receive window in flight instead,
+// which is what the congestion control is measured against.
+//
+// Acknowledgements go to the sender's IP at the port named in each data segment, as
+// traceroute answers do, because the simulated topologies put most devices at one IP.
+//
+// Segment header (big endian): stream id (4), kind (1), unused (1), reply port (2).
+// Data: segment number (4), segment count (4), transfer length (8), send time (8), then
+// the data. Acknowledgement: next expected segment (4), receive window (4), echoed send
+// time (8), block count (1), then per block its first segment (4) and the one after its
+// last (4).
+public class ReliableStream {
+
+    public static final int DEFAULT_MSS = Integer.getInteger("stream.mss", 1400);
+    public static final int DEFAULT_WINDOW = Integer.getInteger("stream.window", 1024);
+    public static final int INITIAL_CWND = Integer.getInteger("stream.cwnd.initial", 10);
+    public static final long MIN_RTO_NANOS = Long.getLong("stream.rto.min.ms", 10L) * 1_000_000L;
+    public static final long INITIAL_RTO_NANOS = Long.getLong("stream.rto.initial.ms", 200L) * 1_000_000L;
+    public static final int MAX_RETRIES = Integer.getInteger("stream.retries", 8);
+    public static final boolean DEFAULT_CONGESTION_CONTROL = parseCongestion(System.getProperty("stream.congestion", "aimd"));
+
+    public static final byte KIND_DATA = 1;
+    public static final byte KIND_ACK = 2;
+
+    public static final int ID_OFFSET = 0;
+    public static final int KIND_OFFSET = 4;
+    public static final int PORT_OFFSET = 6;
+    public static final int HEADER_LENGTH = 8;
+    public static final int DATA_HEADER_LENGTH = HEADER_LENGTH + 24;
+    public static final int ACK_HEADER_LENGTH = HEADER_LENGTH + 17;
+    public static final int MAX_SACK_BLOCKS = 4;
+    public static final int MAX_MSS = 1900; // fits Computer's send buffer with both headers
+
+    private static final long MAX_RTO_NANOS = 2_000_000_000L;
+    private static final int MAX_INCOMING = 64;
+
+    private static final byte UNSENT = 0;
+    private static final byte IN_FLIGHT = 1;
+    private static final byte LOST = 2;
+    private static final byte ACKED = 3;
+
+    public interface Output {
+        void send(byte[] segment, InetSocketAddress peer) throws IOException;
+    }
+
+    private static final AtomicInteger nextStreamId = new AtomicInteger(new Random().nextInt());
+
+    private final int replyPort;
+    private final Output output;
+    private final int mss;
+    private final int window;
+    private final boolean congestionControl;
+    private final Map<Integer, Transfer> outgoing = new ConcurrentHashMap<>();
+    private final Map<Incoming.Key, Incoming> incoming = new LinkedHashMap<Incoming.Key, Incoming>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Incoming.Key, Incoming> eldest) {
+            return size() > MAX_INCOMING;
+        }
+    };
+    private final LongAdder segmentsSent = new LongAdder();
+    private final LongAdder retransmissions = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder acksSent = new LongAdder();
+
+    public ReliableStream(int replyPort, Output output) {
+        this(replyPort, output, DEFAULT_MSS, DEFAULT_WINDOW, DEFAULT_CONGESTION_CONTROL);
+    }
+
+    public ReliableStream(int replyPort, Output output, int mss, int window, boolean congestionControl) {
+        if (mss < 1 || mss > MAX_MSS) throw new IllegalArgumentException("Segment size must be between 1 and " + MAX_MSS);
+        this.replyPort = replyPort;
+        this.output = output;
+        this.mss = mss;
+        this.window = Math.max(1, window);
+        this.congestionControl = congestionControl;
+    }
+
+    public static boolean parseCongestion(String name) {
+        switch (name.trim().toLowerCase(Locale.ROOT)) {
+            case "aimd":
+                return true;
+            case "none":
+                return false;
+            default:
+                throw new IllegalArgumentException("Unknown congestion control: " + name + " (expected aimd or none)");
+        }
+    }
+
+    // One outgoing transfer; everything but the fields set at construction is guarded by the object itself
+    public final class Transfer {
+        final int id;
+        final InetSocketAddress peer;
+        final ByteBuffer data;
+        final int segments;
+        final byte[] state;
+        final long[] sentAt;
+        final LatencyHistogram roundTrip = new LatencyHistogram();
+        int cumulative; // first segment not acknowledged
+        int next; // first segment never sent
+        int inFlight;
+        int lost; // segments waiting for a retransmission
+        int firstLost; // no lost segment below this one
+        double cwnd = INITIAL_CWND;
+        double ssthresh = Double.MAX_VALUE;
+        double maxCwnd = INITIAL_CWND;
+        int peerWindow = window;
+        int recoveryPoint = -1; // cwnd is not cut again before this segment is acknowledged
+        long deliveredSentAt; // newest send time among the acknowledged transmissions
+        long srtt = -1;
+        long rttvar;
+        long rto = INITIAL_RTO_NANOS;
+        long timerStart; // 0 while the retransmission timer is not running
+        int backoffs;
+        long started;
+        long finished;
+        long sent;
+        long retransmitted;
+        long timedOut;
+        long recoveries;
+        long sendErrors;
+        IOException failure;
+        boolean done;
+
+        Transfer(int id, InetSocketAddress peer, ByteBuffer data) {
+            this.id = id;
+            this.peer = peer;
+            this.data = data;
+            this.segments = (data.remaining() + mss - 1) / mss;
+            this.state = new byte[segments];
+            this.sentAt = new long[segments];
+        }
+
+        public synchronized long getBytes() {
+            return data.remaining();
+        }
+
+        public synchronized double getSeconds() {
+            return Math.max((done ? finished : System.nanoTime()) - started, 1) / 1e9;
+        }
+
+        public synchronized long getSent() {
+            return sent;
+        }
+
+        public synchronized long getRetransmitted() {
+            return retransmitted;
+        }
+
+        public synchronized long getTimeouts() {
+            return timedOut;
+        }
+
+        public LatencyHistogram getRoundTrip() {
+            return roundTrip;
+        }
+
+        public synchronized String describe() {
+            double seconds = getSeconds();
+            CRC32 crc = new CRC32();
+            crc.update(data.duplicate());
+            return String.format("Stream %08x to %s: %d bytes in %.3f s, %.2f Mbit/s%s%n", id, Addresses.formatSocketAddress(peer),
+                    data.remaining(), seconds, data.remaining() * 8 / seconds / 1e6, failure == null ? "" : " (failed: " + failure.getMessage() + ")")
+                + String.format("  %d segments of %d bytes, %d sent, %d retransmitted (%.2f%%), %d timeouts, %d loss recoveries%s%n",
+                    segments, mss, sent, retransmitted, sent == 0 ? 0.0 : 100.0 * retransmitted / sent, timedOut, recoveries,
+                    sendErrors == 0 ? "" : ", " + sendErrors + " send errors")
+                + String.format("  congestion window %s, largest %.0f segments; crc32 %08x%n", congestionControl ? "aimd" : "none",
+                    maxCwnd, crc.getValue())
+                + "  round trip: " + roundTrip.describe();
+        }
+    }
+
+    // What arrived of one transfer; guarded by the object itself
+    private static final class Incoming {
+        static final class Key {
+            final long peer;
+            final int id;
+
+            Key(long peer, int id) {
+                this.peer = peer;
+                this.id = id;
+            }
+
+            @Override
+            public boolean equals(Object other) {
+                return other instanceof Key && ((Key) other).peer == peer && ((Key) other).id == id;
+            }
+
+            @Override
+            public int hashCode() {
+                return Long.hashCode(peer) * 31 + id;
+            }
+        }
+
+        final int id;
+        final InetSocketAddress replyTo;
+        final int segments;
+        final long length;
+        final byte[][] slots; // out-of-order segments, at segment % window
+        final int[] slotSegment;
+        final int[] slotLength;
+        final CRC32 crc = new CRC32();
+        byte[] scratch;
+        int expected; // next segment to deliver in order
+        long bytes;
+        long received;
+        long duplicates;
+        long beyondWindow;
+        final long first;
+        long last;
+
+        Incoming(int id, InetSocketAddress replyTo, int segments, long length, int window, long now) {
+            this.id = id;
+            this.replyTo = replyTo;
+            this.segments = segments;
+            this.length = length;
+            this.slots = new byte[window][];
+            this.slotSegment = new int[window];
+            this.slotLength = new int[window];
+            Arrays.fill(slotSegment, -1);
+            this.first = now;
+            this.last = now;
+        }
+    }
+
+    // Sends data to peer and returns once all of it is acknowledged. Fails when
+    // MAX_RETRIES retransmission timeouts in a row go unanswered.
+    public Transfer send(InetSocketAddress peer, ByteBuffer data) throws IOException, InterruptedException {
+        int id;
+        while ((id = nextStreamId.getAndIncrement()) == 0) ;
+        Transfer transfer = new Transfer(id, peer, data.slice());
+        outgoing.put(id, transfer);
+        try {
+            synchronized (transfer) {
+                transfer.started = System.nanoTime();
+                if (transfer.segments == 0) complete(transfer);
+                pump(transfer);
+                while (!transfer.done) {
+                    long now = System.nanoTime();
+                    if (transfer.timerStart != 0 && now - (transfer.timerStart + transfer.rto) >= 0) {
+                        onTimeout(transfer);
+                        continue;
+                    }
+                    long waitNanos = transfer.timerStart == 0 ? transfer.rto : transfer.timerStart + transfer.rto - now;
+                    TimeUnit.NANOSECONDS.timedWait(transfer, waitNanos);
+                }
+                if (transfer.failure != null) throw transfer.failure;
+            }
+            return transfer;
+        } finally {
+            outgoing.remove(id);
+        }
+    }
+
+    // Called by the receive path with TYPE_STREAM frames; returns false for a malformed one
+    public boolean receive(Frame frame) {
+        int length = frame.getPayloadLength();
+        if (length < HEADER_LENGTH) return false;
+        ByteBuffer payload = frame.getPayloadSource();
+        int offset = frame.getPayloadOffset();
+        byte kind = payload.get(offset + KIND_OFFSET);
+        if (kind == KIND_DATA) return length >= DATA_HEADER_LENGTH && receiveData(frame, payload, offset, length);
+        if (kind == KIND_ACK) return length >= ACK_HEADER_LENGTH && receiveAck(payload, offset, length);
+        return false;
+    }
+
+    private boolean receiveAck(ByteBuffer payload, int offset, int length) {
+        int blocks = payload.get(offset + HEADER_LENGTH + 16) & 0xFF;
+        if (blocks > MAX_SACK_BLOCKS || length < ACK_HEADER_LENGTH + blocks * 8) return false;
+        Transfer transfer = outgoing.get(payload.getInt(offset + ID_OFFSET));
+        if (transfer == null) return true; // late acknowledgement of a finished transfer
+        synchronized (transfer) {
+            if (transfer.done) return true;
+            long now = System.nanoTime();
+            long echoed = payload.getLong(offset + HEADER_LENGTH + 8);
+            if (echoed - transfer.started >= 0 && now - echoed >= 0) {
+                updateRoundTrip(transfer, now - echoed);
+                if (echoed - transfer.deliveredSentAt > 0) transfer.deliveredSentAt = echoed;
+            }
+            transfer.peerWindow = Math.max(1, payload.getInt(offset + HEADER_LENGTH + 4));
+
+            int acknowledged = 0;
+            int cumulative = Math.min(payload.getInt(offset + HEADER_LENGTH), transfer.next);
+            for (int segment = transfer.cumulative; segment < cumulative; segment++) acknowledged += acknowledge(transfer, segment);
+            if (cumulative > transfer.cumulative) transfer.cumulative = cumulative;
+            for (int i = 0; i < blocks; i++) {
+                int block = offset + ACK_HEADER_LENGTH + i * 8;
+                int start = Math.max(payload.getInt(block), transfer.cumulative);
+                int end = Math.min(payload.getInt(block + 4), transfer.next);
+                for (int segment = start; segment < end; segment++) acknowledged += acknowledge(transfer, segment);
+            }
+            if (transfer.cumulative == transfer.segments) {
+                complete(transfer);
+                return true;
+            }
+
+            if (acknowledged > 0) {
+                transfer.backoffs = 0;
+                transfer.timerStart = transfer.inFlight > 0 ? now : 0;
+            }
+            boolean newLoss = detectLosses(transfer);
+            if (newLoss) {
+                if (congestionControl) {
+                    transfer.ssthresh = Math.max(transfer.cwnd / 2, 2);
+                    transfer.cwnd = transfer.ssthresh;
+                }
+                transfer.recoveryPoint = transfer.next - 1;
+                transfer.recoveries++;
+            } else if (congestionControl && acknowledged > 0 && transfer.cumulative > transfer.recoveryPoint) {
+                transfer.cwnd += transfer.cwnd < transfer.ssthresh ? acknowledged : (double) acknowledged / transfer.cwnd;
+                transfer.cwnd = Math.min(transfer.cwnd, transfer.peerWindow);
+                transfer.maxCwnd = Math.max(transfer.maxCwnd, transfer.cwnd);
+            }
+            pump(transfer);
+        }
+        return true;
+    }
+
+    // Returns 1 if the segment was not acknowledged before
+    private static int acknowledge(Transfer transfer, int segment) {
+        byte state = transfer.state[segment];
+        if (state == ACKED) return 0;
+        if (state == IN_FLIGHT) transfer.inFlight--;
+        if (state == LOST) transfer.lost--;
+        transfer.state[segment] = ACKED;
+        return 1;
+    }
+
+    // RACK: a segment still in flight that was sent a reordering window before the newest
+    // acknowledged transmission is lost. True if that happens to a segment sent after the
+    // last reduction of cwnd.
+    private boolean detectLosses(Transfer transfer) {
+        if (transfer.deliveredSentAt == 0 || transfer.srtt < 0) return false;
+        long cutoff = transfer.deliveredSentAt - transfer.srtt / 4;
+        boolean newLoss = false;
+        for (int segment = transfer.cumulative; segment < transfer.next; segment++) {
+            if (transfer.state[segment] != IN_FLIGHT || transfer.sentAt[segment] - cutoff >= 0) continue;
+            markLost(transfer, segment);
+            if (segment > transfer.recoveryPoint) newLoss = true;
+        }
+        return newLoss;
+    }
+
+    private static void markLost(Transfer transfer, int segment) {
+        transfer.state[segment] = LOST;
+        transfer.inFlight--;
+        transfer.lost++;
+        if (segment < transfer.firstLost) transfer.firstLost = segment;
+    }
+
+    private void onTimeout(Transfer transfer) {
+        if (++transfer.backoffs > MAX_RETRIES) {
+            transfer.failure = new IOException("No acknowledgement from " + Addresses.formatSocketAddress(transfer.peer) + " after "
+                + MAX_RETRIES + " retransmission timeouts");
+            complete(transfer);
+            return;
+        }
+        transfer.timedOut++;
+        timeouts.increment();
+        for (int segment = transfer.cumulative; segment < transfer.next; segment++) {
+            if (transfer.state[segment] == IN_FLIGHT) markLost(transfer, segment);
+        }
+        if (congestionControl) {
+            transfer.ssthresh = Math.max(transfer.cwnd / 2, 2);
+            transfer.cwnd = 1;
+        }
+        transfer.recoveryPoint = transfer.next - 1;
+        transfer.rto = Math.min(transfer.rto * 2, MAX_RTO_NANOS);
+        transfer.timerStart = 0;
+        pump(transfer);
+    }
+
+    private void updateRoundTrip(Transfer transfer, long sample) {
+        transfer.roundTrip.record(sample);
+        if (transfer.srtt < 0) {
+            transfer.srtt = sample;
+            transfer.rttvar = sample / 2;
+        } else {
+            transfer.rttvar = (3 * transfer.rttvar + Math.abs(transfer.srtt - sample)) / 4;
+            transfer.srtt = (7 * transfer.srtt + sample) / 8;
+        }
+        transfer.rto = Math.min(Math.max(transfer.srtt + 4 * transfer.rttvar, MIN_RTO_NANOS), MAX_RTO_NANOS);
+    }
+
+    // Sends lost segments first, then new ones, while the windows allow
+    private void pump(Transfer transfer) {
+        while (!transfer.done) {
+            int limit = Math.min(congestionControl ? (int) transfer.cwnd : Integer.MAX_VALUE, transfer.peerWindow);
+            if (transfer.inFlight >= Math.max(1, limit)) return;
+            int segment;
+            if (transfer.lost > 0) {
+                segment = transfer.firstLost;
+                while (transfer.state[segment] != LOST) segment++;
+                transfer.firstLost = segment + 1;
+                transfer.lost--;
+                transfer.retransmitted++;
+                retransmissions.increment();
+            } else if (transfer.next < transfer.segments && transfer.next < transfer.cumulative + transfer.peerWindow) {
+                segment = transfer.next++;
+            } else {
+                return;
+            }
+            transmit(transfer, segment);
+        }
+    }
+
+    private void transmit(Transfer transfer, int segment) {
+        int start = segment * mss;
+        int length = Math.min(mss, transfer.data.remaining() - start);
+        long now = System.nanoTime();
+        ByteBuffer out = ByteBuffer.allocate(DATA_HEADER_LENGTH + length);
+        out.putInt(transfer.id).put(KIND_DATA).put((byte) 0).putShort((short) replyPort)
+            .putInt(segment).putInt(transfer.segments).putLong(transfer.data.remaining()).putLong(now)
+            .put(DATA_HEADER_LENGTH, transfer.data, start, length);
+        transfer.state[segment] = IN_FLIGHT;
+        transfer.sentAt[segment] = now;
+        transfer.inFlight++;
+        transfer.sent++;
+        segmentsSent.increment();
+        if (transfer.timerStart == 0) transfer.timerStart = now;
+        try {
+            output.send(out.array(), transfer.peer);
+        } catch (IOException e) {
+            // Counted as sent; the retransmission timer recovers it like any other loss
+            transfer.sendErrors++;
+        }
+    }
+
+    private static void complete(Transfer transfer) {
+        transfer.done = true;
+        transfer.finished = System.nanoTime();
+        transfer.notifyAll();
+    }
+
+    private boolean receiveData(Frame frame, ByteBuffer payload, int offset, int length) {
+        int id = payload.getInt(offset + ID_OFFSET);
+        int port = payload.getShort(offset + PORT_OFFSET) & 0xFFFF;
+        int segment = payload.getInt(offset + HEADER_LENGTH);
+        int segments = payload.getInt(offset + HEADER_LENGTH + 4);
+        long total = payload.getLong(offset + HEADER_LENGTH + 8);
+        long sentAt = payload.getLong(offset + HEADER_LENGTH + 16);
+        int dataLength = length - DATA_HEADER_LENGTH;
+        if (segment < 0 || segment >= segments || total < 0 || dataLength > MAX_MSS) return false;
+
+        long now = System.nanoTime();
+        Incoming.Key key = new Incoming.Key(Arp.key(frame.getSrcIp(), port), id);
+        Incoming transfer;
+        synchronized (incoming) {
+            transfer = incoming.get(key);
+            if (transfer == null) {
+                transfer = new Incoming(id, new InetSocketAddress(Addresses.formatIpv4(frame.getSrcIp()), port), segments, total, window, now);
+                incoming.put(key, transfer);
+            }
+        }
+        byte[] ack;
+        synchronized (transfer) {
+            if (segments != transfer.segments || total != transfer.length) return false;
+            transfer.received++;
+            transfer.last = now;
+            int slot = segment % window;
+            if (segment < transfer.expected || transfer.slotSegment[slot] == segment) {
+                transfer.duplicates++;
+            } else if (segment >= transfer.expected + window) {
+                transfer.beyondWindow++;
+            } else if (segment == transfer.expected) {
+                if (transfer.scratch == null || transfer.scratch.length < dataLength) transfer.scratch = new byte[Math.max(dataLength, mss)];
+                payload.get(offset + DATA_HEADER_LENGTH, transfer.scratch, 0, dataLength);
+                deliver(transfer, transfer.scratch, dataLength);
+                // Then whatever was waiting behind it
+                slot = transfer.expected % window;
+                while (transfer.slotSegment[slot] == transfer.expected) {
+                    transfer.slotSegment[slot] = -1;
+                    deliver(transfer, transfer.slots[slot], transfer.slotLength[slot]);
+                    slot = transfer.expected % window;
+                }
+            } else {
+                if (transfer.slots[slot] == null || transfer.slots[slot].length < dataLength) {
+                    transfer.slots[slot] = new byte[Math.max(dataLength, mss)];
+                }
+                payload.get(offset + DATA_HEADER_LENGTH, transfer.slots[slot], 0, dataLength);
+                transfer.slotSegment[slot] = segment;
+                transfer.slotLength[slot] = dataLength;
+            }
+            ack = acknowledgement(transfer, segment, sentAt);
+        }
+        try {
+            output.send(ack, transfer.replyTo);
+            acksSent.increment();
+        } catch (IOException e) {
+            // The sender retransmits and we acknowledge again
+        }
+        return true;
+    }
+
+    private static void deliver(Incoming transfer, byte[] data, int length) {
+        transfer.crc.update(data, 0, length);
+        transfer.bytes += length;
+        transfer.expected++;
+    }
+
+    // The block holding the segment that just arrived comes first (RFC 2018), then the
+    // lowest other blocks
+    private byte[] acknowledgement(Incoming transfer, int segment, long sentAt) {
+        int[] blocks = new int[MAX_SACK_BLOCKS * 2];
+        int count = 0;
+        if (segment > transfer.expected && holds(transfer, segment)) {
+            int start = segment;
+            int end = segment + 1;
+            while (start - 1 > transfer.expected && holds(transfer, start - 1)) start--;
+            while (end < transfer.expected + window && holds(transfer, end)) end++;
+            blocks[0] = start;
+            blocks[1] = end;
+            count = 1;
+        }
+        int limit = Math.min(transfer.expected + window, transfer.segments);
+        for (int start = transfer.expected + 1; start < limit && count < MAX_SACK_BLOCKS; start++) {
+            if (!holds(transfer, start)) continue;
+            int end = start + 1;
+            while (end < limit && holds(transfer, end)) end++;
+            if (count == 0 || start != blocks[0]) {
+                blocks[count * 2] = start;
+                blocks[count * 2 + 1] = end;
+                count++;
+            }
+            start = end;
+        }
+        ByteBuffer out = ByteBuffer.allocate(ACK_HEADER_LENGTH + count * 8);
+        out.putInt(transfer.id).put(KIND_ACK).put((byte) 0).putShort((short) replyPort)
+            .putInt(transfer.expected).putInt(window).putLong(sentAt).put((byte) count);
+        for (int i = 0; i < count * 2; i++) out.putInt(blocks[i]);
+        return out.array();
+    }
+
+    private boolean holds(Incoming transfer, int segment) {
+        return transfer.slotSegment[segment % window] == segment;
+    }
+
+    public long getSegmentsSent() {
+        return segmentsSent.sum();
+    }
+
+    public long getRetransmissions() {
+        return retransmissions.sum();
+    }
+
+    public long getTimeouts() {
+        return timeouts.sum();
+    }
+
+    public long getAcksSent() {
+        return acksSent.sum();
+    }
+
+    public int getActiveTransfers() {
+        return outgoing.size();
+    }
+
+    // Received transfers, oldest first
+    public String describe() {
+        List<Incoming> transfers;
+        synchronized (incoming) {
+            transfers = new ArrayList<>(incoming.values());
+        }
+        if (transfers.isEmpty()) return "No streams received";
+        StringBuilder builder = new StringBuilder();
+        for (Incoming transfer : transfers) {
+            synchronized (transfer) {
+                boolean complete = transfer.expected == transfer.segments;
+                double seconds = Math.max(transfer.last - transfer.first, 1) / 1e9;
+                if (builder.length() > 0) builder.append('\n');
+                builder.append(String.format("Stream %08x from %s: %d of %d bytes%s in %.3f s, %.2f Mbit/s%n", transfer.id,
+                        Addresses.formatSocketAddress(transfer.replyTo), transfer.bytes, transfer.length, complete ? "" : " so far",
+                        seconds, transfer.bytes * 8 / seconds / 1e6))
+                    .append(String.format("  %d segments received, %d duplicates, %d beyond the window; crc32 %08x", transfer.received,
+                        transfer.duplicates, transfer.beyondWindow, transfer.crc.getValue()));
+            }
+        }
+        return builder.toString();
+    }
+}
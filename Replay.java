@@ -0,0 +1,178 @@
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.locks.*;
+
+// Sends the frames of a capture written with -Dcapture.dir back into a device.
+//
+//   java -cp bin Replay <capture.pcapng> <ip:port> [--speed recorded|max|<factor>]
+//                       [--direction in|out|all] [--loop <count>] [--fresh-ids]
+//
+// By default the frames the captured device received are sent at the recorded pace,
+// which reproduces the load it saw. --speed max sends them back to back, a factor of 2
+// at twice the recorded pace. --fresh-ids gives binary frames new message IDs, so that
+// a device that already saw them (or a second loop) does not drop them as duplicates.
+public class Replay {
+
+    public interface Visitor {
+        // data holds one frame; timestamp is in nanoseconds since the epoch
+        void packet(long timestamp, int direction, ByteBuffer data) throws IOException;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.out.println("Usage: java Replay <capture.pcapng> <ip:port> [--speed recorded|max|<factor>] "
+                + "[--direction in|out|all] [--loop <count>] [--fresh-ids]");
+            return;
+        }
+        Path capture = Paths.get(args[0]);
+        InetSocketAddress target = Addresses.parseSocketAddress(args[1]);
+        double speed = 1.0; // 0 means as fast as possible
+        int direction = PacketCapture.INBOUND;
+        int loops = 1;
+        boolean freshIds = false;
+        for (int i = 2; i < args.length; i++) {
+            switch (args[i]) {
+                case "--speed":
+                    String value = args[++i];
+                    speed = "max".equalsIgnoreCase(value) ? 0 : "recorded".equalsIgnoreCase(value) ? 1.0 : Double.parseDouble(value);
+                    break;
+                case "--direction":
+                    String which = args[++i].toLowerCase(Locale.ROOT);
+                    direction = "in".equals(which) ? PacketCapture.INBOUND : "out".equals(which) ? PacketCapture.OUTBOUND : 0;
+                    break;
+                case "--loop":
+                    loops = Integer.parseInt(args[++i]);
+                    break;
+                case "--fresh-ids":
+                    freshIds = true;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+
+        try (DatagramChannel channel = DatagramChannel.open()) {
+            channel.connect(target);
+            long sent = 0;
+            long bytes = 0;
+            long start = System.nanoTime();
+            for (int loop = 0; loop < loops; loop++) {
+                long[] counts = replay(capture, channel, direction, speed, freshIds);
+                sent += counts[0];
+                bytes += counts[1];
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("Replayed %d frames (%d bytes) to %s in %.3f s, %.0f frames/s%n",
+                sent, bytes, Addresses.formatSocketAddress(target), seconds, sent / Math.max(seconds, 1e-9));
+        }
+    }
+
+    // Returns {frames sent, bytes sent}
+    private static long[] replay(Path capture, DatagramChannel channel, int direction, double speed, boolean freshIds)
+            throws IOException {
+        long[] counts = new long[2];
+        long[] first = {Long.MIN_VALUE};
+        long start = System.nanoTime();
+        ByteBuffer copy = ByteBuffer.allocate(Transport.MAX_DATAGRAM);
+        Random random = new Random();
+        read(capture, (timestamp, packetDirection, data) -> {
+            if (direction != 0 && packetDirection != 0 && packetDirection != direction) return;
+            if (first[0] == Long.MIN_VALUE) first[0] = timestamp;
+            if (speed > 0) waitUntil(start + (long) ((timestamp - first[0]) / speed));
+            ByteBuffer frame = data;
+            int tag = Frame.tagLength(data);
+            if (freshIds && Frame.isBinary(data) && data.remaining() >= tag + Frame.HEADER_LENGTH) {
+                copy.clear();
+                copy.put(data.duplicate()).flip();
+                copy.putLong(tag + Frame.ID_OFFSET, random.nextLong()).putLong(tag + Frame.ID_OFFSET + 8, random.nextLong());
+                frame = copy;
+            }
+            counts[1] += frame.remaining();
+            channel.write(frame);
+            counts[0]++;
+        });
+        return counts;
+    }
+
+    private static void waitUntil(long deadline) {
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(remaining);
+        }
+    }
+
+    // Visits the packets of a pcapng file in file order. Timestamps are converted to
+    // nanoseconds using each interface's if_tsresol; direction is 0 when not recorded.
+    public static void read(Path capture, Visitor visitor) throws IOException {
+        try (FileChannel channel = FileChannel.open(capture, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) throw new IOException("Capture larger than 2 GB: " + capture);
+            ByteBuffer file = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (size < 12 || file.getInt(0) != PacketCapture.SECTION_HEADER_BLOCK) {
+                throw new IOException("Not a pcapng file: " + capture);
+            }
+            List<Long> resolutions = new ArrayList<>(); // nanoseconds per tick, per interface
+            int offset = 0;
+            while (offset + 12 <= size) {
+                int type = file.getInt(offset);
+                // The zeroed tail of a capture whose device died before it could close it
+                if (type == 0 && file.getInt(offset + 4) == 0) break;
+                if (type == PacketCapture.SECTION_HEADER_BLOCK) {
+                    file.order(file.getInt(offset + 8) == PacketCapture.BYTE_ORDER_MAGIC ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+                    resolutions.clear();
+                }
+                int length = file.getInt(offset + 4);
+                if (length < 12 || offset + (long) length > size) throw new IOException("Truncated block at offset " + offset);
+                if (type == PacketCapture.INTERFACE_BLOCK) {
+                    resolutions.add(resolution(file, offset + 16, offset + length - 4));
+                } else if (type == PacketCapture.ENHANCED_PACKET_BLOCK) {
+                    int iface = file.getInt(offset + 8);
+                    long ticks = ((file.getInt(offset + 12) & 0xFFFFFFFFL) << 32) | (file.getInt(offset + 16) & 0xFFFFFFFFL);
+                    int captured = file.getInt(offset + 20);
+                    int dataStart = offset + 28;
+                    int optionsStart = dataStart + ((captured + 3) & ~3);
+                    long perTick = iface < resolutions.size() ? resolutions.get(iface) : 1_000L;
+                    int direction = direction(file, optionsStart, offset + length - 4);
+                    ByteBuffer data = file.duplicate().order(ByteOrder.BIG_ENDIAN);
+                    data.limit(dataStart + captured).position(dataStart);
+                    visitor.packet(ticks * perTick, direction, data);
+                }
+                offset += length;
+            }
+        }
+    }
+
+    // if_tsresol as nanoseconds per tick; microseconds when absent
+    private static long resolution(ByteBuffer file, int options, int end) {
+        for (int offset = options; offset + 4 <= end; ) {
+            int code = file.getShort(offset) & 0xFFFF;
+            int length = file.getShort(offset + 2) & 0xFFFF;
+            if (code == 0) break;
+            if (code == 9 && length >= 1) {
+                int value = file.get(offset + 4);
+                if ((value & 0x80) != 0) throw new IllegalArgumentException("Binary timestamp resolutions are not supported");
+                long perTick = 1;
+                for (int i = value; i < 9; i++) perTick *= 10;
+                return Math.max(perTick, 1);
+            }
+            offset += 4 + ((length + 3) & ~3);
+        }
+        return 1_000L;
+    }
+
+    // epb_flags direction bits, or 0
+    private static int direction(ByteBuffer file, int options, int end) {
+        for (int offset = options; offset + 4 <= end; ) {
+            int code = file.getShort(offset) & 0xFFFF;
+            int length = file.getShort(offset + 2) & 0xFFFF;
+            if (code == 0) break;
+            if (code == 2 && length == 4) return file.getInt(offset + 4) & 0x3;
+            offset += 4 + ((length + 3) & ~3);
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,106 @@
+// Immutable longest-prefix-match table for the forwarding path.
+//
+// Made from a PrefixTrie with PrefixTrie.snapshot(): nodes are renumbered depth-first
+// with no free slots, both children of a node sit side by side in one array, and equal
+// values are stored once and referred to by index. Every field is final, so a snapshot
+// published through an AtomicReference can be read by any number of threads without
+// locks, and a lookup is a bounded walk over two int arrays.
+public final class RouteSnapshot<V> {
+
+    private static final RouteSnapshot<Object> EMPTY = new RouteSnapshot<>(new int[2], new int[1], new Object[0], 0);
+
+    private final int[] children; // children of node n at 2n (bit 0) and 2n + 1 (bit 1); 0 means none
+    private final int[] valueIndex; // per node, index into values plus one; 0 means no route
+    private final Object[] values;
+    private final int size;
+
+    RouteSnapshot(int[] children, int[] valueIndex, Object[] values, int size) {
+        this.children = children;
+        this.valueIndex = valueIndex;
+        this.values = values;
+        this.size = size;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <V> RouteSnapshot<V> empty() {
+        return (RouteSnapshot<V>) EMPTY;
+    }
+
+    // Longest-prefix match; null when no route covers the address
+    @SuppressWarnings("unchecked")
+    public V lookup(int address) {
+        int node = 0;
+        int best = valueIndex[0];
+        for (int shift = 31; shift >= 0; shift--) {
+            node = children[(node << 1) | ((address >>> shift) & 1)];
+            if (node == 0) break;
+            int value = valueIndex[node];
+            if (value != 0) best = value;
+        }
+        return best == 0 ? null : (V) values[best - 1];
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(int prefix, int length) {
+        if (length < 0 || length > 32) throw new IllegalArgumentException("Invalid prefix length: " + length);
+        int node = 0;
+        for (int depth = 0; depth < length; depth++) {
+            node = children[(node << 1) | ((prefix >>> (31 - depth)) & 1)];
+            if (node == 0) return null;
+        }
+        int value = valueIndex[node];
+        return value == 0 ? null : (V) values[value - 1];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int nodeCount() {
+        return valueIndex.length;
+    }
+
+    // Distinct values, e.g. next hops
+    public int valueCount() {
+        return values.length;
+    }
+
+    // Visits routes in address order, shorter prefixes before longer ones
+    @SuppressWarnings("unchecked")
+    public void forEach(PrefixTrie.Visitor<? super V> visitor) {
+        int[] nodes = new int[66];
+        int[] prefixes = new int[66];
+        int[] depths = new int[66];
+        int top = 0;
+        nodes[top++] = 0;
+        while (top > 0) {
+            top--;
+            int node = nodes[top];
+            int prefix = prefixes[top];
+            int depth = depths[top];
+            if (valueIndex[node] != 0) visitor.visit(prefix, depth, (V) values[valueIndex[node] - 1]);
+            if (depth == 32) continue;
+            int one = children[(node << 1) | 1];
+            int zero = children[node << 1];
+            if (one != 0) {
+                nodes[top] = one;
+                prefixes[top] = prefix | (1 << (31 - depth));
+                depths[top++] = depth + 1;
+            }
+            if (zero != 0) {
+                nodes[top] = zero;
+                prefixes[top] = prefix;
+                depths[top++] = depth + 1;
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "RouteSnapshot[routes=" + size + ", nodes=" + nodeCount() + ", values=" + values.length + "]";
+    }
+}
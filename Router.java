@@ -1,121 +1,876 @@
 import java.io.*;
 import java.net.*;
+import java.nio.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 
-public class Router implements Runnable {
+public class Router implements Runnable, Device {
+
+  // "rip" runs DistanceVector and "ls" runs LinkState with the neighboring routers;
+  // "none" leaves routes to the console
+  public static final String ROUTING_PROTOCOL = System.getProperty("routing.protocol", "rip");
+  private static final long ROUTING_TICK_MILLIS = 100;
+  private static final long ARP_TICK_MILLIS = 100;
+  private static final ScheduledExecutorService routingTimer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+    Thread thread = new Thread(runnable, "routing-timer");
+    thread.setDaemon(true);
+    return thread;
+  });
 
   private String name;
   private InetAddress ipAddress;
+  private final int sourceIp; // ipAddress as an int, for hashing the frames the router sends itself
   private int port;
-  private DatagramSocket socket;
-  private TreeMap<String, String> routingTable;
-  private Map<String, String> arpTable = new HashMap<>();
-  @SuppressWarnings("unused")
+  private Transport transport;
+  // The forwarding path only reads the published snapshot. Writers change the tables
+  // below under the router's lock and publish a new snapshot once per batch. Each route
+  // has a group of next hops; a packet takes the one its flow hashes to.
+  private final AtomicReference<RouteSnapshot<NextHopGroup>> forwardingTable = new AtomicReference<>(RouteSnapshot.empty());
+  private final PrefixTrie<NextHopGroup> routes = new PrefixTrie<>(); // static over learned; guarded by this
+  private final PrefixTrie<NextHopGroup> staticRoutes = new PrefixTrie<>(); // guarded by this; never replaced by learned routes
+  private final PrefixTrie<NextHopGroup> learnedRoutes = new PrefixTrie<>(); // guarded by this
+  private boolean routesChanged; // guarded by this
+  private volatile Map<Integer, Long> arpTable; // "# ARP table" entries, for any port of the IP; replaced as a whole on reload
+  // Next hops are resolved like a PC resolves its gateway. Behind a switch the frame's
+  // destination is resolved instead, by IP alone, as frames do not carry a port.
+  private final ArpCache<Pending> arpCache = new ArpCache<>();
+  private final Map<Long, InetSocketAddress> arpRequestsVia = new ConcurrentHashMap<>(); // where an outstanding request is sent
+  private final Map<InetSocketAddress, Long> nextHopKeys = new ConcurrentHashMap<>(); // Arp.key of each next hop
+  private volatile Set<InetSocketAddress> attachedSwitches; // neighboring switches; replaced as a whole on reload
+  private ScheduledFuture<?> arpTask;
   private ConfigManager configManager;
   private Scanner scanner = new Scanner(System.in);
-  private Set<String> receivedMessageIds = new HashSet<>(); // Set to store received message IDs
+  private DuplicateFilter receivedMessageIds = new DuplicateFilter(); // Recently received message IDs
+  private final ThreadLocal<Frame> frames = ThreadLocal.withInitial(Frame::new); // one per receive/worker thread
+  private PacketPipeline pipeline;
+  private final Metrics metrics;
+  private final LongAdder packetsIn;
+  private final LongAdder packetsOut;
+  private final LongAdder parseErrors;
+  private final LongAdder duplicates;
+  private final LongAdder noRoute;
+  private final LongAdder sendErrors;
+  private final LongAdder ttlExpired;
+  private final LongAdder arpFailed;
+  private final LongAdder arpQueueFull;
+  private final LatencyHistogram hopLatency;
+  private final Map<InetSocketAddress, LongAdder> nextHopPackets = new ConcurrentHashMap<>(); // registered on first use
+  private final long macAddress;
+  private final long flowSeed; // per router, so routers in a row split flows differently
+  // Read by the receive path, changed on reload
+  private final Map<String, InetSocketAddress> routerNeighbors = new ConcurrentHashMap<>();
+  private final Map<InetSocketAddress, String> neighborNames = new ConcurrentHashMap<>();
+  private final Map<Long, InetSocketAddress> attachedNetworks = new HashMap<>(); // connected network -> where it is reached; guarded by this
+  private RoutingProtocol routing;
+  private ScheduledFuture<?> routingTask;
+  private final Arp arp = new Arp();
+  private final Traceroute traceroute;
+  private final ThreadLocal<ByteBuffer> textBuffers = ThreadLocal.withInitial(() -> ByteBuffer.allocate(2048)); // re-encoded text frames
+  private final Frame controlFrame = new Frame();
+  private ByteBuffer controlBuffer = ByteBuffer.allocate(2048);
+
+  // A frame waiting for its next hop's MAC, copied out of the receive buffer as it arrived
+  private static final class Pending {
+    final byte[] frame;
+    final InetSocketAddress nextHop;
+
+    Pending(byte[] frame, InetSocketAddress nextHop) {
+      this.frame = frame;
+      this.nextHop = nextHop;
+    }
+  }
+
+  public Router(String name, ConfigManager configManager) throws IOException {
+    this(name, configManager, Engine.BLOCKING);
+  }
 
-  public Router(String name, ConfigManager configManager) throws UnknownHostException, SocketException {
+  public Router(String name, ConfigManager configManager, Engine engine) throws IOException {
     this.name = name;
     this.configManager = configManager;
     this.ipAddress = InetAddress.getByName(configManager.getIpAddress(name));
+    this.sourceIp = Addresses.toInt(ipAddress);
     this.port = configManager.getPort(name);
-    this.socket = new DatagramSocket(port, ipAddress);
-    this.routingTable = new TreeMap<>(Comparator.comparingInt(String::length).reversed().thenComparing(n -> n));
-    this.arpTable.putAll(configManager.getARPTable()); 
+    this.transport = CaptureTransport.wrap(name, engine.open(new InetSocketAddress(ipAddress, port)));
+    Map<Integer, Long> arpEntries = new HashMap<>();
+    configManager.getARPTable().forEach((ip, mac) -> arpEntries.put(Addresses.parseIpv4(ip), Addresses.parseMac(mac)));
+    this.arpTable = arpEntries;
+    this.attachedSwitches = configuredSwitches(configManager);
+
+    this.metrics = new Metrics(name);
+    this.packetsIn = metrics.counter("packets_in_total", "Frames received");
+    this.packetsOut = metrics.counter("packets_out_total", "Frames sent");
+    this.parseErrors = metrics.counter("drops_total", "Frames dropped", "reason", "parse_error");
+    this.duplicates = metrics.counter("drops_total", "Frames dropped", "reason", "duplicate");
+    this.noRoute = metrics.counter("drops_total", "Frames dropped", "reason", "no_route");
+    this.sendErrors = metrics.counter("drops_total", "Frames dropped", "reason", "send_error");
+    this.ttlExpired = metrics.counter("drops_total", "Frames dropped", "reason", "ttl_expired");
+    this.arpFailed = metrics.counter("drops_total", "Frames dropped", "reason", "arp_failed");
+    this.arpQueueFull = metrics.counter("drops_total", "Frames dropped", "reason", "arp_queue_full");
+    metrics.counter("drops_total", "Frames dropped", () -> pipeline == null ? 0 : pipeline.getDropped(), "reason", "queue_full");
+    this.hopLatency = metrics.histogram("hop_latency_ns", "Time from receiving a frame to sending it on");
+    metrics.gauge("routes", "Routes in the forwarding table", () -> routeCount());
+    metrics.counter("arp_requests_total", "ARP requests sent, including retries", () -> arpCache.getRequests());
+    metrics.counter("arp_coalesced_total", "Frames that waited on an ARP request already in flight", () -> arpCache.getCoalesced());
+    metrics.gauge("arp_entries", "Resolved ARP cache entries", () -> arpCache.size());
+
+    this.macAddress = Addresses.parseMac(configManager.getMacAddress(name));
+    this.flowSeed = macAddress * 0x9E3779B97F4A7C15L;
+    this.traceroute = new Traceroute(port);
+    if (!"none".equalsIgnoreCase(ROUTING_PROTOCOL)) setUpRouting(configManager);
   }
 
-  public void run() {
-    System.out.println("\nRouter " + name + " is running.");
-    new Thread(this::listenForPackets).start();
-    listenForCommands();
+  // Neighboring routers come from "# Node connections", attached networks from "# Router networks"
+  private void setUpRouting(ConfigManager configManager) {
+    Map<String, InetSocketAddress> neighbors = configuredNeighbors(configManager);
+    neighbors.forEach((neighbor, address) -> {
+      routerNeighbors.put(neighbor, address);
+      neighborNames.put(address, neighbor);
+    });
+
+    switch (ROUTING_PROTOCOL.toLowerCase()) {
+      case "rip":
+        routing = new DistanceVector(neighbors.keySet(), this::sendRouting, this::routeChanged);
+        break;
+      case "ls":
+        routing = new LinkState(name, neighbors.keySet(), this::sendRouting, this::tableChanged);
+        break;
+      default:
+        throw new IllegalArgumentException("Unknown routing protocol: " + ROUTING_PROTOCOL + " (expected rip, ls or none)");
+    }
+    metrics.counter("routing_messages_sent_total", "Routing protocol messages sent", () -> routing.getMessagesSent());
+    Map<Long, InetSocketAddress> networks = configuredNetworks(configManager);
+    synchronized (this) {
+      attachedNetworks.putAll(networks);
+    }
+    for (long key : networks.keySet()) routing.addConnected(keyPrefix(key), keyLength(key), now());
+    publishRoutes();
   }
 
-  private void listenForPackets() {
-    byte[] buffer = new byte[2048];
-    DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+  private Map<String, InetSocketAddress> configuredNeighbors(ConfigManager configManager) {
+    Map<String, InetSocketAddress> neighbors = new LinkedHashMap<>();
+    for (String neighbor : configManager.getNeighbors(name)) {
+      if (configManager.getIpAddress(neighbor) == null || !"Router".equals(configManager.getDeviceType(neighbor))) continue;
+      neighbors.put(neighbor, new InetSocketAddress(configManager.getIpAddress(neighbor), configManager.getPort(neighbor)));
+    }
+    return neighbors;
+  }
 
-    try {
-      while (!Thread.currentThread().isInterrupted()) {
-        socket.receive(packet);
-        handlePacket(packet);
+  private Set<InetSocketAddress> configuredSwitches(ConfigManager configManager) {
+    Set<InetSocketAddress> switches = new HashSet<>();
+    for (String neighbor : configManager.getNeighbors(name)) {
+      if (configManager.getIpAddress(neighbor) == null || !"Switch".equals(configManager.getDeviceType(neighbor))) continue;
+      switches.add(new InetSocketAddress(configManager.getIpAddress(neighbor), configManager.getPort(neighbor)));
+    }
+    return switches;
+  }
+
+  // A network listed without a device is reached through the first neighbor that is not a router
+  private Map<Long, InetSocketAddress> configuredNetworks(ConfigManager configManager) {
+    String firstAttached = null;
+    for (String neighbor : configManager.getNeighbors(name)) {
+      if (configManager.getIpAddress(neighbor) != null && !"Router".equals(configManager.getDeviceType(neighbor))) {
+        firstAttached = neighbor;
+        break;
       }
-    } catch (IOException e) {
-      System.err.println("\nError receiving packets: " + e.getMessage());
-      if (!socket.isClosed()) {
-        socket.close();
+    }
+    Map<Long, InetSocketAddress> networks = new LinkedHashMap<>();
+    for (Map.Entry<String, String> network : configManager.getRouterNetworks(name).entrySet()) {
+      String attached = network.getValue() != null ? network.getValue() : firstAttached;
+      if (attached == null || configManager.getIpAddress(attached) == null) {
+        System.err.println("\n[" + name + "] No device to reach network " + network.getKey() + " through");
+        continue;
+      }
+      int prefix = PrefixTrie.parsePrefix(network.getKey());
+      int length = PrefixTrie.parseLength(network.getKey());
+      networks.put(routeKey(prefix, length), new InetSocketAddress(configManager.getIpAddress(attached), configManager.getPort(attached)));
+    }
+    return networks;
+  }
+
+  // Applies a reloaded configuration while frames keep flowing: the ARP table is swapped
+  // whole, neighbors and attached networks are added to or removed from the routing
+  // protocol one by one, and the result is published as one snapshot. Learned routes to
+  // unchanged neighbors and routes added from the console stay.
+  public void reconfigure(ConfigDiff diff) {
+    if (diff.moved(name)) System.out.println("\n[" + name + "] The new address, port or MAC takes effect when " + name + " is restarted");
+    if (!diff.getArpChanges().isEmpty()) {
+      Map<Integer, Long> updated = new HashMap<>(arpTable);
+      diff.getArpChanges().forEach((ip, mac) -> {
+        if (mac == null) updated.remove(Addresses.parseIpv4(ip)); else updated.put(Addresses.parseIpv4(ip), Addresses.parseMac(mac));
+      });
+      arpTable = updated;
+    }
+    if (diff.neighborsChanged(name)) attachedSwitches = configuredSwitches(configManager);
+    if (routing == null) return;
+    // The protocol calls back into the router under its own lock, so it is never called with ours held
+    if (diff.neighborsChanged(name)) updateNeighbors(now());
+    if (diff.neighborsChanged(name) || diff.networksChanged(name)) updateNetworks(now());
+    publishRoutes();
+  }
+
+  // A neighbor that moved is removed and added again, so its routes are relearned at the new address
+  private void updateNeighbors(long now) {
+    Map<String, InetSocketAddress> configured = configuredNeighbors(configManager);
+    for (Map.Entry<String, InetSocketAddress> neighbor : new ArrayList<>(routerNeighbors.entrySet())) {
+      if (neighbor.getValue().equals(configured.get(neighbor.getKey()))) continue;
+      routing.removeNeighbor(neighbor.getKey(), now);
+      routerNeighbors.remove(neighbor.getKey());
+      neighborNames.remove(neighbor.getValue());
+      System.out.println("\n[" + name + "] Removed routing neighbor " + neighbor.getKey());
+    }
+    configured.forEach((neighbor, address) -> {
+      if (routerNeighbors.containsKey(neighbor)) return;
+      routerNeighbors.put(neighbor, address);
+      neighborNames.put(address, neighbor);
+      routing.addNeighbor(neighbor, now);
+      System.out.println("\n[" + name + "] Added routing neighbor " + neighbor + " at " + Addresses.formatSocketAddress(address));
+    });
+  }
+
+  // Networks reached through a device that moved keep their route and only change next hop
+  private void updateNetworks(long now) {
+    Map<Long, InetSocketAddress> configured = configuredNetworks(configManager);
+    List<Long> removed = new ArrayList<>();
+    List<Long> added = new ArrayList<>();
+    synchronized (this) {
+      for (Map.Entry<Long, InetSocketAddress> network : attachedNetworks.entrySet()) {
+        InetSocketAddress address = configured.get(network.getKey());
+        if (address == null) {
+          removed.add(network.getKey());
+        } else if (!address.equals(network.getValue())) {
+          int prefix = keyPrefix(network.getKey());
+          int length = keyLength(network.getKey());
+          NextHopGroup learned = learnedRoutes.get(prefix, length);
+          if (learned != null && learned.size() == 1 && network.getValue().equals(learned.get(0))) {
+            NextHopGroup moved = NextHopGroup.of(address);
+            learnedRoutes.put(prefix, length, moved);
+            if (staticRoutes.get(prefix, length) == null) routes.put(prefix, length, moved);
+            routesChanged = true;
+          }
+        }
+      }
+      for (long key : configured.keySet()) {
+        if (!attachedNetworks.containsKey(key)) added.add(key);
       }
+      attachedNetworks.keySet().retainAll(configured.keySet());
+      attachedNetworks.putAll(configured);
+    }
+    for (long key : removed) routing.removeConnected(keyPrefix(key), keyLength(key), now);
+    for (long key : added) routing.addConnected(keyPrefix(key), keyLength(key), now);
+    if (!removed.isEmpty() || !added.isEmpty()) {
+      System.out.println("\n[" + name + "] Attached networks: " + added.size() + " added, " + removed.size() + " removed");
     }
   }
 
+  public void run() {
+    start();
+    listenForCommands();
+  }
+
+  public void start() {
+    System.out.println("\nRouter " + name + " is running.");
+    MetricsExporter.register(metrics);
+    if (PacketPipeline.DEFAULT_WORKERS > 0) {
+      pipeline = new PacketPipeline(name, PacketPipeline.DEFAULT_WORKERS, PacketPipeline.DEFAULT_DEPTH, Frame::ipFlowHash, this::handlePacket);
+      transport.start(pipeline);
+    } else {
+      transport.start(this::handlePacket);
+    }
+    arpTask = routingTimer.scheduleAtFixedRate(() -> arpCache.tick(now(), arpResolver), ARP_TICK_MILLIS, ARP_TICK_MILLIS, TimeUnit.MILLISECONDS);
+    if (routing != null) {
+      routing.start(now());
+      publishRoutes();
+      routingTask = routingTimer.scheduleAtFixedRate(() -> {
+        routing.tick(now());
+        publishRoutes();
+      }, ROUTING_TICK_MILLIS, ROUTING_TICK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public void close() {
+    if (routingTask != null) routingTask.cancel(false);
+    if (arpTask != null) arpTask.cancel(false);
+    if (pipeline != null) pipeline.shutdown();
+    transport.close();
+    MetricsExporter.unregister(metrics);
+  }
+
+  public String getCommands() {
+    return "trace route, show table, show arp, show routing, show ecmp, show stats, show duplicates, show pipeline, add route, remove route, load routes";
+  }
+
   private void listenForCommands() {
     while (true) {
-      System.out.println("\nEnter command (trace route, show table, exit):");
+      System.out.println("\nEnter command (" + getCommands() + ", exit):");
       String command = scanner.nextLine();
       if ("exit".equalsIgnoreCase(command)) break;
 
+      executeCommand(command, scanner);
+    }
+    scanner.close();
+    System.out.println("\nRouter " + name + " is shutting down.");
+  }
+
+  public void executeCommand(String command, Scanner scanner) {
+    try {
       switch (command) {
         case "trace route":
           System.out.println("\nEnter destination IP:");
           String destIP = scanner.nextLine();
-          String nextHop = findNextHop(destIP);
-          System.out.println("\nNext hop for " + destIP + " is " + nextHop);
+          InetSocketAddress nextHop = findNextHop(Addresses.parseIpv4(destIP.trim()));
+          System.out.println("\nNext hop for " + destIP + " is " + describe(nextHop));
+          if (nextHop != null) traceRoute(Addresses.parseIpv4(destIP.trim()));
           break;
         case "show table":
           showTables();
           break;
+        case "show arp":
+          System.out.println("\n" + arpCache.describe(now()));
+          break;
+        case "show routing":
+          showRouting();
+          break;
+        case "show ecmp":
+          showEcmp();
+          break;
+        case "show stats":
+          System.out.println("\nStatistics for " + name + ":\n" + metrics.describe());
+          break;
+        case "show duplicates":
+          System.out.println("\nDuplicate filter: " + receivedMessageIds.describe());
+          break;
+        case "show pipeline":
+          System.out.println("\nPipeline: " + (pipeline == null ? "inline on the receive thread" : pipeline.describe()));
+          break;
+        case "add route":
+          System.out.println("\nEnter prefix (e.g. 10.1.0.0/16):");
+          String prefix = scanner.nextLine();
+          System.out.println("\nEnter next hops (ip:port, or ip:port*weight,ip:port*weight,... to share the load):");
+          addRoute(prefix, scanner.nextLine());
+          break;
+        case "remove route":
+          System.out.println("\nEnter prefix:");
+          String removed = scanner.nextLine();
+          System.out.println(removeRoute(removed) ? "\nRemoved " + removed : "\nNo route for " + removed);
+          break;
+        case "load routes":
+          System.out.println("\nEnter route file (prefix,ip:port[,ip:port...] per line):");
+          System.out.println("\nLoaded " + loadRoutes(scanner.nextLine()) + " routes");
+          break;
         default:
           System.out.println("\nUnknown command");
           break;
       }
+    } catch (IOException | IllegalArgumentException e) {
+      System.out.println("\n[" + name + "] " + e.getMessage());
     }
-    scanner.close();
-    System.out.println("\nRouter " + name + " is shutting down.");
   }
 
-  private String findNextHop(String destIP) {
-    for (Map.Entry<String, String> entry : routingTable.entrySet()) {
-      if (destIP.startsWith(entry.getKey())) {
-        return entry.getValue();
+  // nextHops is "ip:port", or several with optional weights: "ip:port*2,ip:port"
+  public void addRoute(String prefix, String nextHops) {
+    NextHopGroup group = NextHopGroup.parse(nextHops);
+    applyGroups(new int[] {PrefixTrie.parsePrefix(prefix)}, new int[] {PrefixTrie.parseLength(prefix)}, Collections.singletonList(group));
+  }
+
+  // Removes a route added from the console; a learned route for the prefix takes its place
+  public synchronized boolean removeRoute(String prefix) {
+    int network = PrefixTrie.parsePrefix(prefix);
+    int length = PrefixTrie.parseLength(prefix);
+    boolean removed = staticRoutes.get(network, length) != null;
+    applyGroups(new int[] {network}, new int[] {length}, Collections.singletonList(null));
+    return removed;
+  }
+
+  // Applies a batch of console route changes and publishes the result once. A null next
+  // hop withdraws the route. Lookups see either none or all of the batch.
+  public void applyRoutes(int[] prefixes, int[] lengths, List<InetSocketAddress> nextHops) {
+    List<NextHopGroup> groups = new ArrayList<>(nextHops.size());
+    Map<InetSocketAddress, NextHopGroup> shared = new HashMap<>();
+    for (InetSocketAddress nextHop : nextHops) groups.add(nextHop == null ? null : shared.computeIfAbsent(nextHop, NextHopGroup::of));
+    applyGroups(prefixes, lengths, groups);
+  }
+
+  // The same with several next hops per route. A route that already had some keeps the
+  // flows of those that stay on them.
+  public synchronized void applyGroups(int[] prefixes, int[] lengths, List<NextHopGroup> groups) {
+    if (prefixes.length != lengths.length || prefixes.length != groups.size()) {
+      throw new IllegalArgumentException("Prefix, length and next hop counts differ");
+    }
+    for (int i = 0; i < prefixes.length; i++) {
+      int length = lengths[i];
+      if (length < 0 || length > 32) throw new IllegalArgumentException("Invalid prefix length: " + length);
+      int prefix = prefixes[i] & PrefixTrie.mask(length);
+      NextHopGroup group = groups.get(i);
+      if (group != null) {
+        NextHopGroup previous = staticRoutes.put(prefix, length, group);
+        if (previous != null) {
+          group = previous.migrate(group);
+          staticRoutes.put(prefix, length, group);
+        }
+        routes.put(prefix, length, group);
+        routesChanged = true;
+      } else if (staticRoutes.remove(prefix, length) != null) {
+        NextHopGroup learned = learnedRoutes.get(prefix, length);
+        if (learned != null) routes.put(prefix, length, learned); else routes.remove(prefix, length);
+        routesChanged = true;
+      }
+    }
+    publishRoutes();
+  }
+
+  private static NextHopGroup migrate(NextHopGroup previous, NextHopGroup wanted) {
+    return previous == null ? wanted : previous.migrate(wanted);
+  }
+
+  // Bulk-loads "prefix,ip:port[,ip:port...]" lines; next hops are resolved once per distinct value
+  public int loadRoutes(String filePath) throws IOException {
+    List<String> lines = new ArrayList<>();
+    try (BufferedReader reader = new BufferedReader(new FileReader(filePath))) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        line = line.trim();
+        if (!line.isEmpty() && !line.startsWith("#")) lines.add(line);
       }
     }
-    return null;
+
+    int[] prefixes = new int[lines.size()];
+    int[] lengths = new int[lines.size()];
+    List<NextHopGroup> nextHops = new ArrayList<>(lines.size());
+    Map<String, NextHopGroup> resolved = new HashMap<>();
+    for (int i = 0; i < lines.size(); i++) {
+      String line = lines.get(i);
+      int comma = line.indexOf(',');
+      if (comma < 0) throw new IllegalArgumentException("Invalid route line: " + line);
+      prefixes[i] = PrefixTrie.parsePrefix(line.substring(0, comma));
+      lengths[i] = PrefixTrie.parseLength(line.substring(0, comma));
+      nextHops.add(resolved.computeIfAbsent(line.substring(comma + 1).trim(), NextHopGroup::parse));
+    }
+
+    applyGroups(prefixes, lengths, nextHops);
+    return lines.size();
+  }
+
+  // Called by DistanceVector for each changed route; the changes of one update are
+  // published together once the protocol call returns. Routes added from the console take precedence.
+  private synchronized void routeChanged(int prefix, int length, List<String> neighbors, int metric) {
+    NextHopGroup group = metric >= DistanceVector.DEFAULT_INFINITY ? null : learnedGroup(prefix, length, neighbors);
+    if (group == null) {
+      if (learnedRoutes.remove(prefix, length) == null) return;
+      if (staticRoutes.get(prefix, length) == null) routes.remove(prefix, length);
+    } else {
+      if (group.equals(learnedRoutes.put(prefix, length, group))) return;
+      if (staticRoutes.get(prefix, length) == null) routes.put(prefix, length, group);
+    }
+    routesChanged = true;
+  }
+
+  // Called by LinkState with the whole new table
+  private synchronized void tableChanged(List<LinkState.Route> table) {
+    List<NextHopGroup> groups = new ArrayList<>(table.size());
+    for (LinkState.Route route : table) groups.add(learnedGroup(route.getPrefix(), route.getLength(), route.getNeighbors()));
+    learnedRoutes.clear();
+    for (int i = 0; i < table.size(); i++) {
+      if (groups.get(i) != null) learnedRoutes.put(table.get(i).getPrefix(), table.get(i).getLength(), groups.get(i));
+    }
+    routes.clear();
+    learnedRoutes.forEach(routes::put);
+    staticRoutes.forEach(routes::put);
+    routesChanged = true;
+    publishRoutes();
+  }
+
+  // The next hops of the routing protocol's neighbors, migrated from the route's current
+  // group so flows through the neighbors that stay are not moved; null if none is known
+  private NextHopGroup learnedGroup(int prefix, int length, List<String> neighbors) {
+    List<InetSocketAddress> nextHops = new ArrayList<>(Math.max(1, neighbors.size()));
+    if (neighbors.isEmpty()) {
+      InetSocketAddress attached = attachedNetworks.get(routeKey(prefix, length));
+      if (attached != null) nextHops.add(attached);
+    }
+    for (String neighbor : neighbors) {
+      InetSocketAddress address = routerNeighbors.get(neighbor);
+      if (address != null && !nextHops.contains(address)) nextHops.add(address);
+    }
+    if (nextHops.isEmpty()) return null;
+    return migrate(learnedRoutes.get(prefix, length), NextHopGroup.of(nextHops));
+  }
+
+  private synchronized void publishRoutes() {
+    if (!routesChanged) return;
+    routesChanged = false;
+    forwardingTable.set(routes.snapshot());
+  }
+
+  // Package-private so Benchmark can watch what the forwarding path sees
+  RouteSnapshot<NextHopGroup> getForwardingTable() {
+    return forwardingTable.get();
+  }
+
+  private void sendRouting(String neighbor, ByteBuffer message) {
+    InetSocketAddress address = routerNeighbors.get(neighbor);
+    if (address == null) return;
+    try {
+      sendControl(Frame.TYPE_ROUTING, 1, Addresses.toInt(address.getAddress()), Addresses.BROADCAST_MAC, message, address);
+    } catch (IOException e) {
+      System.err.println("\n[" + name + "] Error sending routing update to " + neighbor + ": " + e.getMessage());
+    }
+  }
+
+  // Frames the router originates itself: routing updates, traceroute probes and answers
+  private void sendControl(byte type, int ttl, int dstIp, long dstMac, ByteBuffer payload, InetSocketAddress to) throws IOException {
+    synchronized (controlFrame) {
+      controlFrame.newMessageId()
+        .setType(type)
+        .setTtl(ttl)
+        .setSrcMac(macAddress)
+        .setDstMac(dstMac)
+        .setSrcIp(Addresses.toInt(ipAddress))
+        .setDstIp(dstIp)
+        .setPayload(payload, payload.position(), payload.remaining());
+      if (controlBuffer.capacity() < controlFrame.encodedLength()) controlBuffer = ByteBuffer.allocate(controlFrame.encodedLength());
+      controlBuffer.clear();
+      controlFrame.encode(controlBuffer);
+      controlBuffer.flip();
+      transport.send(controlBuffer, to);
+    }
+  }
+
+  // Probes follow the routing table from here; the final switch floods them, as their
+  // destination MAC is not known
+  private void traceRoute(int destIP) {
+    try {
+      List<Traceroute.Hop> hops = traceroute.run((ttl, probe) -> {
+        InetSocketAddress nextHop = findNextHop(destIP);
+        if (nextHop == null) return;
+        sendControl(Frame.TYPE_PROBE, ttl, destIP, Addresses.BROADCAST_MAC, ByteBuffer.wrap(probe), nextHop);
+      }, Traceroute.DEFAULT_MAX_HOPS, Traceroute.DEFAULT_PROBES, Traceroute.DEFAULT_TIMEOUT_MILLIS);
+      System.out.println("\n" + Traceroute.format(Addresses.formatIpv4(destIP), hops));
+    } catch (IOException e) {
+      System.out.println("\n[" + name + "] Error sending probe: " + e.getMessage());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void sendTimeExceeded(Frame probe) {
+    InetSocketAddress origin = Traceroute.replyAddress(probe);
+    if (origin == null) return;
+    try {
+      byte[] answer = Traceroute.answer(probe, name, Addresses.toInt(ipAddress), port);
+      sendControl(Frame.TYPE_TIME_EXCEEDED, Frame.DEFAULT_TTL, probe.getSrcIp(), probe.getSrcMac(), ByteBuffer.wrap(answer), origin);
+    } catch (IOException e) {
+      System.err.println("\n[" + name + "] Error sending time exceeded: " + e.getMessage());
+    }
+  }
+
+  // The payload is handed to the protocol in place by narrowing the receive buffer
+  private void receiveRouting(ByteBuffer data, Frame frame, InetSocketAddress source) {
+    String neighbor = neighborNames.get(source);
+    if (neighbor == null || routing == null) return;
+    int position = data.position();
+    int limit = data.limit();
+    try {
+      data.limit(frame.getPayloadOffset() + frame.getPayloadLength()).position(frame.getPayloadOffset());
+      routing.receive(neighbor, data, now());
+      publishRoutes();
+    } finally {
+      data.limit(limit).position(position);
+    }
+  }
+
+  private int routeCount() {
+    return forwardingTable.get().size();
+  }
+
+  private static long routeKey(int prefix, int length) {
+    return ((prefix & PrefixTrie.mask(length) & 0xFFFFFFFFL) << 8) | length;
+  }
+
+  private static int keyPrefix(long key) {
+    return (int) (key >>> 8);
+  }
+
+  private static int keyLength(long key) {
+    return (int) (key & 0xFF);
+  }
+
+  private static long now() {
+    return System.nanoTime() / 1_000_000L;
+  }
+
+  // Package-private so Benchmark can measure lookups directly. Frames the router sends
+  // itself, such as traceroute probes, are a flow from its own address.
+  InetSocketAddress findNextHop(int destIP) {
+    return findNextHop(macAddress, Addresses.BROADCAST_MAC, sourceIp, destIP);
+  }
+
+  InetSocketAddress findNextHop(long srcMac, long dstMac, int srcIP, int destIP) {
+    NextHopGroup group = forwardingTable.get().lookup(destIP);
+    if (group == null) return null;
+    return group.size() == 1 ? group.get(0) : group.select(NextHopGroup.flowHash(srcMac, dstMac, srcIP, destIP, flowSeed));
+  }
+
+  private LongAdder nextHopCounter(InetSocketAddress nextHop) {
+    LongAdder counter = nextHopPackets.get(nextHop);
+    if (counter != null) return counter;
+    synchronized (nextHopPackets) {
+      return nextHopPackets.computeIfAbsent(nextHop, hop ->
+        metrics.counter("next_hop_packets_total", "Frames routed per next hop", "next_hop", Addresses.formatSocketAddress(hop)));
+    }
+  }
+
+  private static String describe(InetSocketAddress nextHop) {
+    return nextHop == null ? "null" : Addresses.formatSocketAddress(nextHop);
+  }
+
+  private void showRouting() {
+    if (routing == null) {
+      System.out.println("\nDynamic routing is off (routing.protocol=" + ROUTING_PROTOCOL + ")");
+      return;
+    }
+    System.out.println("\n" + routing.describe(now()));
   }
 
   private void showTables() {
     System.out.println("\nRouting Table:");
-    routingTable.forEach((key, value) -> System.out.println(key + " -> " + value));
+    forwardingTable.get().forEach((prefix, length, nextHops) ->
+      System.out.println(PrefixTrie.format(prefix, length) + " -> " + nextHops));
     System.out.println("\nARP Table:");
-    arpTable.forEach((key, value) -> System.out.println(key + " -> " + value));
+    arpTable.forEach((ip, mac) -> System.out.println(Addresses.formatIpv4(ip) + " -> " + Addresses.formatMac(mac)));
+    System.out.println("\n" + arpCache.describe(now()));
+  }
+
+  // Routes with several next hops, each next hop's share of the buckets, then the frames
+  // routed to every next hop so far
+  private void showEcmp() {
+    System.out.println("\nMultipath routes:");
+    int[] multipath = {0};
+    forwardingTable.get().forEach((prefix, length, nextHops) -> {
+      if (nextHops.size() == 1) return;
+      multipath[0]++;
+      StringBuilder line = new StringBuilder(PrefixTrie.format(prefix, length)).append(" ->");
+      for (int i = 0; i < nextHops.size(); i++) {
+        line.append(i > 0 ? "," : "").append(' ').append(describe(nextHops.get(i))).append(" weight ").append(nextHops.weight(i))
+          .append(String.format(" (%.1f%%)", 100.0 * nextHops.bucketCount(i) / NextHopGroup.BUCKETS));
+      }
+      System.out.println(line);
+    });
+    if (multipath[0] == 0) System.out.println("none");
+    long total = 0;
+    Map<InetSocketAddress, Long> sent = new TreeMap<>(Comparator.comparing(Addresses::formatSocketAddress));
+    for (Map.Entry<InetSocketAddress, LongAdder> counter : nextHopPackets.entrySet()) {
+      sent.put(counter.getKey(), counter.getValue().sum());
+      total += counter.getValue().sum();
+    }
+    System.out.println("\nFrames routed per next hop:");
+    for (Map.Entry<InetSocketAddress, Long> hop : sent.entrySet()) {
+      System.out.println(String.format("%s %d (%.1f%%)", describe(hop.getKey()), hop.getValue(), total == 0 ? 0.0 : 100.0 * hop.getValue() / total));
+    }
+  }
+
+  private void handlePacket(ByteBuffer data, InetSocketAddress source) {
+    long received = System.nanoTime();
+    packetsIn.increment();
+    Frame frame = frames.get();
+    if (!frame.decode(data)) {
+      parseErrors.increment();
+      return;
+    }
+
+    if (!receivedMessageIds.add(frame.getIdHigh(), frame.getIdLow())) {
+      duplicates.increment();
+      return;
+    }
+
+    if (frame.getType() == Frame.TYPE_ROUTING) {
+      receiveRouting(data, frame, source);
+      return;
+    }
+    // ARP is never routed
+    if (frame.getType() == Frame.TYPE_ARP) {
+      handleArp(frame, source);
+      return;
+    }
+    // Answers to our own traceroute are sent straight here, never through
+    if (frame.getType() == Frame.TYPE_TIME_EXCEEDED || frame.getType() == Frame.TYPE_PROBE_REPLY) {
+      traceroute.onAnswer(frame);
+      return;
+    }
+
+    try {
+      if (routePacket(data, frame)) hopLatency.record(System.nanoTime() - received);
+    } catch (IOException e) {
+      sendErrors.increment();
+      System.err.println("\n[" + name + "] Error routing packet: " + e.getMessage());
+    }
+  }
+
+  // Answers requests for our address and learns the sender of those requests and of
+  // replies; frames waiting for the sender go out at once
+  private void handleArp(Frame frame, InetSocketAddress source) {
+    if (!Arp.isValid(frame)) {
+      parseErrors.increment();
+      return;
+    }
+    long ownKey = Arp.key(sourceIp, port);
+    boolean request = Arp.getOp(frame) == Arp.OP_REQUEST;
+    if (request && !Arp.isRequestFor(frame, ownKey)) return;
+    long senderMac = Arp.getSenderMac(frame);
+    long senderKey = Arp.getSenderKey(frame);
+    // Through a switch the sender is a host, which frames are forwarded to by IP alone
+    if (attachedSwitches.contains(source)) senderKey = Arp.anyPort(senderKey);
+    List<Pending> waiting = arpCache.resolved(senderKey, senderMac, now());
+    arpRequestsVia.remove(senderKey);
+    if (!waiting.isEmpty()) sendWaiting(waiting, senderMac);
+    if (!request) return;
+    try {
+      if (arp.reply(frame, macAddress, ownKey, transport, source)) packetsOut.increment();
+    } catch (IOException e) {
+      sendErrors.increment();
+      System.err.println("\n[" + name + "] Error sending ARP reply: " + e.getMessage());
+    }
+  }
+
+  // Frames are queued as they arrived, so each is decoded again and relayed like a fresh one
+  private void sendWaiting(List<Pending> waiting, long dstMac) {
+    Frame frame = new Frame();
+    for (Pending pending : waiting) {
+      ByteBuffer data = ByteBuffer.wrap(pending.frame);
+      if (!frame.decode(data)) continue;
+      try {
+        relay(data, frame, pending.nextHop, dstMac);
+      } catch (IOException e) {
+        sendErrors.increment();
+        System.err.println("\n[" + name + "] Error routing packet: " + e.getMessage());
+      }
+    }
   }
 
-  private void handlePacket(DatagramPacket packet) throws IOException {
-    String receivedData = new String(packet.getData(), 0, packet.getLength()).trim();
-    String[] parts = receivedData.split("\\|");
-    if (parts.length < 4) return;
+  // Requests go to the next hop's socket with the broadcast MAC; a switch there floods them.
+  // The encoded request is sent before another thread can encode the next one.
+  private void sendArpRequest(long key, InetSocketAddress nextHop) {
+    try {
+      synchronized (arp) {
+        transport.send(arp.encode(Arp.OP_REQUEST, macAddress, Arp.key(sourceIp, port), 0, key), nextHop);
+      }
+      packetsOut.increment();
+    } catch (IOException e) {
+      sendErrors.increment();
+      System.err.println("\n[" + name + "] Error sending ARP request to " + describe(nextHop) + ": " + e.getMessage());
+    }
+  }
+
+  private final ArpCache.Resolver<Pending> arpResolver = new ArpCache.Resolver<Pending>() {
+    @Override
+    public void request(long key, int attempt) {
+      InetSocketAddress nextHop = arpRequestsVia.get(key);
+      if (nextHop != null) sendArpRequest(key, nextHop);
+    }
 
-    String messageId = parts[0];
-    String destIP = parts[1];
-    String payload = parts[2];
+    @Override
+    public void failed(long key, List<Pending> dropped) {
+      arpRequestsVia.remove(key);
+      arpFailed.add(dropped.size());
+      System.err.println("\n[" + name + "] No ARP reply for " + Arp.formatKey(key) + ", dropped " + dropped.size() + " frame(s)");
+    }
+  };
 
-    if (receivedMessageIds.contains(messageId)) return;
-    receivedMessageIds.add(messageId);
+  // A neighboring switch's hosts are resolved by the frame's destination IP, anything else
+  // at its own ip:port
+  private long arpKey(InetSocketAddress nextHop, int destIP) {
+    if (attachedSwitches.contains(nextHop)) return Arp.key(destIP, Arp.ANY_PORT);
+    return nextHopKeys.computeIfAbsent(nextHop, Arp::key);
+  }
 
-    routePacket(messageId, destIP, payload);
+  // The MAC for key, or ArpCache.UNRESOLVED or FAILED
+  private long resolve(long key) {
+    Map<Integer, Long> configured = arpTable;
+    if (!configured.isEmpty()) {
+      Long mac = configured.get((int) (key >>> 16));
+      if (mac != null) return mac;
+    }
+    return arpCache.lookup(key, now());
   }
 
-  private void routePacket(String messageId, String destIP, String payload) throws IOException {
-    String nextHop = findNextHop(destIP);
-    if (nextHop != null) {
-      String[] parts = nextHop.split(":");
-      InetAddress nextHopIp = InetAddress.getByName(parts[0]);
-      int nextHopPort = Integer.parseInt(parts[1]);
-      String fullMessage = "\n" + messageId + "|" + destIP + "|" + payload;
-      DatagramPacket forwardPacket = new DatagramPacket(fullMessage.getBytes(), fullMessage.length(), nextHopIp, nextHopPort);
-      socket.send(forwardPacket);
-      System.out.println("\n[" + name + "] Packet routed to " + destIP + " via " + nextHop);
+  // The first frame for an unresolved next hop sends the request; later ones wait with it
+  private void awaitArp(ByteBuffer data, InetSocketAddress nextHop, long key, long resolved) {
+    if (resolved == ArpCache.FAILED) {
+      arpFailed.increment();
+      return;
+    }
+    byte[] frame = new byte[data.remaining()];
+    data.get(data.position(), frame);
+    switch (arpCache.enqueue(key, new Pending(frame, nextHop), now())) {
+      case REQUEST:
+        arpRequestsVia.put(key, nextHop);
+        sendArpRequest(key, nextHop);
+        break;
+      case QUEUED:
+        break;
+      case QUEUE_FULL:
+        arpQueueFull.increment();
+        break;
+      case FAILED:
+        arpFailed.increment();
+        break;
+    }
+  }
+
+  // A frame that arrives with TTL 1 is dropped, so a routing loop cannot keep it alive.
+  // Others are relayed to the next hop's MAC, once it is resolved.
+  private boolean routePacket(ByteBuffer data, Frame frame) throws IOException {
+    int destIP = frame.getDstIp();
+    if (frame.getTtl() <= 1) {
+      ttlExpired.increment();
+      if (PacketLog.isEnabled()) PacketLog.log("\n[" + name + "] TTL expired for packet to " + Addresses.formatIpv4(destIP));
+      // Only probes say where an answer should go
+      if (frame.getType() == Frame.TYPE_PROBE) sendTimeExceeded(frame);
+      return false;
+    }
+    InetSocketAddress nextHop = findNextHop(frame.getSrcMac(), frame.getDstMac(), frame.getSrcIp(), destIP);
+    if (nextHop == null) {
+      noRoute.increment();
+      if (PacketLog.isEnabled()) PacketLog.log("\n[" + name + "] No route found for " + Addresses.formatIpv4(destIP));
+      return false;
+    }
+    long key = arpKey(nextHop, destIP);
+    long dstMac = resolve(key);
+    if (dstMac < 0) {
+      awaitArp(data, nextHop, key, dstMac);
+      return false;
+    }
+    relay(data, frame, nextHop, dstMac);
+    return true;
+  }
+
+  // The frame is sent on as received except for the TTL, which is decremented, and the
+  // MACs, which become ours and the next hop's. Binary frames are rewritten in place.
+  private void relay(ByteBuffer data, Frame frame, InetSocketAddress nextHop, long dstMac) throws IOException {
+    int ttl = frame.getTtl() - 1;
+    if (Frame.isBinary(data)) {
+      Frame.relay(data, ttl, macAddress, dstMac);
     } else {
-      System.out.println("\n[" + name + "] No route found for " + destIP);
+      ByteBuffer text = textBuffers.get();
+      int length = Frame.TAG_LENGTH + Frame.MAX_TEXT_HEADER_LENGTH + frame.getPayloadLength();
+      if (text.capacity() < length) {
+        text = ByteBuffer.allocate(length);
+        textBuffers.set(text);
+      }
+      text.clear();
+      frame.setTtl(ttl).setSrcMac(macAddress).setDstMac(dstMac).encodeText(text);
+      text.flip();
+      data = text;
+    }
+    transport.send(data, nextHop);
+    packetsOut.increment();
+    nextHopCounter(nextHop).increment();
+    if (PacketLog.isEnabled()) {
+      PacketLog.log("\n[" + name + "] Packet routed to " + Addresses.formatIpv4(frame.getDstIp()) + " via " + describe(nextHop));
     }
   }
 
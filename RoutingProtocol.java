@@ -0,0 +1,44 @@
+import java.nio.*;
+
+// A routing protocol run by a Router with its neighboring routers. Implementations are
+// driven only through these calls and a send callback, so they run the same over any
+// transport, or with no transport at all in the benchmarks. Times are milliseconds from
+// any monotonic clock.
+public interface RoutingProtocol {
+
+    // Most equal-cost next hops a protocol keeps per prefix; 1 turns multipath off
+    int DEFAULT_MAX_PATHS = Integer.getInteger("ecmp.max.paths", 4);
+
+    interface Link {
+        // The message is only valid for the duration of the call
+        void send(String neighbor, ByteBuffer message);
+    }
+
+    void addConnected(int prefix, int length, long now);
+
+    void removeConnected(int prefix, int length, long now);
+
+    void start(long now);
+
+    void receive(String neighbor, ByteBuffer message, long now);
+
+    void tick(long now);
+
+    void neighborDown(String neighbor, long now);
+
+    // Neighbors added to or removed from the configuration while running
+    void addNeighbor(String neighbor, long now);
+
+    void removeNeighbor(String neighbor, long now);
+
+    // True while changes are waiting for the next tick to be sent
+    boolean hasPendingChanges();
+
+    long getMessagesSent();
+
+    // Prefixes with a usable route, including attached networks
+    int reachableCount();
+
+    // The protocol's own view of its routes, for "show routing"
+    String describe(long now);
+}
@@ -0,0 +1,268 @@
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+// Direct checks of the pieces whose mistakes do not show up as an error anywhere else:
+// the frame codec, next hop group migration and configuration diffs. Prints one line
+// per check and exits with status 1 if any failed.
+//
+//   java -cp bin SelfCheck
+public class SelfCheck {
+
+    private static int checks;
+    private static int failures;
+
+    public static void main(String[] args) throws Exception {
+        checkFrames();
+        checkNextHopGroups();
+        checkConfigDiff();
+        System.out.println("\n" + (checks - failures) + " of " + checks + " checks passed");
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    private static void check(String name, boolean ok) {
+        checks++;
+        if (!ok) failures++;
+        System.out.println((ok ? "ok      " : "FAILED  ") + name);
+    }
+
+    // ---- Frame ----
+
+    private static void checkFrames() {
+        byte[] payload = "a|b|c payload".getBytes(StandardCharsets.US_ASCII);
+        Frame sent = new Frame().newMessageId().setType(Frame.TYPE_DATA).setTtl(17).setSrcMac(0x001A2B3C4D5EL)
+            .setDstMac(Addresses.BROADCAST_MAC).setSrcIp(Addresses.parseDottedQuad("192.168.1.1"))
+            .setDstIp(Addresses.parseDottedQuad("10.0.0.255")).setPayload(payload);
+
+        ByteBuffer binary = ByteBuffer.allocate(Transport.MAX_DATAGRAM);
+        sent.encodeBinary(binary);
+        binary.flip();
+        check("frame binary length matches encodedLength()", binary.remaining() == sent.encodedLength());
+        check("frame binary round trip", roundTrips(sent, binary, payload));
+
+        ByteBuffer text = ByteBuffer.allocate(Transport.MAX_DATAGRAM);
+        sent.encodeText(text);
+        text.flip();
+        check("frame text round trip, '|' in the payload", roundTrips(sent, text, payload));
+
+        sent.setVlan(42);
+        for (boolean textFormat : new boolean[] {false, true}) {
+            ByteBuffer tagged = ByteBuffer.allocate(Transport.MAX_DATAGRAM);
+            if (textFormat) sent.encodeText(tagged); else sent.encodeBinary(tagged);
+            tagged.flip();
+            Frame received = new Frame();
+            check("frame " + (textFormat ? "text" : "binary") + " round trip with VLAN tag",
+                received.decode(tagged) && received.getVlan() == 42 && roundTrips(sent, tagged, payload));
+        }
+        ByteBuffer relayed = ByteBuffer.allocate(Transport.MAX_DATAGRAM);
+        sent.encodeBinary(relayed);
+        relayed.flip();
+        Frame.relay(relayed, 16, 0x0200000000A1L, 0x0200000000B2L);
+        sent.setTtl(16).setSrcMac(0x0200000000A1L).setDstMac(0x0200000000B2L);
+        check("frame binary relayed in place has the new TTL and MACs and nothing else changed", roundTrips(sent, relayed, payload));
+        sent.setTtl(17).setSrcMac(0x001A2B3C4D5EL).setDstMac(Addresses.BROADCAST_MAC).setVlan(0);
+
+        // The largest payload still fits one datagram in the longer encoding, tagged, with every field at its widest
+        Frame widest = new Frame().newMessageId().setType(Byte.MIN_VALUE).setTtl(255).setSrcMac(Addresses.BROADCAST_MAC)
+            .setDstMac(Addresses.BROADCAST_MAC).setSrcIp(-1).setDstIp(-1).setVlan(Frame.MAX_VLAN)
+            .setPayload(new byte[Frame.MAX_DATAGRAM_PAYLOAD]);
+        ByteBuffer datagram = ByteBuffer.allocate(Transport.MAX_DATAGRAM);
+        boolean fits;
+        try {
+            widest.encodeText(datagram);
+            widest.encodeBinary(datagram.clear());
+            fits = true;
+        } catch (BufferOverflowException e) {
+            fits = false;
+        }
+        check("frame with the largest payload fits one datagram", fits);
+
+        binary.rewind();
+        ByteBuffer truncated = binary.duplicate();
+        truncated.limit(truncated.limit() - 1);
+        check("frame binary shorter than its declared payload is rejected", !new Frame().decode(truncated));
+        ByteBuffer header = binary.duplicate();
+        header.limit(Frame.HEADER_LENGTH - 1);
+        check("frame binary shorter than the header is rejected", !new Frame().decode(header));
+
+        String id = UUID.randomUUID().toString();
+        check("frame text with a host name for an address is rejected",
+            !decodesText(id + "|00:1A:2B:3C:4D:5E|00:1A:2B:3C:4D:5F|localhost|127.0.0.1|64|0|hello"));
+        check("frame text with an octet over 255 is rejected",
+            !decodesText(id + "|00:1A:2B:3C:4D:5E|00:1A:2B:3C:4D:5F|127.0.0.256|127.0.0.1|64|0|hello"));
+        check("frame text with a TTL over 255 is rejected",
+            !decodesText(id + "|00:1A:2B:3C:4D:5E|00:1A:2B:3C:4D:5F|127.0.0.1|127.0.0.1|256|0|hello"));
+        check("frame text with a negative TTL is rejected",
+            !decodesText(id + "|00:1A:2B:3C:4D:5E|00:1A:2B:3C:4D:5F|127.0.0.1|127.0.0.1|-1|0|hello"));
+        for (String octet : new String[] {"1FF", "-1", "+A", ""}) {
+            check("frame text with MAC octet \"" + octet + "\" is rejected",
+                !decodesText(id + "|00:1A:2B:3C:4D:" + octet + "|00:1A:2B:3C:4D:5F|127.0.0.1|127.0.0.1|64|0|hello"));
+        }
+        check("MAC with one-digit octets parses", Addresses.parseMac("2:0:0:0:0:a") == 0x02000000000AL);
+        check("frame text with a missing field is rejected", !decodesText(id + "|00:1A:2B:3C:4D:5E|00:1A:2B:3C:4D:5F|127.0.0.1|64|0|hello"));
+    }
+
+    private static boolean roundTrips(Frame sent, ByteBuffer data, byte[] payload) {
+        Frame received = new Frame();
+        if (!received.decode(data)) return false;
+        byte[] copy = new byte[received.getPayloadLength()];
+        for (int i = 0; i < copy.length; i++) copy[i] = received.getPayloadSource().get(received.getPayloadOffset() + i);
+        return received.getMessageId().equals(sent.getMessageId()) && received.getType() == sent.getType()
+            && received.getTtl() == sent.getTtl() && received.getSrcMac() == sent.getSrcMac() && received.getDstMac() == sent.getDstMac()
+            && received.getSrcIp() == sent.getSrcIp() && received.getDstIp() == sent.getDstIp() && Arrays.equals(copy, payload);
+    }
+
+    private static boolean decodesText(String frame) {
+        return new Frame().decode(ByteBuffer.wrap(frame.getBytes(StandardCharsets.US_ASCII)));
+    }
+
+    // ---- NextHopGroup ----
+
+    private static void checkNextHopGroups() {
+        List<InetSocketAddress> hops = new ArrayList<>();
+        for (int i = 0; i < 4; i++) hops.add(new InetSocketAddress("127.0.0.1", 5000 + i));
+
+        NextHopGroup equal = NextHopGroup.of(hops);
+        check("next hop group shares buckets equally", bucketCounts(equal).equals(List.of(64, 64, 64, 64)));
+        NextHopGroup weighted = NextHopGroup.of(hops, new int[] {1, 1, 2, 4});
+        check("next hop group shares buckets by weight", bucketCounts(weighted).equals(List.of(32, 32, 64, 128)));
+
+        for (NextHopGroup group : List.of(equal, weighted)) {
+            String name = group == equal ? "equal" : "weighted";
+            InetSocketAddress failed = hops.get(0);
+            NextHopGroup down = group.without(failed);
+            check("next hop group (" + name + ") without one next hop moves only its buckets", movesOnly(group, down, failed));
+            check("next hop group (" + name + ") without one next hop spreads its buckets by weight", sharesByWeight(down));
+            NextHopGroup up = down.migrate(group);
+            check("next hop group (" + name + ") moves back only the buckets the returning next hop takes", movesOnly(up, down, failed));
+            check("next hop group (" + name + ") gives the returning next hop its share", bucketCounts(up).equals(bucketCounts(group)));
+            check("next hop group (" + name + ") migrating to itself changes nothing", group.migrate(group) == group);
+        }
+
+        NextHopGroup added = equal.migrate(NextHopGroup.of(List.of(hops.get(0), hops.get(1), hops.get(2), hops.get(3),
+            new InetSocketAddress("127.0.0.1", 5004))));
+        check("next hop group with one more next hop moves only the buckets it takes",
+            movesOnly(added, equal, new InetSocketAddress("127.0.0.1", 5004)) && sharesByWeight(added));
+        check("next hop group without its last next hop is null", NextHopGroup.of(hops.get(0)).without(hops.get(0)) == null);
+        check("next hop group parses what it prints", NextHopGroup.parse(weighted.toString()).equals(weighted));
+        boolean rejected;
+        try {
+            NextHopGroup.of(List.of(hops.get(0), hops.get(0)));
+            rejected = false;
+        } catch (IllegalArgumentException e) {
+            rejected = true;
+        }
+        check("next hop group rejects a next hop listed twice", rejected);
+    }
+
+    private static List<Integer> bucketCounts(NextHopGroup group) {
+        List<Integer> counts = new ArrayList<>();
+        for (int i = 0; i < group.size(); i++) counts.add(group.bucketCount(i));
+        return counts;
+    }
+
+    // Every bucket that changed next hop between a and b belongs to hop in one of them
+    private static boolean movesOnly(NextHopGroup a, NextHopGroup b, InetSocketAddress hop) {
+        for (int bucket = 0; bucket < NextHopGroup.BUCKETS; bucket++) {
+            InetSocketAddress before = a.select(bucket << 24);
+            InetSocketAddress after = b.select(bucket << 24);
+            if (!before.equals(after) && !before.equals(hop) && !after.equals(hop)) return false;
+        }
+        return true;
+    }
+
+    // Bucket counts within one of each next hop's exact share by weight
+    private static boolean sharesByWeight(NextHopGroup group) {
+        long total = 0;
+        for (int i = 0; i < group.size(); i++) total += group.weight(i);
+        for (int i = 0; i < group.size(); i++) {
+            double share = (double) NextHopGroup.BUCKETS * group.weight(i) / total;
+            if (Math.abs(group.bucketCount(i) - share) >= 1) return false;
+        }
+        return true;
+    }
+
+    // ---- ConfigDiff ----
+
+    private static final List<String> CONFIG = List.of(
+        "# Node connections", "PC_A:S1", "S1:R1", "R1:R2", "R2:R3", "R3:S2", "S2:PC_B", "# End node connections list",
+        "# Computer IP and port numbers", "PC_A,127.0.0.1,3000,00:1A:2B:3C:4D:5E", "PC_B,127.0.0.1,3001,00:1A:2B:3C:4D:5F",
+        "# End Computer List",
+        "# Different port range for switches", "S1,127.0.0.1,4000,00:1A:2B:3C:4D:62", "S2,127.0.0.1,4001,00:1A:2B:3C:4D:63",
+        "# End Switch List",
+        "# Router Configuration", "R1,127.0.0.1,5000,00:1A:2B:3C:4D:64", "R2,127.0.0.1,5001,00:1A:2B:3C:4D:65",
+        "R3,127.0.0.1,5002,00:1A:2B:3C:4D:66", "# End of router list",
+        "# ARP table", "192.168.1.1,00:1A:2B:3C:4D:5E", "192.168.1.2,00:1A:2B:3C:4D:5F", "# End ARP table",
+        "# Router networks", "R3,127.0.0.0/24,S2", "# End router networks",
+        "# Default gateways", "PC_A,R1", "PC_B,R3", "# End default gateways");
+
+    private static void checkConfigDiff() throws IOException {
+        check("config diff of an unchanged file is empty", diff(CONFIG).isEmpty());
+
+        ConfigDiff moved = diff(replace(CONFIG, "R2,127.0.0.1,5001,", "R2,127.0.0.1,5101,"));
+        check("config diff sees a device that moved", moved.moved("R2") && !moved.moved("R1") && !moved.moved("R3"));
+        check("config diff marks the neighbors of a moved device", moved.neighborsChanged("R1") && moved.neighborsChanged("R3")
+            && !moved.neighborsChanged("S1") && !moved.neighborsChanged("PC_A"));
+
+        List<String> linked = new ArrayList<>(CONFIG);
+        linked.add(linked.indexOf("# End node connections list"), "R1:R3");
+        ConfigDiff link = diff(linked);
+        check("config diff marks both ends of a new link, and only them", link.neighborsChanged("R1") && link.neighborsChanged("R3")
+            && !link.neighborsChanged("R2") && !link.moved("R1"));
+
+        ConfigDiff arp = diff(replace(replace(CONFIG, "192.168.1.1,00:1A:2B:3C:4D:5E", "192.168.1.1,00:1A:2B:3C:4D:70"),
+            "192.168.1.2,00:1A:2B:3C:4D:5F", null));
+        check("config diff lists changed and removed ARP entries", arp.getArpChanges().size() == 2
+            && "00:1A:2B:3C:4D:70".equals(arp.getArpChanges().get("192.168.1.1")) && arp.getArpChanges().containsKey("192.168.1.2")
+            && arp.getArpChanges().get("192.168.1.2") == null);
+
+        ConfigDiff removed = diff(replace(replace(CONFIG, "S2:PC_B", null), "PC_B,127.0.0.1,3001,00:1A:2B:3C:4D:5F", null));
+        check("config diff sees a removed device", removed.getDevicesRemoved().equals(Set.of("PC_B")) && removed.neighborsChanged("S2"));
+
+        ConfigDiff gateway = diff(replace(CONFIG, "PC_A,R1", "PC_A,R2"));
+        check("config diff sees a new default gateway", gateway.gatewayChanged("PC_A") && !gateway.gatewayChanged("PC_B"));
+
+        ConfigDiff networks = diff(replace(CONFIG, "R3,127.0.0.0/24,S2", "R3,127.0.1.0/24,S2"));
+        check("config diff sees changed router networks", networks.networksChanged("R3") && !networks.networksChanged("R1"));
+
+        Path file = Files.createTempFile("selfcheck-config", ".txt");
+        try {
+            Files.write(file, CONFIG);
+            ConfigManager configManager = new ConfigManager(file.toString());
+            Topology before = configManager.getTopology();
+            ConfigDiff updated = configManager.updateIpAddress("R2", "127.0.0.2");
+            check("address update publishes a new topology and leaves the old one as it was", configManager.getTopology() != before
+                && "127.0.0.1".equals(before.ipAddress(before.id("R2"))) && "127.0.0.2".equals(configManager.getIpAddress("R2")));
+            check("address update returns the diff a reload would", updated.moved("R2") && updated.neighborsChanged("R1") && !updated.moved("R1"));
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    private static ConfigDiff diff(List<String> changed) throws IOException {
+        return ConfigDiff.between(load(CONFIG), load(changed));
+    }
+
+    private static Topology load(List<String> lines) throws IOException {
+        Path file = Files.createTempFile("selfcheck-config", ".txt");
+        try {
+            Files.write(file, lines);
+            return Topology.load(file.toString());
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    // The lines with the one starting with prefix replaced, or dropped when replacement is null
+    private static List<String> replace(List<String> lines, String prefix, String replacement) {
+        List<String> result = new ArrayList<>();
+        for (String line : lines) {
+            if (!line.startsWith(prefix)) result.add(line);
+            else if (replacement != null) result.add(replacement + line.substring(prefix.length()));
+        }
+        return result;
+    }
+}
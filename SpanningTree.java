@@ -0,0 +1,396 @@
+import java.nio.*;
+import java.util.*;
+
+// Rapid spanning tree between neighboring switches, independent of sockets and threads
+// like the routing protocols: it is driven only by these calls and a send callback, and
+// times are milliseconds from any monotonic clock.
+//
+// Bridges are ordered by ID, the priority above the switch's MAC, and the lowest is the
+// root. Every other bridge makes its port with the cheapest path to the root its root
+// port. On each link the end offering the better path is designated and the other end is
+// an alternate port, which is kept discarding. The forwarding ports then form a tree, so
+// a flood crosses every link at most once.
+//
+// Convergence follows RSTP. A root port forwards at once and an alternate port blocks at
+// once. A designated port that is not forwarding proposes to its neighbor and forwards
+// as soon as the neighbor agrees. A bridge agrees on its root port only while every
+// designated port of its own is discarding or agreed (synced), so the handshake walks
+// down the tree one link at a time and no loop opens on the way. A designated port whose
+// neighbor never agrees, such as a switch without spanning tree, forwards after the
+// forward delay.
+//
+// Both ends of a link send a BPDU every hello, and the last one received on a port is the
+// neighbor's current view. It expires after three hellos, so a link that fails silently
+// is noticed within 3 * stp.hello.ms; removePort is for links known to be gone. The
+// message age counts hops from the root, and information older than stp.max.age is
+// ignored, so a failed root's information dies out instead of circulating.
+//
+// When a port starts forwarding the bridge flushes the MACs learned on its tree ports,
+// and for two hellos its BPDUs carry a topology change flag that makes the neighbors do
+// the same and pass it on.
+//
+// Message layout: version (1), flags (1), root ID (8), root path cost (4), bridge ID (8),
+// message age (1).
+public class SpanningTree {
+
+    public static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("stp.enabled", "true"));
+    public static final int DEFAULT_PRIORITY = Integer.getInteger("stp.priority", 32_768);
+    public static final long DEFAULT_HELLO_MILLIS = Long.getLong("stp.hello.ms", 500L);
+    public static final long DEFAULT_FORWARD_DELAY_MILLIS = Long.getLong("stp.forward.delay.ms", 3_000L);
+    public static final int DEFAULT_MAX_AGE = Integer.getInteger("stp.max.age", 40);
+
+    public static final byte VERSION = 1;
+    public static final int FLAG_PROPOSAL = 1;
+    public static final int FLAG_AGREEMENT = 2;
+    public static final int FLAG_TOPOLOGY_CHANGE = 4;
+    public static final int MESSAGE_LENGTH = 23;
+    public static final int PORT_COST = 20_000; // 802.1D-2004's cost of a 1 Gbit/s link
+
+    public enum Role { ROOT, DESIGNATED, ALTERNATE }
+
+    public interface Link {
+        // The message is only valid for the duration of the call
+        void send(String neighbor, ByteBuffer message);
+    }
+
+    public interface FlushListener {
+        // Forget the MACs learned on the tree ports other than keep (null for all of them)
+        void flush(String keep);
+    }
+
+    private static final class Port {
+        final String neighbor;
+        Role role = Role.DESIGNATED;
+        boolean forwarding;
+        boolean agreed; // the neighbor agreed to our current information
+        long forwardAt; // when a designated port forwards without an agreement
+        long topologyChangeUntil;
+        // The neighbor's last BPDU, while heard is true
+        boolean heard;
+        long root;
+        int cost;
+        long bridge;
+        int age;
+        long expiresAt;
+
+        Port(String neighbor) {
+            this.neighbor = neighbor;
+        }
+    }
+
+    private final long bridgeId;
+    private final Link link;
+    private final FlushListener flushListener;
+    private final long helloMillis;
+    private final long forwardDelayMillis;
+    private final int maxAge;
+    private final Map<String, Port> ports = new LinkedHashMap<>();
+    private final ByteBuffer message = ByteBuffer.allocate(MESSAGE_LENGTH);
+    private long rootId;
+    private int rootCost;
+    private int rootAge;
+    private Port rootPort;
+    private boolean started;
+    private long nextHello;
+    private boolean statesChanged; // a port started or stopped forwarding during the current call
+    private long lastStateChange;
+    private long messagesSent;
+    private long topologyChanges;
+
+    public SpanningTree(long mac, Collection<String> neighbors, Link link, FlushListener flushListener) {
+        this(bridgeId(DEFAULT_PRIORITY, mac), neighbors, link, flushListener, DEFAULT_HELLO_MILLIS, DEFAULT_FORWARD_DELAY_MILLIS, DEFAULT_MAX_AGE);
+    }
+
+    public SpanningTree(long bridgeId, Collection<String> neighbors, Link link, FlushListener flushListener, long helloMillis,
+            long forwardDelayMillis, int maxAge) {
+        this.bridgeId = bridgeId;
+        this.link = link;
+        this.flushListener = flushListener;
+        this.helloMillis = helloMillis;
+        this.forwardDelayMillis = forwardDelayMillis;
+        this.maxAge = maxAge;
+        this.rootId = bridgeId;
+        for (String neighbor : neighbors) ports.put(neighbor, new Port(neighbor));
+    }
+
+    public static long bridgeId(int priority, long mac) {
+        return (long) (priority & 0xFFFF) << 48 | (mac & 0xFFFF_FFFF_FFFFL);
+    }
+
+    // "8000.02:00:00:00:00:01"
+    public static String formatBridgeId(long id) {
+        return String.format("%04X", id >>> 48) + "." + Addresses.formatMac(id & 0xFFFF_FFFF_FFFFL);
+    }
+
+    // The methods that change state return true if a port started or stopped forwarding,
+    // so the caller knows to refresh its flood targets
+
+    public synchronized boolean start(long now) {
+        statesChanged = false;
+        started = true;
+        for (Port port : ports.values()) port.forwardAt = now + forwardDelayMillis;
+        updateRoles(now);
+        sendAll(now);
+        nextHello = now + helloMillis;
+        return statesChanged;
+    }
+
+    public synchronized boolean receive(String neighbor, ByteBuffer in, long now) {
+        statesChanged = false;
+        Port port = ports.get(neighbor);
+        if (!started || port == null || in.remaining() < MESSAGE_LENGTH) return false;
+        int start = in.position();
+        if (in.get(start) != VERSION) return false;
+        int flags = in.get(start + 1);
+        port.root = in.getLong(start + 2);
+        port.cost = in.getInt(start + 10);
+        port.bridge = in.getLong(start + 14);
+        port.age = (in.get(start + 22) & 0xFF) + 1;
+        port.heard = port.age < maxAge && port.bridge != bridgeId;
+        port.expiresAt = now + 3 * helloMillis;
+
+        boolean changed = updateRoles(now);
+        if ((flags & FLAG_TOPOLOGY_CHANGE) != 0 && port.forwarding) topologyChange(port, now);
+        // A proposal is answered at once rather than with the next hello: with an agreement,
+        // or by a designated port with the better information that overrules it
+        boolean proposal = (flags & FLAG_PROPOSAL) != 0;
+        if (proposal && port.role == Role.ROOT && !isSynced()) {
+            sync(now);
+            changed = true;
+        }
+        // Agreements from before our information last changed do not count
+        if ((flags & FLAG_AGREEMENT) != 0 && port.role == Role.DESIGNATED && !port.forwarding && port.root == rootId
+                && !better(port.root, port.cost, port.bridge, rootId, rootCost, bridgeId)) {
+            port.agreed = true;
+            forward(port, now);
+            changed = true;
+        }
+        if (changed) {
+            sendAll(now);
+        } else if (proposal) {
+            send(port, now);
+        }
+        return statesChanged;
+    }
+
+    public synchronized boolean tick(long now) {
+        statesChanged = false;
+        if (!started) return false;
+        boolean expired = false;
+        for (Port port : ports.values()) {
+            if (port.heard && now - port.expiresAt >= 0) {
+                port.heard = false;
+                expired = true;
+            }
+        }
+        boolean changed = expired && updateRoles(now);
+        for (Port port : ports.values()) {
+            if (port.role == Role.DESIGNATED && !port.forwarding && now - port.forwardAt >= 0) {
+                forward(port, now);
+                changed = true;
+            }
+        }
+        if (changed || now - nextHello >= 0) {
+            sendAll(now);
+            nextHello = now + helloMillis;
+        }
+        return statesChanged;
+    }
+
+    public synchronized boolean addPort(String neighbor, long now) {
+        statesChanged = false;
+        if (ports.containsKey(neighbor)) return false;
+        Port port = new Port(neighbor);
+        port.forwardAt = now + forwardDelayMillis;
+        ports.put(neighbor, port);
+        if (started) {
+            updateRoles(now);
+            send(port, now);
+        }
+        return statesChanged;
+    }
+
+    // A root port that goes away hands over to the best alternate at once
+    public synchronized boolean removePort(String neighbor, long now) {
+        statesChanged = false;
+        Port port = ports.remove(neighbor);
+        if (port == null) return false;
+        if (port.forwarding) setForwarding(port, false, now);
+        if (started && updateRoles(now)) sendAll(now);
+        return statesChanged;
+    }
+
+    // Neighbors that are not spanning tree ports always forward
+    public synchronized boolean isForwarding(String neighbor) {
+        Port port = ports.get(neighbor);
+        return port == null || port.forwarding;
+    }
+
+    public synchronized boolean hasPort(String neighbor) {
+        return ports.containsKey(neighbor);
+    }
+
+    public synchronized Role getRole(String neighbor) {
+        Port port = ports.get(neighbor);
+        return port == null ? null : port.role;
+    }
+
+    public long getBridgeId() {
+        return bridgeId;
+    }
+
+    public synchronized long getRootId() {
+        return rootId;
+    }
+
+    public synchronized int getRootCost() {
+        return rootCost;
+    }
+
+    // Every designated port forwards and no root port is waiting for one
+    public synchronized boolean isStable() {
+        for (Port port : ports.values()) {
+            if (port.role != Role.ALTERNATE && !port.forwarding) return false;
+        }
+        return true;
+    }
+
+    public synchronized long getLastStateChange() {
+        return lastStateChange;
+    }
+
+    public synchronized long getMessagesSent() {
+        return messagesSent;
+    }
+
+    // Changes started here; those passed on from neighbors are not counted
+    public synchronized long getTopologyChanges() {
+        return topologyChanges;
+    }
+
+    public synchronized String describe(long now) {
+        StringBuilder text = new StringBuilder("Bridge " + formatBridgeId(bridgeId));
+        if (rootPort == null) {
+            text.append(", root bridge");
+        } else {
+            text.append(", root ").append(formatBridgeId(rootId)).append(" cost ").append(rootCost).append(" via ").append(rootPort.neighbor);
+        }
+        text.append(", ").append(topologyChanges).append(" topology changes, ").append(messagesSent).append(" BPDUs sent");
+        for (Port port : ports.values()) {
+            text.append("\n").append(port.neighbor).append(" ").append(port.role.name().toLowerCase(Locale.ROOT))
+                .append(port.forwarding ? " forwarding" : " discarding");
+            if (port.heard) {
+                text.append(" (neighbor ").append(formatBridgeId(port.bridge)).append(", cost ").append(port.cost).append(", expires in ")
+                    .append(Math.max(0, port.expiresAt - now)).append(" ms)");
+            }
+        }
+        return text.toString();
+    }
+
+    // (root, cost, bridge) compared in that order; lower is better
+    private static boolean better(long root, long cost, long bridge, long otherRoot, long otherCost, long otherBridge) {
+        if (root != otherRoot) return root < otherRoot;
+        if (cost != otherCost) return cost < otherCost;
+        return bridge < otherBridge;
+    }
+
+    // Picks the root port and the role of every other port from the information heard.
+    // Returns true if our own information or any role changed, which the neighbors need
+    // to hear about.
+    private boolean updateRoles(long now) {
+        long bestRoot = bridgeId;
+        long bestCost = 0;
+        long bestBridge = bridgeId;
+        Port best = null;
+        for (Port port : ports.values()) {
+            if (!port.heard) continue;
+            if (better(port.root, (long) port.cost + PORT_COST, port.bridge, bestRoot, bestCost, bestBridge)) {
+                bestRoot = port.root;
+                bestCost = (long) port.cost + PORT_COST;
+                bestBridge = port.bridge;
+                best = port;
+            }
+        }
+        boolean rerooted = bestRoot != rootId || bestCost != rootCost || best != rootPort;
+        rootId = bestRoot;
+        rootCost = (int) Math.min(bestCost, Integer.MAX_VALUE);
+        rootAge = best == null ? 0 : best.age;
+        rootPort = best;
+
+        boolean changed = rerooted;
+        for (Port port : ports.values()) {
+            Role role = port == best ? Role.ROOT
+                : port.heard && better(port.root, port.cost, port.bridge, rootId, rootCost, bridgeId) ? Role.ALTERNATE : Role.DESIGNATED;
+            if (role != port.role) {
+                changed = true;
+                if (role == Role.DESIGNATED) port.forwardAt = now + forwardDelayMillis;
+                port.role = role;
+            }
+            if (role == Role.ROOT) {
+                if (!port.forwarding) forward(port, now);
+            } else if (role == Role.ALTERNATE && port.forwarding) {
+                setForwarding(port, false, now);
+            }
+        }
+        // New information has to be agreed to again before it is passed down the tree
+        if (rerooted) {
+            for (Port port : ports.values()) port.agreed = false;
+            sync(now);
+        }
+        return changed;
+    }
+
+    private boolean isSynced() {
+        for (Port port : ports.values()) {
+            if (port.role == Role.DESIGNATED && port.forwarding && !port.agreed) return false;
+        }
+        return true;
+    }
+
+    // Blocks the designated ports that have not agreed, so agreeing upstream cannot close a loop
+    private void sync(long now) {
+        for (Port port : ports.values()) {
+            if (port.role == Role.DESIGNATED && port.forwarding && !port.agreed) {
+                setForwarding(port, false, now);
+                port.forwardAt = now + forwardDelayMillis;
+            }
+        }
+    }
+
+    private void forward(Port port, long now) {
+        setForwarding(port, true, now);
+        topologyChange(null, now);
+    }
+
+    private void setForwarding(Port port, boolean forwarding, long now) {
+        port.forwarding = forwarding;
+        statesChanged = true;
+        lastStateChange = now;
+    }
+
+    // Started by a port that began forwarding (from null) or heard from a neighbor; it is
+    // passed on to every tree port except the one it came from
+    private void topologyChange(Port from, long now) {
+        if (from == null) topologyChanges++;
+        for (Port port : ports.values()) {
+            if (port != from) port.topologyChangeUntil = now + 2 * helloMillis;
+        }
+        if (flushListener != null) flushListener.flush(from == null ? null : from.neighbor);
+    }
+
+    private void sendAll(long now) {
+        for (Port port : ports.values()) send(port, now);
+    }
+
+    private void send(Port port, long now) {
+        int flags = 0;
+        if (port.role == Role.DESIGNATED && !port.forwarding) flags |= FLAG_PROPOSAL;
+        // An alternate port is discarding, so letting the neighbor forward on it is always safe
+        if (port.role == Role.ALTERNATE || port.role == Role.ROOT && isSynced()) flags |= FLAG_AGREEMENT;
+        if (port.forwarding && now - port.topologyChangeUntil < 0) flags |= FLAG_TOPOLOGY_CHANGE;
+        message.clear();
+        message.put(VERSION).put((byte) flags).putLong(rootId).putInt(rootCost).putLong(bridgeId).put((byte) Math.min(rootAge, 255)).flip();
+        messagesSent++;
+        link.send(port.neighbor, message);
+    }
+}
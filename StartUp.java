@@ -1,19 +1,75 @@
 import java.io.*;
-//import java.net.*;
+import java.net.*;
+import java.util.*;
 
 public class StartUp {
 
     private static final String CONFIG_FILE_PATH = "config.txt";
     private static ConfigManager configManager = new ConfigManager(CONFIG_FILE_PATH);
+    private static Engine engine = Engine.BLOCKING;
 
     public static void main(String[] args) {
         if (args.length < 1) {
-            System.err.println("Usage: java -cp bin StartUp <device_name>");
+            System.err.println("Usage: java -cp bin StartUp <device_name> [--engine blocking|nio|memory]");
+            System.err.println("       java -cp bin StartUp --all [--topology <config_file>] [--engine blocking|nio|memory]");
+            System.err.println("       java -cp bin StartUp <computer_name> --load <ip:port> [--rate <frames/s|max>] [--duration <s>]");
+            System.err.println("            [--count <n>] [--size <n|a,b,c|min-max>] [--flows <n>] [--burst <n>] [--echo]");
             System.exit(1);
         }
 
-        String deviceName = args[0];
-        startDevice(deviceName);
+        String deviceName = null;
+        String topologyFile = null;
+        boolean all = false;
+        Engine selectedEngine = null;
+        String loadTarget = null;
+        String[] loadArgs = new String[0];
+        for (int i = 0; i < args.length; i++) {
+            if ("--engine".equals(args[i]) && i + 1 < args.length) {
+                try {
+                    selectedEngine = Engine.fromName(args[++i]);
+                } catch (IllegalArgumentException e) {
+                    System.err.println(e.getMessage());
+                    System.exit(1);
+                }
+            } else if ("--topology".equals(args[i]) && i + 1 < args.length) {
+                topologyFile = args[++i];
+                all = true;
+            } else if ("--load".equals(args[i]) && i + 1 < args.length) {
+                // Everything after the target belongs to the load generator
+                loadTarget = args[++i];
+                loadArgs = Arrays.copyOfRange(args, i + 1, args.length);
+                break;
+            } else if ("--all".equals(args[i])) {
+                all = true;
+            } else if (!args[i].startsWith("--") && deviceName == null) {
+                deviceName = args[i];
+            } else {
+                System.err.println("Unknown option: " + args[i]);
+                System.exit(1);
+            }
+        }
+
+        if (all) {
+            if (topologyFile != null) configManager = new ConfigManager(topologyFile);
+            startTopology(selectedEngine != null ? selectedEngine : Engine.MEMORY);
+        } else if (deviceName != null) {
+            if (selectedEngine != null) engine = selectedEngine;
+            if (loadTarget != null) {
+                runLoad(deviceName, loadTarget, loadArgs);
+            } else {
+                startDevice(deviceName);
+            }
+        } else {
+            System.err.println("No device name given");
+            System.exit(1);
+        }
+    }
+
+    // Hosts every configured device in this JVM; same-JVM links bypass the network stack
+    public static void startTopology(Engine topologyEngine) {
+        TopologyHost host = new TopologyHost(configManager, topologyEngine);
+        host.startAll();
+        host.listenForCommands();
     }
 
     public static void startDevice(String deviceName) {
@@ -42,17 +98,42 @@ public class StartUp {
         try {
             //String ipAddress = configManager.getIpAddress(name);
             //int port = configManager.getPort(name);
-            Computer computer = new Computer(name, configManager);
+            Computer computer = new Computer(name, configManager, engine);
+            ConfigWatcher.startIfEnabled(configManager, computer::reconfigure);
             new Thread(computer).start();
         } catch (Exception e) {
             System.err.println("Computer setup error: " + e.getMessage());
         }
     }
 
+    // Non-interactive load test: sends from the named computer, prints the report and exits
+    public static void runLoad(String name, String target, String[] loadArgs) {
+        if (!"Computer".equals(configManager.getDeviceType(name))) {
+            System.err.println("Load tests are sent from computers; " + name + " is not one");
+            System.exit(1);
+        }
+        try {
+            LoadGenerator.Options options = LoadGenerator.Options.parse(loadArgs);
+            InetSocketAddress destination = Addresses.parseSocketAddress(target);
+            Computer computer = new Computer(name, configManager, engine);
+            computer.start();
+            try {
+                System.out.println(computer.runLoad(destination.getAddress().getHostAddress(), destination.getPort(), options));
+            } finally {
+                computer.close();
+            }
+            System.exit(0);
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("Load test error: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
     public static void startSwitch(String name) {
         try {
             int port = configManager.getPort(name);
-            Switch mySwitch = new Switch(name, port, configManager);
+            Switch mySwitch = new Switch(name, port, configManager, engine);
+            ConfigWatcher.startIfEnabled(configManager, mySwitch::reconfigure);
             new Thread(mySwitch).start();
         } catch (IOException e) {
             System.err.println("Switch setup error: " + e.getMessage());
@@ -61,7 +142,8 @@ public class StartUp {
 
     public static void startRouter(String name) {
         try {
-            Router router = new Router(name, configManager);
+            Router router = new Router(name, configManager, engine);
+            ConfigWatcher.startIfEnabled(configManager, router::reconfigure);
             new Thread(router).start();
         } catch (IOException e) {
             System.err.println("Router setup error: " + e.getMessage());
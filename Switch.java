@@ -1,40 +1,214 @@
 import java.io.*;
 import java.net.*;
+import java.nio.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+public class Switch implements Runnable, Device {
+    private static final long STP_TICK_MILLIS = 50;
+    private static final ScheduledExecutorService stpTimer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "stp-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
 
-public class Switch implements Runnable {
     private String name;
     private InetAddress ipAddress;
     private int port;
-    private DatagramSocket socket;
-    private Map<String, String> forwardingTable = new HashMap<>(); // MAC to port mapping
-    private List<String> neighbors; // Connected devices
-    @SuppressWarnings("unused")
+    private Transport transport;
+    private MacTable forwardingTable = new MacTable(this::macMoved); // (VLAN, MAC) to port mapping, see MacTable.key
+    private volatile List<String> neighbors; // Connected devices
+    private volatile PortVlans portVlans; // the neighbors' ports, their VLANs and which are blocked; replaced under portLock
+    private final Object portLock = new Object(); // taken before the spanning tree's lock, never after
+    private final SpanningTree spanningTree; // with the neighboring switches; null when stp.enabled is false
+    private ScheduledFuture<?> stpTask;
+    private final long macAddress;
+    private final Frame controlFrame = new Frame();
+    private ByteBuffer controlBuffer = ByteBuffer.allocate(256);
+    private final ThreadLocal<ByteBuffer> tagBuffers = ThreadLocal.withInitial(() -> ByteBuffer.allocate(2048)); // frames tagged for trunks
     private ConfigManager configManager;
     @SuppressWarnings("unused")
     private Map<String, String> routingTable = new HashMap<>();
-    private Set<String> receivedMessageIds = new HashSet<>(); // Set to store received message IDs
+    private DuplicateFilter receivedMessageIds = new DuplicateFilter(); // Recently received message IDs
+    private final ThreadLocal<Frame> frames = ThreadLocal.withInitial(Frame::new); // one per receive/worker thread
+    private PacketPipeline pipeline;
+    private final Metrics metrics;
+    private final LongAdder packetsIn;
+    private final LongAdder packetsOut;
+    private final LongAdder unicastForwards;
+    private final LongAdder floods;
+    private final LongAdder parseErrors;
+    private final LongAdder duplicates;
+    private final LongAdder samePort;
+    private final LongAdder sendErrors;
+    private final LongAdder vlanMismatch;
+    private final LongAdder blockedDrops;
+    private final LatencyHistogram hopLatency;
 
     public Switch(String name, int port, ConfigManager configManager) throws IOException {
+        this(name, port, configManager, Engine.BLOCKING);
+    }
+
+    public Switch(String name, int port, ConfigManager configManager, Engine engine) throws IOException {
         this.name = name;
         this.configManager = configManager;
         this.ipAddress = InetAddress.getByName(configManager.getIpAddress(name));
         this.port = port;
-        this.socket = new DatagramSocket(this.port, this.ipAddress);
-        this.neighbors = configManager.getConnectedDevices(name); // Initialize neighbors based on ConfigManager
+        this.transport = CaptureTransport.wrap(name, engine.open(new InetSocketAddress(this.ipAddress, this.port)));
+        this.neighbors = configManager.getNeighbors(name); // Initialize neighbors based on ConfigManager
+        String mac = configManager.getMacAddress(name);
+        this.macAddress = mac == null ? port : Addresses.parseMac(mac);
+        this.spanningTree = SpanningTree.ENABLED ? new SpanningTree(macAddress, switchNeighbors(neighbors), this::sendBpdu, this::flushMacs) : null;
+        this.portVlans = resolvePorts(neighbors);
+
+        this.metrics = new Metrics(name);
+        this.packetsIn = metrics.counter("packets_in_total", "Frames received");
+        this.packetsOut = metrics.counter("packets_out_total", "Frames sent, counting each flooded copy");
+        this.unicastForwards = metrics.counter("forwards_total", "Received frames forwarded", "kind", "unicast");
+        this.floods = metrics.counter("forwards_total", "Received frames forwarded", "kind", "flood");
+        this.parseErrors = metrics.counter("drops_total", "Frames dropped", "reason", "parse_error");
+        this.duplicates = metrics.counter("drops_total", "Frames dropped", "reason", "duplicate");
+        this.samePort = metrics.counter("drops_total", "Frames dropped", "reason", "same_port");
+        this.sendErrors = metrics.counter("drops_total", "Frames dropped", "reason", "send_error");
+        this.vlanMismatch = metrics.counter("drops_total", "Frames dropped", "reason", "vlan");
+        this.blockedDrops = metrics.counter("drops_total", "Frames dropped", "reason", "blocked");
+        metrics.counter("drops_total", "Frames dropped", () -> pipeline == null ? 0 : pipeline.getDropped(), "reason", "queue_full");
+        metrics.gauge("mac_table_entries", "Learned MAC addresses", () -> forwardingTable.size());
+        metrics.counter("mac_moves_total", "MAC addresses seen on a new port", () -> forwardingTable.getMoves());
+        this.hopLatency = metrics.histogram("hop_latency_ns", "Time from receiving a frame to sending it on");
+        if (spanningTree != null) {
+            metrics.counter("stp_bpdus_sent_total", "Spanning tree messages sent", () -> spanningTree.getMessagesSent());
+            metrics.counter("stp_topology_changes_total", "Ports that started forwarding", () -> spanningTree.getTopologyChanges());
+            metrics.gauge("stp_blocked_ports", "Ports the spanning tree keeps discarding", () -> blockedPorts(portVlans));
+        }
+    }
+
+    // The spanning tree runs on the ports to other switches; every other port is an edge port
+    private List<String> switchNeighbors(List<String> deviceNames) {
+        List<String> switches = new ArrayList<>();
+        for (String device : deviceNames) {
+            if ("Switch".equals(configManager.getDeviceType(device)) && configManager.getIpAddress(device) != null) switches.add(device);
+        }
+        return switches;
+    }
+
+    // Neighbors listed in the configuration are flood targets even before anything is learned from them
+    private PortVlans resolvePorts(List<String> deviceNames) {
+        Map<String, int[]> configured = configManager.getPortVlans(name);
+        List<String> names = new ArrayList<>();
+        List<InetSocketAddress> resolved = new ArrayList<>();
+        List<int[]> vlans = new ArrayList<>();
+        for (String device : deviceNames) {
+            String ip = configManager.getIpAddress(device);
+            if (ip == null) continue;
+            names.add(device);
+            resolved.add(new InetSocketAddress(ip, configManager.getPort(device)));
+            vlans.add(configured.get(device));
+        }
+        String[] ports = names.toArray(new String[0]);
+        return new PortVlans(ports, resolved.toArray(new InetSocketAddress[0]), vlans.toArray(new int[0][]), blocked(ports));
+    }
+
+    private boolean[] blocked(String[] ports) {
+        boolean[] blocked = new boolean[ports.length];
+        for (int i = 0; spanningTree != null && i < ports.length; i++) blocked[i] = !spanningTree.isForwarding(ports[i]);
+        return blocked;
+    }
+
+    // Called after the spanning tree started or stopped forwarding on a port
+    private void refreshPorts() {
+        synchronized (portLock) {
+            PortVlans current = portVlans;
+            String[] ports = new String[current.ports().length];
+            for (int i = 0; i < ports.length; i++) ports[i] = current.name(i);
+            portVlans = current.withBlocked(blocked(ports));
+        }
+    }
+
+    private static int blockedPorts(PortVlans ports) {
+        int blocked = 0;
+        for (int i = 0; i < ports.ports().length; i++) {
+            if (ports.isBlocked(i)) blocked++;
+        }
+        return blocked;
     }
 
     public void run() {
-        System.out.println("\nSwitch " + name + " is running.");
-        new Thread(this::listenForPackets).start();
+        start();
         listenForCommands();
     }
 
+    public void start() {
+        System.out.println("\nSwitch " + name + " is running.");
+        MetricsExporter.register(metrics);
+        if (PacketPipeline.DEFAULT_WORKERS > 0) {
+            pipeline = new PacketPipeline(name, PacketPipeline.DEFAULT_WORKERS, PacketPipeline.DEFAULT_DEPTH, Frame::macFlowHash, this::handlePacket);
+            transport.start(pipeline);
+        } else {
+            transport.start(this::handlePacket);
+        }
+        if (spanningTree != null) {
+            if (spanningTree.start(now())) refreshPorts();
+            stpTask = stpTimer.scheduleAtFixedRate(() -> {
+                if (spanningTree.tick(now())) refreshPorts();
+            }, STP_TICK_MILLIS, STP_TICK_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void close() {
+        if (stpTask != null) stpTask.cancel(false);
+        if (pipeline != null) pipeline.shutdown();
+        transport.close();
+        MetricsExporter.unregister(metrics);
+    }
+
+    // The flood targets and VLANs are swapped in whole. Learned MACs stay, except those
+    // learned on a configured port that is gone or no longer carries their VLAN: they
+    // would only be sent into the void until aged out. Switches that became or stopped
+    // being neighbors join or leave the spanning tree, which blocks a new redundant link
+    // before it forwards anything.
+    public void reconfigure(ConfigDiff diff) {
+        if (diff.moved(name)) System.out.println("\n[" + name + "] The new address, port or MAC takes effect when " + name + " is restarted");
+        if (!diff.neighborsChanged(name) && !diff.vlansChanged(name)) return;
+        List<String> updated = configManager.getNeighbors(name);
+        if (spanningTree != null) {
+            long now = now();
+            List<String> switches = switchNeighbors(updated);
+            for (String neighbor : switchNeighbors(neighbors)) {
+                if (!switches.contains(neighbor)) spanningTree.removePort(neighbor, now);
+            }
+            for (String neighbor : switches) spanningTree.addPort(neighbor, now);
+        }
+        PortVlans ports;
+        PortVlans previous;
+        synchronized (portLock) {
+            ports = resolvePorts(updated);
+            previous = portVlans;
+            neighbors = updated;
+            portVlans = ports;
+        }
+        int stale = forwardingTable.removeIf(entry -> {
+            InetSocketAddress port = entry.getPort();
+            boolean removed = previous.indexOf(port) >= 0 && ports.indexOf(port) < 0;
+            return removed || !ports.carries(port, MacTable.vlan(entry.getMac()));
+        });
+        System.out.println("\n[" + name + "] Neighbors are now " + updated + (stale == 0 ? "" : "; forgot " + stale + " MACs on removed ports"));
+    }
+
+    public String getCommands() {
+        return "show table, show stats, show neighbors, show vlans, show spanning tree, show duplicates, show pipeline";
+    }
+
     private void listenForCommands() {
         Scanner scanner = new Scanner(System.in);
         try {
             while (true) {
-                System.out.println("\nEnter command (show table, show neighbors, exit):");
+                System.out.println("\nEnter command (" + getCommands() + ", exit):");
                 String command = scanner.nextLine().trim().toLowerCase();
 
                 if ("exit".equalsIgnoreCase(command)) {
@@ -42,118 +216,261 @@ public class Switch implements Runnable {
                     break;
                 }
 
-                switch (command) {
-                    case "show table":
-                        showTable();
-                        break;
-                    case "show neighbors":
-                        showNeighbors();
-                        break;
-                    default:
-                        System.out.println("\nUnknown command: " + command);
-                        break;
-                }
+                executeCommand(command, scanner);
             }
         } finally {
             scanner.close();
         }
     }
 
-    private void listenForPackets() {
-        byte[] buffer = new byte[1024];
-        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
-
-        try {
-            while (!Thread.currentThread().isInterrupted()) {
-                socket.receive(packet);
-                handlePacket(packet);
-            }
-        } catch (IOException e) {
-            System.out.println("\n[" + name + "] Error receiving packet: " + e.getMessage());
-        } finally {
-            socket.close();
+    public void executeCommand(String command, Scanner input) {
+        switch (command) {
+            case "show table":
+                showTable();
+                break;
+            case "show stats":
+                System.out.println("\nStatistics for " + name + ":\n" + metrics.describe());
+                break;
+            case "show neighbors":
+                showNeighbors();
+                break;
+            case "show vlans":
+                showVlans();
+                break;
+            case "show spanning tree":
+            case "show stp":
+                System.out.println("\nSpanning tree: " + (spanningTree == null ? "disabled (stp.enabled=false)" : spanningTree.describe(now())));
+                break;
+            case "show duplicates":
+                System.out.println("\nDuplicate filter: " + receivedMessageIds.describe());
+                break;
+            case "show pipeline":
+                System.out.println("\nPipeline: " + (pipeline == null ? "inline on the receive thread" : pipeline.describe()));
+                break;
+            default:
+                System.out.println("\nUnknown command: " + command);
+                break;
         }
     }
 
-    private void handlePacket(DatagramPacket packet) {
-        String receivedData = new String(packet.getData(), 0, packet.getLength()).trim();
-        String[] parts = receivedData.split("\\|");
-        if (parts.length < 4) return;
+    // Package-private so Benchmark can count the copies a flood costs
+    long getPacketsOut() {
+        return packetsOut.sum();
+    }
+
+    // Package-private so Benchmark can drive it directly
+    void handlePacket(ByteBuffer data, InetSocketAddress source) {
+        long received = System.nanoTime();
+        packetsIn.increment();
+        Frame frame = frames.get();
+        if (!frame.decode(data)) {
+            parseErrors.increment();
+            return;
+        }
 
-        String messageId = parts[0];
-        String srcMAC = parts[1];
-        String destMAC = parts[2];
-        String payload = parts[3];
+        if (frame.getType() == Frame.TYPE_BPDU) {
+            receiveBpdu(data, frame, source);
+            return;
+        }
+
+        // A blocked port neither learns nor forwards, which is what keeps a redundant mesh loop-free
+        PortVlans ports = portVlans;
+        int index = ports.indexOf(source);
+        if (index >= 0 && ports.isBlocked(index)) {
+            blockedDrops.increment();
+            return;
+        }
 
-        if (receivedMessageIds.contains(messageId)) return;
-        receivedMessageIds.add(messageId);
+        if (!receivedMessageIds.add(frame.getIdHigh(), frame.getIdLow())) {
+            duplicates.increment();
+            return;
+        }
 
-        String sourceIP = packet.getAddress().getHostAddress();
-        int sourcePort = packet.getPort();
-        forwardingTable.put(srcMAC, sourceIP + ":" + sourcePort);
+        // Each VLAN is a separate forwarding domain: MACs are learned and looked up per VLAN
+        int vlan = ports.ingressVlan(index, frame.getVlan());
+        if (vlan < 0) {
+            vlanMismatch.increment();
+            return;
+        }
+        long srcMAC = frame.getSrcMac();
+        long destMAC = frame.getDstMac();
+        forwardingTable.learn(MacTable.key(vlan, srcMAC), source);
 
-        forwardOrFlood(messageId, srcMAC, destMAC, payload);
+        if (forwardOrFlood(data, source, ports, vlan, destMAC)) hopLatency.record(System.nanoTime() - received);
     }
 
-    private void forwardOrFlood(String messageId, String srcMAC, String destMAC, String payload) {
-        String destination = forwardingTable.get(destMAC);
-        if (destination != null) {
-            forwardPacket(messageId, srcMAC, destMAC, payload, destination);
-        } else {
-            flood(messageId, srcMAC, destMAC, payload);
+    // Frames are relayed unchanged apart from their tag, so the received bytes are sent as they are
+    // Returns true if the frame was sent on at least once
+    private boolean forwardOrFlood(ByteBuffer data, InetSocketAddress source, PortVlans ports, int vlan, long destMAC) {
+        InetSocketAddress destination = destMAC == Addresses.BROADCAST_MAC ? null : forwardingTable.lookup(MacTable.key(vlan, destMAC));
+        if (destination == null) {
+            floods.increment();
+            return flood(data, source, ports, vlan) > 0;
         }
+        // Never reflect a frame back out of the port it arrived on
+        if (destination.equals(source)) {
+            samePort.increment();
+            return false;
+        }
+        unicastForwards.increment();
+        return forwardPacket(data, destMAC, destination, ports, vlan);
     }
 
-    private void forwardPacket(String messageId, String srcMAC, String destMAC, String payload, String destination) {
+    private boolean forwardPacket(ByteBuffer data, long destMAC, InetSocketAddress destination, PortVlans ports, int vlan) {
+        int index = ports.indexOf(destination);
+        if (index >= 0 && ports.isBlocked(index)) {
+            blockedDrops.increment();
+            return false;
+        }
         try {
-            String[] parts = destination.split(":");
-            InetAddress destAddress = InetAddress.getByName(parts[0]);
-            int destPort = Integer.parseInt(parts[1]);
-
-            String fullMessage = messageId + "|" + srcMAC + "|" + destMAC + "|" + payload;
-            DatagramPacket forwardPacket = new DatagramPacket(
-                fullMessage.getBytes(),
-                fullMessage.length(),
-                destAddress,
-                destPort
-            );
-            socket.send(forwardPacket);
-            System.out.println("\n[" + name + "] Forwarded packet to " + destMAC + " at " + destination);
+            send(data, destination, vlan, index >= 0 && ports.tagged(index, vlan));
+            if (PacketLog.isEnabled()) {
+                PacketLog.log("\n[" + name + "] Forwarded packet to " + Addresses.formatMac(destMAC) + " at " + Addresses.formatSocketAddress(destination));
+            }
+            return true;
         } catch (IOException e) {
+            sendErrors.increment();
             System.out.println("\n[" + name + "] Error forwarding packet: " + e.getMessage());
+            return false;
         }
     }
 
-    private void flood(String messageId, String srcMAC, String destMAC, String payload) {
-        forwardingTable.forEach((mac, port) -> {
-            if (!mac.equals(srcMAC)) {
-                try {
-                    String[] parts = port.split(":");
-                    InetAddress address = InetAddress.getByName(parts[0]);
-                    int portNumber = Integer.parseInt(parts[1]);
-
-                    String fullMessage = messageId + "|" + srcMAC + "|" + destMAC + "|" + payload;
-                    DatagramPacket floodPacket = new DatagramPacket(
-                        fullMessage.getBytes(),
-                        fullMessage.length(),
-                        address,
-                        portNumber
-                    );
-                    socket.send(floodPacket);
-                    System.out.println("\n[" + name + "] Flooding packet to " + mac);
-                } catch (IOException e) {
-                    System.out.println("\n[" + name + "] Error flooding packet: " + e.getMessage());
-                }
+    // One copy per configured neighbor in the frame's VLAN and, in the default VLAN, per
+    // distinct learned port that is not configured, except the one the frame came in on.
+    // The received bytes are sent as-is, so the frame is encoded once.
+    private int flood(ByteBuffer data, InetSocketAddress source, PortVlans ports, int vlan) {
+        int sent = 0;
+        for (int index : ports.members(vlan)) {
+            InetSocketAddress port = ports.port(index);
+            if (!port.equals(source) && floodTo(data, port, vlan, ports.tagged(index, vlan))) sent++;
+        }
+        if (vlan != Frame.DEFAULT_VLAN) return sent;
+        for (InetSocketAddress port : forwardingTable.ports()) {
+            if (!port.equals(source) && ports.indexOf(port) < 0 && floodTo(data, port, vlan, false)) sent++;
+        }
+        return sent;
+    }
+
+    private boolean floodTo(ByteBuffer data, InetSocketAddress port, int vlan, boolean tagged) {
+        try {
+            send(data, port, vlan, tagged);
+            if (PacketLog.isEnabled()) PacketLog.log("\n[" + name + "] Flooding packet to " + Addresses.formatSocketAddress(port));
+            return true;
+        } catch (IOException e) {
+            sendErrors.increment();
+            System.out.println("\n[" + name + "] Error flooding packet: " + e.getMessage());
+            return false;
+        }
+    }
+
+    // A frame arriving tagged is tagged with its own VLAN, so tagging only ever strips the
+    // tag in place or copies the frame behind a new one
+    private void send(ByteBuffer data, InetSocketAddress destination, int vlan, boolean tagged) throws IOException {
+        int tag = Frame.tagLength(data);
+        if (tagged == (tag > 0)) {
+            transport.send(data, destination);
+        } else if (!tagged) {
+            int position = data.position();
+            data.position(position + tag);
+            try {
+                transport.send(data, destination);
+            } finally {
+                data.position(position);
             }
+        } else {
+            ByteBuffer out = tagBuffers.get();
+            if (out.capacity() < Frame.TAG_LENGTH + data.remaining()) {
+                out = ByteBuffer.allocate(Frame.TAG_LENGTH + data.remaining());
+                tagBuffers.set(out);
+            }
+            out.clear();
+            Frame.putTag(out, vlan);
+            int position = data.position();
+            out.put(data).flip();
+            data.position(position);
+            transport.send(out, destination);
+        }
+        packetsOut.increment();
+    }
+
+    // The payload is handed to the spanning tree in place by narrowing the receive buffer
+    private void receiveBpdu(ByteBuffer data, Frame frame, InetSocketAddress source) {
+        PortVlans ports = portVlans;
+        int index = ports.indexOf(source);
+        if (spanningTree == null || index < 0) return;
+        int position = data.position();
+        int limit = data.limit();
+        boolean changed;
+        try {
+            data.limit(frame.getPayloadOffset() + frame.getPayloadLength()).position(frame.getPayloadOffset());
+            changed = spanningTree.receive(ports.name(index), data, now());
+        } finally {
+            data.limit(limit).position(position);
+        }
+        if (changed) refreshPorts();
+    }
+
+    // BPDUs go to the neighboring switch untagged, whatever the port's VLANs
+    private void sendBpdu(String neighbor, ByteBuffer message) {
+        PortVlans ports = portVlans;
+        InetSocketAddress destination = null;
+        for (int i = 0; i < ports.ports().length && destination == null; i++) {
+            if (ports.name(i).equals(neighbor)) destination = ports.port(i);
+        }
+        if (destination == null) return;
+        synchronized (controlFrame) {
+            controlFrame.newMessageId()
+                .setType(Frame.TYPE_BPDU)
+                .setTtl(1)
+                .setSrcMac(macAddress)
+                .setDstMac(Addresses.BROADCAST_MAC)
+                .setSrcIp(Addresses.toInt(ipAddress))
+                .setDstIp(Addresses.toInt(destination.getAddress()))
+                .setPayload(message, message.position(), message.remaining());
+            if (controlBuffer.capacity() < controlFrame.encodedLength()) controlBuffer = ByteBuffer.allocate(controlFrame.encodedLength());
+            controlBuffer.clear();
+            controlFrame.encode(controlBuffer);
+            controlBuffer.flip();
+            try {
+                transport.send(controlBuffer, destination);
+                packetsOut.increment();
+            } catch (IOException e) {
+                sendErrors.increment();
+                System.err.println("\n[" + name + "] Error sending spanning tree message to " + neighbor + ": " + e.getMessage());
+            }
+        }
+    }
+
+    // A topology change: MACs learned on the tree ports may now be behind another port
+    private void flushMacs(String keep) {
+        PortVlans ports = portVlans;
+        forwardingTable.removeIf(entry -> {
+            int index = ports.indexOf(entry.getPort());
+            return index >= 0 && spanningTree.hasPort(ports.name(index)) && !ports.name(index).equals(keep);
         });
     }
 
+    private static long now() {
+        return System.nanoTime() / 1_000_000L;
+    }
+
+    // Called on the forwarding thread, so the line goes through the asynchronous packet log
+    private void macMoved(long key, InetSocketAddress from, InetSocketAddress to, boolean flapping) {
+        PacketLog.log("\n[" + name + "] MAC " + Addresses.formatMac(MacTable.mac(key)) + " in VLAN " + MacTable.vlan(key)
+            + (flapping ? " is flapping between " : " moved from ")
+            + Addresses.formatSocketAddress(from) + (flapping ? " and " : " to ") + Addresses.formatSocketAddress(to));
+    }
+
     private void showTable() {
         System.out.println("\nForwarding Table:");
         if (forwardingTable.isEmpty()) {
             System.out.println("\nNo entries in forwarding table.");
         } else {
-            forwardingTable.forEach((key, value) -> System.out.println(key + " -> " + value));
+            long now = System.nanoTime();
+            forwardingTable.forEach(entry -> System.out.println(Addresses.formatMac(MacTable.mac(entry.getMac())) + " VLAN "
+                + MacTable.vlan(entry.getMac()) + " -> " + Addresses.formatSocketAddress(entry.getPort()) + " (idle " + (now - entry.getLastSeen()) / 1_000_000_000L + "s)"));
+            System.out.println(forwardingTable.size() + " entries, " + forwardingTable.getMoves() + " moves, "
+                + forwardingTable.getAgedOut() + " aged out, " + forwardingTable.getRejected() + " rejected (table full)");
         }
     }
 
@@ -162,8 +479,20 @@ public class Switch implements Runnable {
         neighbors.forEach(neighbor -> System.out.println(neighbor));
     }
 
+    private void showVlans() {
+        PortVlans ports = portVlans;
+        System.out.println("\nPort VLANs (" + ports.vlanCount() + " VLANs):");
+        for (int i = 0; i < ports.ports().length; i++) {
+            System.out.println(Addresses.formatSocketAddress(ports.port(i)) + " " + ports.describe(i));
+        }
+        System.out.println("Other ports: access " + Frame.DEFAULT_VLAN);
+    }
+
     public void setNeighbors(Map<String, String> neighbors) {
-        this.neighbors = new ArrayList<>(neighbors.values());
+        synchronized (portLock) {
+            this.neighbors = new ArrayList<>(neighbors.values());
+            this.portVlans = resolvePorts(this.neighbors);
+        }
         System.out.println("\nUpdated neighbors for Switch " + name + ": " + this.neighbors);
     }
 
@@ -0,0 +1,339 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+// The devices and links of a configuration file, read in a single pass.
+//
+// Every device name is interned to a dense id the first time any section mentions it, so
+// connections may name devices that are only listed further down. Per-device attributes
+// live in arrays indexed by id, and links in compressed sparse row form: the neighbors of
+// device i are neighbors[offsets[i]] up to neighbors[offsets[i + 1]], first the devices
+// it lists ("i:j"), then those that list it. A query by name is one hash lookup and
+// then array reads, so topologies of tens of thousands of devices load and answer in
+// milliseconds.
+public class Topology implements Cloneable {
+
+    public static final byte UNKNOWN = 0;
+    public static final byte COMPUTER = 1;
+    public static final byte SWITCH = 2;
+    public static final byte ROUTER = 3;
+
+    public static final String DEFAULT_SUBNET_MASK = "255.255.255.0";
+
+    private enum Section { COMPUTERS, SWITCHES, ROUTERS, ARP, CONNECTIONS, ROUTER_NETWORKS, GATEWAYS, VLANS, OTHER }
+
+    private static final Map<String, Section> SECTIONS = Map.of(
+        "# Computer IP and port numbers", Section.COMPUTERS,
+        "# Different port range for switches", Section.SWITCHES,
+        "# Router Configuration", Section.ROUTERS,
+        "# ARP table", Section.ARP,
+        "# Node connections", Section.CONNECTIONS,
+        "# Router networks", Section.ROUTER_NETWORKS,
+        "# Default gateways", Section.GATEWAYS,
+        "# VLANs", Section.VLANS);
+
+    private final Map<String, Integer> ids = new HashMap<>();
+    private String[] names = new String[16];
+    private byte[] types = new byte[16];
+    private String[] ipAddresses = new String[16];
+    private int[] ports = new int[16];
+    private String[] macAddresses = new String[16];
+    private int[] gateways = new int[16]; // device id, -1 for none
+    private int count;
+    private int[] definitionOrder = new int[16]; // ids of the listed devices, in file order
+    private int defined;
+    private int[] edgeFrom = new int[16];
+    private int[] edgeTo = new int[16];
+    private int edges;
+    private int[] offsets = {0};
+    private int[] neighbors = new int[0];
+    private int[] listedCounts = new int[0]; // how many of a device's neighbors it lists itself
+    private final Map<String, String> arpTable = new HashMap<>();
+    private final Map<String, Map<String, String>> routerNetworks = new HashMap<>(); // router -> network -> attached device
+    private final Map<String, Map<String, int[]>> portVlans = new HashMap<>(); // switch -> neighbor -> VLAN IDs
+    private final Map<String, String> internedStrings = new HashMap<>(); // the few distinct IPs, shared
+
+    public static Topology load(String path) throws IOException {
+        Topology topology = new Topology();
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(path), StandardCharsets.UTF_8)) {
+            topology.read(reader, path);
+        }
+        return topology;
+    }
+
+    public static Topology empty() {
+        return new Topology().build();
+    }
+
+    private void read(BufferedReader reader, String source) throws IOException {
+        Section section = Section.OTHER;
+        String line;
+        int number = 0;
+        while ((line = reader.readLine()) != null) {
+            number++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("# End")) continue;
+            if (line.startsWith("#")) {
+                section = SECTIONS.getOrDefault(line, Section.OTHER);
+                continue;
+            }
+            try {
+                switch (section) {
+                    case COMPUTERS:
+                        parseDevice(line, COMPUTER);
+                        break;
+                    case SWITCHES:
+                        parseDevice(line, SWITCH);
+                        break;
+                    case ROUTERS:
+                        parseDevice(line, ROUTER);
+                        break;
+                    case ARP:
+                        parseArp(line);
+                        break;
+                    case CONNECTIONS:
+                        parseConnection(line);
+                        break;
+                    case ROUTER_NETWORKS:
+                        parseRouterNetwork(line);
+                        break;
+                    case GATEWAYS:
+                        parseGateway(line);
+                        break;
+                    case VLANS:
+                        parseVlans(line);
+                        break;
+                    default:
+                        break;
+                }
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException(source + ":" + number + ": " + e.getMessage() + " in \"" + line + "\"");
+            }
+        }
+        build();
+    }
+
+    // "PC_A,127.0.0.1,3000,00:1A:2B:3C:4D:5E"
+    private void parseDevice(String line, byte type) {
+        int first = line.indexOf(',');
+        int second = first < 0 ? -1 : line.indexOf(',', first + 1);
+        int third = second < 0 ? -1 : line.indexOf(',', second + 1);
+        if (third < 0) return;
+        int end = line.indexOf(',', third + 1);
+        int id = intern(line.substring(0, first).trim());
+        if (types[id] == UNKNOWN) definitionOrder = append(definitionOrder, defined++, id);
+        types[id] = type;
+        ipAddresses[id] = internString(line.substring(first + 1, second).trim());
+        ports[id] = Integer.parseInt(line.substring(second + 1, third).trim());
+        macAddresses[id] = line.substring(third + 1, end < 0 ? line.length() : end).trim();
+    }
+
+    // "192.168.1.1,00:1A:2B:3C:4D:5E"
+    private void parseArp(String line) {
+        int comma = line.indexOf(',');
+        if (comma < 0) return;
+        int end = line.indexOf(',', comma + 1);
+        arpTable.put(line.substring(0, comma).trim(), line.substring(comma + 1, end < 0 ? line.length() : end).trim());
+    }
+
+    // "S1:R1"
+    private void parseConnection(String line) {
+        int colon = line.indexOf(':');
+        if (colon < 0) return;
+        int end = line.indexOf(':', colon + 1);
+        int from = intern(line.substring(0, colon).trim());
+        int to = intern(line.substring(colon + 1, end < 0 ? line.length() : end).trim());
+        edgeFrom = append(edgeFrom, edges, from);
+        edgeTo = append(edgeTo, edges, to);
+        edges++;
+    }
+
+    // "R3,127.0.0.0/24,S2": R3 is attached to 127.0.0.0/24 through S2. Without the
+    // device the network is reached through the router's first non-router neighbor.
+    private void parseRouterNetwork(String line) {
+        String[] parts = line.split(",");
+        if (parts.length < 2) return;
+        routerNetworks.computeIfAbsent(parts[0].trim(), k -> new LinkedHashMap<>())
+            .put(parts[1].trim(), parts.length > 2 ? parts[2].trim() : null);
+    }
+
+    // "PC_A,R1": PC_A sends traffic for other subnets to R1
+    private void parseGateway(String line) {
+        int comma = line.indexOf(',');
+        if (comma < 0) return;
+        int end = line.indexOf(',', comma + 1);
+        int device = intern(line.substring(0, comma).trim());
+        gateways[device] = intern(line.substring(comma + 1, end < 0 ? line.length() : end).trim());
+    }
+
+    // "S1,PC_A,10": S1's port to PC_A is an access port in VLAN 10.
+    // "S1,S2,10,20": S1's port to S2 is a trunk carrying VLANs 10 and 20.
+    private void parseVlans(String line) {
+        String[] parts = line.split(",");
+        if (parts.length < 3) return;
+        int[] vlans = new int[parts.length - 2];
+        for (int i = 0; i < vlans.length; i++) {
+            vlans[i] = Integer.parseInt(parts[i + 2].trim());
+            if (vlans[i] < 1 || vlans[i] > Frame.MAX_VLAN) throw new IllegalArgumentException("VLAN out of range: " + vlans[i]);
+        }
+        portVlans.computeIfAbsent(parts[0].trim(), k -> new LinkedHashMap<>()).put(parts[1].trim(), vlans);
+    }
+
+    private int intern(String name) {
+        Integer id = ids.get(name);
+        if (id != null) return id;
+        if (count == names.length) {
+            int capacity = count * 2;
+            names = Arrays.copyOf(names, capacity);
+            types = Arrays.copyOf(types, capacity);
+            ipAddresses = Arrays.copyOf(ipAddresses, capacity);
+            ports = Arrays.copyOf(ports, capacity);
+            macAddresses = Arrays.copyOf(macAddresses, capacity);
+            gateways = Arrays.copyOf(gateways, capacity);
+        }
+        names[count] = name;
+        gateways[count] = -1;
+        ids.put(name, count);
+        return count++;
+    }
+
+    private String internString(String value) {
+        String existing = internedStrings.putIfAbsent(value, value);
+        return existing != null ? existing : value;
+    }
+
+    private static int[] append(int[] array, int index, int value) {
+        if (index == array.length) array = Arrays.copyOf(array, array.length * 2);
+        array[index] = value;
+        return array;
+    }
+
+    // Lays the links out per device: a counting pass for the offsets, then a fill pass.
+    // A device listing the same neighbor twice keeps both; a neighbor that also lists the
+    // device back is not added a second time.
+    private Topology build() {
+        int[] degree = new int[count + 1];
+        for (int i = 0; i < edges; i++) {
+            degree[edgeFrom[i]]++;
+            degree[edgeTo[i]]++;
+        }
+        offsets = new int[count + 1];
+        for (int i = 0; i < count; i++) offsets[i + 1] = offsets[i] + degree[i];
+        int[] filled = new int[count];
+        int[] listed = new int[offsets[count]];
+        for (int i = 0; i < edges; i++) listed[offsets[edgeFrom[i]] + filled[edgeFrom[i]]++] = edgeTo[i];
+        int[] outDegree = filled.clone();
+        for (int i = 0; i < edges; i++) listed[offsets[edgeTo[i]] + filled[edgeTo[i]]++] = edgeFrom[i];
+
+        // Compact each device's range, dropping listing devices it already lists
+        int[] seen = new int[count];
+        Arrays.fill(seen, -1);
+        int[] compacted = new int[offsets[count]];
+        int[] compactedOffsets = new int[count + 1];
+        int size = 0;
+        for (int device = 0; device < count; device++) {
+            compactedOffsets[device] = size;
+            for (int i = offsets[device]; i < offsets[device] + filled[device]; i++) {
+                int neighbor = listed[i];
+                boolean fromOthers = i - offsets[device] >= outDegree[device];
+                if (fromOthers && seen[neighbor] == device) continue;
+                seen[neighbor] = device;
+                compacted[size++] = neighbor;
+            }
+        }
+        compactedOffsets[count] = size;
+        offsets = compactedOffsets;
+        neighbors = Arrays.copyOf(compacted, size);
+        listedCounts = outDegree;
+        edgeFrom = edgeTo = null;
+        return this;
+    }
+
+    // Dense id of a device, or -1 for a name the file never mentions
+    public int id(String name) {
+        Integer id = ids.get(name);
+        return id == null ? -1 : id;
+    }
+
+    public String name(int id) {
+        return names[id];
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public int linkCount() {
+        return edges;
+    }
+
+    public byte type(int id) {
+        return types[id];
+    }
+
+    public String ipAddress(int id) {
+        return ipAddresses[id];
+    }
+
+    public int port(int id) {
+        return ports[id];
+    }
+
+    public String macAddress(int id) {
+        return macAddresses[id];
+    }
+
+    public int gateway(int id) {
+        return gateways[id];
+    }
+
+    // True if the device appears on the left of a connection; its first listedCount
+    // neighbors are the ones it lists
+    public boolean listsConnections(int id) {
+        return listedCounts[id] > 0;
+    }
+
+    public int listedCount(int id) {
+        return listedCounts[id];
+    }
+
+    public int degree(int id) {
+        return offsets[id + 1] - offsets[id];
+    }
+
+    public int neighbor(int id, int index) {
+        return neighbors[offsets[id] + index];
+    }
+
+    // A copy with one device's address changed. Nothing is modified after loading, so the
+    // copy shares everything but the addresses with this one.
+    Topology withIpAddress(int id, String ipAddress) {
+        Topology copy;
+        try {
+            copy = (Topology) clone();
+        } catch (CloneNotSupportedException e) {
+            throw new AssertionError(e);
+        }
+        copy.ipAddresses = ipAddresses.clone();
+        copy.ipAddresses[id] = ipAddress;
+        return copy;
+    }
+
+    // Devices listed in a device section, in file order
+    public int[] definedDevices() {
+        return Arrays.copyOf(definitionOrder, defined);
+    }
+
+    public Map<String, String> getArpTable() {
+        return arpTable;
+    }
+
+    public Map<String, Map<String, String>> getRouterNetworks() {
+        return routerNetworks;
+    }
+
+    public Map<String, Map<String, int[]>> getPortVlans() {
+        return portVlans;
+    }
+}
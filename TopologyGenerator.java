@@ -0,0 +1,264 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+// Writes synthetic topologies in the config.txt format, for testing how loading,
+// startup and the protocols scale:
+//
+//   java -cp bin TopologyGenerator <tree|mesh|fattree> [--devices 10000] [--out topology.txt]
+//        [--fanout 8] [--hosts 24] [--degree 4] [--k <even>] [--seed 1] [--base-port 20000] [--ip 127.0.0.1]
+//
+//   tree     a switch tree: every switch has up to --fanout child switches, and each leaf
+//            switch --hosts computers or so
+//   mesh     routers linked in a random connected mesh of average degree --degree, each
+//            with a switch and about --hosts computers behind it
+//   fattree  a k-ary fat tree: (k/2)^2 core routers; k pods of k/2 aggregation routers
+//            and k/2 edge switches, each with k/2 computers. Without --k, the largest k
+//            that fits in --devices
+//
+// Devices get consecutive ports from --base-port, locally administered MACs and one IP,
+// so --devices can be up to 65535 - base port. Computers in meshes and fat trees have the
+// router in front of them as their default gateway.
+public class TopologyGenerator {
+
+    private final List<String> computers = new ArrayList<>();
+    private final List<String> switches = new ArrayList<>();
+    private final List<String> routers = new ArrayList<>();
+    private final List<String[]> links = new ArrayList<>();
+    private final Map<String, String> gateways = new LinkedHashMap<>();
+
+    public static void main(String[] args) {
+        if (args.length < 1) {
+            System.err.println("Usage: java -cp bin TopologyGenerator <tree|mesh|fattree> [--devices <n>] [--out <file>] [--fanout <n>]");
+            System.err.println("            [--hosts <n>] [--degree <n>] [--k <even n>] [--seed <n>] [--base-port <port>] [--ip <address>]");
+            System.exit(1);
+        }
+        String kind = args[0];
+        int devices = 10_000;
+        String out = "topology.txt";
+        int fanout = 8;
+        int hosts = 24;
+        int degree = 4;
+        int k = 0;
+        long seed = 1;
+        int basePort = 20_000;
+        String ip = "127.0.0.1";
+        try {
+            for (int i = 1; i < args.length; i++) {
+                String option = args[i];
+                if (i + 1 >= args.length) throw new IllegalArgumentException("Missing value for " + option);
+                String value = args[++i];
+                switch (option) {
+                    case "--devices":
+                        devices = Integer.parseInt(value);
+                        break;
+                    case "--out":
+                        out = value;
+                        break;
+                    case "--fanout":
+                        fanout = Integer.parseInt(value);
+                        break;
+                    case "--hosts":
+                        hosts = Integer.parseInt(value);
+                        break;
+                    case "--degree":
+                        degree = Integer.parseInt(value);
+                        break;
+                    case "--k":
+                        k = Integer.parseInt(value);
+                        break;
+                    case "--seed":
+                        seed = Long.parseLong(value);
+                        break;
+                    case "--base-port":
+                        basePort = Integer.parseInt(value);
+                        break;
+                    case "--ip":
+                        ip = value;
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option: " + option);
+                }
+            }
+            TopologyGenerator generator = generate(kind, devices, fanout, hosts, degree, k, new Random(seed));
+            generator.write(Paths.get(out), ip, basePort);
+            System.out.println("Wrote " + generator.describe() + " to " + out);
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("Error generating topology: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    public static TopologyGenerator generate(String kind, int devices, int fanout, int hosts, int degree, int k, Random random) {
+        TopologyGenerator generator = new TopologyGenerator();
+        switch (kind.toLowerCase(Locale.ROOT)) {
+            case "tree":
+                generator.tree(devices, fanout, hosts);
+                break;
+            case "mesh":
+                generator.mesh(devices, hosts, degree, random);
+                break;
+            case "fattree":
+            case "fat-tree":
+                generator.fatTree(k > 0 ? k : largestFatTree(devices));
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown topology: " + kind + " (expected tree, mesh or fattree)");
+        }
+        return generator;
+    }
+
+    // Leaf switches are chosen so that leaves, the switches above them and the computers
+    // add up to the device count
+    private void tree(int devices, int fanout, int hosts) {
+        if (fanout < 2 || hosts < 1) throw new IllegalArgumentException("A tree needs a fanout of at least 2 and at least 1 host");
+        int leaves = Math.max(1, devices / (hosts + 1));
+        while (leaves > 1 && leaves + switchesAbove(leaves, fanout) + leaves > devices) leaves--;
+        int computersLeft = devices - leaves - switchesAbove(leaves, fanout);
+        if (computersLeft < leaves) throw new IllegalArgumentException("Too few devices for a tree: " + devices);
+
+        List<String> level = new ArrayList<>();
+        for (int i = 0; i < leaves; i++) level.add(addSwitch());
+        for (int i = 0; i < computersLeft; i++) link(level.get(i % leaves), addComputer());
+        while (level.size() > 1) {
+            List<String> parents = new ArrayList<>();
+            for (int i = 0; i < level.size(); i += fanout) parents.add(addSwitch());
+            for (int i = 0; i < level.size(); i++) link(parents.get(i / fanout), level.get(i));
+            level = parents;
+        }
+    }
+
+    private static int switchesAbove(int leaves, int fanout) {
+        int total = 0;
+        for (int level = leaves; level > 1; level = (level + fanout - 1) / fanout) total += (level + fanout - 1) / fanout;
+        return total;
+    }
+
+    private void mesh(int devices, int hosts, int degree, Random random) {
+        if (hosts < 1 || degree < 1) throw new IllegalArgumentException("A mesh needs at least 1 host and a degree of at least 1");
+        int sites = Math.max(1, devices / (hosts + 2));
+        int computersLeft = devices - 2 * sites;
+        if (computersLeft < sites) throw new IllegalArgumentException("Too few devices for a mesh: " + devices);
+
+        String[] siteRouters = new String[sites];
+        String[] siteSwitches = new String[sites];
+        for (int i = 0; i < sites; i++) {
+            siteRouters[i] = addRouter();
+            siteSwitches[i] = addSwitch();
+            link(siteSwitches[i], siteRouters[i]);
+        }
+        for (int i = 0; i < computersLeft; i++) {
+            String computer = addComputer();
+            link(computer, siteSwitches[i % sites]);
+            gateways.put(computer, siteRouters[i % sites]);
+        }
+        // A random spanning tree keeps the mesh connected, then random extra links up to the degree
+        Set<Long> linked = new HashSet<>();
+        for (int i = 1; i < sites; i++) linkRouters(siteRouters, random.nextInt(i), i, linked);
+        long wanted = Math.min((long) sites * degree / 2, (long) sites * (sites - 1) / 2);
+        while (linked.size() < wanted) {
+            int a = random.nextInt(sites);
+            int b = random.nextInt(sites);
+            if (a != b) linkRouters(siteRouters, Math.min(a, b), Math.max(a, b), linked);
+        }
+    }
+
+    private void linkRouters(String[] siteRouters, int a, int b, Set<Long> linked) {
+        if (linked.add((long) a << 32 | b)) link(siteRouters[a], siteRouters[b]);
+    }
+
+    private static int largestFatTree(int devices) {
+        int k = 2;
+        while (fatTreeSize(k + 2) <= devices) k += 2;
+        if (fatTreeSize(k) > devices) throw new IllegalArgumentException("Too few devices for a fat tree: " + devices);
+        return k;
+    }
+
+    private static long fatTreeSize(long k) {
+        return 5 * k * k / 4 + k * k * k / 4;
+    }
+
+    private void fatTree(int k) {
+        if (k < 2 || k % 2 != 0) throw new IllegalArgumentException("A fat tree needs an even k of at least 2");
+        int half = k / 2;
+        String[] core = new String[half * half];
+        for (int i = 0; i < core.length; i++) core[i] = addRouter();
+        for (int pod = 0; pod < k; pod++) {
+            String[] aggregation = new String[half];
+            for (int i = 0; i < half; i++) {
+                aggregation[i] = addRouter();
+                for (int j = 0; j < half; j++) link(aggregation[i], core[i * half + j]);
+            }
+            for (int i = 0; i < half; i++) {
+                String edge = addSwitch();
+                for (String router : aggregation) link(edge, router);
+                for (int j = 0; j < half; j++) {
+                    String computer = addComputer();
+                    link(computer, edge);
+                    gateways.put(computer, aggregation[0]);
+                }
+            }
+        }
+    }
+
+    private String addComputer() {
+        String name = "PC_" + (computers.size() + 1);
+        computers.add(name);
+        return name;
+    }
+
+    private String addSwitch() {
+        String name = "S" + (switches.size() + 1);
+        switches.add(name);
+        return name;
+    }
+
+    private String addRouter() {
+        String name = "R" + (routers.size() + 1);
+        routers.add(name);
+        return name;
+    }
+
+    private void link(String from, String to) {
+        links.add(new String[] {from, to});
+    }
+
+    public int size() {
+        return computers.size() + switches.size() + routers.size();
+    }
+
+    public String describe() {
+        return size() + " devices (" + computers.size() + " computers, " + switches.size() + " switches, " + routers.size()
+            + " routers) and " + links.size() + " links";
+    }
+
+    // Sections in the order config.txt has them; ports and MACs follow that order too
+    public void write(Path path, String ip, int basePort) throws IOException {
+        if ((long) basePort + size() > 65536) {
+            throw new IllegalArgumentException(size() + " devices do not fit in the ports from " + basePort);
+        }
+        int[] next = {0};
+        try (BufferedWriter writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8)) {
+            writer.write("# Node connections\n");
+            for (String[] link : links) writer.write(link[0] + ":" + link[1] + "\n");
+            writer.write("# End node connections list\n\n# Computer IP and port numbers\n");
+            for (String name : computers) writeDevice(writer, name, ip, basePort, next);
+            writer.write("# End Computer List\n\n# Different port range for switches\n");
+            for (String name : switches) writeDevice(writer, name, ip, basePort, next);
+            writer.write("# End Switch List\n\n# Router Configuration\n");
+            for (String name : routers) writeDevice(writer, name, ip, basePort, next);
+            writer.write("# End of router list\n");
+            if (!gateways.isEmpty()) {
+                writer.write("\n# Default gateways\n");
+                for (Map.Entry<String, String> gateway : gateways.entrySet()) writer.write(gateway.getKey() + "," + gateway.getValue() + "\n");
+                writer.write("# End default gateways\n");
+            }
+        }
+    }
+
+    private static void writeDevice(Writer writer, String name, String ip, int basePort, int[] next) throws IOException {
+        int index = next[0]++;
+        writer.write(name + "," + ip + "," + (basePort + index) + "," + Addresses.formatMac(0x020000000000L | (index + 1)) + "\n");
+    }
+}
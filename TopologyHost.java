@@ -0,0 +1,110 @@
+import java.io.*;
+import java.util.*;
+
+// Runs every device listed in the configuration inside one JVM behind a shared console
+public class TopologyHost {
+
+    private final ConfigManager configManager;
+    private final Engine engine;
+    private final Map<String, Device> devices = Collections.synchronizedMap(new LinkedHashMap<>()); // changed on reload
+    private ConfigWatcher watcher;
+
+    public TopologyHost(ConfigManager configManager, Engine engine) {
+        this.configManager = configManager;
+        this.engine = engine;
+    }
+
+    public static Device createDevice(String name, ConfigManager configManager, Engine engine) throws IOException {
+        String deviceType = configManager.getDeviceType(name);
+        switch (deviceType) {
+            case "Computer":
+                return new Computer(name, configManager, engine);
+            case "Switch":
+                return new Switch(name, configManager.getPort(name), configManager, engine);
+            case "Router":
+                return new Router(name, configManager, engine);
+            default:
+                throw new IllegalArgumentException("Unknown device type " + deviceType + " for " + name);
+        }
+    }
+
+    public void startAll() {
+        for (String name : configManager.getDeviceNames()) startDevice(name);
+        System.out.println("\nStarted " + devices.size() + " devices with the " + engine.name().toLowerCase() + " engine.");
+        watcher = ConfigWatcher.startIfEnabled(configManager, this::reconfigure);
+    }
+
+    private void startDevice(String name) {
+        try {
+            Device device = createDevice(name, configManager, engine);
+            device.start();
+            devices.put(name, device);
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println(name + " setup error: " + e.getMessage());
+        }
+    }
+
+    // Devices that were removed are closed, new ones started and ones with a new address,
+    // port, MAC or type restarted, as their socket cannot follow. Every other device applies
+    // the diff in place and keeps what it has learned.
+    private void reconfigure(ConfigDiff diff) {
+        Set<String> restarted = new HashSet<>();
+        for (String name : diff.getDevicesRemoved()) {
+            Device device = devices.remove(name);
+            if (device != null) device.close();
+        }
+        for (String name : configManager.getDeviceNames()) {
+            if (!diff.moved(name) && devices.containsKey(name)) continue;
+            Device device = devices.remove(name);
+            if (device != null) device.close();
+            startDevice(name);
+            restarted.add(name);
+        }
+        List<Device> running;
+        synchronized (devices) {
+            running = new ArrayList<>(devices.values());
+        }
+        for (Device device : running) {
+            if (!restarted.contains(device.getName())) device.reconfigure(diff);
+        }
+        if (!restarted.isEmpty() || !diff.getDevicesRemoved().isEmpty()) {
+            System.out.println("\nStarted or restarted " + restarted.size() + " and stopped " + diff.getDevicesRemoved().size() + " devices; "
+                + devices.size() + " running.");
+        }
+    }
+
+    public Map<String, Device> getDevices() {
+        return Collections.unmodifiableMap(devices);
+    }
+
+    public void listenForCommands() {
+        Scanner scanner = new Scanner(System.in);
+        while (true) {
+            System.out.println("\nEnter command (<device> <command>, devices, exit):");
+            if (!scanner.hasNextLine()) break;
+            String line = scanner.nextLine().trim();
+            if (line.isEmpty()) continue;
+            if ("exit".equalsIgnoreCase(line)) break;
+
+            if ("devices".equalsIgnoreCase(line)) {
+                devices.forEach((name, device) -> System.out.println(name + " (" + configManager.getDeviceType(name) + "): " + device.getCommands()));
+                continue;
+            }
+
+            String[] parts = line.split("\\s+", 2);
+            Device device = devices.get(parts[0]);
+            if (device == null) {
+                System.out.println("\nUnknown device: " + parts[0]);
+            } else if (parts.length < 2) {
+                System.out.println("\n" + parts[0] + " commands: " + device.getCommands());
+            } else {
+                device.executeCommand(parts[1].trim().toLowerCase(), scanner);
+            }
+        }
+        scanner.close();
+        System.out.println("\nShutting down topology.");
+        if (watcher != null) watcher.close();
+        devices.values().forEach(Device::close);
+        System.exit(0);
+    }
+}
@@ -0,0 +1,174 @@
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+
+// End-to-end traceroute: probes are sent with TTL 1, 2, ... and every router that
+// drops one for its TTL answers with a time-exceeded frame; the destination answers
+// with a probe reply. Round-trip times are System.nanoTime() differences taken on the
+// sending device, which stamps each probe and gets the stamp echoed back.
+//
+// Answers are not routed back: the simulated topologies address most devices at one
+// IP, so a probe names the port to answer to and routers send straight to it.
+//
+// Probe payload (big endian): reply port (2), trace id (4), ttl (1), probe number (1),
+// send time (8). Time-exceeded and probe reply payloads: responder IPv4 (4), responder
+// port (2), name length (1), name, then the probe payload echoed back.
+public class Traceroute {
+
+    public static final int DEFAULT_MAX_HOPS = Integer.getInteger("trace.max.hops", 16);
+    public static final int DEFAULT_PROBES = Integer.getInteger("trace.probes", 3);
+    public static final long DEFAULT_TIMEOUT_MILLIS = Long.getLong("trace.timeout.ms", 1_000L);
+
+    public static final int PROBE_LENGTH = 16;
+    private static final int MAX_NAME_LENGTH = 64;
+
+    public interface Sender {
+        void send(int ttl, byte[] probe) throws IOException;
+    }
+
+    public static final class Hop {
+        final int ttl;
+        String responder; // "name ip:port", null while nothing answered
+        boolean destination;
+        final long[] rttNanos; // -1 for a probe that timed out
+
+        Hop(int ttl, int probes) {
+            this.ttl = ttl;
+            this.rttNanos = new long[probes];
+            Arrays.fill(rttNanos, -1);
+        }
+
+        public int getTtl() {
+            return ttl;
+        }
+
+        public String getResponder() {
+            return responder;
+        }
+
+        public boolean isDestination() {
+            return destination;
+        }
+
+        public long[] getRttNanos() {
+            return rttNanos;
+        }
+    }
+
+    private static final class Answer {
+        final int traceId;
+        final int ttl;
+        final int probe;
+        final long rttNanos;
+        final String responder;
+        final boolean destination;
+
+        Answer(int traceId, int ttl, int probe, long rttNanos, String responder, boolean destination) {
+            this.traceId = traceId;
+            this.ttl = ttl;
+            this.probe = probe;
+            this.rttNanos = rttNanos;
+            this.responder = responder;
+            this.destination = destination;
+        }
+    }
+
+    private static int nextTraceId = new Random().nextInt();
+
+    private final int replyPort;
+    private final BlockingQueue<Answer> answers = new LinkedBlockingQueue<>();
+
+    public Traceroute(int replyPort) {
+        this.replyPort = replyPort;
+    }
+
+    // Sends the probes hop by hop and blocks until the destination answers or maxHops is reached
+    public List<Hop> run(Sender sender, int maxHops, int probes, long timeoutMillis) throws IOException, InterruptedException {
+        int traceId;
+        synchronized (Traceroute.class) {
+            traceId = nextTraceId++;
+        }
+        answers.clear();
+        List<Hop> hops = new ArrayList<>();
+        for (int ttl = 1; ttl <= maxHops; ttl++) {
+            Hop hop = new Hop(ttl, probes);
+            hops.add(hop);
+            for (int probe = 0; probe < probes; probe++) {
+                ByteBuffer payload = ByteBuffer.allocate(PROBE_LENGTH);
+                payload.putShort((short) replyPort).putInt(traceId).put((byte) ttl).put((byte) probe).putLong(System.nanoTime());
+                sender.send(ttl, payload.array());
+                awaitAnswer(hop, traceId, probe, timeoutMillis);
+            }
+            if (hop.destination) break;
+        }
+        return hops;
+    }
+
+    private void awaitAnswer(Hop hop, int traceId, int probe, long timeoutMillis) throws InterruptedException {
+        long deadline = System.nanoTime() + timeoutMillis * 1_000_000L;
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0) {
+            Answer answer = answers.poll(remaining, TimeUnit.NANOSECONDS);
+            if (answer == null) return;
+            // Late answers to earlier probes are dropped
+            if (answer.traceId != traceId || answer.ttl != hop.ttl || answer.probe != probe) continue;
+            hop.rttNanos[probe] = answer.rttNanos;
+            hop.responder = answer.responder;
+            hop.destination |= answer.destination;
+            return;
+        }
+    }
+
+    // Called by the receive path with TYPE_TIME_EXCEEDED and TYPE_PROBE_REPLY frames
+    public void onAnswer(Frame frame) {
+        long now = System.nanoTime();
+        ByteBuffer data = frame.getPayloadSource();
+        int offset = frame.getPayloadOffset();
+        int end = offset + frame.getPayloadLength();
+        if (end - offset < 7) return;
+        int nameLength = data.get(offset + 6) & 0xFF;
+        int probe = offset + 7 + nameLength;
+        if (end - probe < PROBE_LENGTH) return;
+        byte[] name = new byte[nameLength];
+        for (int i = 0; i < nameLength; i++) name[i] = data.get(offset + 7 + i);
+        String responder = new String(name, StandardCharsets.UTF_8) + " "
+            + Addresses.formatIpv4(data.getInt(offset)) + ":" + (data.getShort(offset + 4) & 0xFFFF);
+        answers.offer(new Answer(data.getInt(probe + 2), data.get(probe + 6) & 0xFF, data.get(probe + 7) & 0xFF,
+            now - data.getLong(probe + 8), responder, frame.getType() == Frame.TYPE_PROBE_REPLY));
+    }
+
+    // Where to send the answer to a probe: its source IP and the port named in the probe.
+    // Null when the frame is too short to be a probe.
+    public static InetSocketAddress replyAddress(Frame probe) {
+        if (probe.getPayloadLength() < PROBE_LENGTH) return null;
+        int port = probe.getPayloadSource().getShort(probe.getPayloadOffset()) & 0xFFFF;
+        return new InetSocketAddress(Addresses.formatIpv4(probe.getSrcIp()), port);
+    }
+
+    // Answer payload for a probe, sent as TYPE_TIME_EXCEEDED or TYPE_PROBE_REPLY
+    public static byte[] answer(Frame probe, String name, int ip, int port) {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        int nameLength = Math.min(nameBytes.length, MAX_NAME_LENGTH);
+        ByteBuffer payload = ByteBuffer.allocate(7 + nameLength + PROBE_LENGTH);
+        payload.putInt(ip).putShort((short) port).put((byte) nameLength).put(nameBytes, 0, nameLength);
+        ByteBuffer source = probe.getPayloadSource();
+        for (int i = 0; i < PROBE_LENGTH; i++) payload.put(source.get(probe.getPayloadOffset() + i));
+        return payload.array();
+    }
+
+    public static String format(String target, List<Hop> hops) {
+        StringBuilder builder = new StringBuilder("Route to " + target + ":");
+        for (Hop hop : hops) {
+            builder.append(String.format("%n%3d  %-28s", hop.ttl, hop.responder == null ? "*" : hop.responder));
+            for (long rtt : hop.rttNanos) {
+                builder.append(rtt < 0 ? String.format("  %8s   ", "*") : String.format("  %8.3f ms", rtt / 1e6));
+            }
+        }
+        Hop last = hops.isEmpty() ? null : hops.get(hops.size() - 1);
+        if (last == null || !last.destination) builder.append(String.format("%nDestination not reached in %d hops", hops.size()));
+        return builder.toString();
+    }
+}
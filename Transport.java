@@ -0,0 +1,27 @@
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+
+// Datagram transport used by every device. The receiver callback gets a buffer
+// positioned on one datagram; it is only valid for the duration of the call.
+public interface Transport extends Closeable {
+
+    // Largest UDP payload over IPv4
+    int MAX_DATAGRAM = 65507;
+
+    interface Receiver {
+        void receive(ByteBuffer data, InetSocketAddress source);
+    }
+
+    // Starts delivering received datagrams to the receiver
+    void start(Receiver receiver);
+
+    // Sends data.remaining() bytes; the buffer's position and limit are left unchanged.
+    // Devices call this from several threads at once without further locking.
+    void send(ByteBuffer data, InetSocketAddress destination) throws IOException;
+
+    InetSocketAddress getLocalAddress();
+
+    @Override
+    void close();
+}
@@ -0,0 +1,78 @@
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+// Blocking DatagramChannel with a dedicated receive thread. Datagrams are read into a
+// direct buffer and sent straight from the buffer the device passes in, so a frame
+// relayed as received is never copied through the heap.
+public class UdpTransport implements Transport {
+
+    private final DatagramChannel channel;
+    private final int port;
+    private volatile boolean closed;
+
+    public UdpTransport(InetSocketAddress bindAddress) throws IOException {
+        this.channel = DatagramChannel.open(StandardProtocolFamily.INET);
+        channel.bind(bindAddress);
+        this.port = ((InetSocketAddress) channel.getLocalAddress()).getPort();
+    }
+
+    @Override
+    public void start(Receiver receiver) {
+        Thread thread = new Thread(() -> receiveLoop(receiver), "udp-" + port);
+        thread.start();
+    }
+
+    private void receiveLoop(Receiver receiver) {
+        ByteBuffer data = ByteBuffer.allocateDirect(MAX_DATAGRAM);
+        try {
+            while (!closed) {
+                data.clear();
+                InetSocketAddress source = (InetSocketAddress) channel.receive(data);
+                data.flip();
+                // A device's error costs it the datagram, not the socket
+                try {
+                    receiver.receive(data, source);
+                } catch (RuntimeException e) {
+                    System.err.println("\nError handling datagram on port " + port + ": " + e);
+                }
+            }
+        } catch (IOException e) {
+            if (!closed) {
+                System.err.println("\nError receiving on port " + port + ": " + e.getMessage());
+            }
+        } finally {
+            close();
+        }
+    }
+
+    @Override
+    public void send(ByteBuffer data, InetSocketAddress destination) throws IOException {
+        int position = data.position();
+        try {
+            channel.send(data, destination);
+        } finally {
+            data.position(position);
+        }
+    }
+
+    @Override
+    public InetSocketAddress getLocalAddress() {
+        try {
+            return (InetSocketAddress) channel.getLocalAddress();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            System.err.println("\nError closing channel: " + e.getMessage());
+        }
+    }
+}